@@ -1,5 +1,9 @@
 package fi.thl.covid19.exposurenotification;
 
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.cache2k.extra.spring.SpringCache2kCacheManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,6 +14,7 @@ import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cache.support.NoOpCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
 import java.time.Duration;
@@ -28,26 +33,50 @@ public class ApplicationConfiguration {
     private static final Logger LOG = LoggerFactory.getLogger(ApplicationConfiguration.class);
 
     private static final Duration REST_TIMEOUT = Duration.of(10, ChronoUnit.SECONDS);
+    private static final Duration REST_VALIDATE_AFTER_INACTIVITY = Duration.of(2, ChronoUnit.SECONDS);
+    private static final Duration REST_IDLE_TIMEOUT = Duration.of(30, ChronoUnit.SECONDS);
+
+    public static final String TOKEN_VERIFICATION_CACHE = "publish-token-verification";
+    private static final int TOKEN_VERIFICATION_CACHE_SIZE = 10000;
 
     private final boolean cacheEnabled;
     private final Duration statusCacheDuration;
     private final Duration fileCacheDuration;
+    private final Duration tokenVerificationCacheDuration;
 
     public ApplicationConfiguration(@Value("${covid19.diagnosis.data-cache.enabled}") boolean cacheEnabled,
                                     @Value("${covid19.diagnosis.data-cache.status-duration}") Duration statusCacheDuration,
-                                    @Value("${covid19.diagnosis.data-cache.file-duration}") Duration fileCacheDuration) {
+                                    @Value("${covid19.diagnosis.data-cache.file-duration}") Duration fileCacheDuration,
+                                    @Value("${covid19.publish-token.verification-cache-duration:PT1M}") Duration tokenVerificationCacheDuration) {
         this.cacheEnabled = cacheEnabled;
         this.statusCacheDuration = requireNonNull(statusCacheDuration);
         this.fileCacheDuration = requireNonNull(fileCacheDuration);
-        LOG.info("Initialized: {} {} {}",
+        this.tokenVerificationCacheDuration = requireNonNull(tokenVerificationCacheDuration);
+        LOG.info("Initialized: {} {} {} {}",
                 keyValue("cacheEnabled", cacheEnabled),
                 keyValue("statusCacheDuration", statusCacheDuration),
-                keyValue("fileCacheDuration", fileCacheDuration));
+                keyValue("fileCacheDuration", fileCacheDuration),
+                keyValue("tokenVerificationCacheDuration", tokenVerificationCacheDuration));
     }
 
+    /**
+     * Used for publish token verification, which is called on every publish request, so connections are pooled and
+     * kept alive between calls.
+     */
     @Bean("default")
-    public RestTemplate restTemplate(RestTemplateBuilder builder) {
+    public RestTemplate restTemplate(RestTemplateBuilder builder,
+                                     @Value("${covid19.publish-token.max-connections:20}") int maxConnections) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setValidateAfterInactivity((int) REST_VALIDATE_AFTER_INACTIVITY.toMillis());
+        CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictIdleConnections(REST_IDLE_TIMEOUT.toSeconds(), TimeUnit.SECONDS)
+                .build();
         return builder
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(client))
                 .setConnectTimeout(REST_TIMEOUT)
                 .setReadTimeout(REST_TIMEOUT)
                 .build();
@@ -63,21 +92,12 @@ public class ApplicationConfiguration {
                     b -> b.name("exposure-config-v2")
                             .expireAfterWrite(statusCacheDuration.toSeconds(), TimeUnit.SECONDS)
                             .entryCapacity(1),
-                    b -> b.name("available-intervals")
-                            .expireAfterWrite(statusCacheDuration.toSeconds(), TimeUnit.SECONDS)
-                            .entryCapacity(1),
-                    b -> b.name("available-intervals-v2")
-                            .expireAfterWrite(statusCacheDuration.toSeconds(), TimeUnit.SECONDS)
-                            .entryCapacity(1),
-                    b -> b.name("key-count")
-                            .expireAfterWrite(statusCacheDuration.toSeconds(), TimeUnit.SECONDS)
-                            .entryCapacity(DAYS_TO_KEEP_BATCHES),
-                    b -> b.name("key-count-v2")
-                            .expireAfterWrite(statusCacheDuration.toSeconds(), TimeUnit.SECONDS)
-                            .entryCapacity(V2_INTERVALS_TO_KEEP_BATCHES),
                     b -> b.name("batch-file")
                             .expireAfterWrite(fileCacheDuration.toSeconds(), TimeUnit.SECONDS)
-                            .entryCapacity(DAYS_TO_KEEP_BATCHES+V2_INTERVALS_TO_KEEP_BATCHES));
+                            .entryCapacity(DAYS_TO_KEEP_BATCHES+V2_INTERVALS_TO_KEEP_BATCHES),
+                    b -> b.name(TOKEN_VERIFICATION_CACHE)
+                            .expireAfterWrite(tokenVerificationCacheDuration.toSeconds(), TimeUnit.SECONDS)
+                            .entryCapacity(TOKEN_VERIFICATION_CACHE_SIZE));
         } else {
             return new NoOpCacheManager();
         }
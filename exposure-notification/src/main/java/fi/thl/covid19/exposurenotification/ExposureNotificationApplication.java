@@ -1,6 +1,9 @@
 package fi.thl.covid19.exposurenotification;
 
 import fi.thl.covid19.exposurenotification.batch.SignatureConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
@@ -11,12 +14,16 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.util.concurrent.Executor;
 
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
 @EnableScheduling
 @EnableAsync
 @EnableConfigurationProperties({SignatureConfig.class, FederationGatewayRestClientProperties.class})
 @SpringBootApplication
 public class ExposureNotificationApplication {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ExposureNotificationApplication.class);
+
     public static void main(String[] args) {
         SpringApplication.run(ExposureNotificationApplication.class, args);
     }
@@ -31,4 +38,59 @@ public class ExposureNotificationApplication {
         executor.initialize();
         return executor;
     }
+
+    /**
+     * Each batch generation holds a DB connection for its duration, so the parallelism is capped to half of the
+     * connection pool to leave room for API requests.
+     */
+    @Bean(name = "batchGenerationExecutor")
+    public Executor batchGenerationExecutor(
+            @Value("${covid19.diagnosis.batch-generation.parallelism:4}") int parallelism,
+            @Value("${spring.datasource.hikari.maximum-pool-size:10}") int dbPoolSize) {
+        int threads = Math.max(1, Math.min(parallelism, dbPoolSize / 2));
+        LOG.info("Batch generation executor: {} {}",
+                keyValue("threads", threads),
+                keyValue("configuredParallelism", parallelism));
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setThreadNamePrefix("batch-generator-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Bean(name = "publishWriterExecutor")
+    public Executor publishWriterExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setThreadNamePrefix("publish-writer-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * EFGS downloads are validated one audited sub-batch per task. The verification is CPU bound, so the pool is
+     * sized by the configuration rather than by the number of sub-batches.
+     */
+    @Bean(name = "efgsValidationExecutor")
+    public Executor efgsValidationExecutor(
+            @Value("${covid19.federation-gateway.validation-threads:4}") int threads) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Math.max(1, threads));
+        executor.setMaxPoolSize(Math.max(1, threads));
+        executor.setThreadNamePrefix("efgs-validator-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Bean(name = "efgsOutboundExecutor")
+    public Executor efgsOutboundExecutor(@Value("${covid19.federation-gateway.outbound.workers:1}") int workers) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Math.max(1, workers));
+        executor.setMaxPoolSize(Math.max(1, workers));
+        executor.setThreadNamePrefix("efgs-outbound-");
+        executor.initialize();
+        return executor;
+    }
 }
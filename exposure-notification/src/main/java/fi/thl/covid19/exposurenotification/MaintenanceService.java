@@ -1,8 +1,8 @@
 package fi.thl.covid19.exposurenotification;
 
 import fi.thl.covid19.exposurenotification.batch.BatchFileService;
-import fi.thl.covid19.exposurenotification.batch.BatchFileStorage;
 import fi.thl.covid19.exposurenotification.batch.BatchIntervals;
+import fi.thl.covid19.exposurenotification.diagnosiskey.AvailableIntervalIndex;
 import fi.thl.covid19.exposurenotification.diagnosiskey.DiagnosisKeyDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +13,7 @@ import org.springframework.stereotype.Service;
 import java.time.Duration;
 import java.time.Instant;
 
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.to24HourInterval;
 import static java.util.Objects.requireNonNull;
 import static net.logstash.logback.argument.StructuredArguments.keyValue;
 
@@ -22,20 +23,25 @@ public class MaintenanceService {
     private static final Logger LOG = LoggerFactory.getLogger(MaintenanceService.class);
 
     private final DiagnosisKeyDao dao;
-    private final BatchFileStorage batchFileStorage;
     private final BatchFileService batchFileService;
+    private final AvailableIntervalIndex intervalIndex;
 
     private final Duration tokenVerificationLifetime;
+    private final int keyPartitionsAhead;
 
     public MaintenanceService(DiagnosisKeyDao dao,
                               BatchFileService batchFileService,
-                              BatchFileStorage batchFileStorage,
-                              @Value("${covid19.maintenance.token-verification-lifetime}") Duration tokenVerificationLifetime) {
+                              AvailableIntervalIndex intervalIndex,
+                              @Value("${covid19.maintenance.token-verification-lifetime}") Duration tokenVerificationLifetime,
+                              @Value("${covid19.maintenance.key-partitions-ahead:7}") int keyPartitionsAhead) {
         this.dao = requireNonNull(dao);
-        this.batchFileStorage = requireNonNull(batchFileStorage);
         this.batchFileService = requireNonNull(batchFileService);
+        this.intervalIndex = requireNonNull(intervalIndex);
         this.tokenVerificationLifetime = requireNonNull(tokenVerificationLifetime);
-        LOG.info("Initialized: {}", keyValue("tokenVerificationLifetime", tokenVerificationLifetime));
+        this.keyPartitionsAhead = keyPartitionsAhead;
+        LOG.info("Initialized: {} {}",
+                keyValue("tokenVerificationLifetime", tokenVerificationLifetime),
+                keyValue("keyPartitionsAhead", keyPartitionsAhead));
     }
 
     @Scheduled(initialDelayString = "${covid19.maintenance.interval}",
@@ -54,17 +60,32 @@ public class MaintenanceService {
                 keyValue("firstFile", intervalsV2.first),
                 keyValue("lastFile", intervalsV2.last));
 
+        int addedPartitions = createPartitions();
         int removedKeys = dao.deleteKeysBefore(intervals.first);
         int removedVerifications = dao.deleteVerificationsBefore(Instant.now().minus(tokenVerificationLifetime));
-        int removedBatches = batchFileStorage.deleteKeyBatchesBefore(intervals.first);
+        int removedBatches = batchFileService.deleteBatchesBefore(intervals.first);
+        // Pick up keys inserted by other nodes before deciding which batches are missing
+        intervalIndex.refresh();
         int addedBatches = batchFileService.cacheMissingBatchesBetween(intervals.first, intervals.last);
         int addedBatchesV2 = batchFileService.cacheMissingBatchesBetweenV2(intervalsV2.first, intervalsV2.last);
 
-        LOG.info("Batches updated: {} {} {} {} {}",
+        LOG.info("Batches updated: {} {} {} {} {} {}",
+                keyValue("addedPartitions", addedPartitions),
                 keyValue("removedKeys", removedBatches),
                 keyValue("removedVerifications", removedVerifications),
                 keyValue("removedBatches", removedKeys),
                 keyValue("addedBatches", addedBatches),
                 keyValue("addedBatchesV2", addedBatchesV2));
     }
+
+    // Keys of a day without a partition still go to the default partition, so a failure here must not stop the cleanup
+    private int createPartitions() {
+        int currentInterval = to24HourInterval(Instant.now());
+        try {
+            return dao.createPartitions(currentInterval, currentInterval + keyPartitionsAhead);
+        } catch (RuntimeException e) {
+            LOG.error("Creating key partitions failed: {}", keyValue("currentInterval", currentInterval), e);
+            return 0;
+        }
+    }
 }
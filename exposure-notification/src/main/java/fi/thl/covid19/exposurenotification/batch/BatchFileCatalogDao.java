@@ -0,0 +1,97 @@
+package fi.thl.covid19.exposurenotification.batch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Catalog of the generated batch files, so that nodes sharing the file storage know which batches exist without
+ * probing the file system.
+ */
+@Repository
+public class BatchFileCatalogDao {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchFileCatalogDao.class);
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    public BatchFileCatalogDao(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = requireNonNull(jdbcTemplate);
+    }
+
+    @Transactional
+    public void addBatchFile(BatchFileCatalogEntry entry) {
+        String sql = "insert into en.batch_file " +
+                "(batch_id, interval_number, interval_number_v2, v2, key_count, byte_size, sha256, generated_at, signing_key_version) " +
+                "values (:batch_id, :interval_number, :interval_number_v2, :v2, :key_count, :byte_size, :sha256, :generated_at, :signing_key_version) " +
+                "on conflict (batch_id) do update set " +
+                "key_count = excluded.key_count, " +
+                "byte_size = excluded.byte_size, " +
+                "sha256 = excluded.sha256, " +
+                "generated_at = excluded.generated_at, " +
+                "signing_key_version = excluded.signing_key_version";
+        Map<String, Object> params = new HashMap<>();
+        params.put("batch_id", entry.batchId.toString());
+        params.put("interval_number", entry.batchId.intervalNumber);
+        params.put("interval_number_v2", entry.batchId.intervalNumberV2.orElse(null));
+        params.put("v2", entry.isV2());
+        params.put("key_count", entry.keyCount);
+        params.put("byte_size", entry.byteSize);
+        params.put("sha256", entry.sha256);
+        params.put("generated_at", Timestamp.from(entry.generatedAt));
+        params.put("signing_key_version", entry.signingKeyVersion);
+        jdbcTemplate.update(sql, params);
+    }
+
+    @Transactional
+    public Set<BatchId> getBatchIds() {
+        String sql = "select batch_id from en.batch_file";
+        return new HashSet<>(jdbcTemplate.query(sql, (rs, i) -> new BatchId(rs.getString("batch_id"))));
+    }
+
+    @Transactional
+    public List<BatchFileCatalogEntry> getBatchFiles() {
+        String sql = "select batch_id, key_count, byte_size, sha256, generated_at, signing_key_version " +
+                "from en.batch_file " +
+                "order by interval_number, interval_number_v2";
+        return jdbcTemplate.query(sql, (rs, i) -> mapEntry(rs));
+    }
+
+    /**
+     * Removes the catalog rows of batches older than the given 24h interval.
+     *
+     * @return the removed batches, whose files should be deleted
+     */
+    @Transactional
+    public List<BatchId> deleteBatchFilesBefore(int interval) {
+        String sql = "delete from en.batch_file where interval_number < :interval returning batch_id";
+        List<BatchId> removed = jdbcTemplate.query(sql, Map.of("interval", interval),
+                (rs, i) -> new BatchId(rs.getString("batch_id")));
+        LOG.info("Batch catalog entries deleted: {} {}", keyValue("beforeInterval", interval), keyValue("count", removed.size()));
+        return removed;
+    }
+
+    private BatchFileCatalogEntry mapEntry(ResultSet rs) throws SQLException {
+        return new BatchFileCatalogEntry(
+                new BatchId(rs.getString("batch_id")),
+                rs.getInt("key_count"),
+                rs.getLong("byte_size"),
+                rs.getString("sha256"),
+                rs.getTimestamp("generated_at").toInstant(),
+                rs.getString("signing_key_version"));
+    }
+}
@@ -0,0 +1,32 @@
+package fi.thl.covid19.exposurenotification.batch;
+
+import java.time.Instant;
+
+import static java.util.Objects.requireNonNull;
+
+public class BatchFileCatalogEntry {
+    public final BatchId batchId;
+    public final int keyCount;
+    public final long byteSize;
+    public final String sha256;
+    public final Instant generatedAt;
+    public final String signingKeyVersion;
+
+    public BatchFileCatalogEntry(BatchId batchId,
+                                 int keyCount,
+                                 long byteSize,
+                                 String sha256,
+                                 Instant generatedAt,
+                                 String signingKeyVersion) {
+        this.batchId = requireNonNull(batchId);
+        this.keyCount = keyCount;
+        this.byteSize = byteSize;
+        this.sha256 = requireNonNull(sha256);
+        this.generatedAt = requireNonNull(generatedAt);
+        this.signingKeyVersion = requireNonNull(signingKeyVersion);
+    }
+
+    public boolean isV2() {
+        return batchId.intervalNumberV2.isPresent();
+    }
+}
@@ -1,16 +1,23 @@
 package fi.thl.covid19.exposurenotification.batch;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKeyBlock;
 import fi.thl.covid19.proto.*;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
-import java.util.Base64;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -28,11 +35,107 @@ public final class BatchFileFactory {
 
     private static final int DEFAULT_BYTE_SIZE = 32 * 1024;
 
+    // Field numbers of TemporaryExposureKeyExport, written in the same order as the generated writeTo
+    private static final int EXPORT_START_TIMESTAMP_FIELD = 1;
+    private static final int EXPORT_END_TIMESTAMP_FIELD = 2;
+    private static final int EXPORT_REGION_FIELD = 3;
+    private static final int EXPORT_BATCH_NUM_FIELD = 4;
+    private static final int EXPORT_BATCH_SIZE_FIELD = 5;
+    private static final int EXPORT_SIGNATURE_INFOS_FIELD = 6;
+    private static final int EXPORT_KEYS_FIELD = 7;
+
+    // Field numbers of TemporaryExposureKey, written in the same order as the generated writeTo
+    private static final int KEY_DATA_FIELD = 1;
+    private static final int KEY_TRANSMISSION_RISK_LEVEL_FIELD = 2;
+    private static final int KEY_ROLLING_START_INTERVAL_NUMBER_FIELD = 3;
+    private static final int KEY_ROLLING_PERIOD_FIELD = 4;
+    private static final int KEY_REPORT_TYPE_FIELD = 5;
+    private static final int KEY_DAYS_SINCE_ONSET_OF_SYMPTOMS_FIELD = 6;
+
+    private static final int KEY_SOURCE_BLOCK_SIZE = 1000;
+
+    /**
+     * Source of keys for a streamed export. Keys must be given in the order they should appear in the file.
+     */
+    @FunctionalInterface
+    public interface KeySource {
+        void forEachKey(Consumer<fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKey> action);
+    }
+
+    /**
+     * Source of key blocks for a streamed export. Blocks must be given in the order their keys should appear in the
+     * file, and may be reused by the source once they have been written.
+     */
+    @FunctionalInterface
+    public interface KeyBlockSource {
+        void forEachBlock(Consumer<TemporaryExposureKeyBlock> action);
+    }
+
+    /**
+     * Writes the batch zip into the given stream one key at a time, producing the same export.bin as
+     * {@link #createBatchFile(SignatureConfig, PrivateKey, BatchMetadata, List)} without holding the keys in memory.
+     * The signature is calculated incrementally as the export is written. Nothing is written if the source
+     * provides no keys.
+     *
+     * @return the amount of keys written
+     */
+    public static int writeBatchFile(
+            SignatureConfig signatureConfig,
+            PrivateKey key,
+            BatchMetadata metadata,
+            KeySource keys,
+            OutputStream out) {
+        return writeBatchFileFromBlocks(signatureConfig, key, metadata, action -> {
+            TemporaryExposureKeyBlock block = new TemporaryExposureKeyBlock(KEY_SOURCE_BLOCK_SIZE);
+            keys.forEachKey(exposureKey -> {
+                block.add(exposureKey);
+                if (block.size() == KEY_SOURCE_BLOCK_SIZE) {
+                    action.accept(block);
+                    block.clear();
+                }
+            });
+            if (!block.isEmpty()) {
+                action.accept(block);
+            }
+        }, out);
+    }
+
+    /**
+     * Streams the batch zip like {@link #writeBatchFile(SignatureConfig, PrivateKey, BatchMetadata, KeySource, OutputStream)},
+     * taking the keys a block at a time.
+     *
+     * @return the amount of keys written
+     */
+    public static int writeBatchFileFromBlocks(
+            SignatureConfig signatureConfig,
+            PrivateKey key,
+            BatchMetadata metadata,
+            KeyBlockSource blocks,
+            OutputStream out) {
+        try {
+            StreamingExport export = new StreamingExport(signatureConfig, key, metadata, out);
+            blocks.forEachBlock(export::write);
+            return export.finish();
+        } catch (UncheckedIOException e) {
+            throw new IllegalStateException("Batch file creation failed", e.getCause());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Batch file creation failed", e);
+        }
+    }
+
     public static byte[] createBatchFile(
             SignatureConfig signatureConfig,
             PrivateKey key,
             BatchMetadata metadata,
             List<fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKey> keys) {
+        return createBatchFile(signatureConfig, key, metadata, TemporaryExposureKeyBlock.of(keys));
+    }
+
+    public static byte[] createBatchFile(
+            SignatureConfig signatureConfig,
+            PrivateKey key,
+            BatchMetadata metadata,
+            TemporaryExposureKeyBlock keys) {
 
         if (keys.isEmpty()) throw new IllegalArgumentException("Cannot create a batch file without keys");
         try (ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(DEFAULT_BYTE_SIZE);
@@ -58,27 +161,54 @@ public final class BatchFileFactory {
 
     private static byte[] getBinFileBytes(SignatureConfig signatureConfig,
                                           BatchMetadata metadata,
-                                          List<fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKey> keys) throws IOException {
+                                          TemporaryExposureKeyBlock keys) throws IOException {
         try (ByteArrayOutputStream stream = new ByteArrayOutputStream(DEFAULT_BYTE_SIZE)) {
             stream.writeBytes(StringUtils.rightPad(BIN_HEADER, BIN_HEADER_LENGTH, ' ').getBytes(UTF_8));
-            createKeyExport(signatureConfig, metadata, keys).writeTo(stream);
+            CodedOutputStream binOut = CodedOutputStream.newInstance(stream, DEFAULT_BYTE_SIZE);
+            writeExportHeader(binOut, signatureConfig, metadata);
+            writeKeys(binOut, keys, new byte[TemporaryExposureKeyBlock.KEY_DATA_LENGTH]);
+            binOut.flush();
             return stream.toByteArray();
         }
     }
 
-    private static TemporaryExposureKeyExport createKeyExport(
-            SignatureConfig signatureConfig,
-            BatchMetadata metadata,
-            List<fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKey> keys) {
-        return TemporaryExposureKeyExport.newBuilder()
-                .setStartTimestamp(metadata.startTimestampUtcSec)
-                .setEndTimestamp(metadata.endTimestampUtcSec)
-                .setRegion(metadata.region)
-                .setBatchNum(1)
-                .setBatchSize(1)
-                .addAllKeys(keys.stream().map(BatchFileFactory::toProtoBuf).collect(Collectors.toList()))
-                .addSignatureInfos(BatchFileFactory.createSignatureInfo(signatureConfig))
-                .build();
+    private static void writeExportHeader(CodedOutputStream binOut, SignatureConfig signatureConfig, BatchMetadata metadata)
+            throws IOException {
+        binOut.writeFixed64(EXPORT_START_TIMESTAMP_FIELD, metadata.startTimestampUtcSec);
+        binOut.writeFixed64(EXPORT_END_TIMESTAMP_FIELD, metadata.endTimestampUtcSec);
+        binOut.writeString(EXPORT_REGION_FIELD, metadata.region);
+        binOut.writeInt32(EXPORT_BATCH_NUM_FIELD, 1);
+        binOut.writeInt32(EXPORT_BATCH_SIZE_FIELD, 1);
+        binOut.writeMessage(EXPORT_SIGNATURE_INFOS_FIELD, createSignatureInfo(signatureConfig));
+    }
+
+    /**
+     * Writes the keys as the generated TemporaryExposureKey messages would be written, straight from the block.
+     */
+    private static void writeKeys(CodedOutputStream binOut, TemporaryExposureKeyBlock keys, byte[] keyData) throws IOException {
+        int reportType = TemporaryExposureKey.ReportType.CONFIRMED_TEST.getNumber();
+        for (int i = 0; i < keys.size(); i++) {
+            keys.copyKeyData(i, keyData, 0);
+            int transmissionRiskLevel = keys.transmissionRiskLevel(i);
+            int rollingStartIntervalNumber = keys.rollingStartIntervalNumber(i);
+            int rollingPeriod = keys.rollingPeriod(i);
+            int daysSinceOnsetOfSymptoms = keys.hasDaysSinceOnsetOfSymptoms(i)
+                    ? keys.daysSinceOnsetOfSymptoms(i) : DEFAULT_LOCAL_DAYS_SINCE_SYMPTOMS;
+            int size = CodedOutputStream.computeByteArraySize(KEY_DATA_FIELD, keyData) +
+                    CodedOutputStream.computeInt32Size(KEY_TRANSMISSION_RISK_LEVEL_FIELD, transmissionRiskLevel) +
+                    CodedOutputStream.computeInt32Size(KEY_ROLLING_START_INTERVAL_NUMBER_FIELD, rollingStartIntervalNumber) +
+                    CodedOutputStream.computeInt32Size(KEY_ROLLING_PERIOD_FIELD, rollingPeriod) +
+                    CodedOutputStream.computeEnumSize(KEY_REPORT_TYPE_FIELD, reportType) +
+                    CodedOutputStream.computeSInt32Size(KEY_DAYS_SINCE_ONSET_OF_SYMPTOMS_FIELD, daysSinceOnsetOfSymptoms);
+            binOut.writeTag(EXPORT_KEYS_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            binOut.writeUInt32NoTag(size);
+            binOut.writeByteArray(KEY_DATA_FIELD, keyData);
+            binOut.writeInt32(KEY_TRANSMISSION_RISK_LEVEL_FIELD, transmissionRiskLevel);
+            binOut.writeInt32(KEY_ROLLING_START_INTERVAL_NUMBER_FIELD, rollingStartIntervalNumber);
+            binOut.writeInt32(KEY_ROLLING_PERIOD_FIELD, rollingPeriod);
+            binOut.writeEnum(KEY_REPORT_TYPE_FIELD, reportType);
+            binOut.writeSInt32(KEY_DAYS_SINCE_ONSET_OF_SYMPTOMS_FIELD, daysSinceOnsetOfSymptoms);
+        }
     }
 
     private static SignatureInfo createSignatureInfo(SignatureConfig config) {
@@ -99,14 +229,97 @@ public final class BatchFileFactory {
         return TEKSignatureList.newBuilder().addSignatures(signature).build();
     }
 
-    private static TemporaryExposureKey toProtoBuf(fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKey key) {
-        return TemporaryExposureKey.newBuilder()
-                .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.keyData.getBytes(UTF_8))))
-                .setTransmissionRiskLevel(key.transmissionRiskLevel)
-                .setRollingStartIntervalNumber(key.rollingStartIntervalNumber)
-                .setRollingPeriod(key.rollingPeriod)
-                .setReportType(TemporaryExposureKey.ReportType.CONFIRMED_TEST)
-                .setDaysSinceOnsetOfSymptoms(key.daysSinceOnsetOfSymptoms.orElse(DEFAULT_LOCAL_DAYS_SINCE_SYMPTOMS))
-                .build();
+    private static final class StreamingExport {
+        private final SignatureConfig signatureConfig;
+        private final PrivateKey key;
+        private final BatchMetadata metadata;
+        private final OutputStream out;
+
+        private ZipOutputStream zipOut;
+        private Signature signature;
+        private CodedOutputStream binOut;
+        private final byte[] keyData = new byte[TemporaryExposureKeyBlock.KEY_DATA_LENGTH];
+        private int count = 0;
+
+        private StreamingExport(SignatureConfig signatureConfig, PrivateKey key, BatchMetadata metadata, OutputStream out) {
+            this.signatureConfig = signatureConfig;
+            this.key = key;
+            this.metadata = metadata;
+            this.out = out;
+        }
+
+        private void write(TemporaryExposureKeyBlock keys) {
+            try {
+                if (keys.isEmpty()) {
+                    return;
+                }
+                if (count == 0) {
+                    start();
+                }
+                writeKeys(binOut, keys, keyData);
+                count += keys.size();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Batch file signing failed", e);
+            }
+        }
+
+        private void start() throws IOException, GeneralSecurityException {
+            signature = Signature.getInstance(signatureConfig.algorithmName);
+            signature.initSign(key);
+
+            zipOut = new ZipOutputStream(out);
+            zipOut.putNextEntry(new ZipEntry(BIN_NAME));
+            SigningOutputStream signingOut = new SigningOutputStream(zipOut, signature);
+            signingOut.write(StringUtils.rightPad(BIN_HEADER, BIN_HEADER_LENGTH, ' ').getBytes(UTF_8));
+
+            binOut = CodedOutputStream.newInstance(signingOut, DEFAULT_BYTE_SIZE);
+            writeExportHeader(binOut, signatureConfig, metadata);
+        }
+
+        private int finish() throws IOException, GeneralSecurityException {
+            if (count > 0) {
+                binOut.flush();
+                zipOut.closeEntry();
+
+                zipOut.putNextEntry(new ZipEntry(SIG_NAME));
+                createSignatureList(signatureConfig, signature.sign()).writeTo(zipOut);
+                zipOut.closeEntry();
+
+                zipOut.finish();
+                zipOut.flush();
+            }
+            return count;
+        }
+    }
+
+    private static final class SigningOutputStream extends FilterOutputStream {
+        private final Signature signature;
+
+        private SigningOutputStream(OutputStream out, Signature signature) {
+            super(out);
+            this.signature = signature;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                signature.update((byte) b);
+            } catch (SignatureException e) {
+                throw new IOException("Batch file signing failed", e);
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                signature.update(b, off, len);
+            } catch (SignatureException e) {
+                throw new IOException("Batch file signing failed", e);
+            }
+            out.write(b, off, len);
+        }
     }
 }
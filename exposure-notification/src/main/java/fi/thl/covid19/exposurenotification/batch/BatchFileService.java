@@ -1,19 +1,36 @@
 package fi.thl.covid19.exposurenotification.batch;
 
+import fi.thl.covid19.exposurenotification.diagnosiskey.AvailableIntervalIndex;
 import fi.thl.covid19.exposurenotification.diagnosiskey.DiagnosisKeyDao;
 import fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKey;
 import fi.thl.covid19.exposurenotification.error.BatchNotFoundException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.security.KeyPair;
 import java.security.PrivateKey;
+import java.time.Instant;
 import java.util.Base64;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.fromV2to24hourInterval;
@@ -26,23 +43,44 @@ public class BatchFileService {
     private static final Logger LOG = LoggerFactory.getLogger(BatchFileService.class);
 
     private static final String PRIVATE_KEY_ENV_VARIABLE = "EN_SIGNING_PRIVATE_PKCS8";
+    private static final int DEFAULT_BYTE_SIZE = 32 * 1024;
+
+    private static final String BATCH_GENERATION_TIMER = "batch_file_generation";
 
     private final DiagnosisKeyDao dao;
+    private final AvailableIntervalIndex intervalIndex;
     private final BatchFileStorage batchFileStorage;
+    private final BatchFileCatalogDao catalogDao;
 
     private final String region;
     private final SignatureConfig signatureConfig;
     private final PrivateKey signingKey;
+    private final boolean streamingExport;
+    private final boolean sharedStorage;
+    private final Executor batchGenerationExecutor;
+    private final MeterRegistry meterRegistry;
 
     public BatchFileService(DiagnosisKeyDao dao,
+                            AvailableIntervalIndex intervalIndex,
                             SignatureConfig signatureConfig,
                             BatchFileStorage batchFileStorage,
+                            BatchFileCatalogDao catalogDao,
                             @Value("${covid19.region}") String region,
-                            @Value("${covid19.diagnosis.signature.randomize-key:false}") boolean randomizeKey) {
+                            @Value("${covid19.diagnosis.signature.randomize-key:false}") boolean randomizeKey,
+                            @Value("${covid19.diagnosis.batch-generation.streaming:true}") boolean streamingExport,
+                            @Value("${covid19.diagnosis.file-storage.shared:false}") boolean sharedStorage,
+                            @Qualifier("batchGenerationExecutor") Executor batchGenerationExecutor,
+                            MeterRegistry meterRegistry) {
         this.dao = requireNonNull(dao, "DAO required");
+        this.intervalIndex = requireNonNull(intervalIndex, "Interval index required");
         this.batchFileStorage = requireNonNull(batchFileStorage, "BatchFileStorage required");
+        this.catalogDao = requireNonNull(catalogDao, "Batch catalog DAO required");
         this.signatureConfig = requireNonNull(signatureConfig, "SignatureConfig required");
         this.region = requireNonNull(region, "Region required");
+        this.streamingExport = streamingExport;
+        this.sharedStorage = sharedStorage;
+        this.batchGenerationExecutor = requireNonNull(batchGenerationExecutor, "Batch generation executor required");
+        this.meterRegistry = requireNonNull(meterRegistry, "MeterRegistry required");
         if (randomizeKey) {
             KeyPair keyPair = Signing.randomKeyPair();
             String publicKey = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
@@ -56,34 +94,106 @@ public class BatchFileService {
         }
     }
 
-    public int cacheMissingBatchesBetween(int fromInterval, int untilInterval) {
-        int added = 0;
-        List<Integer> available = dao.getAvailableIntervalsDirect();
-        for (int interval = fromInterval; interval <= untilInterval; interval++) {
-            BatchId id = new BatchId(interval);
-            if (available.contains(interval) && !batchFileStorage.fileExists(id)) {
-                batchFileStorage.addBatchFile(id, createBatchData(id));
-                added++;
-            }
+    /**
+     * Removes the batches before the given interval. With shared storage the catalog tells which files exist,
+     * otherwise the local directory is scanned.
+     */
+    public int deleteBatchesBefore(int interval) {
+        List<BatchId> cataloged = catalogDao.deleteBatchFilesBefore(interval);
+        if (sharedStorage) {
+            return batchFileStorage.deleteBatchFiles(cataloged);
+        } else {
+            return batchFileStorage.deleteKeyBatchesBefore(interval);
         }
-        return added;
+    }
+
+    public List<BatchFileCatalogEntry> getBatchCatalog() {
+        return catalogDao.getBatchFiles();
+    }
+
+    public int cacheMissingBatchesBetween(int fromInterval, int untilInterval) {
+        Set<BatchId> cataloged = sharedStorage ? catalogDao.getBatchIds() : Set.of();
+        List<BatchId> missing = IntStream.rangeClosed(fromInterval, untilInterval)
+                .filter(interval -> intervalIndex.getKeyCount(interval) > 0)
+                .mapToObj(BatchId::new)
+                .filter(id -> !isGenerated(cataloged, id))
+                .collect(Collectors.toList());
+        return generateConcurrently(missing, "v1", this::cacheBatchFile);
     }
 
     public int cacheMissingBatchesBetweenV2(int fromInterval, int untilInterval) {
+        Set<BatchId> cataloged = sharedStorage ? catalogDao.getBatchIds() : Set.of();
+        List<BatchId> missing = IntStream.rangeClosed(fromInterval, untilInterval)
+                .filter(interval -> intervalIndex.getKeyCountV2(interval) > 0)
+                .mapToObj(interval -> new BatchId(fromV2to24hourInterval(interval), Optional.of(interval)))
+                .filter(id -> !isGenerated(cataloged, id))
+                .collect(Collectors.toList());
+        return generateConcurrently(missing, "v2", this::cacheBatchFileV2);
+    }
+
+    private boolean isGenerated(Set<BatchId> cataloged, BatchId id) {
+        return sharedStorage ? cataloged.contains(id) : batchFileStorage.fileExists(id);
+    }
+
+    private int generateConcurrently(List<BatchId> ids, String version, Consumer<BatchId> generator) {
+        List<CompletableFuture<Void>> tasks = ids.stream()
+                .map(id -> CompletableFuture.runAsync(() -> timedGeneration(id, version, generator), batchGenerationExecutor))
+                .collect(Collectors.toList());
         int added = 0;
-        List<Integer> available = dao.getAvailableIntervalsDirectV2();
-        for (int interval = fromInterval; interval <= untilInterval; interval++) {
-            BatchId id = new BatchId(fromV2to24hourInterval(interval), Optional.of(interval));
-            if (available.contains(interval) && !batchFileStorage.fileExists(id)) {
-                batchFileStorage.addBatchFile(id, createBatchDataV2(id));
+        Throwable failure = null;
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                tasks.get(i).join();
                 added++;
+            } catch (CompletionException e) {
+                LOG.error("Batch file generation failed: {}", keyValue("batchId", ids.get(i)), e.getCause());
+                failure = failure == null ? e.getCause() : failure;
             }
         }
+        if (failure != null) {
+            throw new IllegalStateException("Batch file generation failed for " + (ids.size() - added) + " batches", failure);
+        }
         return added;
     }
 
+    private void timedGeneration(BatchId id, String version, Consumer<BatchId> generator) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "failure";
+        try {
+            generator.accept(id);
+            outcome = "success";
+        } finally {
+            long nanos = sample.stop(meterRegistry.timer(BATCH_GENERATION_TIMER, "version", version, "outcome", outcome));
+            LOG.info("Batch file generated: {} {} {}",
+                    keyValue("batchId", id),
+                    keyValue("outcome", outcome),
+                    keyValue("durationMs", nanos / 1_000_000));
+        }
+    }
+
+    private void cacheBatchFile(BatchId id) {
+        AtomicInteger keyCount = new AtomicInteger();
+        StoredBatchFile stored = streamingExport
+                ? batchFileStorage.addBatchFile(id, out -> keyCount.set(writeBatchData(id, out)))
+                : batchFileStorage.addBatchFile(id, createBatchData(id, keyCount));
+        addToCatalog(stored, keyCount.get());
+    }
+
+    private void cacheBatchFileV2(BatchId id) {
+        AtomicInteger keyCount = new AtomicInteger();
+        StoredBatchFile stored = streamingExport
+                ? batchFileStorage.addBatchFile(id, out -> keyCount.set(writeBatchDataV2(id, out)))
+                : batchFileStorage.addBatchFile(id, createBatchDataV2(id, keyCount));
+        addToCatalog(stored, keyCount.get());
+    }
+
+    private void addToCatalog(StoredBatchFile stored, int keyCount) {
+        catalogDao.addBatchFile(new BatchFileCatalogEntry(
+                stored.id, keyCount, stored.byteSize, stored.sha256, Instant.now(), signatureConfig.keyVersion));
+    }
+
     public List<BatchId> listBatchIdsSince(BatchId previous, BatchIntervals intervals) {
-        Stream<BatchId> batches = dao.getAvailableIntervals().stream()
+        Stream<BatchId> batches = intervalIndex.getIntervals().stream()
                 .filter(i -> i != intervals.current && intervals.isDistributed(i))
                 .map(BatchId::new);
         if (intervals.current == intervals.last) {
@@ -93,7 +203,7 @@ public class BatchFileService {
     }
 
     public List<BatchId> listBatchIdsSinceV2(BatchId previous, BatchIntervals intervals) {
-        Stream<BatchId> batches = dao.getAvailableIntervalsV2().stream()
+        Stream<BatchId> batches = intervalIndex.getIntervalsV2().stream()
                 .filter(i -> i != intervals.current && intervals.isDistributed(i))
                 .map(i -> new BatchId(fromV2to24hourInterval(i), Optional.of(i)));
         if (intervals.current == intervals.last) {
@@ -103,13 +213,13 @@ public class BatchFileService {
     }
 
     public Optional<BatchId> getDemoBatchId(int currentInterval) {
-        int count = dao.getKeyCount(currentInterval);
+        int count = intervalIndex.getKeyCount(currentInterval);
         int demoId = generateDemoId(count, 100000);
         return count > 0 ? Optional.of(new BatchId(currentInterval, generateDemoTagPart(currentInterval, demoId))) : Optional.empty();
     }
 
     public Optional<BatchId> getDemoBatchIdV2(int currentInterval) {
-        int count = dao.getKeyCountV2(currentInterval);
+        int count = intervalIndex.getKeyCountV2(currentInterval);
         int demoId = generateDemoId(count, 10000);
         return count > 0 ? Optional.of(new BatchId(fromV2to24hourInterval(currentInterval), generateDemoTagPart(currentInterval, demoId))) : Optional.empty();
     }
@@ -124,13 +234,37 @@ public class BatchFileService {
                 });
     }
 
+    public Optional<String> getBatchFileETag(BatchId id) {
+        return batchFileStorage.getETag(id);
+    }
+
+    /**
+     * Returns the batch file as a resource backed by the file on disk, so that it can be streamed to the client
+     * without reading it into memory first.
+     */
+    public Resource getBatchFileResource(BatchId id) {
+        return batchFileStorage
+                .findBatchFile(id)
+                .<Resource>map(FileSystemResource::new)
+                .orElseGet(() -> {
+                    LOG.warn("Batch file was not cached - generating it on the fly. This should not happen in production mode.");
+                    return new ByteArrayResource(createBatchFile(id).data);
+                });
+    }
+
     public BatchFile createBatchFile(BatchId id) {
-        return new BatchFile(id, createBatchData(id));
+        if (streamingExport) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(DEFAULT_BYTE_SIZE);
+            writeBatchData(id, out);
+            return new BatchFile(id, out.toByteArray());
+        } else {
+            return new BatchFile(id, createBatchData(id, new AtomicInteger()));
+        }
     }
 
     public BatchId getLatestBatchId(BatchIntervals intervals) {
         if (intervals.current == intervals.last) {
-            int count = dao.getKeyCount(intervals.last);
+            int count = intervalIndex.getKeyCount(intervals.last);
             int demoId = generateDemoId(count, 100000);
             return new BatchId(intervals.last, generateDemoTagPart(intervals.last, demoId));
         } else {
@@ -140,7 +274,7 @@ public class BatchFileService {
 
     public BatchId getLatestBatchIdV2(BatchIntervals intervals) {
         if (intervals.current == intervals.last) {
-            int count = dao.getKeyCountV2(intervals.last);
+            int count = intervalIndex.getKeyCountV2(intervals.last);
             int demoId = generateDemoId(count, 10000);
             return new BatchId(fromV2to24hourInterval(intervals.last), generateDemoTagPart(intervals.last, demoId));
         } else {
@@ -148,18 +282,19 @@ public class BatchFileService {
         }
     }
 
-    private byte[] createBatchData(BatchId id) {
+    private byte[] createBatchData(BatchId id, AtomicInteger keyCount) {
         LOG.debug("Generating batch file: {}", keyValue("batchId", id));
         List<TemporaryExposureKey> keys = dao.getIntervalKeysWithDummyPadding(id.intervalNumber, false);
         if (keys.isEmpty()) {
             throw new BatchNotFoundException(id);
         } else {
             BatchMetadata metadata = BatchMetadata.of(id.intervalNumber, region);
+            keyCount.set(keys.size());
             return BatchFileFactory.createBatchFile(signatureConfig, signingKey, metadata, keys);
         }
     }
 
-    private byte[] createBatchDataV2(BatchId id) {
+    private byte[] createBatchDataV2(BatchId id, AtomicInteger keyCount) {
         LOG.debug("Generating V2 batch file: {}", keyValue("batchId", id));
         int intervalV2 = id.intervalNumberV2.orElseThrow();
         List<TemporaryExposureKey> keys = dao.getIntervalKeysWithDummyPadding(intervalV2, true);
@@ -167,10 +302,33 @@ public class BatchFileService {
             throw new BatchNotFoundException(id);
         } else {
             BatchMetadata metadata = BatchMetadata.ofV2(intervalV2, region);
+            keyCount.set(keys.size());
             return BatchFileFactory.createBatchFile(signatureConfig, signingKey, metadata, keys);
         }
     }
 
+    private int writeBatchData(BatchId id, OutputStream out) {
+        LOG.debug("Streaming batch file: {}", keyValue("batchId", id));
+        BatchMetadata metadata = BatchMetadata.of(id.intervalNumber, region);
+        return writeBatchData(id, id.intervalNumber, false, metadata, out);
+    }
+
+    private int writeBatchDataV2(BatchId id, OutputStream out) {
+        LOG.debug("Streaming V2 batch file: {}", keyValue("batchId", id));
+        int intervalV2 = id.intervalNumberV2.orElseThrow();
+        BatchMetadata metadata = BatchMetadata.ofV2(intervalV2, region);
+        return writeBatchData(id, intervalV2, true, metadata, out);
+    }
+
+    private int writeBatchData(BatchId id, int interval, boolean isV2Interval, BatchMetadata metadata, OutputStream out) {
+        int count = BatchFileFactory.writeBatchFileFromBlocks(signatureConfig, signingKey, metadata,
+                action -> dao.forEachIntervalKeyBlockWithDummyPadding(interval, isV2Interval, action), out);
+        if (count == 0) {
+            throw new BatchNotFoundException(id);
+        }
+        return count;
+    }
+
     private int generateDemoId(int keyCount, int base) {
         if (keyCount < base) {
             return keyCount;
@@ -6,21 +6,34 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static net.logstash.logback.argument.StructuredArguments.keyValue;
@@ -31,9 +44,22 @@ public class BatchFileStorage {
     private static final Logger LOG = LoggerFactory.getLogger(BatchFileStorage.class);
 
     private static final String DIRECTORY = "diagnosis-files";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_FILE_PREFIX = "tmp_";
+    private static final String TEMP_FILE_POSTFIX = ".part";
+    private static final String ETAG_POSTFIX = ".etag";
+
+    @FunctionalInterface
+    public interface BatchFileWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
 
     final Path batchFileDirectory;
 
+    // Nodes sharing the storage can each generate the same batch, with different signatures and padding, so a kept
+    // tag is valid only for the version of the file it was calculated from
+    private final Map<BatchId, VersionedETag> eTags = new ConcurrentHashMap<>();
+
     public BatchFileStorage(@Value("${covid19.diagnosis.file-storage.directory:}") Optional<String> directory) {
         this.batchFileDirectory = getDirectory(directory.map(String::trim).filter(s -> !s.isEmpty()));
         LOG.info("Initialized: {} '{}'",
@@ -79,6 +105,16 @@ public class BatchFileStorage {
         return filesRemoved;
     }
 
+    public int deleteBatchFiles(Collection<BatchId> ids) {
+        int filesRemoved = 0;
+        for (BatchId id : ids) {
+            if (tryDelete(id)) {
+                filesRemoved++;
+            }
+        }
+        return filesRemoved;
+    }
+
     private List<BatchId> listBatchesOnDisk() {
         try (Stream<Path> stream = Files.walk(batchFileDirectory, 1)) {
             return stream
@@ -97,6 +133,8 @@ public class BatchFileStorage {
     private boolean tryDelete(BatchId id) {
         LOG.info("Deleting batch: {}", keyValue("batchId", id));
         try {
+            eTags.remove(id);
+            Files.deleteIfExists(pathToETag(id));
             return Files.deleteIfExists(pathToFile(id));
         } catch (IOException e) {
             LOG.warn("Failed to delete file: {}", keyValue("batchId", id));
@@ -104,22 +142,117 @@ public class BatchFileStorage {
         }
     }
 
-    public void addBatchFile(BatchId batchId, byte[] data) {
-        try (FileChannel channel = FileChannel.open(pathToFile(batchId), CREATE, WRITE);
-             FileLock lock = channel.tryLock()) {
-            if (lock != null) {
-                channel.truncate(0);
-                channel.write(ByteBuffer.wrap(data));
-                LOG.info("Wrote new batch: {}", keyValue("batchId", batchId));
-            } else {
-                LOG.info("Overlapping write (another process is writing the batch): {}", keyValue("batchId", batchId));
+    public StoredBatchFile addBatchFile(BatchId batchId, byte[] data) {
+        return addBatchFile(batchId, out -> out.write(data));
+    }
+
+    /**
+     * Writes the batch file from the writer into a temporary file, which is then atomically moved in place. A batch
+     * file on disk is therefore always complete and can be served directly. If the writer fails, nothing is left
+     * behind, so the batch gets generated again on the next round. The tag file is written only after the move, so
+     * it never describes a batch file that is not there.
+     */
+    public StoredBatchFile addBatchFile(BatchId batchId, BatchFileWriter writer) {
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(batchFileDirectory, TEMP_FILE_PREFIX, TEMP_FILE_POSTFIX);
+            MessageDigest digest = ETags.newDigest();
+            try (OutputStream out = new DigestOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile, WRITE), WRITE_BUFFER_SIZE), digest)) {
+                writer.writeTo(out);
             }
+            byte[] sha256 = digest.digest();
+            String eTag = ETags.fromDigest(sha256);
+            // The move keeps the file attributes, so they identify this version also after another node replaces it
+            FileVersion version = FileVersion.of(tempFile);
+            // A replaced file must not be served with the tag of its previous content, so the old tag goes first
+            Files.deleteIfExists(pathToETag(batchId));
+            Files.move(tempFile, pathToFile(batchId), ATOMIC_MOVE, REPLACE_EXISTING);
+            VersionedETag versionedETag = new VersionedETag(eTag, version);
+            eTags.put(batchId, versionedETag);
+            writeETagAfterMove(batchId, versionedETag);
+            LOG.info("Wrote new batch: {} {}", keyValue("batchId", batchId), keyValue("eTag", eTag));
+            return new StoredBatchFile(batchId, version.size, String.format("%064x", new BigInteger(1, sha256)));
         } catch (IOException e) {
             LOG.error("Error writing batch file: {}", keyValue("batchId", batchId));
             throw new UncheckedIOException(e);
+        } finally {
+            deleteTempFile(tempFile);
+        }
+    }
+
+    // The batch file is already in place, so without a tag file other nodes calculate the tag from its content
+    private void writeETagAfterMove(BatchId batchId, VersionedETag eTag) {
+        try {
+            writeETag(batchId, eTag);
+        } catch (IOException e) {
+            LOG.warn("Failed to write batch file ETag: {}", keyValue("batchId", batchId), e);
+        }
+    }
+
+    private void writeETag(BatchId batchId, VersionedETag eTag) throws IOException {
+        Path tempFile = Files.createTempFile(batchFileDirectory, TEMP_FILE_PREFIX, TEMP_FILE_POSTFIX);
+        try {
+            Files.writeString(tempFile, eTag.toFileContent(), UTF_8);
+            Files.move(tempFile, pathToETag(batchId), ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            deleteTempFile(tempFile);
+        }
+    }
+
+    /**
+     * The ETag of a stored batch file. It is kept in memory together with the size and modification time of the file,
+     * so that revalidation requests are answered with a single file status lookup. A file replaced by another node no
+     * longer matches, and its tag is then read from the tag file next to the batch, if that describes the same
+     * version, or calculated by streaming the content.
+     */
+    public Optional<String> getETag(BatchId batchId) {
+        try {
+            FileVersion version = FileVersion.of(pathToFile(batchId));
+            VersionedETag eTag = eTags.get(batchId);
+            if (eTag == null || !eTag.version.equals(version)) {
+                eTag = readETag(batchId).filter(stored -> stored.version.sameContentAs(version)).orElse(null);
+                if (eTag == null) {
+                    try (InputStream in = Files.newInputStream(pathToFile(batchId))) {
+                        eTag = new VersionedETag(ETags.of(in), version);
+                    }
+                    writeETag(batchId, eTag);
+                }
+                eTags.put(batchId, new VersionedETag(eTag.eTag, version));
+            }
+            return Optional.of(eTag.eTag);
+        } catch (NoSuchFileException e) {
+            eTags.remove(batchId);
+            return Optional.empty();
+        } catch (IOException e) {
+            LOG.warn("Failed to resolve batch file ETag: {}", keyValue("batchId", batchId));
+            return Optional.empty();
+        }
+    }
+
+    private Optional<VersionedETag> readETag(BatchId batchId) throws IOException {
+        try {
+            return VersionedETag.fromFileContent(Files.readString(pathToETag(batchId), UTF_8));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
         }
     }
 
+    private void deleteTempFile(Path tempFile) {
+        try {
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to delete temporary batch file: {}", keyValue("file", tempFile));
+        }
+    }
+
+    public Optional<Path> findBatchFile(BatchId batchId) {
+        Path path = pathToFile(batchId);
+        return Files.isRegularFile(path) ? Optional.of(path) : Optional.empty();
+    }
+
     // Note: This also caches empty value (rejecting it is not compatible with sync) so the time should be short.
     @Cacheable(value = "batch-file", sync = true)
     public Optional<byte[]> readBatchFile(BatchId batchId) {
@@ -145,4 +278,74 @@ public class BatchFileStorage {
     private Path pathToFile(BatchId batchId) {
         return batchFileDirectory.resolve(BatchFile.batchFileName(batchId));
     }
+
+    private Path pathToETag(BatchId batchId) {
+        return batchFileDirectory.resolve(BatchFile.batchFileName(batchId) + ETAG_POSTFIX);
+    }
+
+    /**
+     * Identifies one written version of a batch file. The file key (inode) tells apart files of equal size written
+     * within the same clock tick on this node, but it is not comparable between nodes.
+     */
+    static final class FileVersion {
+        final long size;
+        final long lastModifiedMillis;
+        final Object fileKey;
+
+        FileVersion(long size, long lastModifiedMillis, Object fileKey) {
+            this.size = size;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.fileKey = fileKey;
+        }
+
+        static FileVersion of(Path path) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileVersion(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+        }
+
+        boolean sameContentAs(FileVersion other) {
+            return size == other.size && lastModifiedMillis == other.lastModifiedMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            FileVersion that = (FileVersion) o;
+            return sameContentAs(that) && Objects.equals(fileKey, that.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, lastModifiedMillis, fileKey);
+        }
+    }
+
+    static final class VersionedETag {
+        final String eTag;
+        final FileVersion version;
+
+        VersionedETag(String eTag, FileVersion version) {
+            this.eTag = eTag;
+            this.version = version;
+        }
+
+        String toFileContent() {
+            return eTag + " " + version.size + " " + version.lastModifiedMillis;
+        }
+
+        // A tag file without the file version cannot be trusted to describe the current file
+        static Optional<VersionedETag> fromFileContent(String content) {
+            String[] parts = content.trim().split(" ");
+            if (parts.length != 3) {
+                return Optional.empty();
+            }
+            try {
+                FileVersion version = new FileVersion(Long.parseLong(parts[1]), Long.parseLong(parts[2]), null);
+                return Optional.of(new VersionedETag(parts[0], version));
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package fi.thl.covid19.exposurenotification.batch;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.requireNonNull;
+
+public class BatchInventory {
+    public final List<Item> batches;
+
+    public BatchInventory(List<BatchFileCatalogEntry> entries) {
+        this.batches = requireNonNull(entries).stream()
+                .map(Item::new)
+                .collect(Collectors.toList());
+    }
+
+    public static class Item {
+        public final String batchId;
+        public final int interval;
+        public final Optional<Integer> intervalV2;
+        public final int keyCount;
+        public final long byteSize;
+        public final String sha256;
+        public final Instant generatedAt;
+        public final String signingKeyVersion;
+
+        private Item(BatchFileCatalogEntry entry) {
+            this.batchId = entry.batchId.toString();
+            this.interval = entry.batchId.intervalNumber;
+            this.intervalV2 = entry.batchId.intervalNumberV2;
+            this.keyCount = entry.keyCount;
+            this.byteSize = entry.byteSize;
+            this.sha256 = entry.sha256;
+            this.generatedAt = entry.generatedAt;
+            this.signingKeyVersion = entry.signingKeyVersion;
+        }
+    }
+}
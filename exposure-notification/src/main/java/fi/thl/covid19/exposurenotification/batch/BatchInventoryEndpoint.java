@@ -0,0 +1,36 @@
+package fi.thl.covid19.exposurenotification.batch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Lists the batch file catalog for operators. Served as an actuator endpoint, so it is only reachable through the
+ * management port and not through the public API. The catalog is bounded by the key retention period.
+ */
+@Component
+@Endpoint(id = "batchinventory")
+public class BatchInventoryEndpoint {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchInventoryEndpoint.class);
+
+    private final BatchFileService batchFileService;
+
+    public BatchInventoryEndpoint(BatchFileService batchFileService) {
+        this.batchFileService = requireNonNull(batchFileService);
+    }
+
+    @ReadOperation
+    public BatchInventory inventory() {
+        List<BatchFileCatalogEntry> entries = batchFileService.getBatchCatalog();
+        LOG.info("Listing batch inventory: {}", keyValue("batches", entries.size()));
+        return new BatchInventory(entries);
+    }
+}
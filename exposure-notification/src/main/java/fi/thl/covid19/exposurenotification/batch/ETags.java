@@ -0,0 +1,62 @@
+package fi.thl.covid19.exposurenotification.batch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Strong entity tags for conditional GET (If-None-Match) handling.
+ */
+public final class ETags {
+    private ETags() {
+    }
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String WEAK_PREFIX = "W/";
+    private static final String ANY = "*";
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("ETag digest not available", e);
+        }
+    }
+
+    public static String fromDigest(byte[] digest) {
+        return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+    }
+
+    public static String of(byte[] content) {
+        return fromDigest(newDigest().digest(content));
+    }
+
+    public static String of(InputStream content) throws IOException {
+        MessageDigest digest = newDigest();
+        try (DigestInputStream in = new DigestInputStream(content, digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return fromDigest(digest.digest());
+    }
+
+    public static String of(String content) {
+        return of(content.getBytes(UTF_8));
+    }
+
+    public static boolean matches(Optional<String> ifNoneMatch, String eTag) {
+        return ifNoneMatch
+                .map(header -> Arrays.stream(header.split(","))
+                        .map(String::trim)
+                        .map(tag -> tag.startsWith(WEAK_PREFIX) ? tag.substring(WEAK_PREFIX.length()) : tag)
+                        .anyMatch(tag -> tag.equals(ANY) || tag.equals(eTag)))
+                .orElse(false);
+    }
+}
@@ -6,12 +6,18 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 
 public final class Signing {
     private Signing() {}
 
     private static final String KEY_ALGORITHM = "EC";
 
+    // Signature instances are stateful but are fully reset by initSign/initVerify, so each thread reuses its own
+    private static final ThreadLocal<Map<String, java.security.Signature>> SIGNATURES =
+            ThreadLocal.withInitial(HashMap::new);
+
     public static PrivateKey privateKey(String privateKeyBase64) {
         return privateKey(Base64.getDecoder().decode(privateKeyBase64));
     }
@@ -51,7 +57,7 @@ public final class Signing {
 
     public static byte[] sign(String algorithmName, PrivateKey key, byte[] payload)
             throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-        java.security.Signature ecdsaSign = java.security.Signature.getInstance(algorithmName);
+        java.security.Signature ecdsaSign = signatureInstance(algorithmName);
         ecdsaSign.initSign(key);
         ecdsaSign.update(payload);
         return ecdsaSign.sign();
@@ -59,9 +65,19 @@ public final class Signing {
 
     public static boolean singatureMatches(String algorithmName, PublicKey key, byte[] signature, byte[] payload)
             throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-        java.security.Signature ecdsaVerify = java.security.Signature.getInstance(algorithmName);
+        java.security.Signature ecdsaVerify = signatureInstance(algorithmName);
         ecdsaVerify.initVerify(key);
         ecdsaVerify.update(payload);
         return ecdsaVerify.verify(signature);
     }
+
+    private static java.security.Signature signatureInstance(String algorithmName) throws NoSuchAlgorithmException {
+        Map<String, java.security.Signature> signatures = SIGNATURES.get();
+        java.security.Signature signature = signatures.get(algorithmName);
+        if (signature == null) {
+            signature = java.security.Signature.getInstance(algorithmName);
+            signatures.put(algorithmName, signature);
+        }
+        return signature;
+    }
 }
@@ -0,0 +1,15 @@
+package fi.thl.covid19.exposurenotification.batch;
+
+import static java.util.Objects.requireNonNull;
+
+public class StoredBatchFile {
+    public final BatchId id;
+    public final long byteSize;
+    public final String sha256;
+
+    public StoredBatchFile(BatchId id, long byteSize, String sha256) {
+        this.id = requireNonNull(id);
+        this.byteSize = byteSize;
+        this.sha256 = requireNonNull(sha256);
+    }
+}
@@ -0,0 +1,245 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.fromV2to24hourInterval;
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.to24HourInterval;
+import static fi.thl.covid19.exposurenotification.diagnosiskey.TransactionCallbacks.afterCommit;
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * In-memory index of the intervals that have keys, with the key count of each interval.
+ * <p>
+ * The index is loaded from the DB at startup and kept up to date from the key inserts and deletes done by this node,
+ * once their transaction commits. Keys are only ever inserted for the current day, so the periodic refresh recounts
+ * just the current and previous day to pick up the keys written by other nodes.
+ * <p>
+ * A refresh takes its DB snapshot while no insert or delete of this node is between its commit and its index update.
+ * Changes that commit after the snapshot are applied again on top of the refreshed counts, so none is counted twice
+ * or lost.
+ */
+@Component
+public class AvailableIntervalIndex implements InitializingBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AvailableIntervalIndex.class);
+
+    private static final Counts EMPTY = new Counts(new int[0], new int[0]);
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final TransactionTemplate snapshotTransaction;
+
+    // Held by key changes from their commit until the index is updated, and by a refresh taking its snapshot
+    private final ReadWriteLock commitLock = new ReentrantReadWriteLock();
+    private final Object refreshLock = new Object();
+
+    private volatile Counts counts = EMPTY;
+    private volatile Counts countsV2 = EMPTY;
+    // Changes committed after the snapshot of a running refresh
+    private List<Runnable> sinceSnapshot;
+
+    public AvailableIntervalIndex(NamedParameterJdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = requireNonNull(jdbcTemplate);
+        this.snapshotTransaction = new TransactionTemplate(requireNonNull(transactionManager));
+        this.snapshotTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        this.snapshotTransaction.setReadOnly(true);
+    }
+
+    public List<Integer> getIntervals() {
+        return counts.intervals();
+    }
+
+    public List<Integer> getIntervalsV2() {
+        return countsV2.intervals();
+    }
+
+    public int getKeyCount(int interval) {
+        return counts.count(interval);
+    }
+
+    public int getKeyCountV2(int intervalV2) {
+        return countsV2.count(intervalV2);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        refreshFrom(0);
+    }
+
+    @Scheduled(initialDelayString = "${covid19.diagnosis.data-cache.interval-index-refresh:PT5M}",
+            fixedRateString = "${covid19.diagnosis.data-cache.interval-index-refresh:PT5M}")
+    public void refresh() {
+        refreshFrom(to24HourInterval(Instant.now()) - 1);
+    }
+
+    /**
+     * Registers inserted keys. Within a transaction, the index is updated only after a successful commit.
+     */
+    public void keysAdded(Collection<TemporaryExposureKey> keys) {
+        if (!keys.isEmpty()) {
+            Map<Integer, Integer> added = new HashMap<>();
+            Map<Integer, Integer> addedV2 = new HashMap<>();
+            for (TemporaryExposureKey key : keys) {
+                added.merge(key.submissionInterval, 1, Integer::sum);
+                addedV2.merge(key.submissionIntervalV2, 1, Integer::sum);
+            }
+            afterCommit(() -> applyAdded(added, addedV2), commitLock.readLock());
+        }
+    }
+
+    /**
+     * Registers the inserted keys of a block, as told by the predicate over the key positions.
+     */
+    public void keysAdded(TemporaryExposureKeyBlock keys, IntPredicate inserted) {
+        Map<Integer, Integer> added = new HashMap<>();
+        Map<Integer, Integer> addedV2 = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (inserted.test(i)) {
+                added.merge(keys.submissionInterval(i), 1, Integer::sum);
+                addedV2.merge(keys.submissionIntervalV2(i), 1, Integer::sum);
+            }
+        }
+        if (!added.isEmpty()) {
+            afterCommit(() -> applyAdded(added, addedV2), commitLock.readLock());
+        }
+    }
+
+    /**
+     * Registers the deletion of all keys submitted before the given 24h interval.
+     */
+    public void keysDeletedBefore(int interval) {
+        afterCommit(() -> applyDeletedBefore(interval), commitLock.readLock());
+    }
+
+    private void refreshFrom(int fromInterval) {
+        synchronized (refreshLock) {
+            Map<Integer, Integer> fetched = new HashMap<>();
+            Map<Integer, Integer> fetchedV2 = new HashMap<>();
+            try {
+                snapshotTransaction.executeWithoutResult(status -> {
+                    commitLock.writeLock().lock();
+                    try {
+                        // The first statement fixes the snapshot of the repeatable read transaction
+                        jdbcTemplate.queryForObject("select 1", Map.of(), Integer.class);
+                        synchronized (this) {
+                            sinceSnapshot = new ArrayList<>();
+                        }
+                    } finally {
+                        commitLock.writeLock().unlock();
+                    }
+                    String sql = "select submission_interval, submission_interval_v2, count(*) as key_count " +
+                            "from en.diagnosis_key where submission_interval >= :from_interval " +
+                            "group by submission_interval, submission_interval_v2";
+                    jdbcTemplate.query(sql, Map.of("from_interval", fromInterval), rs -> {
+                        fetched.merge(rs.getInt("submission_interval"), rs.getInt("key_count"), Integer::sum);
+                        fetchedV2.merge(rs.getInt("submission_interval_v2"), rs.getInt("key_count"), Integer::sum);
+                    });
+                });
+                synchronized (this) {
+                    counts = counts.without(i -> i >= fromInterval).withAdded(fetched);
+                    countsV2 = countsV2.without(i -> fromV2to24hourInterval(i) >= fromInterval).withAdded(fetchedV2);
+                    sinceSnapshot.forEach(Runnable::run);
+                }
+            } finally {
+                synchronized (this) {
+                    sinceSnapshot = null;
+                }
+            }
+        }
+        LOG.info("Interval index refreshed: {} {} {}",
+                keyValue("fromInterval", fromInterval),
+                keyValue("intervals", counts.intervals.length),
+                keyValue("intervalsV2", countsV2.intervals.length));
+    }
+
+    private void applyAdded(Map<Integer, Integer> added, Map<Integer, Integer> addedV2) {
+        apply(() -> {
+            counts = counts.withAdded(added);
+            countsV2 = countsV2.withAdded(addedV2);
+        });
+    }
+
+    private void applyDeletedBefore(int interval) {
+        apply(() -> {
+            counts = counts.without(i -> i < interval);
+            countsV2 = countsV2.without(i -> fromV2to24hourInterval(i) < interval);
+        });
+    }
+
+    private synchronized void apply(Runnable change) {
+        change.run();
+        if (sinceSnapshot != null) {
+            sinceSnapshot.add(change);
+        }
+    }
+
+    /**
+     * Immutable sorted interval-to-count table. Updates create a new instance, so reads never need to lock.
+     */
+    static final class Counts {
+        private final int[] intervals;
+        private final int[] keyCounts;
+
+        Counts(int[] intervals, int[] keyCounts) {
+            this.intervals = intervals;
+            this.keyCounts = keyCounts;
+        }
+
+        int count(int interval) {
+            int index = Arrays.binarySearch(intervals, interval);
+            return index >= 0 ? keyCounts[index] : 0;
+        }
+
+        List<Integer> intervals() {
+            List<Integer> result = new ArrayList<>(intervals.length);
+            for (int interval : intervals) {
+                result.add(interval);
+            }
+            return Collections.unmodifiableList(result);
+        }
+
+        Counts withAdded(Map<Integer, Integer> added) {
+            TreeMap<Integer, Integer> merged = new TreeMap<>(added);
+            for (int i = 0; i < intervals.length; i++) {
+                merged.merge(intervals[i], keyCounts[i], Integer::sum);
+            }
+            int[] newIntervals = new int[merged.size()];
+            int[] newCounts = new int[merged.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : merged.entrySet()) {
+                newIntervals[i] = entry.getKey();
+                newCounts[i] = entry.getValue();
+                i++;
+            }
+            return new Counts(newIntervals, newCounts);
+        }
+
+        Counts without(IntPredicate removed) {
+            int[] newIntervals = new int[intervals.length];
+            int[] newCounts = new int[intervals.length];
+            int size = 0;
+            for (int i = 0; i < intervals.length; i++) {
+                if (!removed.test(intervals[i])) {
+                    newIntervals[size] = intervals[i];
+                    newCounts[size] = keyCounts[i];
+                    size++;
+                }
+            }
+            return new Counts(Arrays.copyOf(newIntervals, size), Arrays.copyOf(newCounts, size));
+        }
+    }
+}
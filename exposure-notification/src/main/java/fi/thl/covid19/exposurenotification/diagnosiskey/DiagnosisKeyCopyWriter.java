@@ -0,0 +1,203 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes diagnosis keys in the PostgreSQL binary COPY format, in the column order of {@link #COLUMNS}. This is the
+ * only class that uses the driver's own COPY API.
+ */
+final class DiagnosisKeyCopyWriter {
+    private DiagnosisKeyCopyWriter() {
+    }
+
+    static final String COLUMNS = "key_data, rolling_period, rolling_start_interval_number, transmission_risk_level, " +
+            "submission_interval, submission_interval_v2, origin, visited_countries, days_since_onset_of_symptoms, " +
+            "consent_to_share, efgs_sync, symptoms_exist";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+    private static final short FIELD_COUNT = 12;
+    private static final int NULL_LENGTH = -1;
+    private static final int VARCHAR_OID = 1043;
+    private static final int KEY_DATA_LENGTH_BASE64 = 24;
+    private static final int COUNTRY_CODE_LENGTH = 2;
+    // Binary timestamps are microseconds since 2000-01-01 UTC
+    private static final long POSTGRES_EPOCH_SECONDS = 946_684_800L;
+
+    /**
+     * Runs the given COPY ... FROM STDIN statement and streams the rows written by the callback into it.
+     *
+     * @return the number of rows copied
+     */
+    static long copyIn(Connection connection, String copySql, CopyRows rows) throws SQLException {
+        try (PGCopyOutputStream out = new PGCopyOutputStream(connection.unwrap(PGConnection.class), copySql, COPY_BUFFER_SIZE)) {
+            rows.write(out);
+            out.endCopy();
+            return out.getHandledRowCount();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void write(OutputStream target, Collection<TemporaryExposureKey> keys, Optional<Timestamp> efgsSync) throws IOException {
+        DataOutputStream out = new DataOutputStream(target);
+        out.write(SIGNATURE);
+        out.writeInt(0); // flags
+        out.writeInt(0); // header extension length
+        for (TemporaryExposureKey key : keys) {
+            out.writeShort(FIELD_COUNT);
+            writeText(out, key.keyData);
+            writeInt(out, key.rollingPeriod);
+            writeInt(out, key.rollingStartIntervalNumber);
+            writeInt(out, key.transmissionRiskLevel);
+            writeInt(out, key.submissionInterval);
+            writeInt(out, key.submissionIntervalV2);
+            writeText(out, key.origin);
+            writeTextArray(out, key.visitedCountries);
+            if (key.daysSinceOnsetOfSymptoms.isPresent()) {
+                writeInt(out, key.daysSinceOnsetOfSymptoms.get());
+            } else {
+                out.writeInt(NULL_LENGTH);
+            }
+            writeBoolean(out, key.consentToShareWithEfgs);
+            if (efgsSync.isPresent()) {
+                writeTimestamp(out, efgsSync.get());
+            } else {
+                out.writeInt(NULL_LENGTH);
+            }
+            if (key.symptomsExist.isPresent()) {
+                writeBoolean(out, key.symptomsExist.get());
+            } else {
+                out.writeInt(NULL_LENGTH);
+            }
+        }
+        out.writeShort(-1); // trailer
+        out.flush();
+    }
+
+    static void write(OutputStream target, TemporaryExposureKeyBlock keys, Optional<Timestamp> efgsSync) throws IOException {
+        DataOutputStream out = new DataOutputStream(target);
+        byte[] keyData = new byte[KEY_DATA_LENGTH_BASE64];
+        out.write(SIGNATURE);
+        out.writeInt(0); // flags
+        out.writeInt(0); // header extension length
+        for (int i = 0; i < keys.size(); i++) {
+            out.writeShort(FIELD_COUNT);
+            keys.encodeKeyData(i, keyData);
+            out.writeInt(keyData.length);
+            out.write(keyData);
+            writeInt(out, keys.rollingPeriod(i));
+            writeInt(out, keys.rollingStartIntervalNumber(i));
+            writeInt(out, keys.transmissionRiskLevel(i));
+            writeInt(out, keys.submissionInterval(i));
+            writeInt(out, keys.submissionIntervalV2(i));
+            writeText(out, keys.origin(i));
+            writeCountryArray(out, keys, i);
+            if (keys.hasDaysSinceOnsetOfSymptoms(i)) {
+                writeInt(out, keys.daysSinceOnsetOfSymptoms(i));
+            } else {
+                out.writeInt(NULL_LENGTH);
+            }
+            writeBoolean(out, keys.consentToShareWithEfgs(i));
+            if (efgsSync.isPresent()) {
+                writeTimestamp(out, efgsSync.get());
+            } else {
+                out.writeInt(NULL_LENGTH);
+            }
+            if (keys.hasSymptomsExist(i)) {
+                writeBoolean(out, keys.symptomsExist(i));
+            } else {
+                out.writeInt(NULL_LENGTH);
+            }
+        }
+        out.writeShort(-1); // trailer
+        out.flush();
+    }
+
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeInt(Integer.BYTES);
+        out.writeInt(value);
+    }
+
+    private static void writeBoolean(DataOutputStream out, boolean value) throws IOException {
+        out.writeInt(1);
+        out.writeByte(value ? 1 : 0);
+    }
+
+    private static void writeText(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeTimestamp(DataOutputStream out, Timestamp value) throws IOException {
+        long micros = (value.getTime() / 1000 - POSTGRES_EPOCH_SECONDS) * 1_000_000L + value.getNanos() / 1000;
+        out.writeInt(Long.BYTES);
+        out.writeLong(micros);
+    }
+
+    // Country codes are two ASCII letters, so the array is written without encoding the codes into new strings
+    private static void writeCountryArray(DataOutputStream out, TemporaryExposureKeyBlock keys, int index) throws IOException {
+        int count = keys.visitedCountryCount(index);
+        if (count == 0) {
+            out.writeInt(3 * Integer.BYTES);
+            out.writeInt(0); // dimensions
+            out.writeInt(0); // has nulls
+            out.writeInt(VARCHAR_OID);
+        } else {
+            out.writeInt(5 * Integer.BYTES + count * (Integer.BYTES + COUNTRY_CODE_LENGTH));
+            out.writeInt(1); // dimensions
+            out.writeInt(0); // has nulls
+            out.writeInt(VARCHAR_OID);
+            out.writeInt(count);
+            out.writeInt(1); // lower bound
+            for (int c = keys.nextVisitedCountry(index, 0); c >= 0; c = keys.nextVisitedCountry(index, c + 1)) {
+                String country = TemporaryExposureKeyBlock.country(c);
+                out.writeInt(COUNTRY_CODE_LENGTH);
+                out.writeByte(country.charAt(0));
+                out.writeByte(country.charAt(1));
+            }
+        }
+    }
+
+    private static void writeTextArray(DataOutputStream out, Collection<String> values) throws IOException {
+        if (values.isEmpty()) {
+            out.writeInt(3 * Integer.BYTES);
+            out.writeInt(0); // dimensions
+            out.writeInt(0); // has nulls
+            out.writeInt(VARCHAR_OID);
+        } else {
+            int length = 5 * Integer.BYTES;
+            for (String value : values) {
+                length += Integer.BYTES + value.getBytes(UTF_8).length;
+            }
+            out.writeInt(length);
+            out.writeInt(1); // dimensions
+            out.writeInt(0); // has nulls
+            out.writeInt(VARCHAR_OID);
+            out.writeInt(values.size());
+            out.writeInt(1); // lower bound
+            for (String value : values) {
+                writeText(out, value);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface CopyRows {
+        void write(OutputStream out) throws IOException;
+    }
+}
@@ -6,21 +6,30 @@ import fi.thl.covid19.exposurenotification.error.InputValidationException;
 import fi.thl.covid19.exposurenotification.error.TokenValidationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.from24hourToV2Interval;
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.fromV2to24hourInterval;
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.toV2Interval;
 import static fi.thl.covid19.exposurenotification.efgs.util.DummyKeyGeneratorUtil.*;
 import static fi.thl.covid19.exposurenotification.efgs.util.CommonConst.MAX_RETRY_COUNT;
@@ -32,25 +41,124 @@ public class DiagnosisKeyDao {
 
     private static final Logger LOG = LoggerFactory.getLogger(DiagnosisKeyDao.class);
 
+    private static final int STREAM_FETCH_SIZE = 1000;
+    private static final String PARTITION_PREFIX = "diagnosis_key_p";
+    private static final String DEFAULT_PARTITION = "diagnosis_key_default";
+    private static final String PARTITION_LOCK = "en.diagnosis_key partitions";
+    private static final String MOVED_TABLE = "pg_temp.diagnosis_key_moved";
+    private static final String COPY_TABLE = "pg_temp.diagnosis_key_import";
+    private static final int OUTBOUND_BATCH_MAX_SIZE = 5000;
+    private static final int DELETE_CHUNK_SIZE = 10000;
+
     private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final TransactionTemplate dropPartitionsTransaction;
     private final OutboundOperationDao outboundOperationDao;
+    private final AvailableIntervalIndex intervalIndex;
+    private final ReportKeysStats reportStats;
+    private final DummyKeyReservoir dummyKeyReservoir;
+    private final boolean copyInsert;
 
     public DiagnosisKeyDao(NamedParameterJdbcTemplate jdbcTemplate,
-                           OutboundOperationDao outboundOperationDao) {
+                           PlatformTransactionManager transactionManager,
+                           OutboundOperationDao outboundOperationDao,
+                           AvailableIntervalIndex intervalIndex,
+                           ReportKeysStats reportStats,
+                           DummyKeyReservoir dummyKeyReservoir,
+                           @Value("${covid19.diagnosis.key-insert.copy:false}") boolean copyInsert) {
         this.jdbcTemplate = requireNonNull(jdbcTemplate);
+        this.dropPartitionsTransaction = new TransactionTemplate(requireNonNull(transactionManager));
         this.outboundOperationDao = requireNonNull(outboundOperationDao);
+        this.intervalIndex = requireNonNull(intervalIndex);
+        this.reportStats = requireNonNull(reportStats);
+        this.dummyKeyReservoir = requireNonNull(dummyKeyReservoir);
+        this.copyInsert = copyInsert;
 
-        LOG.info("Initialized");
+        LOG.info("Initialized: {}", keyValue("copyInsert", copyInsert));
     }
 
-    @Transactional
+    /**
+     * Removes the keys submitted before the given 24h interval by dropping their daily partitions. The key data claims
+     * and any keys in the default partition are deleted first, in short transactions of their own, so that the
+     * exclusive lock taken by the partition drops is held only for the drops.
+     */
     public int deleteKeysBefore(int interval) {
-        String sql = "delete from en.diagnosis_key where submission_interval < :interval";
-        int count = jdbcTemplate.update(sql, Map.of("interval", interval));
-        LOG.info("Keys deleted: {} {}", keyValue("beforeInterval", interval), keyValue("count", count));
+        Map<String, Object> params = Map.of("interval", interval, "limit", DELETE_CHUNK_SIZE);
+        String countSql = "select count(*) from en.diagnosis_key where submission_interval < :interval";
+        int count = jdbcTemplate.queryForObject(countSql, params, Integer.class);
+        String claimsSql = "delete from en.diagnosis_key_data where key_data in (" +
+                "select key_data from en.diagnosis_key_data where submission_interval < :interval limit :limit)";
+        int deletedClaims = 0;
+        int deleted;
+        do {
+            deleted = jdbcTemplate.update(claimsSql, params);
+            deletedClaims += deleted;
+        } while (deleted == DELETE_CHUNK_SIZE);
+        jdbcTemplate.update("delete from en." + DEFAULT_PARTITION + " where submission_interval < :interval", params);
+        List<Integer> dropped = dropPartitionsTransaction.execute(status -> {
+            List<Integer> partitions = getPartitionIntervals().stream()
+                    .filter(partition -> partition < interval)
+                    .collect(Collectors.toList());
+            partitions.forEach(partition -> jdbcTemplate.getJdbcTemplate().execute("drop table if exists en." + partitionName(partition)));
+            intervalIndex.keysDeletedBefore(interval);
+            return partitions;
+        });
+        LOG.info("Keys deleted: {} {} {} {}",
+                keyValue("beforeInterval", interval), keyValue("count", count),
+                keyValue("deletedClaims", deletedClaims), keyValue("droppedPartitions", dropped.size()));
         return count;
     }
 
+    /**
+     * Creates the missing daily key partitions for the given 24h intervals. Keys of those days already in the default
+     * partition are moved into the new partition. Nodes running maintenance at the same time take turns through an
+     * advisory lock, so a partition created by another node is seen as existing.
+     */
+    @Transactional
+    public int createPartitions(int fromInterval, int untilInterval) {
+        JdbcTemplate ddl = jdbcTemplate.getJdbcTemplate();
+        ddl.execute("select pg_advisory_xact_lock(hashtext('" + PARTITION_LOCK + "'))");
+        Set<Integer> existing = new HashSet<>(getPartitionIntervals());
+        int created = 0;
+        for (int interval = fromInterval; interval <= untilInterval; interval++) {
+            if (!existing.contains(interval)) {
+                if (created == 0) {
+                    // Keeps new keys of the day from landing in the default partition while its keys are moved out
+                    ddl.execute("lock table en." + DEFAULT_PARTITION + " in share row exclusive mode");
+                    ddl.execute("create temporary table if not exists " + MOVED_TABLE +
+                            " (like en.diagnosis_key) on commit drop");
+                }
+                ddl.execute("with moved as (delete from en." + DEFAULT_PARTITION + " where submission_interval = " + interval +
+                        " returning *) insert into " + MOVED_TABLE + " select * from moved");
+                ddl.execute("create table if not exists en." + partitionName(interval) + " partition of en.diagnosis_key" +
+                        " for values from (" + interval + ") to (" + (interval + 1) + ")");
+                ddl.execute("with moved as (delete from " + MOVED_TABLE + " returning *) " +
+                        "insert into en.diagnosis_key select * from moved");
+                created++;
+            }
+        }
+        LOG.info("Key partitions created: {} {} {}",
+                keyValue("fromInterval", fromInterval), keyValue("untilInterval", untilInterval), keyValue("count", created));
+        return created;
+    }
+
+    private List<Integer> getPartitionIntervals() {
+        String sql = "select child.relname " +
+                "from pg_inherits " +
+                "join pg_class parent on pg_inherits.inhparent = parent.oid " +
+                "join pg_class child on pg_inherits.inhrelid = child.oid " +
+                "join pg_namespace ns on parent.relnamespace = ns.oid " +
+                "where ns.nspname = 'en' and parent.relname = 'diagnosis_key'";
+        return jdbcTemplate.query(sql, (rs, i) -> rs.getString("relname")).stream()
+                .filter(name -> name.matches(PARTITION_PREFIX + "\\d+"))
+                .map(name -> Integer.parseInt(name.substring(PARTITION_PREFIX.length())))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static String partitionName(int interval) {
+        return PARTITION_PREFIX + interval;
+    }
+
     @Transactional
     public int deleteVerificationsBefore(Instant verificationTime) {
         String sql = "delete from en.token_verification where verification_time < :verification_time";
@@ -68,46 +176,32 @@ public class DiagnosisKeyDao {
         }
     }
 
-    @Cacheable(value = "available-intervals", sync = true)
-    public List<Integer> getAvailableIntervals() {
-        return getAvailableIntervalsDirect();
-    }
-
-    @Cacheable(value = "available-intervals-v2", sync = true)
-    public List<Integer> getAvailableIntervalsV2() {
-        return getAvailableIntervalsDirectV2();
-    }
-
-    @Transactional
-    public List<Integer> getAvailableIntervalsDirect() {
-        LOG.info("Fetching available intervals");
-        String sql_v1 = "select distinct submission_interval from en.diagnosis_key order by submission_interval";
-        return jdbcTemplate.query(sql_v1, (rs, i) -> rs.getInt("submission_interval"));
-    }
-
+    /**
+     * Writes queued publish requests in one transaction and one key insert. A submission whose token was already used
+     * for different keys is dropped without failing the others.
+     *
+     * @return the number of dropped submissions
+     */
     @Transactional
-    public List<Integer> getAvailableIntervalsDirectV2() {
-        LOG.info("Fetching available intervals for V2");
-        String sql = "select distinct submission_interval_v2 from en.diagnosis_key order by submission_interval_v2";
-        return jdbcTemplate.query(sql, (rs, i) -> rs.getInt("submission_interval_v2"));
-    }
-
-    @Cacheable(value = "key-count", sync = true)
-    public int getKeyCount(int interval) {
-        LOG.info("Fetching key-count from DB: {}", keyValue("interval", interval));
-        String sql = "select count(*) from en.diagnosis_key where submission_interval = :interval";
-        Map<String, Object> params = Map.of("interval", interval);
-        return jdbcTemplate.query(sql, params, (rs, i) -> rs.getInt(1))
-                .stream().findFirst().orElseThrow(() -> new IllegalStateException("Count returned nothing."));
-    }
-
-    @Cacheable(value = "key-count-v2", sync = true)
-    public int getKeyCountV2(int intervalV2) {
-        LOG.info("Fetching key-count from DB: {}", keyValue("intervalV2", intervalV2));
-        String sql = "select count(*) from en.diagnosis_key where submission_interval_v2 = :interval_v2";
-        Map<String, Object> params = Map.of("interval_v2", intervalV2);
-        return jdbcTemplate.query(sql, params, (rs, i) -> rs.getInt(1))
-                .stream().findFirst().orElseThrow(() -> new IllegalStateException("Count returned nothing."));
+    public int addKeySubmissions(List<KeySubmission> submissions) {
+        List<TemporaryExposureKey> keys = new ArrayList<>();
+        int rejected = 0;
+        for (KeySubmission submission : submissions) {
+            try {
+                if (verify(submission.verificationId, submission.requestChecksum, submission.keys.size(), submission.exportedKeyCount)) {
+                    keys.addAll(submission.keys);
+                }
+            } catch (TokenValidationException e) {
+                LOG.warn("Queued publish rejected: {}", keyValue("verificationId", submission.verificationId));
+                rejected++;
+            }
+        }
+        if (!keys.isEmpty()) {
+            batchInsert(keys, Optional.empty());
+        }
+        LOG.info("Inserted queued keys: {} {} {}",
+                keyValue("submissions", submissions.size()), keyValue("rejected", rejected), keyValue("count", keys.size()));
+        return rejected;
     }
 
     @Transactional
@@ -120,6 +214,63 @@ public class DiagnosisKeyDao {
         }
     }
 
+    /**
+     * Streams the interval keys in export order, a block of at most STREAM_FETCH_SIZE keys at a time. The same block
+     * is refilled for the next rows, so the action must not hold on to it. Only batches that need dummy padding (less
+     * than BATCH_MIN_SIZE keys) are turned into key objects, as the padding is merged into the ordering.
+     * Runs in a transaction, so that the driver can fetch the rows through a cursor.
+     */
+    @Transactional
+    public void forEachIntervalKeyBlockWithDummyPadding(int interval, boolean isV2Interval, Consumer<TemporaryExposureKeyBlock> action) {
+        TemporaryExposureKeyBlock block = new TemporaryExposureKeyBlock(STREAM_FETCH_SIZE);
+        boolean[] flushed = {false};
+        streamIntervalKeys(interval, isV2Interval, block, () -> {
+            if (block.size() == STREAM_FETCH_SIZE) {
+                action.accept(block);
+                block.clear();
+                flushed[0] = true;
+            }
+        });
+        // A flushed block is larger than BATCH_MIN_SIZE, so only a batch that fits the first block can need padding
+        if (!flushed[0] && !block.isEmpty() && block.size() < BATCH_MIN_SIZE) {
+            action.accept(TemporaryExposureKeyBlock.of(concatDummyKeys(block.toList(),
+                    createDummyKeys(BATCH_MIN_SIZE - block.size(), isV2Interval ? interval : from24hourToV2Interval(interval), false, Optional.empty()))));
+        } else if (!block.isEmpty()) {
+            action.accept(block);
+        }
+    }
+
+    private void streamIntervalKeys(int interval, boolean isV2Interval, TemporaryExposureKeyBlock block, Runnable keyAdded) {
+        LOG.info("Streaming keys: {}", keyValue(isV2Interval ? "intervalV2" : "interval", interval));
+        String sql = "select key_data, rolling_period, rolling_start_interval_number, transmission_risk_level, " +
+                "submission_interval, submission_interval_v2, " +
+                "origin, visited_countries, days_since_onset_of_symptoms, consent_to_share, symptoms_exist " +
+                "from en.diagnosis_key " +
+                // The V2 interval is within the 24h interval, which limits the query to a single partition
+                "where submission_interval = ? " +
+                (isV2Interval ? "and submission_interval_v2 = ? " : "") +
+                // Level 0 & 7 would get 0 score anyhow, so ignore them
+                "and transmission_risk_level between 1 and 6 " +
+                "order by key_data";
+        // We should not have invalid data in the DB, but if we do, pass by it and move on
+        RowCallbackHandler handler = rs -> {
+            if (addValidKey(interval, rs, rs.getRow(), block)) {
+                keyAdded.run();
+            }
+        };
+        jdbcTemplate.getJdbcTemplate().query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setFetchSize(STREAM_FETCH_SIZE);
+            if (isV2Interval) {
+                statement.setInt(1, fromV2to24hourInterval(interval));
+                statement.setInt(2, interval);
+            } else {
+                statement.setInt(1, interval);
+            }
+            return statement;
+        }, handler);
+    }
+
     private List<TemporaryExposureKey> getIntervalKeys(int interval) {
         LOG.info("Fetching keys: {}", keyValue("interval", interval));
         String sql = "select key_data, rolling_period, rolling_start_interval_number, transmission_risk_level, " +
@@ -143,19 +294,19 @@ public class DiagnosisKeyDao {
                 "submission_interval, submission_interval_v2, " +
                 "origin, visited_countries, days_since_onset_of_symptoms, consent_to_share, symptoms_exist " +
                 "from en.diagnosis_key " +
-                "where submission_interval_v2 = :interval_v2 " +
+                "where submission_interval = :interval and submission_interval_v2 = :interval_v2 " +
                 // Level 0 & 7 would get 0 score anyhow, so ignore them
                 // This also clips the range, so that we can manage the difference between iOS & Android APIs
                 "and transmission_risk_level between 1 and 6 " +
                 "order by key_data";
-        Map<String, Object> params = Map.of("interval_v2", intervalV2);
+        Map<String, Object> params = Map.of("interval", fromV2to24hourInterval(intervalV2), "interval_v2", intervalV2);
         // We should not have invalid data in the DB, but if we do, pass by it and move on
         return jdbcTemplate.query(sql, params, (rs, i) -> mapValidKey(intervalV2, rs, i))
                 .stream().flatMap(Optional::stream).collect(Collectors.toList());
     }
 
     private List<TemporaryExposureKey> createDummyKeys(int count, int intervalV2, boolean consentToShare, Optional<Timestamp> timestamp) {
-        List<TemporaryExposureKey> dummyKeys = generateDummyKeys(count, consentToShare, intervalV2, Instant.now());
+        List<TemporaryExposureKey> dummyKeys = dummyKeyReservoir.take(count, consentToShare, intervalV2, Instant.now());
         batchInsert(dummyKeys, timestamp);
         return dummyKeys;
     }
@@ -172,7 +323,7 @@ public class DiagnosisKeyDao {
         boolean rowCreated = jdbcTemplate.update(sql, new MapSqlParameterSource(params)) == 1;
         LOG.info("Marked token verification: {}", keyValue("newVerification", rowCreated));
         if (rowCreated) {
-            addReportKeysStatsRow(Instant.now(), totalKeyCount, exportedKeyCount);
+            reportStats.reportAdded(totalKeyCount, exportedKeyCount);
             return true;
         } else if (requestChecksum.equals(getVerifiedChecksum(verificationId))) {
             return false;
@@ -183,9 +334,14 @@ public class DiagnosisKeyDao {
 
     @Transactional
     public Optional<OutboundOperation> fetchAvailableKeyForEfgsWithDummyPadding(boolean retry) {
+        return fetchAvailableKeyForEfgsWithDummyPadding(retry, OUTBOUND_BATCH_MAX_SIZE);
+    }
+
+    @Transactional
+    public Optional<OutboundOperation> fetchAvailableKeyForEfgsWithDummyPadding(boolean retry, int batchSize) {
         Instant now = Instant.now();
         Timestamp timestamp = Timestamp.from(now);
-        List<TemporaryExposureKey> keys = fetchAvailableKeysForEfgs(retry, timestamp);
+        List<TemporaryExposureKey> keys = fetchAvailableKeysForEfgs(retry, timestamp, batchSize);
         if (keys.isEmpty()) {
             return Optional.empty();
         } else if (!retry && keys.size() < BATCH_MIN_SIZE) {
@@ -196,17 +352,17 @@ public class DiagnosisKeyDao {
         }
     }
 
-    private List<TemporaryExposureKey> fetchAvailableKeysForEfgs(boolean retry, Timestamp timestamp) {
+    private List<TemporaryExposureKey> fetchAvailableKeysForEfgs(boolean retry, Timestamp timestamp, int batchSize) {
         LOG.info("Fetching queued keys not sent to efgs.");
         String sql = "with batch as ( " +
-                "select key_data " +
+                "select key_data, submission_interval " +
                 "from en.diagnosis_key " +
                 "where efgs_sync is null and retry_count >= :min_retry_count and retry_count < :max_retry_count " +
                 "and consent_to_share " +
-                "order by key_data for update skip locked limit 5000 ) " +
+                "order by key_data for update skip locked limit :batch_size ) " +
                 "update en.diagnosis_key " +
                 "set efgs_sync = :timestamp, retry_count = retry_count + 1 " +
-                "where key_data in (select key_data from batch) " +
+                "where (key_data, submission_interval) in (select key_data, submission_interval from batch) " +
                 "returning key_data, rolling_period, rolling_start_interval_number, transmission_risk_level, " +
                 "visited_countries, days_since_onset_of_symptoms, origin, consent_to_share, symptoms_exist, " +
                 "submission_interval, submission_interval_v2";
@@ -214,7 +370,8 @@ public class DiagnosisKeyDao {
         return new ArrayList<>(jdbcTemplate.query(sql, Map.of(
                 "min_retry_count", retry ? 1 : 0,
                 "max_retry_count", retry ? MAX_RETRY_COUNT : 1,
-                "timestamp", timestamp
+                "timestamp", timestamp,
+                "batch_size", batchSize
         ), (rs, i) -> mapKey(rs)));
     }
 
@@ -225,11 +382,19 @@ public class DiagnosisKeyDao {
                         outboundOperationDao.startOutboundOperation(timestamp)));
     }
 
+    public int getEfgsBacklogSize() {
+        String sql = "select count(*) from en.diagnosis_key " +
+                "where efgs_sync is null and consent_to_share and retry_count < :max_retry_count";
+        return jdbcTemplate.queryForObject(sql, Map.of("max_retry_count", MAX_RETRY_COUNT), Integer.class);
+    }
+
     @Transactional
     public void setNotSent(OutboundOperation operation) {
-        String sql = "update en.diagnosis_key set efgs_sync = null where key_data = :key_data";
-        jdbcTemplate.batchUpdate(sql, operation.keys.stream().map(key -> Map.of("key_data", key.keyData))
-                .toArray((IntFunction<Map<String, String>[]>) Map[]::new)
+        String sql = "update en.diagnosis_key set efgs_sync = null " +
+                "where key_data = :key_data and submission_interval = :submission_interval";
+        jdbcTemplate.batchUpdate(sql, operation.keys.stream()
+                .map(key -> Map.of("key_data", key.keyData, "submission_interval", key.submissionInterval))
+                .toArray((IntFunction<Map<String, Object>[]>) Map[]::new)
         );
 
         outboundOperationDao.markErrorOperation(operation.operationId, Optional.of(operation.batchTag));
@@ -246,7 +411,7 @@ public class DiagnosisKeyDao {
     }
 
     @Transactional
-    public void addInboundKeys(List<TemporaryExposureKey> keys, int interval, int intervalV2) {
+    public void addInboundKeys(TemporaryExposureKeyBlock keys, int interval, int intervalV2) {
         if (!keys.isEmpty()) {
             batchInsert(keys, Optional.of(new Timestamp(Instant.now().toEpochMilli())));
             LOG.info("Inserted keys from efgs: {} {} {}",
@@ -260,26 +425,110 @@ public class DiagnosisKeyDao {
     }
 
     private void batchInsert(List<TemporaryExposureKey> newKeys, Optional<Timestamp> efgsSync) {
-        String sql = "insert into " +
+        if (copyInsert) {
+            Set<String> insertedKeyData = copyInsert(out -> DiagnosisKeyCopyWriter.write(out, newKeys, efgsSync));
+            intervalIndex.keysAdded(newKeys.stream()
+                    .filter(key -> insertedKeyData.remove(key.keyData))
+                    .collect(Collectors.toList()));
+        } else {
+            statementInsert(newKeys, efgsSync);
+        }
+    }
+
+    private void batchInsert(TemporaryExposureKeyBlock newKeys, Optional<Timestamp> efgsSync) {
+        if (copyInsert) {
+            Set<String> insertedKeyData = copyInsert(out -> DiagnosisKeyCopyWriter.write(out, newKeys, efgsSync));
+            intervalIndex.keysAdded(newKeys, i -> insertedKeyData.remove(newKeys.keyData(i)));
+        } else {
+            statementInsert(newKeys.toList(), efgsSync);
+        }
+    }
+
+    /**
+     * Streams the keys into a temporary table with a binary COPY and merges them into the key table with a single
+     * statement. The temporary table is emptied on commit, so this must run within a transaction.
+     *
+     * @return the key data of the keys that were inserted
+     */
+    private Set<String> copyInsert(DiagnosisKeyCopyWriter.CopyRows rows) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("Key copy-insert requires a transaction");
+        }
+        JdbcTemplate template = jdbcTemplate.getJdbcTemplate();
+        template.execute("create temporary table if not exists " + COPY_TABLE + " (" +
+                "key_data varchar(30), rolling_period int, rolling_start_interval_number int, transmission_risk_level int, " +
+                "submission_interval int, submission_interval_v2 int, origin varchar(2), visited_countries varchar(2)[], " +
+                "days_since_onset_of_symptoms int, consent_to_share boolean, efgs_sync timestamptz, symptoms_exist boolean" +
+                ") on commit delete rows");
+        template.execute((ConnectionCallback<Long>) connection -> DiagnosisKeyCopyWriter.copyIn(connection,
+                "copy " + COPY_TABLE + " (" + DiagnosisKeyCopyWriter.COLUMNS + ") from stdin (format binary)", rows));
+        // The primary key is unique only within a daily partition, so the key data is claimed across all days first.
+        // A key repeated in the staged rows is taken once, so it cannot be claimed and then inserted to two days.
+        String mergeSql = "with staged as (" +
+                "select distinct on (key_data) " + DiagnosisKeyCopyWriter.COLUMNS + " from " + COPY_TABLE + " " +
+                "order by key_data, submission_interval), " +
+                "claimed as (" +
+                "insert into en.diagnosis_key_data (key_data, submission_interval) " +
+                "select key_data, submission_interval from staged " +
+                "on conflict do nothing returning key_data) " +
+                "insert into en.diagnosis_key (" + DiagnosisKeyCopyWriter.COLUMNS + ") " +
+                "select " + DiagnosisKeyCopyWriter.COLUMNS + " from staged " +
+                "where staged.key_data in (select key_data from claimed) " +
+                "on conflict do nothing " +
+                "returning key_data";
+        Set<String> insertedKeyData = new HashSet<>(template.queryForList(mergeSql, String.class));
+        template.execute("delete from " + COPY_TABLE);
+        return insertedKeyData;
+    }
+
+    private void statementInsert(List<TemporaryExposureKey> newKeys, Optional<Timestamp> efgsSync) {
+        // The primary key is unique only within a daily partition, so the key data is claimed across all days first
+        String sql = "with claimed as (" +
+                "insert into en.diagnosis_key_data (key_data, submission_interval) " +
+                "values (cast(:key_data as varchar), cast(:submission_interval as int)) " +
+                "on conflict do nothing returning key_data) " +
+                "insert into " +
                 "en.diagnosis_key (key_data, rolling_period, rolling_start_interval_number, transmission_risk_level, " +
                 "submission_interval, submission_interval_v2, origin, visited_countries, days_since_onset_of_symptoms, consent_to_share, efgs_sync, symptoms_exist) " +
-                "values (:key_data, :rolling_period, :rolling_start_interval_number, :transmission_risk_level, " +
-                ":submission_interval, :submission_interval_v2, :origin, :visited_countries, :days_since_onset_of_symptoms, :consent_to_share, :efgs_sync, :symptoms_exist) " +
+                "select cast(:key_data as varchar), cast(:rolling_period as int), cast(:rolling_start_interval_number as int), " +
+                "cast(:transmission_risk_level as int), cast(:submission_interval as int), cast(:submission_interval_v2 as int), " +
+                "cast(:origin as varchar), cast(:visited_countries as varchar[]), cast(:days_since_onset_of_symptoms as int), " +
+                "cast(:consent_to_share as boolean), cast(:efgs_sync as timestamptz), cast(:symptoms_exist as boolean) " +
+                "from claimed " +
                 "on conflict do nothing";
         Map<String, Object>[] params = newKeys.stream()
                 .map(key -> createParamsMap(key, efgsSync))
                 .toArray((IntFunction<Map<String, Object>[]>) Map[]::new);
-        jdbcTemplate.batchUpdate(sql, params);
+        int[] results = jdbcTemplate.batchUpdate(sql, params);
+        List<TemporaryExposureKey> inserted = new ArrayList<>(newKeys.size());
+        for (int i = 0; i < results.length; i++) {
+            // Conflicting keys are skipped with 0 rows, while the driver may report unknown (negative) counts
+            if (results[i] != 0) {
+                inserted.add(newKeys.get(i));
+            }
+        }
+        intervalIndex.keysAdded(inserted);
     }
 
-    private void addReportKeysStatsRow(Instant createTime, long totalKeyCount, long exportedKeyCount) {
-        String sql = "insert into en.stats_report_keys(reported_at, total_key_count, exported_key_count) " +
-                "values (:reported_at, :total_key_count, :exported_key_count)";
-        Map<String, Object> params = Map.of(
-                "reported_at", new Timestamp(createTime.toEpochMilli()),
-                "total_key_count", totalKeyCount,
-                "exported_key_count", exportedKeyCount);
-        jdbcTemplate.update(sql, params);
+    private boolean addValidKey(int interval, ResultSet rs, int index, TemporaryExposureKeyBlock block) throws SQLException {
+        try {
+            block.add(
+                    rs.getString("key_data"),
+                    rs.getInt("transmission_risk_level"),
+                    rs.getInt("rolling_start_interval_number"),
+                    rs.getInt("rolling_period"),
+                    Arrays.asList((String[]) rs.getArray("visited_countries").getArray()),
+                    (Integer) rs.getObject("days_since_onset_of_symptoms"),
+                    rs.getString("origin"),
+                    rs.getBoolean("consent_to_share"),
+                    (Boolean) rs.getObject("symptoms_exist"),
+                    rs.getInt("submission_interval"),
+                    rs.getInt("submission_interval_v2"));
+            return true;
+        } catch (InputValidationException e) {
+            LOG.error("Bad exposure keys in DB: {} {}", keyValue("interval", interval), keyValue("index", index), e);
+            return false;
+        }
     }
 
     private Optional<TemporaryExposureKey> mapValidKey(int interval, ResultSet rs, int index) throws SQLException {
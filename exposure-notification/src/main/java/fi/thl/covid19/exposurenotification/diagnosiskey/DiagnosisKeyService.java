@@ -3,6 +3,7 @@ package fi.thl.covid19.exposurenotification.diagnosiskey;
 import fi.thl.covid19.exposurenotification.diagnosiskey.v1.DiagnosisPublishRequest;
 import fi.thl.covid19.exposurenotification.diagnosiskey.v1.TemporaryExposureKeyRequest;
 import fi.thl.covid19.exposurenotification.tokenverification.PublishTokenVerification;
+import fi.thl.covid19.exposurenotification.tokenverification.PublishTokenVerificationBatcher;
 import fi.thl.covid19.exposurenotification.tokenverification.PublishTokenVerificationService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,16 +34,35 @@ public class DiagnosisKeyService {
 
     private final DiagnosisKeyDao dao;
     private final PublishTokenVerificationService tokenVerificationService;
+    private final PublishTokenVerificationBatcher verificationBatcher;
+    private final PublishQueue publishQueue;
 
-    public DiagnosisKeyService(DiagnosisKeyDao dao, PublishTokenVerificationService tokenVerificationService) {
+    public DiagnosisKeyService(DiagnosisKeyDao dao,
+                               PublishTokenVerificationService tokenVerificationService,
+                               PublishTokenVerificationBatcher verificationBatcher,
+                               PublishQueue publishQueue) {
         this.dao = requireNonNull(dao, "DAO required");
         this.tokenVerificationService = requireNonNull(tokenVerificationService, "Token verification service required");
+        this.verificationBatcher = requireNonNull(verificationBatcher, "Token verification batcher required");
+        this.publishQueue = requireNonNull(publishQueue, "Publish queue required");
         LOG.info("Initialized");
     }
 
     public void handlePublishRequest(String publishToken, DiagnosisPublishRequest request) {
         Instant now = Instant.now();
-        PublishTokenVerification verification = tokenVerificationService.getVerification(publishToken);
+        PublishTokenVerification verification = publishQueue.isVerificationBatched()
+                ? verificationBatcher.getVerification(publishToken)
+                : tokenVerificationService.getVerification(publishToken);
+        KeySubmission submission = toSubmission(verification, request, now);
+        if (publishQueue.isEnabled()) {
+            publishQueue.submit(submission);
+        } else {
+            dao.addKeys(submission.verificationId, submission.requestChecksum, submission.interval,
+                    submission.intervalV2, submission.keys, submission.exportedKeyCount);
+        }
+    }
+
+    private KeySubmission toSubmission(PublishTokenVerification verification, DiagnosisPublishRequest request, Instant now) {
         List<TemporaryExposureKeyRequest> filtered = filter(request.keys, now);
         int currentInterval = to24HourInterval(now);
         int currentIntervalV2 = toV2Interval(now);
@@ -56,7 +76,8 @@ public class DiagnosisKeyService {
                 keyValue("postedCount", request.keys.size()),
                 keyValue("filteredCount", filtered.size())
         );
-        dao.addKeys(verification.id, checksum(keys), currentInterval, currentIntervalV2, keys, getExportedKeyCount(keys));
+        return new KeySubmission(
+                verification.id, checksum(keys), currentInterval, currentIntervalV2, keys, getExportedKeyCount(keys));
     }
 
     private long getExportedKeyCount(List<TemporaryExposureKey> keys) {
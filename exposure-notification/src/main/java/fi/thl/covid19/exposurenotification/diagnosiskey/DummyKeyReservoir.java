@@ -0,0 +1,59 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static fi.thl.covid19.exposurenotification.efgs.util.DummyKeyGeneratorUtil.*;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Reservoir of pre-generated dummy key blocks, so that padding a batch does not generate random key data or sort
+ * the keys on the request path. Each block pads a single batch and is then discarded.
+ */
+@Component
+public class DummyKeyReservoir {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DummyKeyReservoir.class);
+
+    private final BlockingQueue<DummyKeyBlock> blocks;
+
+    public DummyKeyReservoir(@Value("${covid19.diagnosis.dummy-keys.reservoir-size:20}") int reservoirSize) {
+        this.blocks = new ArrayBlockingQueue<>(Math.max(1, reservoirSize));
+        LOG.info("Initialized: {}", keyValue("reservoirSize", reservoirSize));
+    }
+
+    /**
+     * Returns dummy keys for padding a batch with count keys, sorted by key data. A block is generated inline if the
+     * reservoir has run dry.
+     */
+    public List<TemporaryExposureKey> take(int count, boolean consentToShare, int intervalV2, Instant now) {
+        if (count > DummyKeyBlock.CAPACITY) {
+            return concatDummyKeys(List.of(), generateDummyKeys(count, consentToShare, intervalV2, now));
+        }
+        DummyKeyBlock block = blocks.poll();
+        if (block == null) {
+            LOG.info("Dummy key reservoir empty, generating inline: {}", keyValue("count", count));
+            block = generateDummyKeyBlock();
+        }
+        return block.keys(count, consentToShare, intervalV2, now);
+    }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${covid19.diagnosis.dummy-keys.refill-interval:PT10S}")
+    public void refill() {
+        while (blocks.remainingCapacity() > 0) {
+            blocks.offer(generateDummyKeyBlock());
+        }
+    }
+
+    public int size() {
+        return blocks.size();
+    }
+}
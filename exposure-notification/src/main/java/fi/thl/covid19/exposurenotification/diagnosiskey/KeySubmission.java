@@ -0,0 +1,31 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Keys of a single verified publish request, waiting to be written to the DB.
+ */
+public class KeySubmission {
+    public final int verificationId;
+    public final String requestChecksum;
+    public final int interval;
+    public final int intervalV2;
+    public final List<TemporaryExposureKey> keys;
+    public final long exportedKeyCount;
+
+    public KeySubmission(int verificationId,
+                         String requestChecksum,
+                         int interval,
+                         int intervalV2,
+                         List<TemporaryExposureKey> keys,
+                         long exportedKeyCount) {
+        this.verificationId = verificationId;
+        this.requestChecksum = requireNonNull(requestChecksum);
+        this.interval = interval;
+        this.intervalV2 = intervalV2;
+        this.keys = requireNonNull(keys);
+        this.exportedKeyCount = exportedKeyCount;
+    }
+}
@@ -0,0 +1,184 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import fi.thl.covid19.exposurenotification.error.PublishQueueFullException;
+import fi.thl.covid19.exposurenotification.error.TokenAlreadyQueuedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Optional write-behind for publish requests. Submissions are queued in memory and a single writer drains
+ * them in micro-batches, so that a burst of publishes needs only a few DB transactions. A full queue is rejected
+ * with a retry hint instead of blocking request threads.
+ * <p>
+ * Only submissions with a verified token are queued, and each token can have one submission waiting at a time. A
+ * repeat of the waiting request is accepted as is, while other keys for the token are rejected like on a used token.
+ * Marking the token used is left to the writer, so a token already used for different keys is only noticed there.
+ * <p>
+ * Queued submissions are not durable: anything still queued when the process dies is lost.
+ */
+@Component
+public class PublishQueue implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublishQueue.class);
+
+    private static final long POLL_TIMEOUT_MS = 500;
+    private static final long SHUTDOWN_TIMEOUT_MS = 30_000;
+
+    private final DiagnosisKeyDao dao;
+    private final boolean enabled;
+    private final boolean batchVerification;
+    private final int maxBatchSize;
+    private final Duration retryAfter;
+    private final BlockingQueue<KeySubmission> queue;
+    private final Counter rejected;
+    // Request checksums of the queued submissions by verification id
+    private final Map<Integer, String> queuedChecksums = new ConcurrentHashMap<>();
+    private final AtomicBoolean writerStarted = new AtomicBoolean();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private volatile boolean running;
+
+    public PublishQueue(DiagnosisKeyDao dao,
+                        @Qualifier("publishWriterExecutor") Executor executor,
+                        MeterRegistry meterRegistry,
+                        @Value("${covid19.diagnosis.publish-queue.enabled:false}") boolean enabled,
+                        @Value("${covid19.diagnosis.publish-queue.batch-verification:false}") boolean batchVerification,
+                        @Value("${covid19.diagnosis.publish-queue.capacity:2000}") int capacity,
+                        @Value("${covid19.diagnosis.publish-queue.max-batch-size:100}") int maxBatchSize,
+                        @Value("${covid19.diagnosis.publish-queue.retry-after:PT30S}") Duration retryAfter) {
+        this.dao = requireNonNull(dao);
+        this.enabled = enabled;
+        this.batchVerification = enabled && batchVerification;
+        this.maxBatchSize = maxBatchSize;
+        this.retryAfter = requireNonNull(retryAfter);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        Gauge.builder("publish_queue_size", queue::size).register(meterRegistry);
+        this.rejected = meterRegistry.counter("publish_queue_rejected");
+        if (enabled) {
+            running = true;
+            executor.execute(this::writeLoop);
+        } else {
+            stopped.countDown();
+        }
+        LOG.info("Initialized: {} {} {} {} {}",
+                keyValue("enabled", enabled),
+                keyValue("batchVerification", this.batchVerification),
+                keyValue("capacity", capacity),
+                keyValue("maxBatchSize", maxBatchSize),
+                keyValue("retryAfter", retryAfter));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isVerificationBatched() {
+        return batchVerification;
+    }
+
+    public void submit(KeySubmission submission) {
+        String queuedChecksum = queuedChecksums.putIfAbsent(submission.verificationId, submission.requestChecksum);
+        if (queuedChecksum != null) {
+            if (queuedChecksum.equals(submission.requestChecksum)) {
+                LOG.info("Publish already queued for token: {}", keyValue("verificationId", submission.verificationId));
+                return;
+            }
+            LOG.warn("Publish with different keys queued for token: {}", keyValue("verificationId", submission.verificationId));
+            throw new TokenAlreadyQueuedException();
+        }
+        if (!queue.offer(submission)) {
+            queuedChecksums.remove(submission.verificationId);
+            LOG.warn("Publish queue full: {}", keyValue("size", queue.size()));
+            throw new PublishQueueFullException(retryAfter);
+        }
+    }
+
+    /**
+     * Stops the writer and writes what was left in the queue before the DB goes away. The remaining queue is only
+     * drained once the writer has stopped, so that a submission is never written by both.
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        // A writer that never got to start will not start anymore
+        boolean writerRunning = !writerStarted.compareAndSet(false, true);
+        if (writerRunning && !stopped.await(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            LOG.error("Publish queue writer did not stop, queued publishes lost: {}", keyValue("count", queue.size()));
+            return;
+        }
+        List<KeySubmission> remaining = new ArrayList<>();
+        while (queue.drainTo(remaining, maxBatchSize) > 0) {
+            write(remaining);
+            remaining.clear();
+        }
+    }
+
+    private void writeLoop() {
+        if (!writerStarted.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<KeySubmission> batch = new ArrayList<>(maxBatchSize);
+            while (running) {
+                KeySubmission first = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatchSize - 1);
+                    write(batch);
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    private void write(List<KeySubmission> batch) {
+        try {
+            countRejected(dao.addKeySubmissions(batch));
+        } catch (RuntimeException e) {
+            LOG.error("Publish batch failed, writing submissions one by one: {}", keyValue("submissions", batch.size()), e);
+            for (KeySubmission submission : batch) {
+                try {
+                    countRejected(dao.addKeySubmissions(List.of(submission)));
+                } catch (RuntimeException retryError) {
+                    LOG.error("Queued publish lost: {}", keyValue("verificationId", submission.verificationId), retryError);
+                }
+            }
+        } finally {
+            batch.forEach(submission -> queuedChecksums.remove(submission.verificationId));
+        }
+    }
+
+    // The token was used for different keys meanwhile, which the client is no longer around to be told about
+    private void countRejected(int count) {
+        if (count > 0) {
+            rejected.increment(count);
+            LOG.warn("Queued publishes rejected on write: {}", keyValue("count", count));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static fi.thl.covid19.exposurenotification.diagnosiskey.TransactionCallbacks.afterCommit;
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Aggregates key report statistics in memory and flushes them to en.stats_report_keys_minute, so that publishing
+ * does not write a stats row of its own.
+ * <p>
+ * A report is counted in the minute its transaction commits. A minute is flushed once it has been closed for another
+ * full minute, and the upsert adds to the stored totals so that every node can flush the same minute. A failed flush
+ * puts its minutes back to be retried on the next run; counts still in memory when the process dies are lost.
+ */
+@Component
+public class ReportKeysStats implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReportKeysStats.class);
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final ConcurrentMap<Instant, Bucket> buckets = new ConcurrentHashMap<>();
+
+    public ReportKeysStats(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = requireNonNull(jdbcTemplate);
+    }
+
+    public void reportAdded(long totalKeyCount, long exportedKeyCount) {
+        afterCommit(() -> {
+            Bucket bucket = buckets.computeIfAbsent(Instant.now().truncatedTo(ChronoUnit.MINUTES), minute -> new Bucket());
+            bucket.reports.increment();
+            bucket.totalKeys.add(totalKeyCount);
+            bucket.exportedKeys.add(exportedKeyCount);
+        });
+    }
+
+    @Scheduled(initialDelayString = "${covid19.diagnosis.stats.flush-interval:PT1M}",
+            fixedDelayString = "${covid19.diagnosis.stats.flush-interval:PT1M}")
+    public void flushClosed() {
+        flushBefore(Instant.now().truncatedTo(ChronoUnit.MINUTES).minus(1, ChronoUnit.MINUTES));
+    }
+
+    public void flushAll() {
+        flushBefore(Instant.MAX);
+    }
+
+    @Override
+    public void destroy() {
+        flushAll();
+    }
+
+    private synchronized void flushBefore(Instant limit) {
+        Map<Instant, Bucket> flushed = new HashMap<>();
+        List<SqlParameterSource> rows = new ArrayList<>();
+        for (Map.Entry<Instant, Bucket> entry : buckets.entrySet()) {
+            if (entry.getKey().isBefore(limit) && buckets.remove(entry.getKey(), entry.getValue())) {
+                Bucket bucket = entry.getValue();
+                flushed.put(entry.getKey(), bucket);
+                rows.add(new MapSqlParameterSource()
+                        .addValue("reported_at", Timestamp.from(entry.getKey()))
+                        .addValue("report_count", bucket.reports.sum())
+                        .addValue("total_key_count", bucket.totalKeys.sum())
+                        .addValue("exported_key_count", bucket.exportedKeys.sum()));
+            }
+        }
+        if (!rows.isEmpty()) {
+            String sql = "insert into en.stats_report_keys_minute(reported_at, report_count, total_key_count, exported_key_count) " +
+                    "values (:reported_at, :report_count, :total_key_count, :exported_key_count) " +
+                    "on conflict (reported_at) do update set " +
+                    "report_count = stats_report_keys_minute.report_count + excluded.report_count, " +
+                    "total_key_count = stats_report_keys_minute.total_key_count + excluded.total_key_count, " +
+                    "exported_key_count = stats_report_keys_minute.exported_key_count + excluded.exported_key_count";
+            try {
+                jdbcTemplate.batchUpdate(sql, rows.toArray(new SqlParameterSource[0]));
+                LOG.info("Report stats flushed: {}", keyValue("minutes", rows.size()));
+            } catch (RuntimeException e) {
+                flushed.forEach((minute, bucket) -> buckets.merge(minute, bucket, Bucket::add));
+                LOG.error("Flushing report stats failed: {}", keyValue("minutes", rows.size()), e);
+            }
+        }
+    }
+
+    private static final class Bucket {
+        final LongAdder reports = new LongAdder();
+        final LongAdder totalKeys = new LongAdder();
+        final LongAdder exportedKeys = new LongAdder();
+
+        Bucket add(Bucket other) {
+            reports.add(other.reports.sum());
+            totalKeys.add(other.totalKeys.sum());
+            exportedKeys.add(other.exportedKeys.sum());
+            return this;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import com.google.protobuf.ByteString;
+import fi.thl.covid19.exposurenotification.error.InputValidationException;
+
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Columnar storage of exposure keys for the bulk paths: batch file generation, EFGS inbound and key inserts.
+ * <p>
+ * The raw key data of all keys is held in one shared array, the numeric fields in parallel int arrays and the visited
+ * countries as a bitmask over a fixed ISO country table, so adding a key allocates nothing. Keys are validated as
+ * {@link TemporaryExposureKey} validates them: unknown visited countries are dropped, and a key that fails validation
+ * is not added. A block can be cleared and refilled, so a consumer must not hold on to it after it has been passed on.
+ */
+public final class TemporaryExposureKeyBlock {
+
+    public static final int KEY_DATA_LENGTH = 16;
+    private static final int KEY_DATA_LENGTH_BASE64 = 24;
+
+    private static final String[] COUNTRIES = Validation.ISO_COUNTRY_CODES.stream().sorted().toArray(String[]::new);
+    private static final Map<String, Integer> COUNTRY_INDEX = new HashMap<>();
+    private static final int COUNTRY_WORDS = (COUNTRIES.length + Long.SIZE - 1) / Long.SIZE;
+
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(US_ASCII);
+    private static final int[] BASE64_VALUES = new int[128];
+
+    private static final byte CONSENT_TO_SHARE = 1;
+    private static final byte DAYS_SINCE_ONSET_KNOWN = 2;
+    private static final byte SYMPTOMS_KNOWN = 4;
+    private static final byte SYMPTOMS_EXIST = 8;
+
+    static {
+        for (int i = 0; i < COUNTRIES.length; i++) {
+            COUNTRY_INDEX.put(COUNTRIES[i], i);
+        }
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_VALUES[BASE64[i]] = i;
+        }
+    }
+
+    private int size = 0;
+    private byte[] keyData;
+    private int[] transmissionRiskLevel;
+    private int[] rollingStartIntervalNumber;
+    private int[] rollingPeriod;
+    private int[] daysSinceOnsetOfSymptoms;
+    private int[] submissionInterval;
+    private int[] submissionIntervalV2;
+    private short[] origin;
+    private long[] visitedCountries;
+    private byte[] flags;
+
+    public TemporaryExposureKeyBlock(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    public static TemporaryExposureKeyBlock of(Collection<TemporaryExposureKey> keys) {
+        TemporaryExposureKeyBlock block = new TemporaryExposureKeyBlock(keys.size());
+        keys.forEach(block::add);
+        return block;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(TemporaryExposureKey key) {
+        add(key.keyData,
+                key.transmissionRiskLevel,
+                key.rollingStartIntervalNumber,
+                key.rollingPeriod,
+                key.visitedCountries,
+                key.daysSinceOnsetOfSymptoms.orElse(null),
+                key.origin,
+                key.consentToShareWithEfgs,
+                key.symptomsExist.orElse(null),
+                key.submissionInterval,
+                key.submissionIntervalV2);
+    }
+
+    /**
+     * Adds a key with Base64 key data. Unknown days since onset and symptoms are given as null, as they are stored.
+     */
+    public void add(String keyDataBase64,
+                    int transmissionRiskLevel,
+                    int rollingStartIntervalNumber,
+                    int rollingPeriod,
+                    Collection<String> visitedCountries,
+                    Integer daysSinceOnsetOfSymptoms,
+                    String origin,
+                    boolean consentToShareWithEfgs,
+                    Boolean symptomsExist,
+                    int submissionInterval,
+                    int submissionIntervalV2) {
+        ensureCapacity(size + 1);
+        decodeKeyData(keyDataBase64, size * KEY_DATA_LENGTH);
+        append(transmissionRiskLevel, rollingStartIntervalNumber, rollingPeriod, visitedCountries,
+                daysSinceOnsetOfSymptoms, origin, consentToShareWithEfgs, symptomsExist,
+                submissionInterval, submissionIntervalV2);
+    }
+
+    /**
+     * Adds a key with raw key data. Unknown days since onset and symptoms are given as null, as they are stored.
+     */
+    public void add(ByteString keyData,
+                    int transmissionRiskLevel,
+                    int rollingStartIntervalNumber,
+                    int rollingPeriod,
+                    Collection<String> visitedCountries,
+                    Integer daysSinceOnsetOfSymptoms,
+                    String origin,
+                    boolean consentToShareWithEfgs,
+                    Boolean symptomsExist,
+                    int submissionInterval,
+                    int submissionIntervalV2) {
+        if (keyData.size() != KEY_DATA_LENGTH) {
+            throw new InputValidationException("Invalid decoded exposure key length: "
+                    + keyData.size() + "!=" + KEY_DATA_LENGTH);
+        }
+        ensureCapacity(size + 1);
+        keyData.copyTo(this.keyData, size * KEY_DATA_LENGTH);
+        append(transmissionRiskLevel, rollingStartIntervalNumber, rollingPeriod, visitedCountries,
+                daysSinceOnsetOfSymptoms, origin, consentToShareWithEfgs, symptomsExist,
+                submissionInterval, submissionIntervalV2);
+    }
+
+    public void copyKeyData(int index, byte[] target, int offset) {
+        System.arraycopy(keyData, checkIndex(index) * KEY_DATA_LENGTH, target, offset, KEY_DATA_LENGTH);
+    }
+
+    /**
+     * Writes the key data as Base64 ASCII into the target, which must have room for 24 bytes.
+     */
+    public void encodeKeyData(int index, byte[] target) {
+        int from = checkIndex(index) * KEY_DATA_LENGTH;
+        int position = 0;
+        for (int i = 0; i < KEY_DATA_LENGTH - 1; i += 3) {
+            int bits = (keyData[from + i] & 0xff) << 16 | (keyData[from + i + 1] & 0xff) << 8 | (keyData[from + i + 2] & 0xff);
+            target[position++] = BASE64[bits >>> 18];
+            target[position++] = BASE64[(bits >>> 12) & 0x3f];
+            target[position++] = BASE64[(bits >>> 6) & 0x3f];
+            target[position++] = BASE64[bits & 0x3f];
+        }
+        int last = keyData[from + KEY_DATA_LENGTH - 1] & 0xff;
+        target[position++] = BASE64[last >>> 2];
+        target[position++] = BASE64[(last & 0x03) << 4];
+        target[position++] = '=';
+        target[position] = '=';
+    }
+
+    public String keyData(int index) {
+        byte[] encoded = new byte[KEY_DATA_LENGTH_BASE64];
+        encodeKeyData(index, encoded);
+        return new String(encoded, US_ASCII);
+    }
+
+    public int transmissionRiskLevel(int index) {
+        return transmissionRiskLevel[checkIndex(index)];
+    }
+
+    public int rollingStartIntervalNumber(int index) {
+        return rollingStartIntervalNumber[checkIndex(index)];
+    }
+
+    public int rollingPeriod(int index) {
+        return rollingPeriod[checkIndex(index)];
+    }
+
+    public boolean hasDaysSinceOnsetOfSymptoms(int index) {
+        return (flags[checkIndex(index)] & DAYS_SINCE_ONSET_KNOWN) != 0;
+    }
+
+    public int daysSinceOnsetOfSymptoms(int index) {
+        if (!hasDaysSinceOnsetOfSymptoms(index)) {
+            throw new NoSuchElementException("No days since onset of symptoms");
+        }
+        return daysSinceOnsetOfSymptoms[index];
+    }
+
+    public String origin(int index) {
+        return COUNTRIES[origin[checkIndex(index)]];
+    }
+
+    public boolean consentToShareWithEfgs(int index) {
+        return (flags[checkIndex(index)] & CONSENT_TO_SHARE) != 0;
+    }
+
+    public boolean hasSymptomsExist(int index) {
+        return (flags[checkIndex(index)] & SYMPTOMS_KNOWN) != 0;
+    }
+
+    public boolean symptomsExist(int index) {
+        if (!hasSymptomsExist(index)) {
+            throw new NoSuchElementException("No symptoms information");
+        }
+        return (flags[index] & SYMPTOMS_EXIST) != 0;
+    }
+
+    public int submissionInterval(int index) {
+        return submissionInterval[checkIndex(index)];
+    }
+
+    public int submissionIntervalV2(int index) {
+        return submissionIntervalV2[checkIndex(index)];
+    }
+
+    public int visitedCountryCount(int index) {
+        int from = checkIndex(index) * COUNTRY_WORDS;
+        int count = 0;
+        for (int word = 0; word < COUNTRY_WORDS; word++) {
+            count += Long.bitCount(visitedCountries[from + word]);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the first visited country of the key at or after the given country table position, or -1 if there is
+     * none. Iterate with {@code for (int c = nextVisitedCountry(i, 0); c >= 0; c = nextVisitedCountry(i, c + 1))}.
+     */
+    public int nextVisitedCountry(int index, int fromCountry) {
+        int from = checkIndex(index) * COUNTRY_WORDS;
+        int word = fromCountry / Long.SIZE;
+        if (word >= COUNTRY_WORDS) {
+            return -1;
+        }
+        long bits = visitedCountries[from + word] & (-1L << (fromCountry % Long.SIZE));
+        while (true) {
+            if (bits != 0) {
+                return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == COUNTRY_WORDS) {
+                return -1;
+            }
+            bits = visitedCountries[from + word];
+        }
+    }
+
+    public static String country(int country) {
+        return COUNTRIES[country];
+    }
+
+    public Set<String> visitedCountries(int index) {
+        Set<String> countries = new HashSet<>();
+        for (int c = nextVisitedCountry(index, 0); c >= 0; c = nextVisitedCountry(index, c + 1)) {
+            countries.add(COUNTRIES[c]);
+        }
+        return countries;
+    }
+
+    public TemporaryExposureKey get(int index) {
+        return new TemporaryExposureKey(
+                keyData(index),
+                transmissionRiskLevel(index),
+                rollingStartIntervalNumber(index),
+                rollingPeriod(index),
+                visitedCountries(index),
+                hasDaysSinceOnsetOfSymptoms(index) ? Optional.of(daysSinceOnsetOfSymptoms(index)) : Optional.empty(),
+                origin(index),
+                consentToShareWithEfgs(index),
+                hasSymptomsExist(index) ? Optional.of(symptomsExist(index)) : Optional.empty(),
+                submissionInterval(index),
+                submissionIntervalV2(index));
+    }
+
+    public List<TemporaryExposureKey> toList() {
+        List<TemporaryExposureKey> keys = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            keys.add(get(i));
+        }
+        return keys;
+    }
+
+    // The key data is already in place: the rest is validated before anything is written, so a failing key is not added
+    private void append(int transmissionRiskLevel,
+                        int rollingStartIntervalNumber,
+                        int rollingPeriod,
+                        Collection<String> visitedCountries,
+                        Integer daysSinceOnsetOfSymptoms,
+                        String origin,
+                        boolean consentToShareWithEfgs,
+                        Boolean symptomsExist,
+                        int submissionInterval,
+                        int submissionIntervalV2) {
+        Validation.validateTransmissionRiskLevel(transmissionRiskLevel);
+        Validation.validateRollingStartIntervalNumber(rollingStartIntervalNumber);
+        Validation.validateRollingPeriod(rollingPeriod);
+        short originIndex = COUNTRY_INDEX.get(Validation.getValidatedISOCountryCode(Objects.requireNonNull(origin))).shortValue();
+
+        int i = size;
+        this.transmissionRiskLevel[i] = transmissionRiskLevel;
+        this.rollingStartIntervalNumber[i] = rollingStartIntervalNumber;
+        this.rollingPeriod[i] = rollingPeriod;
+        this.daysSinceOnsetOfSymptoms[i] = daysSinceOnsetOfSymptoms == null ? 0 : daysSinceOnsetOfSymptoms;
+        this.submissionInterval[i] = submissionInterval;
+        this.submissionIntervalV2[i] = submissionIntervalV2;
+        this.origin[i] = originIndex;
+        int countriesFrom = i * COUNTRY_WORDS;
+        Arrays.fill(this.visitedCountries, countriesFrom, countriesFrom + COUNTRY_WORDS, 0L);
+        for (String country : visitedCountries) {
+            Integer countryIndex = COUNTRY_INDEX.get(country);
+            if (countryIndex != null) {
+                this.visitedCountries[countriesFrom + countryIndex / Long.SIZE] |= 1L << (countryIndex % Long.SIZE);
+            }
+        }
+        byte keyFlags = 0;
+        if (consentToShareWithEfgs) keyFlags |= CONSENT_TO_SHARE;
+        if (daysSinceOnsetOfSymptoms != null) keyFlags |= DAYS_SINCE_ONSET_KNOWN;
+        if (symptomsExist != null) keyFlags |= SYMPTOMS_KNOWN;
+        if (Boolean.TRUE.equals(symptomsExist)) keyFlags |= SYMPTOMS_EXIST;
+        this.flags[i] = keyFlags;
+        size++;
+    }
+
+    // Decodes the 24 character Base64 form of 16 bytes, which always ends with two padding characters
+    private void decodeKeyData(String encoded, int target) {
+        if (encoded.length() != KEY_DATA_LENGTH_BASE64) {
+            throw new InputValidationException("Invalid encoded exposure key length: "
+                    + encoded.length() + "!=" + KEY_DATA_LENGTH_BASE64);
+        }
+        if (encoded.charAt(22) != '=' || encoded.charAt(23) != '=') {
+            throw new InputValidationException("Invalid exposure key: not Base64");
+        }
+        int position = target;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < 22; i++) {
+            char c = encoded.charAt(i);
+            int value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                throw new InputValidationException("Invalid exposure key: not Base64");
+            }
+            bits = bits << 6 | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                keyData[position++] = (byte) (bits >>> bitCount);
+            }
+        }
+    }
+
+    private int checkIndex(int index) {
+        return Objects.checkIndex(index, size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > transmissionRiskLevel.length) {
+            int newCapacity = Math.max(capacity, transmissionRiskLevel.length * 2);
+            keyData = Arrays.copyOf(keyData, newCapacity * KEY_DATA_LENGTH);
+            transmissionRiskLevel = Arrays.copyOf(transmissionRiskLevel, newCapacity);
+            rollingStartIntervalNumber = Arrays.copyOf(rollingStartIntervalNumber, newCapacity);
+            rollingPeriod = Arrays.copyOf(rollingPeriod, newCapacity);
+            daysSinceOnsetOfSymptoms = Arrays.copyOf(daysSinceOnsetOfSymptoms, newCapacity);
+            submissionInterval = Arrays.copyOf(submissionInterval, newCapacity);
+            submissionIntervalV2 = Arrays.copyOf(submissionIntervalV2, newCapacity);
+            origin = Arrays.copyOf(origin, newCapacity);
+            visitedCountries = Arrays.copyOf(visitedCountries, newCapacity * COUNTRY_WORDS);
+            flags = Arrays.copyOf(flags, newCapacity);
+        }
+    }
+
+    private void allocate(int capacity) {
+        keyData = new byte[capacity * KEY_DATA_LENGTH];
+        transmissionRiskLevel = new int[capacity];
+        rollingStartIntervalNumber = new int[capacity];
+        rollingPeriod = new int[capacity];
+        daysSinceOnsetOfSymptoms = new int[capacity];
+        submissionInterval = new int[capacity];
+        submissionIntervalV2 = new int[capacity];
+        origin = new short[capacity];
+        visitedCountries = new long[capacity * COUNTRY_WORDS];
+        flags = new byte[capacity];
+    }
+}
@@ -0,0 +1,62 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.locks.Lock;
+
+final class TransactionCallbacks {
+
+    private TransactionCallbacks() {
+    }
+
+    /**
+     * Runs the action once the current transaction has committed, or right away when there is no transaction.
+     * A rolled back transaction never runs it.
+     */
+    static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Like {@link #afterCommit(Runnable)}, but holds the lock from just before the commit until the action has run,
+     * so that whoever takes the lock sees the commit and its action either both done or both pending.
+     */
+    static void afterCommit(Runnable action, Lock lock) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                private boolean locked;
+
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    lock.lock();
+                    locked = true;
+                }
+
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (locked) {
+                        locked = false;
+                        lock.unlock();
+                    }
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+}
@@ -14,6 +14,9 @@ public final class Validation {
     private Validation() {
     }
 
+    // Locale creates a new set on every call, so look it up once
+    static final Set<String> ISO_COUNTRY_CODES = Locale.getISOCountries(Locale.IsoCountryCode.PART1_ALPHA2);
+
     private static final String TOKEN_REGEX = "[0-9]{12}";
 
     // Base64 string length, each char representing 6 bits
@@ -100,7 +103,7 @@ public final class Validation {
     }
 
     public static boolean validateISOCountryCode(String code) {
-        return Locale.getISOCountries(Locale.IsoCountryCode.PART1_ALPHA2).contains(code);
+        return ISO_COUNTRY_CODES.contains(code);
     }
 
     public static int validateDaysSinceOnsetOfSymptoms(int daysSinceOnsetOfSymptoms) {
@@ -4,6 +4,7 @@ import fi.thl.covid19.exposurenotification.batch.BatchFile;
 import fi.thl.covid19.exposurenotification.batch.BatchFileService;
 import fi.thl.covid19.exposurenotification.batch.BatchId;
 import fi.thl.covid19.exposurenotification.batch.BatchIntervals;
+import fi.thl.covid19.exposurenotification.batch.ETags;
 import fi.thl.covid19.exposurenotification.configuration.ConfigurationService;
 import fi.thl.covid19.exposurenotification.configuration.v1.AppConfiguration;
 import fi.thl.covid19.exposurenotification.configuration.v1.ExposureConfiguration;
@@ -17,12 +18,16 @@ import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static fi.thl.covid19.exposurenotification.diagnosiskey.Validation.validatePublishToken;
 import static java.util.Objects.requireNonNull;
@@ -46,6 +51,7 @@ public class DiagnosisKeyController {
     private final ConfigurationService configurationService;
 
     private final boolean demoMode;
+    private final boolean serveFromDisk;
 
     public DiagnosisKeyController(
             DiagnosisKeyService diagnosisService,
@@ -53,15 +59,18 @@ public class DiagnosisKeyController {
             ConfigurationService configurationService,
             @Value("${covid19.diagnosis.response-cache.status-duration}") Duration statusCacheDuration,
             @Value("${covid19.diagnosis.response-cache.batch-duration}") Duration batchCacheDuration,
-            @Value("${covid19.demo-mode:false}") boolean demoMode) {
+            @Value("${covid19.demo-mode:false}") boolean demoMode,
+            @Value("${covid19.diagnosis.file-storage.serve-from-disk:true}") boolean serveFromDisk) {
         this.diagnosisService = requireNonNull(diagnosisService);
         this.batchFileService = requireNonNull(batchFileService);
         this.configurationService = requireNonNull(configurationService);
         this.statusCacheDuration = requireNonNull(statusCacheDuration);
         this.batchCacheDuration = requireNonNull(batchCacheDuration);
         this.demoMode = demoMode;
-        LOG.info("Initialized: {} {} {}",
+        this.serveFromDisk = serveFromDisk;
+        LOG.info("Initialized: {} {} {} {}",
                 keyValue("demoMode", demoMode),
+                keyValue("serveFromDisk", serveFromDisk),
                 keyValue("statusCacheDuration", statusCacheDuration),
                 keyValue("batchCacheDuration", batchCacheDuration));
     }
@@ -72,7 +81,8 @@ public class DiagnosisKeyController {
             @RequestParam(value = "app-config") Optional<Integer> appConfigVersion,
             @RequestParam(value = "exposure-config") Optional<Integer> exposureConfigVersion,
             @RequestParam(value = "exposure-config-v2") Optional<Integer> exposureConfigVersionV2,
-            @RequestParam(value = "en-api-version") Optional<Integer> enApiVersionOptional) {
+            @RequestParam(value = "en-api-version") Optional<Integer> enApiVersionOptional,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH) Optional<String> ifNoneMatch) {
         int enApiVersion = enApiVersionOptional.orElse(1);
         LOG.info("Fetching full status info: {} {} {} {} {}",
                 keyValue("clientBatchId", batchId),
@@ -84,46 +94,74 @@ public class DiagnosisKeyController {
         ExposureConfiguration exposureConfig = configurationService.getLatestExposureConfig();
         ExposureConfigurationV2 exposureConfigV2 = configurationService.getLatestV2ExposureConfig();
         AppConfiguration appConfig = configurationService.getLatestAppConfig();
-        Status result = new Status(
-                batchId.map(id -> enApiVersion == 2 ? batchFileService.listBatchIdsSinceV2(id, intervals) : batchFileService.listBatchIdsSince(id, intervals)).orElse(List.of()),
-                toLatest(appConfig, appConfig.version, appConfigVersion),
-                toLatest(exposureConfig, exposureConfig.version, exposureConfigVersion),
-                toLatest(exposureConfigV2, exposureConfigV2.version, exposureConfigVersionV2));
+        List<BatchId> batches = batchId.map(id -> enApiVersion == 2 ? batchFileService.listBatchIdsSinceV2(id, intervals) : batchFileService.listBatchIdsSince(id, intervals)).orElse(List.of());
+        String eTag = ETags.of(toETagSource(batches) + ";" + appConfig.version + ";" + exposureConfig.version + ";" + exposureConfigV2.version);
         boolean cacheableBatchId = batchId.isEmpty() || intervals.isDistributed(batchId.get().intervalNumber);
         boolean cacheableAppConfig = appConfigVersion.isEmpty() || appConfigVersion.get().equals(appConfig.version);
         boolean cacheableExposureConfig = exposureConfigVersion.isEmpty() || exposureConfigVersion.get().equals(exposureConfig.version);
         boolean cacheableExposureConfigV2 = exposureConfigVersionV2.isEmpty() || exposureConfigVersionV2.get().equals(exposureConfigV2.version);
 
-        return statusResponse(result, cacheableBatchId && cacheableAppConfig && cacheableExposureConfig && cacheableExposureConfigV2);
+        boolean cache = cacheableBatchId && cacheableAppConfig && cacheableExposureConfig && cacheableExposureConfigV2;
+
+        if (ETags.matches(ifNoneMatch, eTag)) {
+            return notModifiedResponse(statusCacheControl(cache), eTag);
+        }
+        Status result = new Status(
+                batches,
+                toLatest(appConfig, appConfig.version, appConfigVersion),
+                toLatest(exposureConfig, exposureConfig.version, exposureConfigVersion),
+                toLatest(exposureConfigV2, exposureConfigV2.version, exposureConfigVersionV2));
+        return statusResponse(result, cache, eTag);
     }
 
     @GetMapping("/current")
     public ResponseEntity<CurrentBatch> getCurrentDiagnosisBatchKey(
-            @RequestParam(value = "en-api-version") Optional<Integer> enApiVersionOptional) {
+            @RequestParam(value = "en-api-version") Optional<Integer> enApiVersionOptional,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH) Optional<String> ifNoneMatch) {
         int enApiVersion = enApiVersionOptional.orElse(1);
         BatchId latest = enApiVersion == 2 ? batchFileService.getLatestBatchIdV2(getExportIntervalsV2()) : batchFileService.getLatestBatchId(getExportIntervals());
         LOG.info("Fetching current batch ID: {} {}", keyValue("current", latest), keyValue("enApiVersion", enApiVersion));
-        return statusResponse(new CurrentBatch(latest), true);
+        String eTag = ETags.of(latest.toString());
+        if (ETags.matches(ifNoneMatch, eTag)) {
+            return notModifiedResponse(statusCacheControl(true), eTag);
+        }
+        return statusResponse(new CurrentBatch(latest), true, eTag);
     }
 
     @GetMapping("/list")
     public ResponseEntity<BatchList> listDiagnosisBatchesSince(
             @RequestParam(value = "previous") BatchId previousBatchId,
-            @RequestParam(value = "en-api-version") Optional<Integer> enApiVersionOptional) {
+            @RequestParam(value = "en-api-version") Optional<Integer> enApiVersionOptional,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH) Optional<String> ifNoneMatch) {
         int enApiVersion = enApiVersionOptional.orElse(1);
         BatchIntervals intervals = enApiVersion == 2 ? getExportIntervalsV2() : getExportIntervals();
         List<BatchId> batches = enApiVersion == 2 ? batchFileService.listBatchIdsSinceV2(previousBatchId, intervals) : batchFileService.listBatchIdsSince(previousBatchId, intervals);
         LOG.info("Listing diagnosis batches since: {} {}",
                 keyValue("previousBatchId", previousBatchId),
                 keyValue("resultBatches", batches.size()));
-        return statusResponse(new BatchList(batches), intervals.isDistributed(previousBatchId.intervalNumber));
+        boolean cache = intervals.isDistributed(previousBatchId.intervalNumber);
+        String eTag = ETags.of(toETagSource(batches));
+        if (ETags.matches(ifNoneMatch, eTag)) {
+            return notModifiedResponse(statusCacheControl(cache), eTag);
+        }
+        return statusResponse(new BatchList(batches), cache, eTag);
     }
 
     @GetMapping("/batch/{batch_id}")
-    public ResponseEntity<Resource> getDiagnosisBatch(@PathVariable(value = "batch_id") BatchId batchId) {
+    public ResponseEntity<Resource> getDiagnosisBatch(
+            @PathVariable(value = "batch_id") BatchId batchId,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH) Optional<String> ifNoneMatch) {
         LOG.info("Requesting diagnosis batch: {}", keyValue("batchId", batchId));
         if (getExportIntervals().isDistributed(batchId.intervalNumber) || (batchId.intervalNumberV2.isPresent() && getExportIntervalsV2().isDistributed(batchId.intervalNumberV2.get()))) {
-            return batchResponse(batchFileService.getBatchFile(batchId));
+            Optional<String> eTag = batchFileService.getBatchFileETag(batchId);
+            if (eTag.isPresent() && ETags.matches(ifNoneMatch, eTag.get())) {
+                return notModifiedResponse(batchCacheControl(), eTag.get());
+            }
+            if (serveFromDisk) {
+                return batchResponse(batchId, batchFileService.getBatchFileResource(batchId), eTag);
+            } else {
+                return batchResponse(batchId, new ByteArrayResource(batchFileService.getBatchFile(batchId).data), eTag);
+            }
         } else {
             throw new BatchNotFoundException(batchId);
         }
@@ -142,19 +180,45 @@ public class DiagnosisKeyController {
         return (previousVersion.isEmpty() || previousVersion.get() < version) ? Optional.of(item) : Optional.empty();
     }
 
-    private <T> ResponseEntity<T> statusResponse(T body, boolean cache) {
+    private String toETagSource(List<BatchId> batches) {
+        return batches.stream().map(BatchId::toString).collect(Collectors.joining(","));
+    }
+
+    private CacheControl statusCacheControl(boolean cache) {
+        return cache ? CacheControl.maxAge(statusCacheDuration).cachePublic() : CacheControl.noCache();
+    }
+
+    private CacheControl batchCacheControl() {
+        return CacheControl.maxAge(batchCacheDuration).cachePublic();
+    }
+
+    private <T> ResponseEntity<T> notModifiedResponse(CacheControl cacheControl, String eTag) {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                .cacheControl(cacheControl)
+                .eTag(eTag)
+                .build();
+    }
+
+    private <T> ResponseEntity<T> statusResponse(T body, boolean cache, String eTag) {
         return ResponseEntity.ok()
-                .cacheControl(cache ? CacheControl.maxAge(statusCacheDuration).cachePublic() : CacheControl.noCache())
+                .cacheControl(statusCacheControl(cache))
+                .eTag(eTag)
                 .body(body);
     }
 
-    private ResponseEntity<Resource> batchResponse(BatchFile file) {
-        String nameHeader = "attachment; filename=\"" + file.getName() + "\"";
-        return ResponseEntity.ok()
-                .cacheControl(CacheControl.maxAge(batchCacheDuration).cachePublic())
-                .contentType(APPLICATION_OCTET_STREAM)
-                .header(HttpHeaders.CONTENT_DISPOSITION, nameHeader)
-                .body(new ByteArrayResource(file.data));
+    private ResponseEntity<Resource> batchResponse(BatchId batchId, Resource file, Optional<String> eTag) {
+        String nameHeader = "attachment; filename=\"" + BatchFile.batchFileName(batchId) + "\"";
+        try {
+            ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                    .cacheControl(batchCacheControl())
+                    .contentType(APPLICATION_OCTET_STREAM)
+                    .contentLength(file.contentLength())
+                    .header(HttpHeaders.CONTENT_DISPOSITION, nameHeader);
+            eTag.ifPresent(builder::eTag);
+            return builder.body(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private BatchIntervals getExportIntervals() {
@@ -59,14 +59,21 @@ public class FederationGatewayClient {
         ));
     }
 
+    /**
+     * The response body is decoded while it is read, so a large batch is not buffered as bytes before parsing.
+     */
     public Optional<DownloadData> download(String dateVar, Optional<String> batchTag) {
         try {
-            ResponseEntity<byte[]> res = doDownload(dateVar, batchTag);
-            byte[] body = res.getBody();
-            return Optional.of(new DownloadData(
-                    body == null ? Optional.empty() : Optional.of(deserialize(body)),
-                    getHeader(res.getHeaders(), BATCH_TAG_HEADER).orElseThrow(),
-                    getHeader(res.getHeaders(), NEXT_BATCH_TAG_HEADER)
+            return Optional.ofNullable(restTemplate.execute(
+                    gatewayBaseUrl + "/{operation}/{variable}",
+                    HttpMethod.GET,
+                    request -> request.getHeaders().addAll(getDownloadHttpHeaders(batchTag)),
+                    response -> new DownloadData(
+                            deserialize(response.getBody()),
+                            getHeader(response.getHeaders(), BATCH_TAG_HEADER).orElseThrow(),
+                            getHeader(response.getHeaders(), NEXT_BATCH_TAG_HEADER)
+                    ),
+                    getUriVariables("download", dateVar)
             ));
         } catch (HttpClientErrorException e) {
             if (e.getRawStatusCode() == 404) {
@@ -125,16 +132,6 @@ public class FederationGatewayClient {
         return new UploadResponseEntity(res.getStatusCode(), body);
     }
 
-    private ResponseEntity<byte[]> doDownload(String dateVar, Optional<String> batchTag) {
-        return restTemplate.exchange(
-                gatewayBaseUrl + "/{operation}/{variable}",
-                HttpMethod.GET,
-                new HttpEntity<>(getDownloadHttpHeaders(batchTag)),
-                byte[].class,
-                getUriVariables("download", dateVar)
-        );
-    }
-
     private HttpHeaders getUploadHttpHeaders(String batchTag, String batchSignature) {
         HttpHeaders headers = new HttpHeaders();
         headers.add("batchTag", batchTag);
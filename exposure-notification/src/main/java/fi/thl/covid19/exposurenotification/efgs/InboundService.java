@@ -1,7 +1,7 @@
 package fi.thl.covid19.exposurenotification.efgs;
 
 import fi.thl.covid19.exposurenotification.diagnosiskey.DiagnosisKeyDao;
-import fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKey;
+import fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKeyBlock;
 import fi.thl.covid19.exposurenotification.efgs.dao.InboundOperationDao;
 import fi.thl.covid19.exposurenotification.efgs.entity.DownloadData;
 import fi.thl.covid19.exposurenotification.efgs.signing.FederationGatewaySigning;
@@ -10,20 +10,26 @@ import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
 import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.to24HourInterval;
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.toV2Interval;
 import static fi.thl.covid19.exposurenotification.efgs.util.BatchUtil.*;
-import static fi.thl.covid19.exposurenotification.efgs.util.SignatureValidationUtil.validateSignature;
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureValidationUtil.validateSignatureAsync;
 import static java.util.Objects.requireNonNull;
 
 @Service
@@ -36,6 +42,9 @@ public class InboundService {
     private final InboundOperationDao inboundOperationDao;
     private final FederationGatewaySigning signer;
     private final MeterRegistry meterRegistry;
+    private final Executor validationExecutor;
+    private final boolean pipelineEnabled;
+    private final int pipelinePrefetch;
 
     private final String efgsTotalOperationsInbound = "efgs_total_operations_inbound";
     private final String efgsErrorOperationsInbound = "efgs_error_operations_inbound";
@@ -48,13 +57,19 @@ public class InboundService {
             DiagnosisKeyDao diagnosisKeyDao,
             InboundOperationDao inboundOperationDao,
             FederationGatewaySigning signer,
-            MeterRegistry meterRegistry
+            MeterRegistry meterRegistry,
+            @Qualifier("efgsValidationExecutor") Executor validationExecutor,
+            @Value("${covid19.federation-gateway.inbound-pipeline.enabled:false}") boolean pipelineEnabled,
+            @Value("${covid19.federation-gateway.inbound-pipeline.prefetch:4}") int pipelinePrefetch
     ) {
         this.client = requireNonNull(client);
         this.diagnosisKeyDao = requireNonNull(diagnosisKeyDao);
         this.inboundOperationDao = requireNonNull(inboundOperationDao);
         this.signer = requireNonNull(signer);
         this.meterRegistry = requireNonNull(meterRegistry);
+        this.validationExecutor = requireNonNull(validationExecutor);
+        this.pipelineEnabled = pipelineEnabled;
+        this.pipelinePrefetch = Math.max(1, pipelinePrefetch);
         initCounters();
     }
 
@@ -72,6 +87,10 @@ public class InboundService {
     }
 
     public void startInbound(LocalDate date, Optional<String> batchTag) {
+        if (pipelineEnabled) {
+            startInboundPipelined(date, batchTag);
+            return;
+        }
         AtomicReference<Optional<String>> next = new AtomicReference<>(batchTag);
         String dateS = getDateString(date);
         do {
@@ -97,49 +116,134 @@ public class InboundService {
         );
     }
 
+    /**
+     * Follows the batch tag chain on the calling thread while earlier batches are still being validated, keeping up to
+     * the configured number of batches in flight. Validated batches are stored and their operations finished one at
+     * a time in download order, between the downloads.
+     */
+    private void startInboundPipelined(LocalDate date, Optional<String> batchTag) {
+        String dateS = getDateString(date);
+        Deque<PendingBatch> pending = new ArrayDeque<>();
+        Optional<String> next = batchTag;
+        RuntimeException failure = null;
+        try {
+            do {
+                while (!pending.isEmpty() && (pending.size() >= pipelinePrefetch || pending.peek().validBatch.isDone())) {
+                    store(pending.poll());
+                }
+                MDC.put("scheduledInboundBatchTag", next.orElse(getBatchTag(date, "1")));
+                Optional<Long> operationId = inboundOperationDao.startInboundOperation(next, date);
+                if (operationId.isPresent()) {
+                    Optional<PendingBatch> batch = download(operationId.get(), next, dateS);
+                    batch.ifPresent(pending::add);
+                    next = batch.flatMap(b -> b.download.nextBatchTag);
+                } else {
+                    next = client.download(dateS, next).flatMap(d -> d.nextBatchTag);
+                }
+            } while (next.isPresent());
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        storeAll(pending, failure);
+    }
+
+    // Batches downloaded before a failure are still stored, each recording its own operation result
+    private void storeAll(Deque<PendingBatch> pending, RuntimeException failure) {
+        RuntimeException first = failure;
+        while (!pending.isEmpty()) {
+            try {
+                store(pending.poll());
+            } catch (RuntimeException e) {
+                if (first == null) {
+                    first = e;
+                } else {
+                    first.addSuppressed(e);
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
     private Optional<String> downloadAndStore(long operationId, Optional<String> batchTag, String date) {
+        return download(operationId, batchTag, date).flatMap(this::store);
+    }
+
+    private Optional<PendingBatch> download(long operationId, Optional<String> batchTag, String date) {
         meterRegistry.counter(efgsTotalOperationsInbound).increment(1.0);
-        AtomicBoolean finished = new AtomicBoolean(false);
-        AtomicReference<Optional<String>> localBatchTag = new AtomicReference<>(batchTag);
+        Optional<String> localBatchTag = batchTag;
+        boolean started = false;
         try {
-            Optional<DownloadData> downloadO = client.download(date, localBatchTag.get());
-            return downloadO.flatMap(download -> {
-                localBatchTag.set(Optional.of(download.batchTag));
-                EfgsProto.DiagnosisKeyBatch validBatch = validateSignature(
+            Optional<DownloadData> downloadO = client.download(date, batchTag);
+            if (downloadO.isPresent()) {
+                DownloadData download = downloadO.get();
+                localBatchTag = Optional.of(download.batchTag);
+                CompletableFuture<EfgsProto.DiagnosisKeyBatch> validBatch = validateSignatureAsync(
                         client.fetchAuditEntries(date, download.batchTag),
                         download,
-                        signer.getTrustAnchor()
+                        signer.getTrustAnchor(),
+                        validationExecutor,
+                        meterRegistry
                 );
-                Instant now = Instant.now();
-                int currentInterval = to24HourInterval(now);
-                int currentIntervalV2 = toV2Interval(now);
-                List<TemporaryExposureKey> successKeys = transform(validBatch, currentInterval, currentIntervalV2);
-                diagnosisKeyDao.addInboundKeys(successKeys, currentInterval, currentIntervalV2);
-                int signatureFailedCount = download.keysCount() - validBatch.getKeysCount();
-                int validationFailedCount = validBatch.getKeysCount() - successKeys.size();
-                meterRegistry.counter(efgsVerificationTotal).increment(download.keysCount());
-                meterRegistry.counter(efgsVerificationFailed).increment(signatureFailedCount);
-                meterRegistry.counter(efgsValidationFailed).increment(validationFailedCount);
-                finished.set(
-                        inboundOperationDao.finishOperation(
-                                operationId,
-                                download.keysCount(),
-                                successKeys.size(),
-                                validationFailedCount,
-                                signatureFailedCount,
-                                localBatchTag.get()
-                        )
-                );
-                return download.nextBatchTag;
-            });
+                started = true;
+                return Optional.of(new PendingBatch(operationId, download, validBatch));
+            }
+            return Optional.empty();
         } finally {
-            if (!finished.get()) {
-                meterRegistry.counter(efgsErrorOperationsInbound).increment(1.0);
-                inboundOperationDao.markErrorOperation(operationId, localBatchTag.get());
+            if (!started) {
+                markError(operationId, localBatchTag);
             }
         }
     }
 
+    private Optional<String> store(PendingBatch batch) {
+        boolean finished = false;
+        Optional<String> localBatchTag = Optional.of(batch.download.batchTag);
+        try {
+            EfgsProto.DiagnosisKeyBatch validBatch = join(batch.validBatch);
+            Instant now = Instant.now();
+            int currentInterval = to24HourInterval(now);
+            int currentIntervalV2 = toV2Interval(now);
+            TemporaryExposureKeyBlock successKeys = transformToBlock(validBatch, currentInterval, currentIntervalV2);
+            diagnosisKeyDao.addInboundKeys(successKeys, currentInterval, currentIntervalV2);
+            int signatureFailedCount = batch.download.keysCount() - validBatch.getKeysCount();
+            int validationFailedCount = validBatch.getKeysCount() - successKeys.size();
+            meterRegistry.counter(efgsVerificationTotal).increment(batch.download.keysCount());
+            meterRegistry.counter(efgsVerificationFailed).increment(signatureFailedCount);
+            meterRegistry.counter(efgsValidationFailed).increment(validationFailedCount);
+            finished = inboundOperationDao.finishOperation(
+                    batch.operationId,
+                    batch.download.keysCount(),
+                    successKeys.size(),
+                    validationFailedCount,
+                    signatureFailedCount,
+                    localBatchTag
+            );
+            return batch.download.nextBatchTag;
+        } finally {
+            if (!finished) {
+                markError(batch.operationId, localBatchTag);
+            }
+        }
+    }
+
+    private void markError(long operationId, Optional<String> batchTag) {
+        meterRegistry.counter(efgsErrorOperationsInbound).increment(1.0);
+        inboundOperationDao.markErrorOperation(operationId, batchTag);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     private void initCounters() {
         meterRegistry.counter(efgsTotalOperationsInbound);
         meterRegistry.counter(efgsErrorOperationsInbound);
@@ -147,4 +251,16 @@ public class InboundService {
         meterRegistry.counter(efgsVerificationFailed);
         meterRegistry.counter(efgsValidationFailed);
     }
+
+    private static class PendingBatch {
+        final long operationId;
+        final DownloadData download;
+        final CompletableFuture<EfgsProto.DiagnosisKeyBatch> validBatch;
+
+        PendingBatch(long operationId, DownloadData download, CompletableFuture<EfgsProto.DiagnosisKeyBatch> validBatch) {
+            this.operationId = operationId;
+            this.download = requireNonNull(download);
+            this.validBatch = requireNonNull(validBatch);
+        }
+    }
 }
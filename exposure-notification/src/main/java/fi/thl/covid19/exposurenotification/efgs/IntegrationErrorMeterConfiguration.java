@@ -1,5 +1,6 @@
 package fi.thl.covid19.exposurenotification.efgs;
 
+import fi.thl.covid19.exposurenotification.diagnosiskey.DiagnosisKeyDao;
 import fi.thl.covid19.exposurenotification.efgs.dao.InboundOperationDao;
 import fi.thl.covid19.exposurenotification.efgs.dao.OutboundOperationDao;
 import io.micrometer.core.instrument.Gauge;
@@ -25,4 +26,9 @@ public class IntegrationErrorMeterConfiguration {
     MeterBinder invalidSignatureCountForDay(InboundOperationDao inboundOperationDao) {
         return (registry) -> Gauge.builder("efgs_invalid_signature_count_last_24h", inboundOperationDao::getInvalidSignatureCountForDay).register(registry);
     }
+
+    @Bean
+    MeterBinder outboundBacklog(DiagnosisKeyDao diagnosisKeyDao) {
+        return (registry) -> Gauge.builder("efgs_outbound_backlog", diagnosisKeyDao::getEfgsBacklogSize).register(registry);
+    }
 }
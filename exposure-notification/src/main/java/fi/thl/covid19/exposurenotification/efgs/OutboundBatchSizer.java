@@ -0,0 +1,113 @@
+package fi.thl.covid19.exposurenotification.efgs;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+import static fi.thl.covid19.exposurenotification.efgs.util.DummyKeyGeneratorUtil.BATCH_MIN_SIZE;
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Chooses how many keys an outbound batch claims. When adaptive, the size is shrunk on slow, oversized, partially
+ * failed or failed uploads, and grown step by step while full batches upload quickly. Otherwise the maximum is used.
+ * <p>
+ * The minimum is never below the dummy padding size, so small batches are still padded the same way.
+ */
+@Component
+public class OutboundBatchSizer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutboundBatchSizer.class);
+
+    private static final String CHANGES_COUNTER = "efgs_outbound_batch_size_changes";
+
+    private final boolean adaptive;
+    private final int minSize;
+    private final int maxSize;
+    private final int growStep;
+    private final Duration targetUploadDuration;
+    private final long maxUploadBytes;
+    private final double maxFailedRatio;
+    private final MeterRegistry meterRegistry;
+
+    private volatile int size;
+
+    public OutboundBatchSizer(
+            MeterRegistry meterRegistry,
+            @Value("${covid19.federation-gateway.outbound.batch-size.adaptive:false}") boolean adaptive,
+            @Value("${covid19.federation-gateway.outbound.batch-size.min:1000}") int minSize,
+            @Value("${covid19.federation-gateway.outbound.batch-size.max:5000}") int maxSize,
+            @Value("${covid19.federation-gateway.outbound.batch-size.target-upload-duration:PT10S}") Duration targetUploadDuration,
+            @Value("${covid19.federation-gateway.outbound.batch-size.max-upload-bytes:1048576}") long maxUploadBytes,
+            @Value("${covid19.federation-gateway.outbound.batch-size.max-failed-ratio:0.05}") double maxFailedRatio) {
+        this.meterRegistry = requireNonNull(meterRegistry);
+        this.adaptive = adaptive;
+        this.maxSize = Math.max(BATCH_MIN_SIZE, maxSize);
+        this.minSize = Math.max(BATCH_MIN_SIZE, Math.min(minSize, this.maxSize));
+        this.growStep = Math.max(1, (this.maxSize - this.minSize) / 10);
+        this.targetUploadDuration = requireNonNull(targetUploadDuration);
+        this.maxUploadBytes = maxUploadBytes;
+        this.maxFailedRatio = maxFailedRatio;
+        this.size = this.maxSize;
+        Gauge.builder("efgs_outbound_batch_size", () -> size).register(meterRegistry);
+        LOG.info("Initialized: {} {} {} {}",
+                keyValue("adaptive", adaptive),
+                keyValue("minSize", this.minSize),
+                keyValue("maxSize", this.maxSize),
+                keyValue("targetUploadDuration", targetUploadDuration));
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Registers an upload that got a response. Only batches claimed at full size show that a larger size is needed.
+     */
+    public void uploaded(int keyCount, long bytes, Duration duration) {
+        if (!adaptive) {
+            return;
+        }
+        synchronized (this) {
+            if (duration.compareTo(targetUploadDuration) > 0) {
+                double scale = (double) targetUploadDuration.toMillis() / Math.max(1, duration.toMillis());
+                resize((int) (size * Math.max(0.5, scale)), "slow");
+            } else if (bytes > maxUploadBytes) {
+                resize((int) (size * Math.max(0.5, (double) maxUploadBytes / bytes)), "payload");
+            } else if (keyCount >= size && duration.compareTo(targetUploadDuration.dividedBy(2)) < 0) {
+                resize(size + growStep, "fast");
+            }
+        }
+    }
+
+    public void partiallyFailed(int keyCount, int failedCount) {
+        if (adaptive && keyCount > 0 && (double) failedCount / keyCount > maxFailedRatio) {
+            synchronized (this) {
+                resize(size / 2, "partial_failure");
+            }
+        }
+    }
+
+    public void failed() {
+        if (adaptive) {
+            synchronized (this) {
+                resize(size / 2, "error");
+            }
+        }
+    }
+
+    private void resize(int requested, String reason) {
+        int newSize = Math.max(minSize, Math.min(maxSize, requested));
+        if (newSize != size) {
+            LOG.info("Outbound batch size changed: {} {} {}",
+                    keyValue("from", size), keyValue("to", newSize), keyValue("reason", reason));
+            size = newSize;
+            meterRegistry.counter(CHANGES_COUNTER, "reason", reason).increment();
+        }
+    }
+}
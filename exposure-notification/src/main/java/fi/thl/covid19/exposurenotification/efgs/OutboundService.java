@@ -11,9 +11,13 @@ import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -29,7 +33,12 @@ public class OutboundService {
     private final DiagnosisKeyDao diagnosisKeyDao;
     private final OutboundOperationDao outboundOperationDao;
     private final FederationGatewaySigning signer;
+    private final OutboundBatchSizer batchSizer;
     private final MeterRegistry meterRegistry;
+    private final Executor outboundExecutor;
+    private final int workers;
+    private final long uploadSpacingNanos;
+    private long nextUploadNanos = System.nanoTime();
 
     private final String efgsTotalOperationsOutbound = "efgs_total_operations_outbound";
     private final String efgsErrorOperationsOutbound = "efgs_error_operations_outbound";
@@ -40,29 +49,77 @@ public class OutboundService {
             DiagnosisKeyDao diagnosisKeyDao,
             OutboundOperationDao outboundOperationDao,
             FederationGatewaySigning signer,
-            MeterRegistry meterRegistry
+            OutboundBatchSizer batchSizer,
+            MeterRegistry meterRegistry,
+            @Qualifier("efgsOutboundExecutor") Executor outboundExecutor,
+            @Value("${covid19.federation-gateway.outbound.workers:1}") int workers,
+            @Value("${covid19.federation-gateway.outbound.max-uploads-per-minute:0}") int maxUploadsPerMinute
     ) {
         this.client = requireNonNull(client);
         this.diagnosisKeyDao = requireNonNull(diagnosisKeyDao);
         this.outboundOperationDao = requireNonNull(outboundOperationDao);
         this.signer = requireNonNull(signer);
+        this.batchSizer = requireNonNull(batchSizer);
         this.meterRegistry = requireNonNull(meterRegistry);
+        this.outboundExecutor = requireNonNull(outboundExecutor);
+        this.workers = workers;
+        this.uploadSpacingNanos = maxUploadsPerMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / maxUploadsPerMinute : 0;
         initCounters();
     }
 
+    /**
+     * Uploads all queued keys. With several workers, each worker claims its own batch, uploads it and records its own
+     * operation independently, until no more keys are available.
+     */
     public Set<Long> startOutbound(boolean retry) {
-        Optional<OutboundOperation> operation;
-        Set<Long> operationsProcessed = new HashSet<>();
+        if (workers <= 1) {
+            Set<Long> operationsProcessed = new HashSet<>();
+            drain(retry, operationsProcessed);
+            return operationsProcessed;
+        }
+        Set<Long> operationsProcessed = ConcurrentHashMap.newKeySet();
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        List<CompletableFuture<Void>> running = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            running.add(CompletableFuture.runAsync(() -> {
+                if (mdc != null) {
+                    MDC.setContextMap(mdc);
+                }
+                try {
+                    drain(retry, operationsProcessed);
+                } finally {
+                    MDC.clear();
+                }
+            }, outboundExecutor));
+        }
+        RuntimeException failure = null;
+        for (CompletableFuture<Void> worker : running) {
+            try {
+                worker.join();
+            } catch (CompletionException e) {
+                RuntimeException cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return operationsProcessed;
+    }
 
-        while ((operation = diagnosisKeyDao.fetchAvailableKeyForEfgsWithDummyPadding(retry)).isPresent()) {
+    private void drain(boolean retry, Set<Long> operationsProcessed) {
+        Optional<OutboundOperation> operation;
+        while ((operation = diagnosisKeyDao.fetchAvailableKeyForEfgsWithDummyPadding(retry, batchSizer.getSize())).isPresent()) {
             long operationId = operation.get().operationId;
             MDC.put("outboundOperationId", "outbound-" + operationId);
             meterRegistry.counter(efgsTotalOperationsOutbound).increment(1.0);
             operationsProcessed.add(operationId);
             doOutbound(operation.get());
         }
-
-        return operationsProcessed;
     }
 
     private void doOutbound(OutboundOperation operation) {
@@ -73,6 +130,7 @@ public class OutboundService {
             // 207 means partial success, due server implementation details we'll need to remove erroneous and re-send
             if (res.httpStatus.value() == 207) {
                 Map<Integer, Integer> responseCounts = handlePartialOutbound(res.multiStatuses.orElseThrow(), operation);
+                batchSizer.partiallyFailed(operation.keys.size(), responseCounts.get(409) + responseCounts.get(500));
                 finished = outboundOperationDao.finishOperation(operation,
                         responseCounts.get(201) + responseCounts.get(409) + responseCounts.get(500),
                         responseCounts.get(201), responseCounts.get(409), responseCounts.get(500));
@@ -82,6 +140,7 @@ public class OutboundService {
             }
         } finally {
             if (!finished) {
+                batchSizer.failed();
                 meterRegistry.counter(efgsErrorOperationsOutbound).increment(1.0);
                 diagnosisKeyDao.setNotSent(operation);
             }
@@ -89,7 +148,34 @@ public class OutboundService {
     }
 
     private UploadResponseEntity handleOutbound(EfgsProto.DiagnosisKeyBatch batch, String batchTag) {
-        return client.upload(batchTag, signer.sign(batch), batch);
+        String signature = signer.sign(batch);
+        awaitUploadSlot();
+        long start = System.nanoTime();
+        UploadResponseEntity response = client.upload(batchTag, signature, batch);
+        batchSizer.uploaded(batch.getKeysCount(), batch.getSerializedSize(), Duration.ofNanos(System.nanoTime() - start));
+        return response;
+    }
+
+    // Spaces the uploads of all workers evenly, when a maximum upload rate is configured
+    private void awaitUploadSlot() {
+        if (uploadSpacingNanos <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long slot = Math.max(now, nextUploadNanos);
+            nextUploadNanos = slot + uploadSpacingNanos;
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting to upload", e);
+            }
+        }
     }
 
     private Map<Integer, Integer> handlePartialOutbound(Map<Integer, List<Integer>> statuses, OutboundOperation operation) {
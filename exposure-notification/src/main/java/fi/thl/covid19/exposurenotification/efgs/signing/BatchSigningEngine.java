@@ -0,0 +1,69 @@
+package fi.thl.covid19.exposurenotification.efgs.signing;
+
+import fi.thl.covid19.proto.EfgsProto;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+
+import static fi.thl.covid19.exposurenotification.efgs.signing.SigningUtil.*;
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.generateBytesForSignature;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Signs EFGS batches as detached CMS signatures with key material that is resolved once.
+ * <p>
+ * The signer info generator wraps a stateful Signature, so each thread builds its own on first use and reuses it
+ * for all following batches.
+ */
+public class BatchSigningEngine {
+
+    private final PrivateKey key;
+    private final X509CertificateHolder certificateHolder;
+    private final DigestCalculatorProvider digestCalculatorProvider;
+    private final ThreadLocal<SignerInfoGenerator> signerInfoGenerators;
+
+    public BatchSigningEngine(PrivateKey key, X509Certificate certificate) {
+        this.key = requireNonNull(key);
+        try {
+            this.certificateHolder = createCertificateHolder(requireNonNull(certificate));
+            this.digestCalculatorProvider = createDigestBuilder();
+        } catch (CertificateEncodingException | IOException | OperatorCreationException e) {
+            throw new IllegalStateException("EFGS signing key initialization failed.", e);
+        }
+        this.signerInfoGenerators = ThreadLocal.withInitial(this::createSignerInfoGenerator);
+    }
+
+    public String sign(EfgsProto.DiagnosisKeyBatch data) {
+        try {
+            CMSSignedDataGenerator signedDataGenerator = new CMSSignedDataGenerator();
+            signedDataGenerator.addSignerInfoGenerator(signerInfoGenerators.get());
+            signedDataGenerator.addCertificate(certificateHolder);
+            CMSSignedData signedData = signedDataGenerator.generate(
+                    new CMSProcessableByteArray(generateBytesForSignature(data.getKeysList())), false);
+            return Base64.getEncoder().encodeToString(signedData.getEncoded());
+        } catch (CMSException | IOException e) {
+            // The signature may have been left mid-update, so the next batch starts with a fresh one
+            signerInfoGenerators.remove();
+            throw new IllegalStateException("EFGS batch signing failed.", e);
+        }
+    }
+
+    private SignerInfoGenerator createSignerInfoGenerator() {
+        try {
+            return createSignerInfo(certificateHolder, key, digestCalculatorProvider);
+        } catch (OperatorCreationException e) {
+            throw new IllegalStateException("EFGS signer initialization failed.", e);
+        }
+    }
+}
@@ -33,7 +33,6 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Date;
 
-import static fi.thl.covid19.exposurenotification.efgs.signing.SigningUtil.signBatch;
 import static java.util.Objects.requireNonNull;
 
 @Component
@@ -49,6 +48,7 @@ public class FederationGatewaySigningDev implements FederationGatewaySigning {
     private final String keyStoreKeyAlias;
     private final String trustAnchorAlias;
     private final KeyStore keyStore;
+    private final BatchSigningEngine engine;
 
     public FederationGatewaySigningDev(
             @Value("${covid19.federation-gateway.signing-key-store.password}") String keyStorePassword,
@@ -59,16 +59,13 @@ public class FederationGatewaySigningDev implements FederationGatewaySigning {
         this.keyStoreKeyAlias = requireNonNull(keyStoreKeyAlias);
         this.trustAnchorAlias = requireNonNull(trustAnchorAlias);
         this.keyStore = initKeystore();
+        this.engine = new BatchSigningEngine(
+                (PrivateKey) keyStore.getKey(keyStoreKeyAlias, this.keyStorePassword),
+                (X509Certificate) keyStore.getCertificate(keyStoreKeyAlias));
     }
 
     public String sign(EfgsProto.DiagnosisKeyBatch data) {
-        try {
-            PrivateKey key = (PrivateKey) keyStore.getKey(keyStoreKeyAlias, keyStorePassword);
-            X509Certificate cert = (X509Certificate) keyStore.getCertificate(keyStoreKeyAlias);
-            return signBatch(data, key, cert);
-        } catch (Exception e) {
-            throw new IllegalStateException("EFGS batch signing failed.", e);
-        }
+        return engine.sign(data);
     }
 
     public X509Certificate getTrustAnchor() {
@@ -8,12 +8,12 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ResourceUtils;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.*;
 import java.security.cert.*;
 
-import static fi.thl.covid19.exposurenotification.efgs.signing.SigningUtil.signBatch;
 import static java.util.Objects.requireNonNull;
 import static net.logstash.logback.argument.StructuredArguments.keyValue;
 
@@ -31,7 +31,8 @@ public class FederationGatewaySigningImpl implements FederationGatewaySigning {
     private final char[] keyStorePassword;
     private final String keyStoreKeyAlias;
     private final String trustAnchorAlias;
-    private final KeyStore keyStore;
+    private volatile SigningKeyStore keyStore;
+    private volatile long failedLastModified;
 
     public FederationGatewaySigningImpl(
             @Value("${covid19.federation-gateway.signing-key-store.path}") String keyStorePath,
@@ -43,40 +44,85 @@ public class FederationGatewaySigningImpl implements FederationGatewaySigning {
         this.keyStorePassword = requireNonNull(keyStorePassword.toCharArray());
         this.keyStoreKeyAlias = requireNonNull(keyStoreKeyAlias);
         this.trustAnchorAlias = requireNonNull(trustAnchorAlias);
-        this.keyStore = initKeystore();
+        this.keyStore = loadKeyStore();
     }
 
     public String sign(EfgsProto.DiagnosisKeyBatch data) {
-        try {
-            PrivateKey key = (PrivateKey) keyStore.getKey(keyStoreKeyAlias, keyStorePassword);
-            X509Certificate cert = (X509Certificate) keyStore.getCertificate(keyStoreKeyAlias);
-            return signBatch(data, key, cert);
-        } catch (Exception e) {
-            throw new IllegalStateException("EFGS batch signing failed.", e);
-        }
+        return currentKeyStore().engine.sign(data);
     }
 
     public X509Certificate getTrustAnchor() {
-        try {
-            return requireNonNull((X509Certificate) keyStore.getCertificate(trustAnchorAlias));
-        } catch (KeyStoreException e) {
-            throw new RuntimeException(e.getMessage(), e.getCause());
+        return requireNonNull(currentKeyStore().trustAnchor);
+    }
+
+    /**
+     * Returns the loaded key material, reloading it first if the keystore file has been modified since. A keystore
+     * that fails to load is logged and the previous one is kept in use until the file changes again.
+     */
+    private SigningKeyStore currentKeyStore() {
+        SigningKeyStore current = keyStore;
+        if (isReloadNeeded(current, lastModified())) {
+            synchronized (this) {
+                long modified = lastModified();
+                if (isReloadNeeded(keyStore, modified)) {
+                    try {
+                        keyStore = loadKeyStore();
+                        LOG.info("EFGS signing keystore reloaded: {}", keyValue("path", keyStorePath));
+                    } catch (IllegalStateException e) {
+                        failedLastModified = modified;
+                        LOG.error("EFGS signing keystore reload failed, keeping the previous one: {}",
+                                keyValue("path", keyStorePath), e);
+                    }
+                }
+                current = keyStore;
+            }
         }
+        return current;
     }
 
-    private KeyStore initKeystore() {
-        return loadKeyStore();
+    // A missing file reads as modified at 0, which keeps the loaded keystore as well
+    private boolean isReloadNeeded(SigningKeyStore current, long modified) {
+        return modified != 0L && modified != current.lastModified && modified != failedLastModified;
     }
 
-    private KeyStore loadKeyStore() {
-        try (FileInputStream fileInputStream = new FileInputStream(ResourceUtils.getFile(keyStorePath))) {
+    private SigningKeyStore loadKeyStore() {
+        long lastModified = lastModified();
+        try (FileInputStream fileInputStream = new FileInputStream(keyStoreFile())) {
             Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
             KeyStore keyStore = KeyStore.getInstance("PKCS12", "BC");
             keyStore.load(fileInputStream, keyStorePassword);
             keyStore.aliases().asIterator().forEachRemaining(alias -> LOG.debug("signing-keystore: {}", keyValue("alias", alias)));
-            return keyStore;
-        } catch (KeyStoreException | NoSuchAlgorithmException | IOException | CertificateException | NoSuchProviderException e) {
+            PrivateKey key = (PrivateKey) keyStore.getKey(keyStoreKeyAlias, keyStorePassword);
+            X509Certificate cert = (X509Certificate) keyStore.getCertificate(keyStoreKeyAlias);
+            X509Certificate trustAnchor = (X509Certificate) keyStore.getCertificate(trustAnchorAlias);
+            return new SigningKeyStore(new BatchSigningEngine(key, cert), trustAnchor, lastModified);
+        } catch (KeyStoreException | NoSuchAlgorithmException | IOException | CertificateException |
+                NoSuchProviderException | UnrecoverableKeyException e) {
             throw new IllegalStateException("EFGS signing certificate load error.", e);
         }
     }
+
+    private long lastModified() {
+        try {
+            return keyStoreFile().lastModified();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private File keyStoreFile() throws IOException {
+        return ResourceUtils.getFile(keyStorePath);
+    }
+
+    private static class SigningKeyStore {
+        private final BatchSigningEngine engine;
+        private final X509Certificate trustAnchor;
+        private final long lastModified;
+
+        private SigningKeyStore(BatchSigningEngine engine, X509Certificate trustAnchor, long lastModified) {
+            this.engine = engine;
+            this.trustAnchor = trustAnchor;
+            this.lastModified = lastModified;
+        }
+    }
 }
@@ -1,19 +1,23 @@
 package fi.thl.covid19.exposurenotification.efgs.util;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 import fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKey;
+import fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKeyBlock;
 import fi.thl.covid19.exposurenotification.error.InputValidationException;
 import fi.thl.covid19.proto.EfgsProto;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.utcDateOf10MinInterval;
 import static fi.thl.covid19.exposurenotification.diagnosiskey.TransmissionRiskBuckets.DEFAULT_RISK_BUCKET;
@@ -46,30 +50,34 @@ public class BatchUtil {
     }
 
     public static List<TemporaryExposureKey> transform(EfgsProto.DiagnosisKeyBatch batch, int currentInterval, int currentIntervalV2) {
-        return batch.getKeysList().stream()
-                .flatMap(key -> constructTemporaryExposureKey(key, currentInterval, currentIntervalV2))
-                .collect(Collectors.toList());
+        return transformToBlock(batch, currentInterval, currentIntervalV2).toList();
     }
 
-    private static Stream<TemporaryExposureKey> constructTemporaryExposureKey(EfgsProto.DiagnosisKey remoteKey, int currentInterval, int currentIntervalV2) {
-        try {
-            return Stream.of(new TemporaryExposureKey(
-                    new String(Base64.getEncoder().encode(remoteKey.getKeyData().toByteArray()), StandardCharsets.UTF_8),
-                    calculateTransmissionRisk(remoteKey),
-                    remoteKey.getRollingStartIntervalNumber(),
-                    remoteKey.getRollingPeriod(),
-                    new HashSet<>(remoteKey.getVisitedCountriesList()),
-                    DsosInterpretationMapper.mapFrom(remoteKey.getDaysSinceOnsetOfSymptoms()),
-                    remoteKey.getOrigin(),
-                    true,
-                    DsosInterpretationMapper.symptomsExist(remoteKey.getDaysSinceOnsetOfSymptoms()),
-                    currentInterval,
-                    currentIntervalV2
-            ));
-        } catch (InputValidationException e) {
-            LOG.warn("Remote key data validation failed {}", keyValue("exception", e));
-            return Stream.empty();
+    /**
+     * Reads the valid keys of the batch into a key block. Keys that fail validation are left out.
+     */
+    public static TemporaryExposureKeyBlock transformToBlock(EfgsProto.DiagnosisKeyBatch batch, int currentInterval, int currentIntervalV2) {
+        TemporaryExposureKeyBlock block = new TemporaryExposureKeyBlock(batch.getKeysCount());
+        for (EfgsProto.DiagnosisKey remoteKey : batch.getKeysList()) {
+            try {
+                block.add(
+                        remoteKey.getKeyData(),
+                        calculateTransmissionRisk(remoteKey),
+                        remoteKey.getRollingStartIntervalNumber(),
+                        remoteKey.getRollingPeriod(),
+                        remoteKey.getVisitedCountriesList(),
+                        DsosInterpretationMapper.mapFrom(remoteKey.getDaysSinceOnsetOfSymptoms()).orElse(null),
+                        remoteKey.getOrigin(),
+                        true,
+                        DsosInterpretationMapper.symptomsExist(remoteKey.getDaysSinceOnsetOfSymptoms()).orElse(null),
+                        currentInterval,
+                        currentIntervalV2
+                );
+            } catch (InputValidationException e) {
+                LOG.warn("Remote key data validation failed {}", keyValue("exception", e));
+            }
         }
+        return block;
     }
 
     public static int calculateTransmissionRisk(EfgsProto.DiagnosisKey key) {
@@ -82,9 +90,26 @@ public class BatchUtil {
         return batch.toByteArray();
     }
 
-    public static EfgsProto.DiagnosisKeyBatch deserialize(byte[] data) {
+    /**
+     * Decodes a batch from the stream one key at a time, so the serialized batch is never held in memory as a whole.
+     * An empty stream has no batch, like a download without a body.
+     */
+    public static Optional<EfgsProto.DiagnosisKeyBatch> deserialize(InputStream data) throws IOException {
         try {
-            return EfgsProto.DiagnosisKeyBatch.parseFrom(data);
+            CodedInputStream input = CodedInputStream.newInstance(data);
+            if (input.isAtEnd()) {
+                return Optional.empty();
+            }
+            EfgsProto.DiagnosisKeyBatch.Builder batch = EfgsProto.DiagnosisKeyBatch.newBuilder();
+            for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+                if (WireFormat.getTagFieldNumber(tag) == EfgsProto.DiagnosisKeyBatch.KEYS_FIELD_NUMBER &&
+                        WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    batch.addKeys(input.readMessage(EfgsProto.DiagnosisKey.parser(), ExtensionRegistryLite.getEmptyRegistry()));
+                } else if (!input.skipField(tag)) {
+                    break;
+                }
+            }
+            return Optional.of(batch.build());
         } catch (InvalidProtocolBufferException e) {
             throw new IllegalStateException("Incorrect format from federation gateway.", e);
         }
@@ -0,0 +1,222 @@
+package fi.thl.covid19.exposurenotification.efgs.util;
+
+import fi.thl.covid19.proto.EfgsProto;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Builds the canonical bytes of diagnosis keys that EFGS batch signatures are calculated over.
+ * <p>
+ * Each key is a record of dot-terminated Base64 fields, and the records are ordered by the Base64 form of the whole
+ * record. The records are encoded straight into one pre-sized buffer and ordered by comparing their Base64
+ * characters as they are needed, so nothing is allocated per key, field or comparison.
+ */
+final class CanonicalKeyBytes {
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(US_ASCII);
+    private static final byte PAD = '=';
+    private static final byte SEPARATOR = '.';
+    private static final byte UNMAPPABLE = '?';
+    private static final int FIELD_COUNT = 8;
+    private static final int INT_FIELD_COUNT = 5;
+
+    private final byte[] records;
+    private final int[] offsets;
+    private byte[] scratch = new byte[32];
+    private int position = 0;
+
+    private CanonicalKeyBytes(List<EfgsProto.DiagnosisKey> keys) {
+        this.offsets = new int[keys.size() + 1];
+        int size = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            offsets[i] = size;
+            size += recordLength(keys.get(i));
+        }
+        offsets[keys.size()] = size;
+        this.records = new byte[size];
+    }
+
+    static byte[] of(List<EfgsProto.DiagnosisKey> keys) {
+        CanonicalKeyBytes bytes = new CanonicalKeyBytes(keys);
+        keys.forEach(bytes::writeRecord);
+        if (bytes.position != bytes.records.length) {
+            throw new IllegalStateException("Canonical key bytes size mismatch");
+        }
+        return bytes.sorted();
+    }
+
+    private void writeRecord(EfgsProto.DiagnosisKey key) {
+        int keyLength = key.getKeyData().size();
+        key.getKeyData().copyTo(scratch(keyLength), 0);
+        writeField(keyLength);
+        writeIntField(key.getRollingStartIntervalNumber());
+        writeIntField(key.getRollingPeriod());
+        writeIntField(key.getTransmissionRiskLevel());
+        int countriesLength = 0;
+        for (int i = 0; i < key.getVisitedCountriesCount(); i++) {
+            if (i > 0) {
+                scratch(countriesLength + 1)[countriesLength++] = ',';
+            }
+            countriesLength = writeAscii(key.getVisitedCountries(i), countriesLength);
+        }
+        writeField(countriesLength);
+        writeField(writeAscii(key.getOrigin(), 0));
+        writeIntField(key.getReportTypeValue());
+        writeIntField(key.getDaysSinceOnsetOfSymptoms());
+    }
+
+    private byte[] sorted() {
+        int count = offsets.length - 1;
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[count], 0, count);
+        byte[] result = new byte[records.length];
+        int target = 0;
+        for (int record : order) {
+            int length = offsets[record + 1] - offsets[record];
+            System.arraycopy(records, offsets[record], result, target, length);
+            target += length;
+        }
+        return result;
+    }
+
+    private void writeIntField(int value) {
+        byte[] bytes = scratch(Integer.BYTES);
+        bytes[0] = (byte) (value >>> 24);
+        bytes[1] = (byte) (value >>> 16);
+        bytes[2] = (byte) (value >>> 8);
+        bytes[3] = (byte) value;
+        writeField(Integer.BYTES);
+    }
+
+    // Encodes the first length bytes of the scratch buffer as a field
+    private void writeField(int length) {
+        int i = 0;
+        for (; i + 3 <= length; i += 3) {
+            int bits = (scratch[i] & 0xff) << 16 | (scratch[i + 1] & 0xff) << 8 | (scratch[i + 2] & 0xff);
+            records[position++] = ALPHABET[bits >>> 18];
+            records[position++] = ALPHABET[(bits >>> 12) & 0x3f];
+            records[position++] = ALPHABET[(bits >>> 6) & 0x3f];
+            records[position++] = ALPHABET[bits & 0x3f];
+        }
+        if (i < length) {
+            int b0 = scratch[i] & 0xff;
+            int b1 = i + 1 < length ? scratch[i + 1] & 0xff : 0;
+            records[position++] = ALPHABET[b0 >>> 2];
+            records[position++] = ALPHABET[(b0 & 0x03) << 4 | b1 >>> 4];
+            records[position++] = i + 1 < length ? ALPHABET[(b1 & 0x0f) << 2] : PAD;
+            records[position++] = PAD;
+        }
+        records[position++] = SEPARATOR;
+    }
+
+    // Writes the value to the scratch buffer as String.getBytes(US_ASCII) would, returning the new length
+    private int writeAscii(String value, int from) {
+        byte[] bytes = scratch(from + asciiLength(value));
+        int target = from;
+        for (int i = 0; i < value.length(); ) {
+            int codePoint = value.codePointAt(i);
+            bytes[target++] = codePoint < 0x80 ? (byte) codePoint : UNMAPPABLE;
+            i += Character.charCount(codePoint);
+        }
+        return target;
+    }
+
+    private byte[] scratch(int size) {
+        if (scratch.length < size) {
+            scratch = Arrays.copyOf(scratch, Math.max(size, scratch.length * 2));
+        }
+        return scratch;
+    }
+
+    private void mergeSort(int[] order, int[] work, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, work, from, middle);
+        mergeSort(order, work, middle, to);
+        if (compare(order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, work, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && compare(work[left], work[right]) <= 0)) {
+                order[i] = work[left++];
+            } else {
+                order[i] = work[right++];
+            }
+        }
+    }
+
+    /**
+     * Compares two records as their Base64 strings would compare. Bytes before the first differing 3-byte group
+     * encode to the same characters, so only the characters from that group on are calculated.
+     */
+    private int compare(int a, int b) {
+        int aFrom = offsets[a];
+        int aLength = offsets[a + 1] - aFrom;
+        int bFrom = offsets[b];
+        int bLength = offsets[b + 1] - bFrom;
+        int mismatch = Arrays.mismatch(records, aFrom, aFrom + aLength, records, bFrom, bFrom + bLength);
+        if (mismatch < 0) {
+            return 0;
+        }
+        int aEncoded = encodedLength(aLength);
+        int bEncoded = encodedLength(bLength);
+        int end = Math.min(aEncoded, bEncoded);
+        for (int i = mismatch / 3 * 4; i < end; i++) {
+            int diff = base64At(aFrom, aLength, i) - base64At(bFrom, bLength, i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return aEncoded - bEncoded;
+    }
+
+    private int base64At(int from, int length, int index) {
+        int group = index / 4 * 3;
+        int remaining = length - group;
+        int b0 = records[from + group] & 0xff;
+        int b1 = remaining > 1 ? records[from + group + 1] & 0xff : 0;
+        int b2 = remaining > 2 ? records[from + group + 2] & 0xff : 0;
+        switch (index % 4) {
+            case 0:
+                return ALPHABET[b0 >>> 2];
+            case 1:
+                return ALPHABET[(b0 & 0x03) << 4 | b1 >>> 4];
+            case 2:
+                return remaining > 1 ? ALPHABET[(b1 & 0x0f) << 2 | b2 >>> 6] : PAD;
+            default:
+                return remaining > 2 ? ALPHABET[b2 & 0x3f] : PAD;
+        }
+    }
+
+    private static int recordLength(EfgsProto.DiagnosisKey key) {
+        int countriesLength = Math.max(0, key.getVisitedCountriesCount() - 1);
+        for (String country : key.getVisitedCountriesList()) {
+            countriesLength += asciiLength(country);
+        }
+        return encodedLength(key.getKeyData().size()) +
+                INT_FIELD_COUNT * encodedLength(Integer.BYTES) +
+                encodedLength(countriesLength) +
+                encodedLength(asciiLength(key.getOrigin())) +
+                FIELD_COUNT;
+    }
+
+    private static int asciiLength(String value) {
+        return value.codePointCount(0, value.length());
+    }
+
+    private static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+}
@@ -7,8 +7,6 @@ import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static fi.thl.covid19.exposurenotification.diagnosiskey.DiagnosisKeyService.DEFAULT_ORIGIN_COUNTRY;
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.*;
@@ -22,36 +20,85 @@ public class DummyKeyGeneratorUtil {
     public static final int BATCH_MIN_SIZE = 200;
     private static final int MIN_DAYS = 2;
     private static final int MAX_DAYS = 10;
+    private static final int KEYS_PER_SET = 14;
+    private static final int BLOCK_SET_COUNT = (BATCH_MIN_SIZE + KEYS_PER_SET - 1) / KEYS_PER_SET;
 
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final Comparator<TemporaryExposureKey> KEY_DATA_ORDER = comparing(TemporaryExposureKey::getKeyData);
 
+    /**
+     * Merges the dummy keys into the actual keys in key data order. Both lists are normally sorted already, and are
+     * only sorted here if they are not.
+     */
     public static List<TemporaryExposureKey> concatDummyKeys(List<TemporaryExposureKey> actualKeys, List<TemporaryExposureKey> dummyKeys) {
-        return Stream.concat(
-                actualKeys.stream(),
-                dummyKeys.stream()
-        ).sorted(comparing(TemporaryExposureKey::getKeyData)).collect(Collectors.toList());
+        List<TemporaryExposureKey> actual = sortedByKeyData(actualKeys);
+        List<TemporaryExposureKey> dummies = sortedByKeyData(dummyKeys);
+        List<TemporaryExposureKey> merged = new ArrayList<>(actual.size() + dummies.size());
+        int a = 0;
+        int d = 0;
+        while (a < actual.size() && d < dummies.size()) {
+            merged.add(KEY_DATA_ORDER.compare(actual.get(a), dummies.get(d)) <= 0 ? actual.get(a++) : dummies.get(d++));
+        }
+        merged.addAll(actual.subList(a, actual.size()));
+        merged.addAll(dummies.subList(d, dummies.size()));
+        return merged;
     }
 
     public static List<TemporaryExposureKey> generateDummyKeys(int totalCount, boolean consentToShare, int intervalV2, Instant now) {
         List<TemporaryExposureKey> dummyKeys = new ArrayList<>();
         while (dummyKeys.size() < totalCount) {
-            LocalDate symptomsOnset = now.atOffset(ZoneOffset.UTC).toLocalDate().minusDays(SECURE_RANDOM.nextInt(MAX_DAYS - MIN_DAYS + 1) + MIN_DAYS);
-            for (int dummySetCount = 0; dummySetCount < 14; dummySetCount++) {
-                dummyKeys.add(generateDummyKey(dummySetCount, symptomsOnset, now, consentToShare, intervalV2));
+            int onsetDaysBack = randomOnsetDaysBack();
+            for (int dummySetCount = 0; dummySetCount < KEYS_PER_SET; dummySetCount++) {
+                dummyKeys.add(generateDummyKey(randomKeyData(), dummySetCount, onsetDaysBack, now, consentToShare, intervalV2));
             }
         }
 
         return dummyKeys;
     }
 
-    private static TemporaryExposureKey generateDummyKey(int rollingStartIntervalOffset, LocalDate symptomsOnset, Instant now, boolean consentToShare, int intervalV2) {
+    /**
+     * Generates the random part of enough dummy keys to pad any batch, sorted by key data. The keys are completed for
+     * a batch with {@link DummyKeyBlock#keys}.
+     */
+    public static DummyKeyBlock generateDummyKeyBlock() {
+        List<DummyKeyBlock.Template> templates = new ArrayList<>(BLOCK_SET_COUNT * KEYS_PER_SET);
+        for (int set = 0; set < BLOCK_SET_COUNT; set++) {
+            int onsetDaysBack = randomOnsetDaysBack();
+            for (int dummySetCount = 0; dummySetCount < KEYS_PER_SET; dummySetCount++) {
+                templates.add(new DummyKeyBlock.Template(randomKeyData(), set, dummySetCount, onsetDaysBack));
+            }
+        }
+        templates.sort(comparing(template -> template.keyData));
+        return new DummyKeyBlock(templates);
+    }
+
+    private static List<TemporaryExposureKey> sortedByKeyData(List<TemporaryExposureKey> keys) {
+        for (int i = 1; i < keys.size(); i++) {
+            if (KEY_DATA_ORDER.compare(keys.get(i - 1), keys.get(i)) > 0) {
+                List<TemporaryExposureKey> sorted = new ArrayList<>(keys);
+                sorted.sort(KEY_DATA_ORDER);
+                return sorted;
+            }
+        }
+        return keys;
+    }
+
+    private static int randomOnsetDaysBack() {
+        return SECURE_RANDOM.nextInt(MAX_DAYS - MIN_DAYS + 1) + MIN_DAYS;
+    }
+
+    private static String randomKeyData() {
         byte[] keyData = new byte[16];
         SECURE_RANDOM.nextBytes(keyData);
+        return Base64.getEncoder().encodeToString(keyData);
+    }
 
+    private static TemporaryExposureKey generateDummyKey(String keyData, int rollingStartIntervalOffset, int onsetDaysBack, Instant now, boolean consentToShare, int intervalV2) {
+        LocalDate symptomsOnset = now.atOffset(ZoneOffset.UTC).toLocalDate().minusDays(onsetDaysBack);
         int rollingStartInterval = dayFirst10MinInterval(now.minus(rollingStartIntervalOffset, DAYS));
 
         return new TemporaryExposureKey(
-                Base64.getEncoder().encodeToString(keyData),
+                keyData,
                 getRiskBucket(symptomsOnset, utcDateOf10MinInterval(rollingStartInterval)),
                 rollingStartInterval,
                 144,
@@ -64,4 +111,51 @@ public class DummyKeyGeneratorUtil {
                 intervalV2
         );
     }
+
+    /**
+     * Pre-generated dummy key data in key data order. Each block is meant to pad a single batch: taking whole sets
+     * from it keeps the keys in order, so they can be merged into the batch without sorting.
+     */
+    public static final class DummyKeyBlock {
+
+        public static final int CAPACITY = BLOCK_SET_COUNT * KEYS_PER_SET;
+
+        private final List<Template> templates;
+
+        private DummyKeyBlock(List<Template> templates) {
+            this.templates = templates;
+        }
+
+        /**
+         * Returns as many dummy keys as generateDummyKeys would for the count, sorted by key data.
+         */
+        public List<TemporaryExposureKey> keys(int count, boolean consentToShare, int intervalV2, Instant now) {
+            if (count > CAPACITY) {
+                throw new IllegalArgumentException("Dummy key block cannot hold " + count + " keys");
+            }
+            int sets = (count + KEYS_PER_SET - 1) / KEYS_PER_SET;
+            List<TemporaryExposureKey> keys = new ArrayList<>(sets * KEYS_PER_SET);
+            for (Template template : templates) {
+                if (template.set < sets) {
+                    keys.add(generateDummyKey(template.keyData, template.rollingStartIntervalOffset,
+                            template.onsetDaysBack, now, consentToShare, intervalV2));
+                }
+            }
+            return keys;
+        }
+
+        private static final class Template {
+            private final String keyData;
+            private final int set;
+            private final int rollingStartIntervalOffset;
+            private final int onsetDaysBack;
+
+            private Template(String keyData, int set, int rollingStartIntervalOffset, int onsetDaysBack) {
+                this.keyData = keyData;
+                this.set = set;
+                this.rollingStartIntervalOffset = rollingStartIntervalOffset;
+                this.onsetDaysBack = onsetDaysBack;
+            }
+        }
+    }
 }
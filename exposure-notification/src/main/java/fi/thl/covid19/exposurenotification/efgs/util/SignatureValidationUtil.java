@@ -2,24 +2,24 @@ package fi.thl.covid19.exposurenotification.efgs.util;
 
 import fi.thl.covid19.exposurenotification.efgs.entity.AuditEntry;
 import fi.thl.covid19.exposurenotification.efgs.entity.DownloadData;
+import fi.thl.covid19.exposurenotification.efgs.util.SigningCertificateCache.SigningCertificate;
 import fi.thl.covid19.proto.EfgsProto;
-import org.bouncycastle.asn1.x500.style.BCStyle;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cms.*;
-import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
-import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.*;
 import static net.logstash.logback.argument.StructuredArguments.keyValue;
@@ -29,38 +29,82 @@ public class SignatureValidationUtil {
 
     private static final Logger LOG = LoggerFactory.getLogger(SignatureValidationUtil.class);
 
+    private static final String TIMER_NAME = "efgs_signature_validation";
+    private static final SigningCertificateCache SIGNING_CERTIFICATES = new SigningCertificateCache();
+
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    /**
+     * Audit entries describe consecutive sub-batches of the downloaded keys. Each sub-batch is verified separately on
+     * the given executor and the valid ones are merged back in the order of the download.
+     */
     public static EfgsProto.DiagnosisKeyBatch validateSignature(
-            List<AuditEntry> auditEntries, DownloadData downloadData, X509Certificate trustAnchor) {
-        Optional<List<EfgsProto.DiagnosisKey>> keys = downloadData.batch.flatMap(data -> {
-            AtomicInteger cursor = new AtomicInteger(0);
-            List<EfgsProto.DiagnosisKey> validKeys = new ArrayList<>();
-            LOG.info("Validating batch. {} {} {}",
-                    keyValue("batchTag", downloadData.batchTag),
-                    keyValue("auditCount", auditEntries.size()),
-                    keyValue("totalKeysCount", data.getKeysCount()));
-            auditEntries.forEach(audit -> {
-                List<EfgsProto.DiagnosisKey> auditKeys = data.getKeysList().stream().skip(cursor.get()).limit(audit.amount).collect(Collectors.toList());
-                try {
-                    if (checkBatchSignature(auditKeys, audit, trustAnchor)) {
-                        validKeys.addAll(auditKeys);
-                    } else {
-                        logValidationFailed(downloadData.batchTag, audit, new IllegalStateException("Batch signature check failed."));
-                    }
-                } catch (CMSException | IOException | CertificateException | OperatorCreationException |
-                        NoSuchAlgorithmException | NoSuchProviderException | SignatureException | InvalidKeyException e) {
-                    logValidationFailed(downloadData.batchTag, audit, e);
-                } finally {
-                    LOG.info("Sub-batch processed. {} {} {} {} {}",
-                            keyValue("batchTag", downloadData.batchTag),
-                            keyValue("cursor", cursor.addAndGet(Math.toIntExact(audit.amount))),
-                            keyValue("country", audit.country),
-                            keyValue("amount", audit.amount),
-                            keyValue("amount", audit.toString()));
-                }
-            });
-            return Optional.of(validKeys);
+            List<AuditEntry> auditEntries, DownloadData downloadData, X509Certificate trustAnchor,
+            Executor executor, MeterRegistry meterRegistry) {
+        return validateSignatureAsync(auditEntries, downloadData, trustAnchor, executor, meterRegistry).join();
+    }
+
+    public static CompletableFuture<EfgsProto.DiagnosisKeyBatch> validateSignatureAsync(
+            List<AuditEntry> auditEntries, DownloadData downloadData, X509Certificate trustAnchor,
+            Executor executor, MeterRegistry meterRegistry) {
+        if (downloadData.batch.isEmpty()) {
+            return CompletableFuture.completedFuture(EfgsProto.DiagnosisKeyBatch.getDefaultInstance());
+        }
+        List<EfgsProto.DiagnosisKey> allKeys = downloadData.batch.get().getKeysList();
+        LOG.info("Validating batch. {} {} {}",
+                keyValue("batchTag", downloadData.batchTag),
+                keyValue("auditCount", auditEntries.size()),
+                keyValue("totalKeysCount", allKeys.size()));
+        List<CompletableFuture<List<EfgsProto.DiagnosisKey>>> subBatches = new ArrayList<>(auditEntries.size());
+        int cursor = 0;
+        for (AuditEntry audit : auditEntries) {
+            int end = Math.addExact(cursor, Math.toIntExact(audit.amount));
+            List<EfgsProto.DiagnosisKey> auditKeys =
+                    allKeys.subList(Math.min(cursor, allKeys.size()), Math.min(end, allKeys.size()));
+            subBatches.add(CompletableFuture.supplyAsync(() ->
+                    validateSubBatch(auditKeys, audit, end, downloadData.batchTag, trustAnchor, meterRegistry), executor));
+            cursor = end;
+        }
+        return CompletableFuture.allOf(subBatches.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            EfgsProto.DiagnosisKeyBatch.Builder validKeys = EfgsProto.DiagnosisKeyBatch.newBuilder();
+            subBatches.forEach(subBatch -> validKeys.addAllKeys(subBatch.join()));
+            return validKeys.build();
         });
-        return EfgsProto.DiagnosisKeyBatch.newBuilder().addAllKeys(keys.orElse(List.of())).build();
+    }
+
+    private static List<EfgsProto.DiagnosisKey> validateSubBatch(
+            List<EfgsProto.DiagnosisKey> auditKeys, AuditEntry audit, int cursor, String batchTag,
+            X509Certificate trustAnchor, MeterRegistry meterRegistry) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            if (checkBatchSignature(auditKeys, audit, trustAnchor)) {
+                outcome = "valid";
+                return auditKeys;
+            } else {
+                outcome = "invalid";
+                logValidationFailed(batchTag, audit, new IllegalStateException("Batch signature check failed."));
+            }
+        } catch (CMSException | IOException | CertificateException | OperatorCreationException |
+                NoSuchAlgorithmException | NoSuchProviderException | SignatureException | InvalidKeyException e) {
+            logValidationFailed(batchTag, audit, e);
+        } finally {
+            sample.stop(Timer.builder(TIMER_NAME)
+                    .tag("country", audit.country)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry));
+            LOG.info("Sub-batch processed. {} {} {} {} {}",
+                    keyValue("batchTag", batchTag),
+                    keyValue("cursor", cursor),
+                    keyValue("country", audit.country),
+                    keyValue("amount", audit.amount),
+                    keyValue("amount", audit.toString()));
+        }
+        return List.of();
     }
 
     private static void logValidationFailed(String batchTag, AuditEntry auditEntry, Exception e) {
@@ -83,14 +127,13 @@ public class SignatureValidationUtil {
                 base64ToBytes(audit.batchSignature)
         );
         SignerInformation signerInfo = signedData.getSignerInfos().getSigners().iterator().next();
-        X509CertificateHolder cert = (X509CertificateHolder) new PEMParser(new StringReader(audit.signingCertificate)).readObject();
-        String country = cert.getSubject().getRDNs(BCStyle.C)[0].getFirst().getValue().toString();
+        SigningCertificate cert = SIGNING_CERTIFICATES.get(audit.signingCertificate, trustAnchor);
 
         return cert.isValidOn(new Date()) &&
                 verifySignedDataCertificate(signedData, signerInfo, audit) &&
-                verifySignerInfo(signerInfo, cert) &&
-                verifyOperatorSignature(audit, trustAnchor) &&
-                keys.stream().allMatch(key -> key.getOrigin().equals(country));
+                signerInfo.verify(cert.verifier) &&
+                cert.verifyOperatorSignature(audit.signingCertificateOperatorSignature, trustAnchor) &&
+                keys.stream().allMatch(key -> key.getOrigin().equals(cert.country));
     }
 
     private static boolean verifySignedDataCertificate(CMSSignedData signedData, SignerInformation signerInfo, AuditEntry audit)
@@ -98,23 +141,4 @@ public class SignatureValidationUtil {
         X509CertificateHolder certFromSignedData = (X509CertificateHolder) signedData.getCertificates().getMatches(signerInfo.getSID()).iterator().next();
         return getCertThumbprint(certFromSignedData).equals(audit.uploaderSigningThumbprint);
     }
-
-    private static boolean verifySignerInfo(SignerInformation signerInfo, X509CertificateHolder signerCert)
-            throws CertificateException, OperatorCreationException, CMSException {
-        return signerInfo.verify(createSignerInfoVerifier(signerCert));
-    }
-
-    private static SignerInformationVerifier createSignerInfoVerifier(X509CertificateHolder signerCert)
-            throws OperatorCreationException, CertificateException {
-        return new JcaSimpleSignerInfoVerifierBuilder().build(signerCert);
-    }
-
-    private static boolean verifyOperatorSignature(AuditEntry audit, X509Certificate trustAnchor)
-            throws InvalidKeyException, NoSuchAlgorithmException, SignatureException, NoSuchProviderException {
-        Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
-        Signature signature = Signature.getInstance(trustAnchor.getSigAlgName(), "BC");
-        signature.initVerify(trustAnchor.getPublicKey());
-        signature.update(audit.signingCertificate.getBytes());
-        return signature.verify(base64ToBytes(audit.signingCertificateOperatorSignature));
-    }
 }
@@ -0,0 +1,108 @@
+package fi.thl.covid19.exposurenotification.efgs.util;
+
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.SignerInformationVerifier;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.operator.OperatorCreationException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.*;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.base64ToBytes;
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.bytesToBase64;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Parsed EFGS signing certificates with their signer verifiers, keyed by a SHA-256 thumbprint of the PEM. Countries
+ * sign their uploads with the same few certificates for weeks, so each certificate is parsed and checked against the
+ * trust anchor only once. Entries are dropped when the certificate expires or the trust anchor changes.
+ */
+class SigningCertificateCache {
+
+    static final int MAX_SIZE = 1000;
+
+    private final Map<String, SigningCertificate> certificates = new ConcurrentHashMap<>();
+    private volatile X509Certificate trustAnchor;
+
+    SigningCertificate get(String pem, X509Certificate currentTrustAnchor)
+            throws IOException, CertificateException, OperatorCreationException, NoSuchAlgorithmException {
+        if (!currentTrustAnchor.equals(trustAnchor)) {
+            certificates.clear();
+            trustAnchor = currentTrustAnchor;
+        }
+        String thumbprint = thumbprint(pem);
+        Date now = new Date();
+        SigningCertificate cached = certificates.get(thumbprint);
+        if (cached != null && cached.isValidOn(now)) {
+            return cached;
+        }
+        SigningCertificate parsed = new SigningCertificate(pem);
+        if (parsed.isValidOn(now)) {
+            if (certificates.size() >= MAX_SIZE) {
+                certificates.values().removeIf(certificate -> !certificate.isValidOn(now));
+                if (certificates.size() >= MAX_SIZE) {
+                    certificates.clear();
+                }
+            }
+            certificates.put(thumbprint, parsed);
+        } else if (cached != null) {
+            certificates.remove(thumbprint, cached);
+        }
+        return parsed;
+    }
+
+    int size() {
+        return certificates.size();
+    }
+
+    private static String thumbprint(String pem) throws NoSuchAlgorithmException {
+        return bytesToBase64(MessageDigest.getInstance("SHA-256").digest(pem.getBytes(UTF_8)));
+    }
+
+    static class SigningCertificate {
+        private static final int MAX_OPERATOR_SIGNATURES = 16;
+
+        final String pem;
+        final X509CertificateHolder certificate;
+        final String country;
+        final SignerInformationVerifier verifier;
+        // Operator signature verification results against the current trust anchor
+        private final Map<String, Boolean> operatorSignatures = new ConcurrentHashMap<>();
+
+        SigningCertificate(String pem) throws IOException, CertificateException, OperatorCreationException {
+            this.pem = pem;
+            this.certificate = (X509CertificateHolder) new PEMParser(new StringReader(pem)).readObject();
+            this.country = certificate.getSubject().getRDNs(BCStyle.C)[0].getFirst().getValue().toString();
+            this.verifier = new JcaSimpleSignerInfoVerifierBuilder().build(certificate);
+        }
+
+        boolean isValidOn(Date date) {
+            return certificate.isValidOn(date);
+        }
+
+        boolean verifyOperatorSignature(String operatorSignature, X509Certificate trustAnchor)
+                throws InvalidKeyException, NoSuchAlgorithmException, SignatureException, NoSuchProviderException {
+            Boolean cached = operatorSignatures.get(operatorSignature);
+            if (cached != null) {
+                return cached;
+            }
+            Signature signature = Signature.getInstance(trustAnchor.getSigAlgName(), "BC");
+            signature.initVerify(trustAnchor.getPublicKey());
+            signature.update(pem.getBytes());
+            boolean verified = signature.verify(base64ToBytes(operatorSignature));
+            if (operatorSignatures.size() >= MAX_OPERATOR_SIGNATURES) {
+                operatorSignatures.clear();
+            }
+            operatorSignatures.put(operatorSignature, verified);
+            return verified;
+        }
+    }
+}
@@ -54,6 +54,15 @@ public class ApiErrorHandler extends ResponseEntityExceptionHandler {
         return handleExceptionInternal(ex, ex.getMessage(), new HttpHeaders(), NOT_FOUND, request);
     }
 
+    @ExceptionHandler({PublishQueueFullException.class})
+    public ResponseEntity<Object> handlePublishQueueFull(PublishQueueFullException ex, WebRequest request) {
+        String correlationId = getOrCreateCorrelationId();
+        logHandled(ex.toString(), SERVICE_UNAVAILABLE, request);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(ex.retryAfter.toSeconds()));
+        return respondToError(correlationId, Optional.of("Service busy, try again later"), SERVICE_UNAVAILABLE, headers);
+    }
+
     @ExceptionHandler({ClientAbortException.class})
     public ResponseEntity<Object> handleClientAbortException(ClientAbortException ex, WebRequest request) {
         String correlationId = getOrCreateCorrelationId();
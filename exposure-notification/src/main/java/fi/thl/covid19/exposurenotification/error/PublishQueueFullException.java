@@ -0,0 +1,14 @@
+package fi.thl.covid19.exposurenotification.error;
+
+import java.time.Duration;
+
+import static java.util.Objects.requireNonNull;
+
+public class PublishQueueFullException extends RuntimeException {
+    public final Duration retryAfter;
+
+    public PublishQueueFullException(Duration retryAfter) {
+        super("Publish queue full: retryAfter=" + retryAfter);
+        this.retryAfter = requireNonNull(retryAfter);
+    }
+}
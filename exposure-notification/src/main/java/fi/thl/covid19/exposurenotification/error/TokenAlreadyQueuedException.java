@@ -0,0 +1,11 @@
+package fi.thl.covid19.exposurenotification.error;
+
+/**
+ * A publish token that already has a submission with different keys waiting in the publish queue. Answered like a
+ * token already used for different keys, as that is what the queued submission makes of it.
+ */
+public class TokenAlreadyQueuedException extends TokenValidationException {
+    public TokenAlreadyQueuedException() {
+        super();
+    }
+}
@@ -0,0 +1,30 @@
+package fi.thl.covid19.exposurenotification.tokenverification;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+public class PublishTokenVerificationBatch {
+    public final List<Result> results;
+
+    @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
+    public PublishTokenVerificationBatch(@JsonProperty("results") List<Result> results) {
+        this.results = requireNonNull(results);
+    }
+
+    public static class Result {
+        public final String token;
+        public final Optional<PublishTokenVerification> verification;
+
+        @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
+        public Result(@JsonProperty("token") String token,
+                      @JsonProperty("verification") Optional<PublishTokenVerification> verification) {
+            this.token = requireNonNull(token);
+            this.verification = requireNonNull(verification);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package fi.thl.covid19.exposurenotification.tokenverification;
+
+import fi.thl.covid19.exposurenotification.error.TokenValidationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Verifies the publish tokens of concurrent requests together. The first request to arrive opens a batch, collects
+ * the tokens of the requests arriving within the batch window and verifies them all with one call. The others wait
+ * for its result. Every request still gets the verification of its own token before it returns.
+ */
+@Component
+public class PublishTokenVerificationBatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublishTokenVerificationBatcher.class);
+
+    private final PublishTokenVerificationService tokenVerificationService;
+    private final Duration window;
+    private final int maxBatchSize;
+
+    private final Object lock = new Object();
+    private Batch open;
+
+    public PublishTokenVerificationBatcher(
+            PublishTokenVerificationService tokenVerificationService,
+            @Value("${covid19.diagnosis.publish-queue.verification-window:PT0.02S}") Duration window,
+            @Value("${covid19.diagnosis.publish-queue.max-batch-size:100}") int maxBatchSize) {
+        this.tokenVerificationService = requireNonNull(tokenVerificationService);
+        this.window = requireNonNull(window);
+        this.maxBatchSize = maxBatchSize;
+        LOG.info("Initialized: {} {}", keyValue("window", window), keyValue("maxBatchSize", maxBatchSize));
+    }
+
+    public PublishTokenVerification getVerification(String token) {
+        Batch batch;
+        boolean leader;
+        CompletableFuture<Map<String, PublishTokenVerification>> result;
+        synchronized (lock) {
+            leader = open == null;
+            if (leader) {
+                open = new Batch();
+            }
+            batch = open;
+            batch.tokens.add(token);
+            result = batch.result;
+            if (batch.tokens.size() >= maxBatchSize) {
+                open = null;
+            }
+        }
+        if (leader) {
+            verify(batch);
+        }
+        PublishTokenVerification verification;
+        try {
+            verification = result.join().get(token);
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        if (verification == null) {
+            throw new TokenValidationException();
+        }
+        return verification;
+    }
+
+    private void verify(Batch batch) {
+        try {
+            Thread.sleep(window.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<String> tokens;
+        synchronized (lock) {
+            if (open == batch) {
+                open = null;
+            }
+            tokens = List.copyOf(batch.tokens);
+        }
+        try {
+            batch.result.complete(tokenVerificationService.getVerifications(tokens));
+        } catch (RuntimeException e) {
+            batch.result.completeExceptionally(e);
+        }
+    }
+
+    private static final class Batch {
+        private final List<String> tokens = new ArrayList<>();
+        private final CompletableFuture<Map<String, PublishTokenVerification>> result = new CompletableFuture<>();
+    }
+}
@@ -1,5 +1,13 @@
 package fi.thl.covid19.exposurenotification.tokenverification;
 
+import java.util.List;
+import java.util.Map;
+
 public interface PublishTokenVerificationService {
     PublishTokenVerification getVerification(String token);
+
+    /**
+     * Verifies many tokens at once. Tokens that are not valid are left out of the result.
+     */
+    Map<String, PublishTokenVerification> getVerifications(List<String> tokens);
 }
@@ -1,10 +1,14 @@
 package fi.thl.covid19.exposurenotification.tokenverification;
 
 import fi.thl.covid19.exposurenotification.error.TokenValidationException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
@@ -12,8 +16,12 @@ import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
-import java.util.List;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 
+import static fi.thl.covid19.exposurenotification.ApplicationConfiguration.TOKEN_VERIFICATION_CACHE;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 import static net.logstash.logback.argument.StructuredArguments.keyValue;
 
@@ -24,26 +32,122 @@ public class PublishTokenVerificationServiceRest implements PublishTokenVerifica
 
     public static final String TOKEN_VERIFICATION_PATH = "/verification/v1";
     public static final String PUBLISH_TOKEN_HEADER = "KV-Publish-Token";
+    // Matches the maximum batch accepted by the publish-token service
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    private static final String TIMER_NAME = "publish_token_verification";
+    private static final List<MediaType> ACCEPT = List.of(MediaType.APPLICATION_JSON);
 
     private final RestTemplate restTemplate;
-    private final String publishTokenUrl;
+    private final String verificationUrl;
+    private final String batchVerificationUrl;
+    private final Cache verificationCache;
+    private final MeterRegistry meterRegistry;
 
     public PublishTokenVerificationServiceRest(
             @Qualifier("default") RestTemplate restTemplate,
+            CacheManager cacheManager,
+            MeterRegistry meterRegistry,
             @Value("${covid19.publish-token.url}") String publishTokenUrl) {
         this.restTemplate = requireNonNull(restTemplate, "RestTemplate required");
-        this.publishTokenUrl = requireNonNull(publishTokenUrl, "Publish Token URL required");
+        this.verificationCache = requireNonNull(cacheManager.getCache(TOKEN_VERIFICATION_CACHE), "Verification cache required");
+        this.meterRegistry = requireNonNull(meterRegistry, "Meter registry required");
+        this.verificationUrl = requireNonNull(publishTokenUrl, "Publish Token URL required") + TOKEN_VERIFICATION_PATH;
+        this.batchVerificationUrl = verificationUrl + "/batch";
     }
 
+    /**
+     * Successful verifications are cached for a short while, so that a client retrying its publish does not cause
+     * repeated calls. The cache is keyed by a hash of the token, so tokens are not held in memory.
+     */
     @Override
     public PublishTokenVerification getVerification(String token) {
-        String url = publishTokenUrl + TOKEN_VERIFICATION_PATH;
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String cacheKey = hash(token);
+        PublishTokenVerification cached = verificationCache.get(cacheKey, PublishTokenVerification.class);
+        if (cached != null) {
+            sample.stop(timer("cached"));
+            return cached;
+        }
+        String outcome = "error";
+        try {
+            PublishTokenVerification verification = fetchVerification(token);
+            verificationCache.put(cacheKey, verification);
+            outcome = "verified";
+            return verification;
+        } catch (TokenValidationException e) {
+            outcome = "rejected";
+            throw e;
+        } finally {
+            sample.stop(timer(outcome));
+        }
+    }
+
+    /**
+     * Cached verifications are used as is, the rest are verified with one call per {@link #MAX_BATCH_SIZE} tokens.
+     */
+    @Override
+    public Map<String, PublishTokenVerification> getVerifications(List<String> tokens) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Map<String, PublishTokenVerification> result = new HashMap<>();
+        List<String> uncached = new ArrayList<>();
+        for (String token : tokens) {
+            PublishTokenVerification cached = verificationCache.get(hash(token), PublishTokenVerification.class);
+            if (cached != null) {
+                result.put(token, cached);
+            } else {
+                uncached.add(token);
+            }
+        }
+        String outcome = "error";
+        try {
+            for (int from = 0; from < uncached.size(); from += MAX_BATCH_SIZE) {
+                List<String> chunk = uncached.subList(from, Math.min(from + MAX_BATCH_SIZE, uncached.size()));
+                for (PublishTokenVerificationBatch.Result verified : fetchVerifications(chunk).results) {
+                    verified.verification.ifPresent(verification -> {
+                        verificationCache.put(hash(verified.token), verification);
+                        result.put(verified.token, verification);
+                    });
+                }
+            }
+            outcome = "batch";
+            LOG.info("Publish tokens verified: {} {} {}",
+                    keyValue("tokens", tokens.size()),
+                    keyValue("cached", tokens.size() - uncached.size()),
+                    keyValue("accepted", result.size()));
+            return result;
+        } finally {
+            sample.stop(timer(outcome));
+        }
+    }
+
+    private PublishTokenVerificationBatch fetchVerifications(List<String> tokens) {
         try {
             HttpHeaders headers = new HttpHeaders();
-            headers.setAccept(List.of(MediaType.APPLICATION_JSON));
+            headers.setAccept(ACCEPT);
+            headers.setContentType(MediaType.APPLICATION_JSON);
+            HttpEntity<Map<String, List<String>>> entity = new HttpEntity<>(Map.of("tokens", tokens), headers);
+            ResponseEntity<PublishTokenVerificationBatch> reply = restTemplate.exchange(
+                    batchVerificationUrl, HttpMethod.POST, entity, PublishTokenVerificationBatch.class);
+            if (reply.getStatusCode().is2xxSuccessful() && reply.hasBody()) {
+                return reply.getBody();
+            } else {
+                LOG.error("Unexpected batch verification reply: {}", keyValue("status", reply.getStatusCode()));
+            }
+        } catch (RestClientException e) {
+            LOG.error("Error verifying token batch: {} {}",
+                    keyValue("url", batchVerificationUrl), keyValue("tokens", tokens.size()), e);
+        }
+        throw new IllegalStateException("Could not handle batch token verification");
+    }
+
+    private PublishTokenVerification fetchVerification(String token) {
+        try {
+            HttpHeaders headers = new HttpHeaders();
+            headers.setAccept(ACCEPT);
             headers.add(PUBLISH_TOKEN_HEADER, token);
             HttpEntity<String> entity = new HttpEntity<>(null, headers);
-            ResponseEntity<PublishTokenVerification> reply = restTemplate.exchange(url, HttpMethod.GET, entity, PublishTokenVerification.class);
+            ResponseEntity<PublishTokenVerification> reply = restTemplate.exchange(verificationUrl, HttpMethod.GET, entity, PublishTokenVerification.class);
             if (reply.getStatusCode().is2xxSuccessful() && reply.hasBody()) {
                 return reply.getBody();
             } else {
@@ -54,10 +158,23 @@ public class PublishTokenVerificationServiceRest implements PublishTokenVerifica
             LOG.warn("Publish token not verified: {}", keyValue("result", e.getStatusCode()), e);
             throw new TokenValidationException();
         } catch (HttpServerErrorException e) {
-            LOG.error("Error in token service: {}", keyValue("url", url), e);
+            LOG.error("Error in token service: {}", keyValue("url", verificationUrl), e);
         } catch (RestClientException e) {
-            LOG.error("Error verifying token request: {}", keyValue("url", url), e);
+            LOG.error("Error verifying token request: {}", keyValue("url", verificationUrl), e);
         }
         throw new IllegalStateException("Could not handle token verification");
     }
+
+    private Timer timer(String outcome) {
+        return Timer.builder(TIMER_NAME).tag("outcome", outcome).register(meterRegistry);
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Token hash not available", e);
+        }
+    }
 }
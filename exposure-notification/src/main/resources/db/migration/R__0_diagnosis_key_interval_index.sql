@@ -1,3 +1,4 @@
+-- The table is partitioned by submission_interval, so only the V2 interval needs an index
 drop index if exists en.diagnosis_key_interval;
-create index diagnosis_key_interval on en.diagnosis_key(submission_interval);
+drop index if exists en.diagnosis_key_interval_v2;
 create index diagnosis_key_interval_v2 on en.diagnosis_key(submission_interval_v2);
@@ -1,3 +1,4 @@
+-- Indexes on en.diagnosis_key are created on the partitioned table and cascade to each partition
 drop index if exists en.diagnosis_key_efgs_sync;
 create index diagnosis_key_efgs_sync on en.diagnosis_key(efgs_sync, retry_count, consent_to_share);
 
@@ -0,0 +1,13 @@
+create table en.batch_file (
+    batch_id varchar(30) primary key,
+    interval_number int not null,
+    interval_number_v2 int,
+    v2 boolean not null,
+    key_count int not null,
+    byte_size bigint not null,
+    sha256 varchar(64) not null,
+    generated_at timestamptz not null,
+    signing_key_version varchar(30) not null
+);
+
+create index batch_file_interval on en.batch_file(interval_number);
@@ -0,0 +1,48 @@
+-- Partition diagnosis keys by submission day, so that retention can drop whole partitions instead of deleting rows.
+-- The partition key must be part of the primary key; key uniqueness across days is checked on insert.
+alter table en.diagnosis_key rename to diagnosis_key_unpartitioned;
+
+create table en.diagnosis_key (
+    key_data varchar(30) not null,
+    rolling_period int not null,
+    rolling_start_interval_number int not null,
+    transmission_risk_level int not null,
+    submission_interval int not null,
+    origin varchar(2) not null default 'FI',
+    visited_countries varchar(2)[] not null default '{}',
+    days_since_onset_of_symptoms int,
+    consent_to_share boolean not null default 'false',
+    efgs_sync timestamptz,
+    retry_count int not null default 0,
+    symptoms_exist boolean,
+    submission_interval_v2 int not null,
+    primary key (key_data, submission_interval)
+) partition by range (submission_interval);
+
+-- Catches keys for days that have no partition yet. Normally empty, as partitions are created ahead of time.
+create table en.diagnosis_key_default partition of en.diagnosis_key default;
+
+do $$
+declare
+    partition_day int;
+    today int := floor(extract(epoch from now()) / 86400);
+begin
+    for partition_day in
+        select distinct submission_interval from en.diagnosis_key_unpartitioned
+        union
+        select generate_series(today - 1, today + 7)
+    loop
+        execute format('create table en.diagnosis_key_p%s partition of en.diagnosis_key for values from (%s) to (%s)',
+            partition_day, partition_day, partition_day + 1);
+    end loop;
+end $$;
+
+insert into en.diagnosis_key (key_data, rolling_period, rolling_start_interval_number, transmission_risk_level,
+        submission_interval, origin, visited_countries, days_since_onset_of_symptoms, consent_to_share, efgs_sync,
+        retry_count, symptoms_exist, submission_interval_v2)
+    select key_data, rolling_period, rolling_start_interval_number, transmission_risk_level,
+        submission_interval, origin, visited_countries, days_since_onset_of_symptoms, consent_to_share, efgs_sync,
+        retry_count, symptoms_exist, submission_interval_v2
+    from en.diagnosis_key_unpartitioned;
+
+drop table en.diagnosis_key_unpartitioned;
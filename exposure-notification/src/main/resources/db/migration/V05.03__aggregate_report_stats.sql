@@ -0,0 +1,24 @@
+-- Key report statistics are flushed as per-minute totals instead of a row per report. The history is copied here, and
+-- the per-report table is kept under a new name, as nothing writes to it any more.
+create table en.stats_report_keys_minute (
+    reported_at timestamptz primary key,
+    report_count bigint not null,
+    total_key_count bigint not null,
+    exported_key_count bigint not null
+);
+
+insert into en.stats_report_keys_minute(reported_at, report_count, total_key_count, exported_key_count)
+    select date_trunc('minute', reported_at), count(*), coalesce(sum(total_key_count), 0), coalesce(sum(exported_key_count), 0)
+    from en.stats_report_keys
+    group by date_trunc('minute', reported_at);
+
+alter table en.stats_report_keys rename to stats_report_keys_per_event;
+
+-- Existing reports on the old table keep working on the minute totals: each report is a row at its minute, and the
+-- key counts of the minute are on its first row, so counts and sums match while per-report key counts are not kept.
+create view en.stats_report_keys as
+    select totals.reported_at,
+        case when report.n = 1 then totals.total_key_count else 0 end as total_key_count,
+        case when report.n = 1 then totals.exported_key_count else 0 end as exported_key_count
+    from en.stats_report_keys_minute totals
+    cross join generate_series(1, totals.report_count) as report(n);
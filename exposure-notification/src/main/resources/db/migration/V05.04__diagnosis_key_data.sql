@@ -0,0 +1,13 @@
+-- The partitioned key table can only enforce key_data uniqueness within a day. This table holds each key_data once
+-- across all days: an insert claims the key data here first, so concurrent inserts of the same key cannot both pass.
+create table en.diagnosis_key_data (
+    key_data varchar(30) primary key,
+    submission_interval int not null
+);
+
+create index diagnosis_key_data_submission_interval on en.diagnosis_key_data(submission_interval);
+
+insert into en.diagnosis_key_data (key_data, submission_interval)
+    select distinct on (key_data) key_data, submission_interval
+    from en.diagnosis_key
+    order by key_data, submission_interval;
@@ -1,5 +1,6 @@
 package fi.thl.covid19.exposurenotification.batch;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKey;
 import fi.thl.covid19.proto.SignatureInfo;
@@ -21,6 +22,7 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.*;
+import static fi.thl.covid19.exposurenotification.efgs.util.DsosMapperUtil.DEFAULT_LOCAL_DAYS_SINCE_SYMPTOMS;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class BatchFileFactoryTest {
@@ -77,6 +79,107 @@ public class BatchFileFactoryTest {
         }
     }
 
+    @Test
+    public void streamingWritesNothingWithoutKeys() {
+        KeyPair keyPair = Signing.randomKeyPair();
+        SignatureConfig signatureConfig = new SignatureConfig(
+                "v1",
+                "test.key.id",
+                "1.2.840.10045.4.3.2",
+                "SHA256withECDSA");
+        BatchMetadata metadata = new BatchMetadata(12345, 23456, "TEST");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int count = BatchFileFactory.writeBatchFile(signatureConfig, keyPair.getPrivate(), metadata, action -> {}, out);
+
+        assertEquals(0, count);
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void streamingProducesSameExportAsInMemoryCreation() throws IOException, GeneralSecurityException {
+        KeyPair keyPair = Signing.randomKeyPair();
+        SignatureConfig signatureConfig = new SignatureConfig(
+                "v1",
+                "test.key.id",
+                "1.2.840.10045.4.3.2",
+                "SHA256withECDSA");
+        BatchMetadata metadata = new BatchMetadata(12345, 23456, "TEST");
+        List<TemporaryExposureKey> keys = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            keys.add(createKey(i));
+        }
+
+        byte[] inMemory = BatchFileFactory.createBatchFile(signatureConfig, keyPair.getPrivate(), metadata, keys);
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        int count = BatchFileFactory.writeBatchFile(signatureConfig, keyPair.getPrivate(), metadata, keys::forEach, streamed);
+        assertEquals(keys.size(), count);
+
+        Map<String, byte[]> expected = extractEntries(inMemory);
+        Map<String, byte[]> actual = extractEntries(streamed.toByteArray());
+        assertEquals(List.of(BatchFileFactory.BIN_NAME, BatchFileFactory.SIG_NAME), new ArrayList<>(actual.keySet()));
+
+        byte[] binBytes = actual.get(BatchFileFactory.BIN_NAME);
+        assertArrayEquals(expected.get(BatchFileFactory.BIN_NAME), binBytes);
+        byte[] payload = Arrays.copyOfRange(binBytes, BatchFileFactory.BIN_HEADER_LENGTH, binBytes.length);
+        assertEquals(keys.size(), TemporaryExposureKeyExport.parseFrom(payload).getKeysCount());
+        assertSignatureCorrect(signatureConfig, keyPair.getPublic(), actual.get(BatchFileFactory.SIG_NAME), binBytes);
+    }
+
+    @Test
+    public void keysAreWrittenAsGeneratedProtobufWouldWriteThem() throws IOException {
+        KeyPair keyPair = Signing.randomKeyPair();
+        SignatureConfig signatureConfig = new SignatureConfig(
+                "v1",
+                "test.key.id",
+                "1.2.840.10045.4.3.2",
+                "SHA256withECDSA");
+        BatchMetadata metadata = new BatchMetadata(12345, 23456, "TEST");
+        List<TemporaryExposureKey> keys = List.of(createKey(1), createKey(2), createKey(3));
+        TemporaryExposureKey withoutDsos = new TemporaryExposureKey(
+                "c9Uau9icuBlvDvtokvlNaA==", 3, 2650847, 144, Set.of("DE"), Optional.empty(), "DE", true,
+                Optional.of(true), keys.get(0).submissionInterval, keys.get(0).submissionIntervalV2);
+        List<TemporaryExposureKey> allKeys = new ArrayList<>(keys);
+        allKeys.add(withoutDsos);
+
+        TemporaryExposureKeyExport.Builder expected = TemporaryExposureKeyExport.newBuilder()
+                .setStartTimestamp(metadata.startTimestampUtcSec)
+                .setEndTimestamp(metadata.endTimestampUtcSec)
+                .setRegion(metadata.region)
+                .setBatchNum(1)
+                .setBatchSize(1)
+                .addSignatureInfos(SignatureInfo.newBuilder()
+                        .setVerificationKeyVersion(signatureConfig.keyVersion)
+                        .setVerificationKeyId(signatureConfig.keyId)
+                        .setSignatureAlgorithm(signatureConfig.algorithmOid));
+        for (TemporaryExposureKey key : allKeys) {
+            expected.addKeys(fi.thl.covid19.proto.TemporaryExposureKey.newBuilder()
+                    .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.keyData)))
+                    .setTransmissionRiskLevel(key.transmissionRiskLevel)
+                    .setRollingStartIntervalNumber(key.rollingStartIntervalNumber)
+                    .setRollingPeriod(key.rollingPeriod)
+                    .setReportType(fi.thl.covid19.proto.TemporaryExposureKey.ReportType.CONFIRMED_TEST)
+                    .setDaysSinceOnsetOfSymptoms(key.daysSinceOnsetOfSymptoms.orElse(DEFAULT_LOCAL_DAYS_SINCE_SYMPTOMS)));
+        }
+
+        byte[] bytes = BatchFileFactory.createBatchFile(signatureConfig, keyPair.getPrivate(), metadata, allKeys);
+        byte[] binBytes = extractEntries(bytes).get(BatchFileFactory.BIN_NAME);
+        byte[] payload = Arrays.copyOfRange(binBytes, BatchFileFactory.BIN_HEADER_LENGTH, binBytes.length);
+        assertArrayEquals(expected.build().toByteArray(), payload);
+    }
+
+    private Map<String, byte[]> extractEntries(byte[] zipBytes) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream zipInput = new ZipInputStream(new ByteArrayInputStream(zipBytes))) {
+            ZipEntry entry;
+            while ((entry = zipInput.getNextEntry()) != null) {
+                entries.put(entry.getName(), extract(zipInput));
+                zipInput.closeEntry();
+            }
+        }
+        return entries;
+    }
+
     private TemporaryExposureKey createKey(int seed) {
         Random rand = new Random(seed);
         byte[] keyBytes = new byte[16];
@@ -10,11 +10,14 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.ActiveProfiles;
 
 import java.time.Instant;
+import java.util.List;
 import java.util.Optional;
 
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.from24hourToV2Interval;
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.fromV2to24hourInterval;
+import static fi.thl.covid19.exposurenotification.efgs.util.DummyKeyGeneratorUtil.BATCH_MIN_SIZE;
 import static java.time.temporal.ChronoUnit.HOURS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -66,4 +69,40 @@ public class BatchFileServiceIT {
             assertTrue(fileStorage.fileExists(new BatchId(fromV2to24hourInterval(next), Optional.of(next))));
         }
     }
+
+    @Test
+    public void allMissingBatchesAreGeneratedInOneRound() {
+        int count = 0;
+        for (int next = INTERVALS_V2.first; next <= INTERVALS_V2.last; next++) {
+            dao.addKeys(next, "TEST" + next, fromV2to24hourInterval(next), next, keyGenerator.someKeys(5, fromV2to24hourInterval(next), next), 5);
+            count++;
+        }
+        assertEquals(count, fileService.cacheMissingBatchesBetweenV2(INTERVALS_V2.first, INTERVALS_V2.last));
+        for (int next = INTERVALS_V2.first; next <= INTERVALS_V2.last; next++) {
+            assertTrue(fileStorage.fileExists(new BatchId(fromV2to24hourInterval(next), Optional.of(next))));
+        }
+        assertEquals(0, fileService.cacheMissingBatchesBetweenV2(INTERVALS_V2.first, INTERVALS_V2.last));
+    }
+
+    @Test
+    public void generatedBatchesAreCatalogedAndRemoved() {
+        fileService.deleteBatchesBefore(Integer.MAX_VALUE);
+        int interval = INTERVALS.last;
+        dao.addKeys(interval, "TEST" + interval, interval, from24hourToV2Interval(interval), keyGenerator.someKeys(5, interval, from24hourToV2Interval(interval)), 5);
+        fileService.cacheMissingBatchesBetween(interval, interval);
+
+        BatchId id = new BatchId(interval);
+        List<BatchFileCatalogEntry> catalog = fileService.getBatchCatalog();
+        assertEquals(1, catalog.size());
+        BatchFileCatalogEntry entry = catalog.get(0);
+        assertEquals(id, entry.batchId);
+        assertFalse(entry.isV2());
+        assertEquals(BATCH_MIN_SIZE, entry.keyCount);
+        assertEquals(fileStorage.readBatchFile(id).orElseThrow().length, entry.byteSize);
+        assertEquals(64, entry.sha256.length());
+
+        assertEquals(1, fileService.deleteBatchesBefore(interval + 1));
+        assertTrue(fileService.getBatchCatalog().isEmpty());
+        assertFalse(fileStorage.fileExists(id));
+    }
 }
@@ -0,0 +1,92 @@
+package fi.thl.covid19.exposurenotification.batch;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchFileStorageTest {
+
+    private final BatchFileStorage storage = new BatchFileStorage(Optional.empty());
+
+    @Test
+    public void writtenFileIsFoundAndReadable() throws IOException {
+        BatchId id = new BatchId(12345);
+        byte[] data = {1, 2, 3, 4};
+        storage.addBatchFile(id, data);
+
+        Optional<Path> path = storage.findBatchFile(id);
+        assertTrue(path.isPresent());
+        assertArrayEquals(data, Files.readAllBytes(path.get()));
+        assertArrayEquals(data, storage.readBatchFile(id).orElseThrow());
+        assertEquals(Optional.of(ETags.of(data)), storage.getETag(id));
+    }
+
+    @Test
+    public void eTagIsRemovedWithBatch() {
+        BatchId id = new BatchId(12347);
+        storage.addBatchFile(id, new byte[]{1, 2, 3});
+        assertTrue(storage.getETag(id).isPresent());
+        assertEquals(1, storage.deleteKeyBatchesBefore(id.intervalNumber + 1));
+        assertTrue(storage.getETag(id).isEmpty());
+    }
+
+    @Test
+    public void replacedFileHasItsOwnTagOnOtherNodes(@TempDir Path sharedDirectory) {
+        BatchFileStorage node = new BatchFileStorage(Optional.of(sharedDirectory.toString()));
+        BatchFileStorage otherNode = new BatchFileStorage(Optional.of(sharedDirectory.toString()));
+        BatchId id = new BatchId(12348);
+        byte[] replaced = {4, 5, 6};
+        node.addBatchFile(id, new byte[]{1, 2, 3});
+        node.addBatchFile(id, replaced);
+
+        assertEquals(Optional.of(ETags.of(replaced)), otherNode.getETag(id));
+    }
+
+    @Test
+    public void fileReplacedByOtherNodeIsServedWithItsTag(@TempDir Path sharedDirectory) {
+        BatchFileStorage node = new BatchFileStorage(Optional.of(sharedDirectory.toString()));
+        BatchFileStorage otherNode = new BatchFileStorage(Optional.of(sharedDirectory.toString()));
+        BatchId id = new BatchId(12349);
+        byte[] replaced = {4, 5, 6};
+        node.addBatchFile(id, new byte[]{1, 2, 3});
+        assertEquals(Optional.of(ETags.of(new byte[]{1, 2, 3})), node.getETag(id));
+        otherNode.addBatchFile(id, replaced);
+
+        assertEquals(Optional.of(ETags.of(replaced)), node.getETag(id));
+    }
+
+    @Test
+    public void tagFileOfAnotherVersionIsNotUsed(@TempDir Path sharedDirectory) throws IOException {
+        BatchFileStorage node = new BatchFileStorage(Optional.of(sharedDirectory.toString()));
+        BatchFileStorage otherNode = new BatchFileStorage(Optional.of(sharedDirectory.toString()));
+        BatchId id = new BatchId(12350);
+        byte[] data = {1, 2, 3};
+        node.addBatchFile(id, data);
+        Path eTagFile = node.batchFileDirectory.resolve(BatchFile.batchFileName(id) + ".etag");
+        Files.writeString(eTagFile, ETags.of("stale") + " 3 0");
+
+        assertEquals(Optional.of(ETags.of(data)), otherNode.getETag(id));
+    }
+
+    @Test
+    public void failedWriteLeavesNoFiles() throws IOException {
+        BatchId id = new BatchId(12346);
+        assertThrows(IllegalStateException.class, () -> storage.addBatchFile(id, out -> {
+            out.write(new byte[]{1, 2, 3});
+            throw new IllegalStateException("Failed");
+        }));
+
+        assertFalse(storage.fileExists(id));
+        assertTrue(storage.findBatchFile(id).isEmpty());
+        try (Stream<Path> files = Files.list(storage.batchFileDirectory)) {
+            assertEquals(0, files.count());
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package fi.thl.covid19.exposurenotification.batch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ETagsTest {
+
+    @Test
+    public void sameContentGivesSameQuotedTag() {
+        String tag = ETags.of("content");
+        assertEquals(tag, ETags.of("content".getBytes(UTF_8)));
+        assertNotEquals(tag, ETags.of("other"));
+        assertTrue(tag.startsWith("\"") && tag.endsWith("\""));
+    }
+
+    @Test
+    public void ifNoneMatchIsMatched() {
+        String tag = ETags.of("content");
+        assertTrue(ETags.matches(Optional.of(tag), tag));
+        assertTrue(ETags.matches(Optional.of("\"a\", " + tag), tag));
+        assertTrue(ETags.matches(Optional.of("W/" + tag), tag));
+        assertTrue(ETags.matches(Optional.of("*"), tag));
+        assertFalse(ETags.matches(Optional.of("\"a\""), tag));
+        assertFalse(ETags.matches(Optional.empty(), tag));
+    }
+}
@@ -0,0 +1,93 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.sql.ResultSet;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.from24hourToV2Interval;
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.to24HourInterval;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class AvailableIntervalIndexTest {
+
+    private final NamedParameterJdbcTemplate jdbc = mock(NamedParameterJdbcTemplate.class);
+    private AvailableIntervalIndex index;
+    private TestKeyGenerator keyGenerator;
+
+    @BeforeEach
+    public void setUp() {
+        // The mocked template returns no rows, so the index starts empty
+        index = new AvailableIntervalIndex(jdbc, mock(PlatformTransactionManager.class));
+        keyGenerator = new TestKeyGenerator(123);
+        index.afterPropertiesSet();
+    }
+
+    @Test
+    public void addedKeysAreCountedPerInterval() {
+        index.keysAdded(keyGenerator.someKeys(2, 1235, from24hourToV2Interval(1235)));
+        index.keysAdded(keyGenerator.someKeys(1, 1234, from24hourToV2Interval(1234)));
+        index.keysAdded(keyGenerator.someKeys(3, 1235, from24hourToV2Interval(1235)));
+
+        assertEquals(List.of(1234, 1235), index.getIntervals());
+        assertEquals(List.of(from24hourToV2Interval(1234), from24hourToV2Interval(1235)), index.getIntervalsV2());
+        assertEquals(1, index.getKeyCount(1234));
+        assertEquals(5, index.getKeyCount(1235));
+        assertEquals(0, index.getKeyCount(1236));
+        assertEquals(5, index.getKeyCountV2(from24hourToV2Interval(1235)));
+        assertEquals(0, index.getKeyCountV2(from24hourToV2Interval(1235) + 1));
+    }
+
+    @Test
+    public void deletedIntervalsAreRemoved() {
+        index.keysAdded(keyGenerator.someKeys(1, 1234, from24hourToV2Interval(1234)));
+        index.keysAdded(keyGenerator.someKeys(1, 1235, from24hourToV2Interval(1235) + 5));
+        index.keysAdded(keyGenerator.someKeys(1, 1236, from24hourToV2Interval(1236)));
+
+        index.keysDeletedBefore(1236);
+
+        assertEquals(List.of(1236), index.getIntervals());
+        assertEquals(List.of(from24hourToV2Interval(1236)), index.getIntervalsV2());
+        assertEquals(0, index.getKeyCount(1235));
+    }
+
+    @Test
+    public void refreshReplacesRecentCountsOnly() throws Exception {
+        int current = to24HourInterval(Instant.now());
+        index.keysAdded(keyGenerator.someKeys(2, 1234, from24hourToV2Interval(1234)));
+        index.keysAdded(keyGenerator.someKeys(3, current, from24hourToV2Interval(current)));
+        returnCounts(Map.of(current, 7));
+
+        index.refresh();
+
+        assertEquals(List.of(1234, current), index.getIntervals());
+        assertEquals(2, index.getKeyCount(1234));
+        assertEquals(7, index.getKeyCount(current));
+        assertEquals(7, index.getKeyCountV2(from24hourToV2Interval(current)));
+        verify(jdbc).query(anyString(), eq(Map.of("from_interval", current - 1)), any(RowCallbackHandler.class));
+    }
+
+    private void returnCounts(Map<Integer, Integer> counts) {
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(2);
+            for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                ResultSet rs = mock(ResultSet.class);
+                when(rs.getInt("submission_interval")).thenReturn(entry.getKey());
+                when(rs.getInt("submission_interval_v2")).thenReturn(from24hourToV2Interval(entry.getKey()));
+                when(rs.getInt("key_count")).thenReturn(entry.getValue());
+                handler.processRow(rs);
+            }
+            return null;
+        }).when(jdbc).query(anyString(), anyMap(), any(RowCallbackHandler.class));
+    }
+}
@@ -5,6 +5,7 @@ import fi.thl.covid19.exposurenotification.batch.BatchFile;
 import fi.thl.covid19.exposurenotification.batch.BatchFileStorage;
 import fi.thl.covid19.exposurenotification.batch.BatchId;
 import fi.thl.covid19.exposurenotification.batch.BatchIntervals;
+import fi.thl.covid19.exposurenotification.batch.ETags;
 import fi.thl.covid19.exposurenotification.configuration.ConfigurationService;
 import fi.thl.covid19.exposurenotification.diagnosiskey.v1.*;
 import fi.thl.covid19.exposurenotification.error.InputValidationException;
@@ -76,6 +77,9 @@ public class DiagnosisKeyControllerIT {
     @Autowired
     private DiagnosisKeyDao dao;
 
+    @Autowired
+    private AvailableIntervalIndex intervalIndex;
+
     @Autowired
     private ConfigurationService configService;
 
@@ -240,6 +244,36 @@ public class DiagnosisKeyControllerIT {
         assertFileContent(id, content, true);
     }
 
+    @Test
+    public void existingFileIsNotModifiedWithMatchingETag() throws Exception {
+        BatchId id = new BatchId(INTERVALS.last - 1);
+        byte[] content = "TEST CONTENT".getBytes(UTF_8);
+        storage.addBatchFile(id, content);
+        String eTag = ETags.of(content);
+        mockMvc.perform(get(BATCH_URL + "/" + id))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", eTag));
+        mockMvc.perform(get(BATCH_URL + "/" + id).header("If-None-Match", eTag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", eTag))
+                .andExpect(header().string("Cache-Control", "max-age=43200, public"))
+                .andExpect(content().bytes(new byte[0]));
+    }
+
+    @Test
+    public void statusIsNotModifiedWithMatchingETag() throws Exception {
+        String url = STATUS_URL + new BatchId(INTERVALS.first);
+        String eTag = mockMvc.perform(get(url))
+                .andExpect(status().isOk())
+                .andExpect(header().exists("ETag"))
+                .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(get(url).header("If-None-Match", eTag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", eTag));
+        mockMvc.perform(get(url).header("If-None-Match", "\"other\""))
+                .andExpect(status().isOk());
+    }
+
     @Test
     public void postSucceedsWithDefaultEfgsData() throws Exception {
         processPost(Optional.empty(), Optional.empty(), true);
@@ -424,13 +458,13 @@ public class DiagnosisKeyControllerIT {
         // Generator produces appropriate risk levels. Set them all to zero to verify that service calculates them OK.
         DiagnosisPublishRequest request = new DiagnosisPublishRequest(resetRiskLevelsRequest(keys, 0), visitedCountries, consentToShareWithEfgs);
 
-        assertTrue(dao.getAvailableIntervals().isEmpty());
+        assertTrue(intervalIndex.getIntervals().isEmpty());
         PublishTokenVerification verification = new PublishTokenVerification(1, LocalDate.now().minus(7, DAYS), Optional.of(true));
         given(tokenVerificationService.getVerification("123654032165")).willReturn(verification);
         verifiedPost("123654032165", request);
         verify(tokenVerificationService).getVerification("123654032165");
 
-        List<Integer> available = dao.getAvailableIntervals();
+        List<Integer> available = intervalIndex.getIntervals();
         assertEquals(1, available.size());
         List<TemporaryExposureKeyRequest> expectedOutput = keys.stream()
                 // 0-risk keys (transmission risk level in extremes) are not distributed
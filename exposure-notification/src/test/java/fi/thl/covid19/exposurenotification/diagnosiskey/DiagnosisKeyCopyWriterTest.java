@@ -0,0 +1,112 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DiagnosisKeyCopyWriterTest {
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+
+    @Test
+    public void keysAreWrittenInBinaryCopyFormat() throws IOException {
+        TemporaryExposureKey key = new TemporaryExposureKey("c9Uau9icuBlvDvtokvlNaA==", 2, 2650847, 144,
+                Set.of("DE"), Optional.empty(), "FI", true, Optional.of(true), 18408, 73632);
+        Timestamp efgsSync = Timestamp.from(Instant.parse("2000-01-01T00:00:01.000002Z"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DiagnosisKeyCopyWriter.write(bytes, List.of(key), Optional.of(efgsSync));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertArrayEquals(SIGNATURE, in.readNBytes(SIGNATURE.length));
+        assertEquals(0, in.readInt());
+        assertEquals(0, in.readInt());
+        assertEquals(12, in.readShort());
+        assertEquals(key.keyData, readText(in));
+        assertEquals(144, readInt(in));
+        assertEquals(2650847, readInt(in));
+        assertEquals(2, readInt(in));
+        assertEquals(18408, readInt(in));
+        assertEquals(73632, readInt(in));
+        assertEquals("FI", readText(in));
+        assertEquals(26, in.readInt());
+        assertEquals(1, in.readInt());
+        assertEquals(0, in.readInt());
+        assertEquals(1043, in.readInt());
+        assertEquals(1, in.readInt());
+        assertEquals(1, in.readInt());
+        assertEquals("DE", readText(in));
+        assertEquals(-1, in.readInt());
+        assertEquals(1, in.readInt());
+        assertEquals(1, in.readByte());
+        assertEquals(8, in.readInt());
+        assertEquals(1_000_002L, in.readLong());
+        assertEquals(1, in.readInt());
+        assertEquals(1, in.readByte());
+        assertEquals(-1, in.readShort());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void blockIsWrittenAsItsKeys() throws IOException {
+        List<TemporaryExposureKey> keys = List.of(
+                new TemporaryExposureKey("c9Uau9icuBlvDvtokvlNaA==", 2, 2650847, 144,
+                        Set.of("DE"), Optional.empty(), "FI", true, Optional.of(true), 18408, 73632),
+                new TemporaryExposureKey("yWa7WX0NmFEhK8uQc6U3dQ==", 4, 2650703, 144,
+                        Set.of(), Optional.of(-3), "DE", false, Optional.empty(), 18408, 73633));
+        Timestamp efgsSync = Timestamp.from(Instant.parse("2000-01-01T00:00:01.000002Z"));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DiagnosisKeyCopyWriter.write(expected, keys, Optional.of(efgsSync));
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        DiagnosisKeyCopyWriter.write(actual, TemporaryExposureKeyBlock.of(keys), Optional.of(efgsSync));
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void emptyCountriesAndMissingValuesAreWritten() throws IOException {
+        TemporaryExposureKey key = new TemporaryExposureKey("c9Uau9icuBlvDvtokvlNaA==", 2, 2650847, 144,
+                Set.of(), Optional.of(3), "FI", false, Optional.empty(), 18408, 73632);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DiagnosisKeyCopyWriter.write(bytes, List.of(key), Optional.empty());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        in.readNBytes(SIGNATURE.length + 2 * Integer.BYTES + Short.BYTES);
+        readText(in);
+        in.readNBytes(5 * 2 * Integer.BYTES);
+        readText(in);
+        assertEquals(12, in.readInt());
+        assertEquals(0, in.readInt());
+        assertEquals(0, in.readInt());
+        assertEquals(1043, in.readInt());
+        assertEquals(3, readInt(in));
+        assertEquals(1, in.readInt());
+        assertEquals(0, in.readByte());
+        assertEquals(-1, in.readInt());
+        assertEquals(-1, in.readInt());
+        assertEquals(-1, in.readShort());
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        assertEquals(Integer.BYTES, in.readInt());
+        return in.readInt();
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), UTF_8);
+    }
+}
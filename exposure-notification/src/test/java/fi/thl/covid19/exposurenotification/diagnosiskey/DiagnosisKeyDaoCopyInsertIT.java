@@ -0,0 +1,82 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.to24HourInterval;
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.toV2Interval;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.util.DigestUtils.md5DigestAsHex;
+
+/**
+ * NOTE: These tests require the DB to be available and configured through ENV.
+ */
+@SpringBootTest(properties = {"covid19.diagnosis.key-insert.copy=true"})
+@ActiveProfiles({"dev", "test"})
+@AutoConfigureMockMvc
+public class DiagnosisKeyDaoCopyInsertIT {
+
+    @Autowired
+    private DiagnosisKeyDao dao;
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    private TestKeyGenerator keyGenerator;
+
+    @BeforeEach
+    public void setUp() {
+        keyGenerator = new TestKeyGenerator(123);
+        dao.deleteKeysBefore(Integer.MAX_VALUE);
+        dao.deleteVerificationsBefore(Instant.now().plus(24, ChronoUnit.HOURS));
+    }
+
+    @Test
+    public void copiedKeysAreStoredOnce() {
+        Instant now = Instant.now();
+        int interval = to24HourInterval(now);
+        int intervalV2 = toV2Interval(now);
+        dao.createPartitions(interval, interval);
+
+        List<TemporaryExposureKey> keys = keyGenerator.someKeys(10, interval, intervalV2);
+        dao.addKeys(1, md5DigestAsHex("test1".getBytes()), interval, intervalV2, keys, keys.size());
+        dao.addKeys(2, md5DigestAsHex("test2".getBytes()), interval, intervalV2, keys, keys.size());
+
+        List<TemporaryExposureKey> result = dao.getIntervalKeysWithDummyPadding(interval, false);
+        for (TemporaryExposureKey key : keys) {
+            assertTrue(result.stream().anyMatch(key::equals));
+        }
+        String sql = "select count(*) from en.diagnosis_key where key_data in (:key_data)";
+        List<String> keyData = keys.stream().map(key -> key.keyData).collect(Collectors.toList());
+        assertEquals(keys.size(), jdbcTemplate.queryForObject(sql, Map.of("key_data", keyData), Integer.class));
+    }
+
+    @Test
+    public void keyRepeatedInOneCopyIsStoredOnce() {
+        Instant now = Instant.now();
+        int interval = to24HourInterval(now);
+        int intervalV2 = toV2Interval(now);
+        dao.createPartitions(interval - 1, interval);
+
+        TemporaryExposureKey key = keyGenerator.someKeys(1, interval, intervalV2).get(0);
+        TemporaryExposureKey earlier = new TemporaryExposureKey(key.keyData, key.transmissionRiskLevel,
+                key.rollingStartIntervalNumber, key.rollingPeriod, key.visitedCountries, key.daysSinceOnsetOfSymptoms,
+                key.origin, key.consentToShareWithEfgs, key.symptomsExist, interval - 1, intervalV2);
+        dao.addKeys(1, md5DigestAsHex("test1".getBytes()), interval, intervalV2, List.of(key, earlier), 2);
+
+        String sql = "select count(*) from en.diagnosis_key where key_data = :key_data";
+        assertEquals(1, jdbcTemplate.queryForObject(sql, Map.of("key_data", key.keyData), Integer.class));
+    }
+}
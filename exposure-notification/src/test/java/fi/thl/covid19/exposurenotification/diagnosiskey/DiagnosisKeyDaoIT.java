@@ -12,6 +12,9 @@ import org.springframework.test.context.ActiveProfiles;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -28,9 +31,15 @@ public class DiagnosisKeyDaoIT {
     @Autowired
     private DiagnosisKeyDao dao;
 
+    @Autowired
+    private AvailableIntervalIndex intervalIndex;
+
     @Autowired
     NamedParameterJdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private ReportKeysStats reportStats;
+
     private TestKeyGenerator keyGenerator;
 
     @BeforeEach
@@ -63,6 +72,111 @@ public class DiagnosisKeyDaoIT {
         assertStatRowAdded();
     }
 
+    @Test
+    public void keysInDefaultPartitionAreMovedToCreatedPartition() {
+        Instant now = Instant.now();
+        int interval = to24HourInterval(now);
+        int intervalV2 = toV2Interval(now);
+
+        List<TemporaryExposureKey> keys = keyGenerator.someKeys(3, interval, intervalV2);
+        dao.addKeys(1, md5DigestAsHex("test".getBytes()), interval, intervalV2, keys, keys.size());
+        assertEquals(keys.size(), defaultPartitionKeyCount());
+
+        assertEquals(2, dao.createPartitions(interval, interval + 1));
+        assertEquals(0, dao.createPartitions(interval, interval + 1));
+        assertEquals(0, defaultPartitionKeyCount());
+        assertKeysStored(interval, keys);
+
+        assertEquals(keys.size(), dao.deleteKeysBefore(interval + 1));
+        assertKeysNotStored(interval, keys);
+    }
+
+    @Test
+    public void keyIsNotDuplicatedOnAnotherDay() {
+        Instant now = Instant.now();
+        int interval = to24HourInterval(now);
+        int intervalV2 = toV2Interval(now);
+        dao.createPartitions(interval, interval + 1);
+
+        List<TemporaryExposureKey> keys = keyGenerator.someKeys(1, interval, intervalV2);
+        TemporaryExposureKey key = keys.get(0);
+        TemporaryExposureKey nextDayKey = new TemporaryExposureKey(key.keyData, key.transmissionRiskLevel,
+                key.rollingStartIntervalNumber, key.rollingPeriod, key.visitedCountries, key.daysSinceOnsetOfSymptoms,
+                key.origin, key.consentToShareWithEfgs, key.symptomsExist, interval + 1, from24hourToV2Interval(interval + 1));
+        dao.addKeys(1, md5DigestAsHex("test1".getBytes()), interval, intervalV2, keys, keys.size());
+        dao.addKeys(2, md5DigestAsHex("test2".getBytes()), interval + 1, from24hourToV2Interval(interval + 1), List.of(nextDayKey), 1);
+
+        assertKeysStored(interval, keys);
+        String sql = "select count(*) from en.diagnosis_key where key_data = :key_data";
+        assertEquals(1, jdbcTemplate.queryForObject(sql, Map.of("key_data", key.keyData), Integer.class));
+    }
+
+    @Test
+    public void deletedKeysReleaseTheirKeyData() {
+        Instant now = Instant.now();
+        int interval = to24HourInterval(now);
+        int intervalV2 = toV2Interval(now);
+        dao.createPartitions(interval, interval + 1);
+
+        List<TemporaryExposureKey> keys = keyGenerator.someKeys(3, interval, intervalV2);
+        dao.addKeys(1, md5DigestAsHex("test1".getBytes()), interval, intervalV2, keys, keys.size());
+        dao.addKeys(2, md5DigestAsHex("test2".getBytes()), interval - 1, from24hourToV2Interval(interval - 1),
+                keyGenerator.someKeys(2, interval - 1, from24hourToV2Interval(interval - 1)), 2);
+        assertEquals(5, keyDataCount());
+
+        assertEquals(keys.size() + 2, dao.deleteKeysBefore(interval + 1));
+        assertEquals(0, keyDataCount());
+        assertEquals(0, defaultPartitionKeyCount());
+
+        dao.addKeys(3, md5DigestAsHex("test3".getBytes()), interval, intervalV2, keys, keys.size());
+        assertKeysStored(interval, keys);
+    }
+
+    @Test
+    public void keyIsNotDuplicatedByConcurrentInserts() throws Exception {
+        Instant now = Instant.now();
+        int interval = to24HourInterval(now);
+        int intervalV2 = toV2Interval(now);
+        dao.createPartitions(interval, interval + 1);
+
+        TemporaryExposureKey key = keyGenerator.someKeys(1, interval, intervalV2).get(0);
+        TemporaryExposureKey nextDayKey = new TemporaryExposureKey(key.keyData, key.transmissionRiskLevel,
+                key.rollingStartIntervalNumber, key.rollingPeriod, key.visitedCountries, key.daysSinceOnsetOfSymptoms,
+                key.origin, key.consentToShareWithEfgs, key.symptomsExist, interval + 1, from24hourToV2Interval(interval + 1));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Object>> inserts = executor.invokeAll(List.of(
+                    () -> { dao.addKeys(1, md5DigestAsHex("test1".getBytes()), interval, intervalV2, List.of(key), 1); return null; },
+                    () -> { dao.addKeys(2, md5DigestAsHex("test2".getBytes()), interval + 1, from24hourToV2Interval(interval + 1), List.of(nextDayKey), 1); return null; }));
+            for (Future<Object> insert : inserts) {
+                insert.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        String sql = "select count(*) from en.diagnosis_key where key_data = :key_data";
+        assertEquals(1, jdbcTemplate.queryForObject(sql, Map.of("key_data", key.keyData), Integer.class));
+    }
+
+    @Test
+    public void concurrentPartitionCreationCreatesEachPartitionOnce() throws Exception {
+        int interval = to24HourInterval(Instant.now()) + 30;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Integer>> results = executor.invokeAll(List.of(
+                    () -> dao.createPartitions(interval, interval + 2),
+                    () -> dao.createPartitions(interval, interval + 2)));
+            int created = 0;
+            for (Future<Integer> result : results) {
+                created += result.get();
+            }
+            assertEquals(3, created);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void emptyKeysListCreatesStatsRowOk() {
         Instant now = Instant.now();
@@ -85,37 +199,53 @@ public class DiagnosisKeyDaoIT {
 
     @Test
     public void intervalMetadataWorks() {
-        assertEquals(List.of(), dao.getAvailableIntervals());
-        assertEquals(0, dao.getKeyCount(1234));
-        assertEquals(0, dao.getKeyCountV2(from24hourToV2Interval(1234)));
+        assertEquals(List.of(), intervalIndex.getIntervals());
+        assertEquals(0, intervalIndex.getKeyCount(1234));
+        assertEquals(0, intervalIndex.getKeyCountV2(from24hourToV2Interval(1234)));
 
         dao.addKeys(1, md5DigestAsHex("test".getBytes()), 1234, from24hourToV2Interval(1234), keyGenerator.someKeys(1, 1234, from24hourToV2Interval(1234)), 1);
-        assertEquals(List.of(1234), dao.getAvailableIntervals());
-        assertEquals(1, dao.getKeyCount(1234));
-        assertEquals(List.of(from24hourToV2Interval(1234)), dao.getAvailableIntervalsV2());
-        assertEquals(1, dao.getKeyCountV2(from24hourToV2Interval(1234)));
+        assertEquals(List.of(1234), intervalIndex.getIntervals());
+        assertEquals(1, intervalIndex.getKeyCount(1234));
+        assertEquals(List.of(from24hourToV2Interval(1234)), intervalIndex.getIntervalsV2());
+        assertEquals(1, intervalIndex.getKeyCountV2(from24hourToV2Interval(1234)));
 
         dao.addKeys(2, md5DigestAsHex("test2".getBytes()), 1235, from24hourToV2Interval(1235), keyGenerator.someKeys(2, 1235, from24hourToV2Interval(1235)), 2);
-        assertEquals(List.of(1234, 1235), dao.getAvailableIntervals());
-        assertEquals(1, dao.getKeyCount(1234));
-        assertEquals(2, dao.getKeyCount(1235));
-        assertEquals(0, dao.getKeyCount(1236));
-        assertEquals(List.of(from24hourToV2Interval(1234), from24hourToV2Interval(1235)), dao.getAvailableIntervalsV2());
-        assertEquals(1, dao.getKeyCountV2(from24hourToV2Interval(1234)));
-        assertEquals(2, dao.getKeyCountV2(from24hourToV2Interval(1235)));
-        assertEquals(0, dao.getKeyCountV2(from24hourToV2Interval(1236)));
+        assertEquals(List.of(1234, 1235), intervalIndex.getIntervals());
+        assertEquals(1, intervalIndex.getKeyCount(1234));
+        assertEquals(2, intervalIndex.getKeyCount(1235));
+        assertEquals(0, intervalIndex.getKeyCount(1236));
+        assertEquals(List.of(from24hourToV2Interval(1234), from24hourToV2Interval(1235)), intervalIndex.getIntervalsV2());
+        assertEquals(1, intervalIndex.getKeyCountV2(from24hourToV2Interval(1234)));
+        assertEquals(2, intervalIndex.getKeyCountV2(from24hourToV2Interval(1235)));
+        assertEquals(0, intervalIndex.getKeyCountV2(from24hourToV2Interval(1236)));
 
         dao.addKeys(3, md5DigestAsHex("test3".getBytes()), 1236, from24hourToV2Interval(1236), keyGenerator.someKeys(3, 1236, from24hourToV2Interval(1236)), 3);
-        assertEquals(List.of(1234, 1235, 1236), dao.getAvailableIntervals());
-        assertEquals(3, dao.getKeyCount(1236));
-        assertEquals(List.of(from24hourToV2Interval(1234), from24hourToV2Interval(1235), from24hourToV2Interval(1236)), dao.getAvailableIntervalsV2());
-        assertEquals(3, dao.getKeyCountV2(from24hourToV2Interval(1236)));
+        assertEquals(List.of(1234, 1235, 1236), intervalIndex.getIntervals());
+        assertEquals(3, intervalIndex.getKeyCount(1236));
+        assertEquals(List.of(from24hourToV2Interval(1234), from24hourToV2Interval(1235), from24hourToV2Interval(1236)), intervalIndex.getIntervalsV2());
+        assertEquals(3, intervalIndex.getKeyCountV2(from24hourToV2Interval(1236)));
 
         dao.addKeys(4, md5DigestAsHex("test4".getBytes()), 123, from24hourToV2Interval(123), keyGenerator.someKeys(1, 123, from24hourToV2Interval(123)), 1);
-        assertEquals(List.of(123, 1234, 1235, 1236), dao.getAvailableIntervals());
-        assertEquals(1, dao.getKeyCount(123));
-        assertEquals(List.of(from24hourToV2Interval(123), from24hourToV2Interval(1234), from24hourToV2Interval(1235), from24hourToV2Interval(1236)), dao.getAvailableIntervalsV2());
-        assertEquals(1, dao.getKeyCountV2(from24hourToV2Interval(123)));
+        assertEquals(List.of(123, 1234, 1235, 1236), intervalIndex.getIntervals());
+        assertEquals(1, intervalIndex.getKeyCount(123));
+        assertEquals(List.of(from24hourToV2Interval(123), from24hourToV2Interval(1234), from24hourToV2Interval(1235), from24hourToV2Interval(1236)), intervalIndex.getIntervalsV2());
+        assertEquals(1, intervalIndex.getKeyCountV2(from24hourToV2Interval(123)));
+    }
+
+    @Test
+    public void intervalIndexRefreshKeepsLocalInserts() {
+        Instant now = Instant.now();
+        int interval = to24HourInterval(now);
+        int intervalV2 = toV2Interval(now);
+        dao.createPartitions(interval, interval);
+        dao.addKeys(1, md5DigestAsHex("test".getBytes()), interval, intervalV2, keyGenerator.someKeys(5, interval, intervalV2), 5);
+        dao.addKeys(2, md5DigestAsHex("test2".getBytes()), 1234, from24hourToV2Interval(1234), keyGenerator.someKeys(2, 1234, from24hourToV2Interval(1234)), 2);
+        assertEquals(5, intervalIndex.getKeyCount(interval));
+
+        intervalIndex.refresh();
+        assertEquals(5, intervalIndex.getKeyCount(interval));
+        assertEquals(5, intervalIndex.getKeyCountV2(intervalV2));
+        assertEquals(2, intervalIndex.getKeyCount(1234));
     }
 
     @Test
@@ -205,19 +335,34 @@ public class DiagnosisKeyDaoIT {
     }
 
     private void assertStatRowAdded() {
-        String sql = "select count(*) from en.stats_report_keys";
+        reportStats.flushAll();
+        String sql = "select coalesce(sum(report_count), 0) from en.stats_report_keys_minute";
         Integer rows = jdbcTemplate.queryForObject(sql, Collections.emptyMap(), Integer.class);
         assertEquals(1, rows);
     }
 
     private void assertCountsAreStoredOk(long totalKeyCount, long exportedKeyCount) {
-        String sql = "select total_key_count, exported_key_count from en.stats_report_keys";
+        reportStats.flushAll();
+        String sql = "select cast(sum(total_key_count) as bigint) as total_key_count, " +
+                "cast(sum(exported_key_count) as bigint) as exported_key_count " +
+                "from en.stats_report_keys_minute";
         Map<String, Object> resultSet = jdbcTemplate.queryForMap(sql, Collections.emptyMap());
         assertEquals(totalKeyCount, resultSet.get("total_key_count"));
         assertEquals(exportedKeyCount, resultSet.get("exported_key_count"));
     }
 
+    private int defaultPartitionKeyCount() {
+        String sql = "select count(*) from en.diagnosis_key_default";
+        return jdbcTemplate.queryForObject(sql, Collections.emptyMap(), Integer.class);
+    }
+
+    private int keyDataCount() {
+        String sql = "select count(*) from en.diagnosis_key_data";
+        return jdbcTemplate.queryForObject(sql, Collections.emptyMap(), Integer.class);
+    }
+
     private void deleteStatsRows() {
-        jdbcTemplate.update("delete from en.stats_report_keys", Collections.emptyMap());
+        reportStats.flushAll();
+        jdbcTemplate.update("delete from en.stats_report_keys_minute", Collections.emptyMap());
     }
 }
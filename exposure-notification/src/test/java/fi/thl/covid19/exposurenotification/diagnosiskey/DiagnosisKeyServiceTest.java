@@ -6,8 +6,10 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.MockReset;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import java.lang.reflect.Method;
 import java.time.Instant;
@@ -26,9 +28,13 @@ public class DiagnosisKeyServiceTest {
     @Autowired
     private DiagnosisKeyService sut;
 
-    @MockBean
+    // Reset before each test, so that the interval index loaded at startup is not counted as a request's query
+    @MockBean(reset = MockReset.BEFORE)
     private NamedParameterJdbcTemplate jdbc;
 
+    @MockBean
+    private PlatformTransactionManager transactionManager;
+
     @AfterEach
     public void end() {
         verifyNoMoreInteractions(jdbc);
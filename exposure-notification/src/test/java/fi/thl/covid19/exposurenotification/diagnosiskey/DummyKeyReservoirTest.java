@@ -0,0 +1,76 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.toV2Interval;
+import static fi.thl.covid19.exposurenotification.efgs.util.DummyKeyGeneratorUtil.*;
+import static java.util.Comparator.comparing;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DummyKeyReservoirTest {
+
+    private final Instant now = Instant.now();
+    private final int intervalV2 = toV2Interval(now);
+
+    @Test
+    public void keysAreSortedAndCountedAsGenerated() {
+        DummyKeyReservoir reservoir = new DummyKeyReservoir(2);
+        reservoir.refill();
+        assertEquals(2, reservoir.size());
+
+        for (int count : List.of(1, 14, 15, 199)) {
+            List<TemporaryExposureKey> keys = reservoir.take(count, true, intervalV2, now);
+            assertEquals(generateDummyKeys(count, true, intervalV2, now).size(), keys.size());
+            assertSorted(keys);
+            keys.forEach(key -> {
+                assertTrue(key.consentToShareWithEfgs);
+                assertEquals(intervalV2, key.submissionIntervalV2);
+            });
+        }
+        assertEquals(0, reservoir.size());
+    }
+
+    @Test
+    public void dummySetsCoverAllRollingStartDays() {
+        List<TemporaryExposureKey> keys = new DummyKeyReservoir(1).take(28, false, intervalV2, now);
+        Map<Integer, Long> keysPerDay = keys.stream()
+                .collect(Collectors.groupingBy(key -> key.rollingStartIntervalNumber, Collectors.counting()));
+        assertEquals(14, keysPerDay.size());
+        keysPerDay.values().forEach(count -> assertEquals(2L, count));
+    }
+
+    @Test
+    public void blocksAreNotReused() {
+        DummyKeyReservoir reservoir = new DummyKeyReservoir(1);
+        reservoir.refill();
+        Set<String> first = keyData(reservoir.take(100, false, intervalV2, now));
+        Set<String> second = keyData(reservoir.take(100, false, intervalV2, now));
+        assertTrue(Collections.disjoint(first, second));
+    }
+
+    @Test
+    public void concatMergesInKeyDataOrder() {
+        List<TemporaryExposureKey> actual = generateDummyKeys(30, false, intervalV2, now);
+        List<TemporaryExposureKey> dummies = new DummyKeyReservoir(1).take(BATCH_MIN_SIZE - actual.size(), false, intervalV2, now);
+
+        List<TemporaryExposureKey> expected = new ArrayList<>(actual);
+        expected.addAll(dummies);
+        expected.sort(comparing(TemporaryExposureKey::getKeyData));
+
+        assertEquals(expected, concatDummyKeys(actual, dummies));
+    }
+
+    private static Set<String> keyData(List<TemporaryExposureKey> keys) {
+        return keys.stream().map(TemporaryExposureKey::getKeyData).collect(Collectors.toSet());
+    }
+
+    private static void assertSorted(List<TemporaryExposureKey> keys) {
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(keys.get(i - 1).getKeyData().compareTo(keys.get(i).getKeyData()) < 0);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import fi.thl.covid19.exposurenotification.error.PublishQueueFullException;
+import fi.thl.covid19.exposurenotification.error.TokenAlreadyQueuedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class PublishQueueTest {
+
+    private static final long POLL_WAIT_MS = 200;
+
+    private final DiagnosisKeyDao dao = mock(DiagnosisKeyDao.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ExecutorService shutdownExecutor = Executors.newSingleThreadExecutor();
+    private final TestKeyGenerator keyGenerator = new TestKeyGenerator(123);
+
+    @AfterEach
+    public void end() {
+        executor.shutdownNow();
+        shutdownExecutor.shutdownNow();
+    }
+
+    @Test
+    public void queuedSubmissionsAreWritten() throws Exception {
+        List<KeySubmission> written = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            List<KeySubmission> batch = invocation.getArgument(0);
+            written.addAll(batch);
+            return batch.size();
+        }).when(dao).addKeySubmissions(anyList());
+        PublishQueue queue = createQueue(executor::execute, 10);
+
+        List<KeySubmission> submitted = List.of(submission(1), submission(2), submission(3));
+        submitted.forEach(queue::submit);
+
+        verify(dao, timeout(5000).atLeastOnce()).addKeySubmissions(anyList());
+        queue.destroy();
+        assertEquals(submitted, written);
+    }
+
+    @Test
+    public void tokenCanHaveOneQueuedSubmission() throws Exception {
+        PublishQueue queue = createQueue(command -> {
+        }, 10);
+        queue.submit(submission(1));
+        List<TemporaryExposureKey> otherKeys = keyGenerator.someKeys(2);
+        assertThrows(TokenAlreadyQueuedException.class,
+                () -> queue.submit(new KeySubmission(1, "otherChecksum", 1, 4, otherKeys, otherKeys.size())));
+        queue.submit(submission(2));
+
+        queue.destroy();
+        queue.submit(submission(1));
+    }
+
+    @Test
+    public void repeatedSubmissionIsAcceptedOnce() throws Exception {
+        List<KeySubmission> written = new ArrayList<>();
+        doAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return 0;
+        }).when(dao).addKeySubmissions(anyList());
+        PublishQueue queue = createQueue(command -> {
+        }, 10);
+        KeySubmission submission = submission(1);
+        queue.submit(submission);
+        queue.submit(submission);
+
+        queue.destroy();
+        assertEquals(List.of(submission), written);
+    }
+
+    @Test
+    public void fullQueueIsRejected() {
+        // The writer is never started, so nothing is drained
+        PublishQueue queue = createQueue(command -> {
+        }, 1);
+        queue.submit(submission(1));
+        PublishQueueFullException e = assertThrows(PublishQueueFullException.class, () -> queue.submit(submission(2)));
+        assertEquals(Duration.ofSeconds(15), e.retryAfter);
+    }
+
+    @Test
+    public void failedBatchIsWrittenOneByOne() throws Exception {
+        when(dao.addKeySubmissions(anyList())).thenAnswer(invocation -> {
+            List<KeySubmission> batch = invocation.getArgument(0);
+            if (batch.size() > 1) {
+                throw new IllegalStateException("Batch failed");
+            }
+            return batch.size();
+        });
+        PublishQueue queue = createQueue(command -> {
+        }, 10);
+        queue.submit(submission(1));
+        queue.submit(submission(2));
+
+        queue.destroy();
+        verify(dao, times(3)).addKeySubmissions(anyList());
+    }
+
+    @Test
+    public void rejectedSubmissionsAreCounted() throws Exception {
+        when(dao.addKeySubmissions(anyList())).thenReturn(1);
+        PublishQueue queue = createQueue(command -> {
+        }, 10);
+        queue.submit(submission(1));
+        queue.submit(submission(2));
+
+        queue.destroy();
+        assertEquals(1.0, meterRegistry.counter("publish_queue_rejected").count());
+    }
+
+    @Test
+    public void shutdownWaitsForWriterBeforeDraining() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        List<KeySubmission> written = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            writing.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            List<KeySubmission> batch = invocation.getArgument(0);
+            written.addAll(batch);
+            active.decrementAndGet();
+            return 0;
+        }).when(dao).addKeySubmissions(anyList());
+        PublishQueue queue = createQueue(executor::execute, 10);
+
+        queue.submit(submission(1));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        queue.submit(submission(2));
+        queue.submit(submission(3));
+        Future<?> shutdown = shutdownExecutor.submit(() -> {
+            queue.destroy();
+            return null;
+        });
+        Thread.sleep(POLL_WAIT_MS);
+        release.countDown();
+        shutdown.get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, maxActive.get());
+        assertEquals(List.of(1, 2, 3), written.stream().map(submission -> submission.verificationId).collect(Collectors.toList()));
+    }
+
+    private PublishQueue createQueue(Executor writer, int capacity) {
+        return new PublishQueue(dao, writer, meterRegistry, true, false, capacity, 10, Duration.ofSeconds(15));
+    }
+
+    private KeySubmission submission(int verificationId) {
+        List<TemporaryExposureKey> keys = keyGenerator.someKeys(2);
+        return new KeySubmission(verificationId, "checksum" + verificationId, 1, 4, keys, keys.size());
+    }
+}
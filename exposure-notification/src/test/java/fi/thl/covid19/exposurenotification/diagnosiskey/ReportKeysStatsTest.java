@@ -0,0 +1,65 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class ReportKeysStatsTest {
+
+    private final NamedParameterJdbcTemplate jdbc = mock(NamedParameterJdbcTemplate.class);
+    private final ReportKeysStats stats = new ReportKeysStats(jdbc);
+
+    @Test
+    public void reportsAreFlushedAsMinuteTotals() {
+        stats.reportAdded(5, 4);
+        stats.reportAdded(3, 1);
+
+        // The current minute is still open
+        stats.flushClosed();
+        verifyNoInteractions(jdbc);
+
+        stats.flushAll();
+        ArgumentCaptor<SqlParameterSource[]> rows = ArgumentCaptor.forClass(SqlParameterSource[].class);
+        verify(jdbc).batchUpdate(anyString(), rows.capture());
+        long reports = 0, total = 0, exported = 0;
+        for (SqlParameterSource row : rows.getValue()) {
+            reports += (Long) row.getValue("report_count");
+            total += (Long) row.getValue("total_key_count");
+            exported += (Long) row.getValue("exported_key_count");
+        }
+        assertEquals(2, reports);
+        assertEquals(8, total);
+        assertEquals(5, exported);
+
+        stats.flushAll();
+        verifyNoMoreInteractions(jdbc);
+    }
+
+    @Test
+    public void failedFlushIsRetried() {
+        when(jdbc.batchUpdate(anyString(), any(SqlParameterSource[].class)))
+                .thenThrow(new DataAccessResourceFailureException("Unavailable"))
+                .thenReturn(new int[]{1});
+        stats.reportAdded(5, 4);
+
+        stats.flushAll();
+        stats.reportAdded(3, 1);
+        stats.flushAll();
+
+        ArgumentCaptor<SqlParameterSource[]> rows = ArgumentCaptor.forClass(SqlParameterSource[].class);
+        verify(jdbc, times(2)).batchUpdate(anyString(), rows.capture());
+        long reports = 0, total = 0;
+        for (SqlParameterSource row : rows.getAllValues().get(1)) {
+            reports += (Long) row.getValue("report_count");
+            total += (Long) row.getValue("total_key_count");
+        }
+        assertEquals(2, reports);
+        assertEquals(8, total);
+    }
+}
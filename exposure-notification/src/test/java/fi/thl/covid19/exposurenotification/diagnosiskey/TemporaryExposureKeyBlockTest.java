@@ -0,0 +1,91 @@
+package fi.thl.covid19.exposurenotification.diagnosiskey;
+
+import com.google.protobuf.ByteString;
+import fi.thl.covid19.exposurenotification.error.InputValidationException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.to24HourInterval;
+import static fi.thl.covid19.exposurenotification.diagnosiskey.IntervalNumber.toV2Interval;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemporaryExposureKeyBlockTest {
+
+    private final int interval = to24HourInterval(Instant.now());
+    private final int intervalV2 = toV2Interval(Instant.now());
+
+    @Test
+    public void keysAreReadBackAsAdded() {
+        List<TemporaryExposureKey> keys = new TestKeyGenerator(123).someKeys(50, interval, intervalV2);
+        List<TemporaryExposureKey> withCountries = List.of(
+                new TemporaryExposureKey("c9Uau9icuBlvDvtokvlNaA==", 2, 2650847, 144,
+                        Set.of("DE", "SE", "ZW", "AD"), Optional.empty(), "FI", true, Optional.of(false), interval, intervalV2),
+                new TemporaryExposureKey("/////////////////////w==", 0, 0, 1,
+                        Set.of(), Optional.of(-14), "DE", false, Optional.empty(), interval, intervalV2));
+
+        assertEquals(keys, TemporaryExposureKeyBlock.of(keys).toList());
+        assertEquals(withCountries, TemporaryExposureKeyBlock.of(withCountries).toList());
+    }
+
+    @Test
+    public void blockGrowsAndIsReusedAfterClear() {
+        List<TemporaryExposureKey> keys = new TestKeyGenerator(456).someKeys(30, interval, intervalV2);
+        TemporaryExposureKeyBlock block = new TemporaryExposureKeyBlock(1);
+        keys.forEach(block::add);
+        assertEquals(keys, block.toList());
+
+        block.clear();
+        assertTrue(block.isEmpty());
+        keys.subList(0, 5).forEach(block::add);
+        assertEquals(keys.subList(0, 5), block.toList());
+        assertThrows(IndexOutOfBoundsException.class, () -> block.get(5));
+    }
+
+    @Test
+    public void rawKeyDataIsEncodedAsBase64() {
+        byte[] raw = new byte[TemporaryExposureKeyBlock.KEY_DATA_LENGTH];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) (i * 37 + 200);
+        }
+        TemporaryExposureKeyBlock block = new TemporaryExposureKeyBlock(1);
+        block.add(ByteString.copyFrom(raw), 3, 2650847, 144, List.of("XX", "SE"), 2, "FI", true, true,
+                interval, intervalV2);
+
+        assertEquals(Base64.getEncoder().encodeToString(raw), block.keyData(0));
+        byte[] copied = new byte[raw.length + 2];
+        block.copyKeyData(0, copied, 2);
+        assertArrayEquals(raw, Arrays.copyOfRange(copied, 2, copied.length));
+        assertEquals(Set.of("SE"), block.visitedCountries(0));
+        assertEquals(1, block.visitedCountryCount(0));
+        assertEquals(2, block.daysSinceOnsetOfSymptoms(0));
+        assertTrue(block.symptomsExist(0));
+    }
+
+    @Test
+    public void invalidKeysAreNotAdded() {
+        TemporaryExposureKeyBlock block = new TemporaryExposureKeyBlock(2);
+        block.add("c9Uau9icuBlvDvtokvlNaA==", 2, 2650847, 144, Set.of(), null, "FI", true, null, interval, intervalV2);
+
+        assertThrows(InputValidationException.class, () ->
+                block.add("c9Uau9icuBlvDvtokvlNa===", 2, 2650847, 144, Set.of(), null, "FI", true, null, interval, intervalV2));
+        assertThrows(InputValidationException.class, () ->
+                block.add("c9Uau9icuBlvDvtokvl*aA==", 2, 2650847, 144, Set.of(), null, "FI", true, null, interval, intervalV2));
+        assertThrows(InputValidationException.class, () ->
+                block.add("yWa7WX0NmFEhK8uQc6U3dQ==", 9, 2650847, 144, Set.of(), null, "FI", true, null, interval, intervalV2));
+        assertThrows(InputValidationException.class, () ->
+                block.add(ByteString.copyFrom(new byte[15]), 2, 2650847, 144, Set.of(), null, "FI", true, null, interval, intervalV2));
+        assertThrows(IllegalStateException.class, () ->
+                block.add("yWa7WX0NmFEhK8uQc6U3dQ==", 2, 2650847, 144, Set.of(), null, "XX", true, null, interval, intervalV2));
+
+        assertEquals(1, block.size());
+        assertEquals("c9Uau9icuBlvDvtokvlNaA==", block.keyData(0));
+        assertFalse(block.hasDaysSinceOnsetOfSymptoms(0));
+        assertFalse(block.hasSymptomsExist(0));
+    }
+}
@@ -0,0 +1,100 @@
+package fi.thl.covid19.exposurenotification.efgs;
+
+import com.google.protobuf.ByteString;
+import fi.thl.covid19.exposurenotification.efgs.entity.DownloadData;
+import fi.thl.covid19.proto.EfgsProto;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Optional;
+
+import static fi.thl.covid19.exposurenotification.efgs.FederationGatewayClient.BATCH_TAG_HEADER;
+import static fi.thl.covid19.exposurenotification.efgs.FederationGatewayClient.NEXT_BATCH_TAG_HEADER;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+
+public class FederationGatewayClientTest {
+
+    private static final String BASE_URL = "http://localhost:8080/diagnosiskeys";
+    private static final MediaType PROTOBUF = MediaType.parseMediaType("application/protobuf; version=1.0");
+
+    private MockRestServiceServer server;
+    private FederationGatewayClient client;
+
+    @BeforeEach
+    public void setUp() {
+        RestTemplate restTemplate = new RestTemplate();
+        server = MockRestServiceServer.createServer(restTemplate);
+        client = new FederationGatewayClient(restTemplate, BASE_URL, false, "not_set", "not_set");
+    }
+
+    @Test
+    public void downloadDecodesAllKeys() {
+        EfgsProto.DiagnosisKeyBatch batch = EfgsProto.DiagnosisKeyBatch.newBuilder()
+                .addKeys(key(1, "FI"))
+                .addKeys(key(2, "DE"))
+                .addKeys(key(3, "IT"))
+                .build();
+        server.expect(requestTo(BASE_URL + "/download/2020-11-01"))
+                .andExpect(method(HttpMethod.GET))
+                .andExpect(header(BATCH_TAG_HEADER, "tag-1"))
+                .andRespond(withStatus(HttpStatus.OK)
+                        .contentType(PROTOBUF)
+                        .headers(batchTags("tag-1", "tag-2"))
+                        .body(batch.toByteArray()));
+
+        DownloadData download = client.download("2020-11-01", Optional.of("tag-1")).orElseThrow();
+
+        assertEquals(Optional.of(batch), download.batch);
+        assertEquals("tag-1", download.batchTag);
+        assertEquals(Optional.of("tag-2"), download.nextBatchTag);
+        server.verify();
+    }
+
+    @Test
+    public void emptyBodyHasNoBatch() {
+        server.expect(requestTo(BASE_URL + "/download/2020-11-01"))
+                .andRespond(withStatus(HttpStatus.OK).headers(batchTags("tag-1", "null")));
+
+        DownloadData download = client.download("2020-11-01", Optional.empty()).orElseThrow();
+
+        assertTrue(download.batch.isEmpty());
+        assertTrue(download.nextBatchTag.isEmpty());
+        assertEquals(0, download.keysCount());
+    }
+
+    @Test
+    public void missingBatchIsNotDownloaded() {
+        server.expect(requestTo(BASE_URL + "/download/2020-11-01"))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        assertTrue(client.download("2020-11-01", Optional.empty()).isEmpty());
+    }
+
+    private static HttpHeaders batchTags(String batchTag, String nextBatchTag) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(BATCH_TAG_HEADER, batchTag);
+        headers.add(NEXT_BATCH_TAG_HEADER, nextBatchTag);
+        return headers;
+    }
+
+    private static EfgsProto.DiagnosisKey key(int index, String origin) {
+        byte[] keyData = new byte[16];
+        keyData[0] = (byte) index;
+        return EfgsProto.DiagnosisKey.newBuilder()
+                .setKeyData(ByteString.copyFrom(keyData))
+                .setRollingStartIntervalNumber(2_650_000 + index)
+                .setRollingPeriod(144)
+                .setOrigin(origin)
+                .addVisitedCountries("FI")
+                .setDaysSinceOnsetOfSymptoms(-index)
+                .build();
+    }
+}
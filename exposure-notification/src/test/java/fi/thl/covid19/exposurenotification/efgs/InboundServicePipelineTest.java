@@ -0,0 +1,130 @@
+package fi.thl.covid19.exposurenotification.efgs;
+
+import com.google.protobuf.ByteString;
+import fi.thl.covid19.exposurenotification.diagnosiskey.DiagnosisKeyDao;
+import fi.thl.covid19.exposurenotification.diagnosiskey.TemporaryExposureKeyBlock;
+import fi.thl.covid19.exposurenotification.efgs.dao.InboundOperationDao;
+import fi.thl.covid19.exposurenotification.efgs.entity.AuditEntry;
+import fi.thl.covid19.exposurenotification.efgs.entity.DownloadData;
+import fi.thl.covid19.exposurenotification.efgs.signing.FederationGatewaySigningDev;
+import fi.thl.covid19.proto.EfgsProto;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.getCertThumbprint;
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.x509CertificateToPem;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class InboundServicePipelineTest {
+
+    private static final LocalDate DATE = LocalDate.of(2020, 11, 1);
+
+    private final FederationGatewayClient client = mock(FederationGatewayClient.class);
+    private final DiagnosisKeyDao diagnosisKeyDao = mock(DiagnosisKeyDao.class);
+    private final InboundOperationDao inboundOperationDao = mock(InboundOperationDao.class);
+    private FederationGatewaySigningDev signer;
+    private ExecutorService executor;
+    private InboundService inboundService;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        signer = new FederationGatewaySigningDev("devpassword", "efgs-signing", "efgs-trust-anchor");
+        executor = Executors.newFixedThreadPool(2);
+        inboundService = new InboundService(client, diagnosisKeyDao, inboundOperationDao, signer,
+                new SimpleMeterRegistry(), executor, true, 2);
+        when(inboundOperationDao.startInboundOperation(ArgumentMatchers.<Optional<String>>any(), eq(DATE)))
+                .thenReturn(Optional.of(1L), Optional.of(2L), Optional.of(3L));
+        when(inboundOperationDao.finishOperation(anyLong(), anyInt(), anyInt(), anyInt(), anyInt(), any()))
+                .thenReturn(true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void batchTagChainIsStoredInDownloadOrder() throws Exception {
+        mockBatch(Optional.empty(), "tag-1", Optional.of("tag-2"), 0);
+        mockBatch(Optional.of("tag-2"), "tag-2", Optional.of("tag-3"), 10);
+        mockBatch(Optional.of("tag-3"), "tag-3", Optional.empty(), 20);
+
+        inboundService.startInbound(DATE, Optional.empty());
+
+        InOrder inOrder = inOrder(inboundOperationDao);
+        inOrder.verify(inboundOperationDao).finishOperation(eq(1L), eq(2), anyInt(), anyInt(), eq(0), eq(Optional.of("tag-1")));
+        inOrder.verify(inboundOperationDao).finishOperation(eq(2L), eq(2), anyInt(), anyInt(), eq(0), eq(Optional.of("tag-2")));
+        inOrder.verify(inboundOperationDao).finishOperation(eq(3L), eq(2), anyInt(), anyInt(), eq(0), eq(Optional.of("tag-3")));
+        verify(diagnosisKeyDao, times(3)).addInboundKeys(any(TemporaryExposureKeyBlock.class), anyInt(), anyInt());
+        verify(inboundOperationDao, never()).markErrorOperation(anyLong(), any());
+    }
+
+    @Test
+    public void batchesDownloadedBeforeFailureAreStored() throws Exception {
+        mockBatch(Optional.empty(), "tag-1", Optional.of("tag-2"), 0);
+        mockBatch(Optional.of("tag-2"), "tag-2", Optional.of("tag-3"), 10);
+        when(client.download(anyString(), eq(Optional.of("tag-3")))).thenThrow(new IllegalStateException("Failed"));
+
+        assertThrows(IllegalStateException.class, () -> inboundService.startInbound(DATE, Optional.empty()));
+
+        verify(inboundOperationDao).finishOperation(eq(1L), anyInt(), anyInt(), anyInt(), anyInt(), eq(Optional.of("tag-1")));
+        verify(inboundOperationDao).finishOperation(eq(2L), anyInt(), anyInt(), anyInt(), anyInt(), eq(Optional.of("tag-2")));
+        verify(inboundOperationDao).markErrorOperation(3L, Optional.of("tag-3"));
+    }
+
+    private void mockBatch(Optional<String> requestTag, String batchTag, Optional<String> nextTag, int firstKey) throws Exception {
+        List<EfgsProto.DiagnosisKey> keys = List.of(key(firstKey), key(firstKey + 1));
+        EfgsProto.DiagnosisKeyBatch batch = EfgsProto.DiagnosisKeyBatch.newBuilder().addAllKeys(keys).build();
+        when(client.download(anyString(), eq(requestTag)))
+                .thenReturn(Optional.of(new DownloadData(Optional.of(batch), batchTag, nextTag)));
+        when(client.fetchAuditEntries(anyString(), eq(batchTag))).thenReturn(List.of(audit(batch)));
+    }
+
+    private AuditEntry audit(EfgsProto.DiagnosisKeyBatch batch) throws Exception {
+        X509Certificate certificate = signer.getSignerCertificate();
+        Signature signature = Signature.getInstance("SHA256withRSA", "BC");
+        signature.initSign(signer.getTrustAnchorPrivateKey());
+        signature.update(x509CertificateToPem(certificate).getBytes());
+        return new AuditEntry(
+                "FI",
+                ZonedDateTime.now(),
+                "",
+                "",
+                getCertThumbprint(new X509CertificateHolder(certificate.getEncoded())),
+                batch.getKeysCount(),
+                signer.sign(batch),
+                "",
+                Base64.getEncoder().encodeToString(signature.sign()),
+                x509CertificateToPem(certificate)
+        );
+    }
+
+    private static EfgsProto.DiagnosisKey key(int index) {
+        byte[] keyData = new byte[16];
+        keyData[0] = (byte) index;
+        return EfgsProto.DiagnosisKey.newBuilder()
+                .setKeyData(ByteString.copyFrom(keyData))
+                .setRollingStartIntervalNumber(2_650_000 + index)
+                .setRollingPeriod(144)
+                .setTransmissionRiskLevel(2)
+                .setOrigin("FI")
+                .build();
+    }
+}
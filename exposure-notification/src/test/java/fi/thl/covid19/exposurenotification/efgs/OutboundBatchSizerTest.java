@@ -0,0 +1,85 @@
+package fi.thl.covid19.exposurenotification.efgs;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static fi.thl.covid19.exposurenotification.efgs.util.DummyKeyGeneratorUtil.BATCH_MIN_SIZE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class OutboundBatchSizerTest {
+
+    private static final Duration TARGET = Duration.ofSeconds(10);
+    private static final long MAX_BYTES = 1_000_000;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void slowUploadShrinksByTargetRatio() {
+        OutboundBatchSizer sizer = sizer(true);
+        sizer.uploaded(5000, 1000, Duration.ofSeconds(16));
+        assertEquals(3125, sizer.getSize());
+        assertEquals(1.0, meterRegistry.counter("efgs_outbound_batch_size_changes", "reason", "slow").count());
+    }
+
+    @Test
+    public void oversizedPayloadShrinksBatch() {
+        OutboundBatchSizer sizer = sizer(true);
+        sizer.uploaded(5000, 2 * MAX_BYTES, Duration.ofSeconds(1));
+        assertEquals(2500, sizer.getSize());
+    }
+
+    @Test
+    public void fastFullBatchGrowsBackToMax() {
+        OutboundBatchSizer sizer = sizer(true);
+        sizer.failed();
+        assertEquals(2500, sizer.getSize());
+
+        sizer.uploaded(2000, 1000, Duration.ofSeconds(1));
+        assertEquals(2500, sizer.getSize());
+
+        sizer.uploaded(2500, 1000, Duration.ofSeconds(1));
+        assertEquals(2900, sizer.getSize());
+
+        for (int i = 0; i < 10; i++) {
+            sizer.uploaded(sizer.getSize(), 1000, Duration.ofSeconds(1));
+        }
+        assertEquals(5000, sizer.getSize());
+    }
+
+    @Test
+    public void partialFailureAboveRatioShrinksBatch() {
+        OutboundBatchSizer sizer = sizer(true);
+        sizer.partiallyFailed(5000, 100);
+        assertEquals(5000, sizer.getSize());
+
+        sizer.partiallyFailed(5000, 500);
+        assertEquals(2500, sizer.getSize());
+    }
+
+    @Test
+    public void sizeStaysWithinBounds() {
+        OutboundBatchSizer sizer = sizer(true);
+        for (int i = 0; i < 10; i++) {
+            sizer.failed();
+        }
+        assertEquals(1000, sizer.getSize());
+
+        OutboundBatchSizer tooSmall = new OutboundBatchSizer(meterRegistry, true, 1, 1, TARGET, MAX_BYTES, 0.05);
+        assertEquals(BATCH_MIN_SIZE, tooSmall.getSize());
+    }
+
+    @Test
+    public void nonAdaptiveSizeIsAlwaysMax() {
+        OutboundBatchSizer sizer = sizer(false);
+        sizer.uploaded(5000, 2 * MAX_BYTES, Duration.ofSeconds(60));
+        sizer.partiallyFailed(5000, 5000);
+        sizer.failed();
+        assertEquals(5000, sizer.getSize());
+    }
+
+    private OutboundBatchSizer sizer(boolean adaptive) {
+        return new OutboundBatchSizer(meterRegistry, adaptive, 1000, 5000, TARGET, MAX_BYTES, 0.05);
+    }
+}
@@ -0,0 +1,95 @@
+package fi.thl.covid19.exposurenotification.efgs;
+
+import fi.thl.covid19.exposurenotification.diagnosiskey.DiagnosisKeyDao;
+import fi.thl.covid19.exposurenotification.efgs.dao.OutboundOperationDao;
+import fi.thl.covid19.exposurenotification.efgs.entity.OutboundOperation;
+import fi.thl.covid19.exposurenotification.efgs.entity.UploadResponseEntity;
+import fi.thl.covid19.exposurenotification.efgs.signing.FederationGatewaySigning;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class OutboundServiceTest {
+
+    private final FederationGatewayClient client = mock(FederationGatewayClient.class);
+    private final DiagnosisKeyDao diagnosisKeyDao = mock(DiagnosisKeyDao.class);
+    private final OutboundOperationDao outboundOperationDao = mock(OutboundOperationDao.class);
+    private final FederationGatewaySigning signer = mock(FederationGatewaySigning.class);
+    private final Queue<OutboundOperation> available = new ConcurrentLinkedQueue<>();
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(3);
+        LongStream.rangeClosed(1, 6).forEach(id -> available.add(new OutboundOperation(List.of(), id)));
+        when(diagnosisKeyDao.fetchAvailableKeyForEfgsWithDummyPadding(eq(false), anyInt()))
+                .thenAnswer(invocation -> Optional.ofNullable(available.poll()));
+        when(signer.sign(any())).thenReturn("signature");
+        when(client.upload(anyString(), anyString(), any()))
+                .thenReturn(new UploadResponseEntity(HttpStatus.CREATED, Optional.empty()));
+        when(outboundOperationDao.finishOperation(any(), anyInt(), anyInt(), anyInt(), anyInt())).thenReturn(true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void workersUploadAllAvailableBatches() {
+        Set<Long> operationIds = service(3, 0).startOutbound(false);
+
+        assertEquals(LongStream.rangeClosed(1, 6).boxed().collect(Collectors.toSet()), operationIds);
+        verify(client, times(6)).upload(anyString(), eq("signature"), any());
+        verify(outboundOperationDao, times(6)).finishOperation(any(), anyInt(), anyInt(), anyInt(), anyInt());
+        verify(diagnosisKeyDao, never()).setNotSent(any());
+    }
+
+    @Test
+    public void uploadsAreRateLimitedOverAllWorkers() {
+        long start = System.nanoTime();
+        service(3, 600).startOutbound(false);
+        long elapsed = System.nanoTime() - start;
+
+        // 600 uploads per minute spaces the 6 uploads at least 100ms apart
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(500));
+        verify(client, times(6)).upload(anyString(), anyString(), any());
+    }
+
+    @Test
+    public void failedBatchIsReturnedToQueue() {
+        when(client.upload(eq(new OutboundOperation(List.of(), 2).batchTag), anyString(), any()))
+                .thenThrow(new IllegalStateException("Upload failed"));
+
+        assertThrows(IllegalStateException.class, () -> service(3, 0).startOutbound(false));
+
+        verify(diagnosisKeyDao).setNotSent(argThat(operation -> operation.operationId == 2));
+    }
+
+    private OutboundService service(int workers, int maxUploadsPerMinute) {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        OutboundBatchSizer batchSizer = new OutboundBatchSizer(meterRegistry, false, 1000, 5000, Duration.ofSeconds(10), 1048576, 0.05);
+        return new OutboundService(client, diagnosisKeyDao, outboundOperationDao, signer, batchSizer, meterRegistry,
+                executor, workers, maxUploadsPerMinute);
+    }
+}
@@ -0,0 +1,121 @@
+package fi.thl.covid19.exposurenotification.efgs;
+
+import com.google.protobuf.ByteString;
+import fi.thl.covid19.exposurenotification.efgs.entity.AuditEntry;
+import fi.thl.covid19.exposurenotification.efgs.entity.DownloadData;
+import fi.thl.covid19.exposurenotification.efgs.signing.FederationGatewaySigningDev;
+import fi.thl.covid19.proto.EfgsProto;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.getCertThumbprint;
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.x509CertificateToPem;
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureValidationUtil.validateSignature;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SignatureValidationUtilTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private FederationGatewaySigningDev signer;
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        signer = new FederationGatewaySigningDev("devpassword", "efgs-signing", "efgs-trust-anchor");
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void validSubBatchesAreMergedInDownloadOrder() throws Exception {
+        List<EfgsProto.DiagnosisKey> first = keys(0, 3);
+        List<EfgsProto.DiagnosisKey> second = keys(3, 2);
+        List<EfgsProto.DiagnosisKey> third = keys(5, 4);
+        List<AuditEntry> audits = List.of(audit(first, first), audit(second, keys(100, 2)), audit(third, third));
+
+        EfgsProto.DiagnosisKeyBatch result = validateSignature(
+                audits, download(first, second, third), signer.getTrustAnchor(), executor, meterRegistry);
+
+        List<EfgsProto.DiagnosisKey> expected = new ArrayList<>(first);
+        expected.addAll(third);
+        assertEquals(expected, result.getKeysList());
+        assertEquals(2, meterRegistry.get("efgs_signature_validation")
+                .tags("country", "FI", "outcome", "valid").timer().count());
+        assertEquals(1, meterRegistry.get("efgs_signature_validation")
+                .tags("country", "FI", "outcome", "error").timer().count());
+    }
+
+    @Test
+    public void auditBeyondDownloadedKeysIsNotValid() throws Exception {
+        List<EfgsProto.DiagnosisKey> first = keys(0, 2);
+        List<EfgsProto.DiagnosisKey> missing = keys(2, 2);
+        List<AuditEntry> audits = List.of(audit(first, first), audit(missing, missing));
+
+        EfgsProto.DiagnosisKeyBatch result = validateSignature(
+                audits, download(first), signer.getTrustAnchor(), executor, meterRegistry);
+
+        assertEquals(first, result.getKeysList());
+    }
+
+    private AuditEntry audit(List<EfgsProto.DiagnosisKey> keys, List<EfgsProto.DiagnosisKey> signedKeys) throws Exception {
+        X509Certificate certificate = signer.getSignerCertificate();
+        Signature signature = Signature.getInstance("SHA256withRSA", "BC");
+        signature.initSign(signer.getTrustAnchorPrivateKey());
+        signature.update(x509CertificateToPem(certificate).getBytes());
+        return new AuditEntry(
+                "FI",
+                ZonedDateTime.now(),
+                "",
+                "",
+                getCertThumbprint(new X509CertificateHolder(certificate.getEncoded())),
+                keys.size(),
+                signer.sign(EfgsProto.DiagnosisKeyBatch.newBuilder().addAllKeys(signedKeys).build()),
+                "",
+                Base64.getEncoder().encodeToString(signature.sign()),
+                x509CertificateToPem(certificate)
+        );
+    }
+
+    @SafeVarargs
+    private static DownloadData download(List<EfgsProto.DiagnosisKey>... subBatches) {
+        EfgsProto.DiagnosisKeyBatch.Builder batch = EfgsProto.DiagnosisKeyBatch.newBuilder();
+        for (List<EfgsProto.DiagnosisKey> subBatch : subBatches) {
+            batch.addAllKeys(subBatch);
+        }
+        return new DownloadData(Optional.of(batch.build()), "test-batch", Optional.empty());
+    }
+
+    private static List<EfgsProto.DiagnosisKey> keys(int first, int count) {
+        List<EfgsProto.DiagnosisKey> keys = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            byte[] keyData = new byte[16];
+            keyData[0] = (byte) i;
+            keys.add(EfgsProto.DiagnosisKey.newBuilder()
+                    .setKeyData(ByteString.copyFrom(keyData))
+                    .setRollingStartIntervalNumber(2_650_000 + i)
+                    .setRollingPeriod(144)
+                    .setTransmissionRiskLevel(2)
+                    .setOrigin("FI")
+                    .build());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,124 @@
+package fi.thl.covid19.exposurenotification.efgs.signing;
+
+import com.google.protobuf.ByteString;
+import fi.thl.covid19.exposurenotification.batch.Signing;
+import fi.thl.covid19.proto.EfgsProto;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static fi.thl.covid19.exposurenotification.efgs.signing.SigningUtil.*;
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.generateBytesForSignature;
+
+/**
+ * Compares the per-batch signing cost before and after resolving the signing key material once.
+ * <p>
+ * EFGS batches were signed with the key and certificate read from the PKCS12 keystore, and the signer info, the
+ * certificate holder and the digest calculator provider built, for every batch. Export files got a new Signature
+ * instance for every file.
+ * <p>
+ * Run with: mvn -P jmh-benchmark test-compile exec:exec -Djmh.include=BatchSigningBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchSigningBenchmark {
+
+    private static final String PASSWORD = "benchmark";
+    private static final String KEY_ALIAS = "efgs-signing";
+    private static final String EXPORT_ALGORITHM = "SHA256withECDSA";
+
+    @Param({"100", "5000"})
+    public int keyCount;
+
+    private EfgsProto.DiagnosisKeyBatch batch;
+    private KeyStore keyStore;
+    private BatchSigningEngine engine;
+    private PrivateKey exportKey;
+    private byte[] exportPayload;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(keyCount);
+        EfgsProto.DiagnosisKeyBatch.Builder builder = EfgsProto.DiagnosisKeyBatch.newBuilder();
+        for (int i = 0; i < keyCount; i++) {
+            byte[] keyData = new byte[16];
+            random.nextBytes(keyData);
+            builder.addKeys(EfgsProto.DiagnosisKey.newBuilder()
+                    .setKeyData(ByteString.copyFrom(keyData))
+                    .setRollingStartIntervalNumber(2_650_000 + random.nextInt(2000))
+                    .setRollingPeriod(144)
+                    .setOrigin("FI"));
+        }
+        batch = builder.build();
+
+        keyStore = loadKeyStore();
+        engine = new BatchSigningEngine(
+                (PrivateKey) keyStore.getKey(KEY_ALIAS, PASSWORD.toCharArray()),
+                (X509Certificate) keyStore.getCertificate(KEY_ALIAS));
+
+        exportKey = Signing.randomKeyPair().getPrivate();
+        exportPayload = batch.toByteArray();
+    }
+
+    @Benchmark
+    public String efgsPerBatchKeyLookup() throws Exception {
+        PrivateKey key = (PrivateKey) keyStore.getKey(KEY_ALIAS, PASSWORD.toCharArray());
+        X509Certificate cert = (X509Certificate) keyStore.getCertificate(KEY_ALIAS);
+        CMSSignedDataGenerator signedDataGenerator = new CMSSignedDataGenerator();
+        signedDataGenerator.addSignerInfoGenerator(createSignerInfo(createCertificateHolder(cert), key, createDigestBuilder()));
+        signedDataGenerator.addCertificate(createCertificateHolder(cert));
+        CMSSignedData signedData = signedDataGenerator.generate(
+                new CMSProcessableByteArray(generateBytesForSignature(batch.getKeysList())), false);
+        return Base64.getEncoder().encodeToString(signedData.getEncoded());
+    }
+
+    @Benchmark
+    public String efgsSigningEngine() {
+        return engine.sign(batch);
+    }
+
+    @Benchmark
+    public byte[] exportNewSignatureInstance() throws Exception {
+        java.security.Signature signature = java.security.Signature.getInstance(EXPORT_ALGORITHM);
+        signature.initSign(exportKey);
+        signature.update(exportPayload);
+        return signature.sign();
+    }
+
+    @Benchmark
+    public byte[] exportReusedSignature() throws Exception {
+        return Signing.sign(EXPORT_ALGORITHM, exportKey, exportPayload);
+    }
+
+    // A keystore read back through the BouncyCastle PKCS12 provider, like FederationGatewaySigningImpl loads it
+    private static KeyStore loadKeyStore() throws Exception {
+        FederationGatewaySigningDev generator = new FederationGatewaySigningDev(PASSWORD, KEY_ALIAS, "efgs-trust-anchor");
+        KeyPair keyPair = generator.generateKeyPair();
+        X509Certificate certificate = generator.generateDevRootCertificate(keyPair);
+        KeyStore written = KeyStore.getInstance("PKCS12");
+        written.load(null);
+        written.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), PASSWORD.toCharArray(), new Certificate[]{certificate});
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        written.store(out, PASSWORD.toCharArray());
+
+        Security.addProvider(new BouncyCastleProvider());
+        KeyStore keyStore = KeyStore.getInstance("PKCS12", "BC");
+        keyStore.load(new ByteArrayInputStream(out.toByteArray()), PASSWORD.toCharArray());
+        return keyStore;
+    }
+}
@@ -0,0 +1,152 @@
+package fi.thl.covid19.exposurenotification.efgs.signing;
+
+import com.google.protobuf.ByteString;
+import fi.thl.covid19.proto.EfgsProto;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.generateBytesForSignature;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FederationGatewaySigningImplTest {
+
+    private static final String PASSWORD = "devpassword";
+    private static final String KEY_ALIAS = "efgs-signing";
+    private static final String TRUST_ANCHOR_ALIAS = "efgs-trust-anchor";
+
+    private final EfgsProto.DiagnosisKeyBatch batch = EfgsProto.DiagnosisKeyBatch.newBuilder()
+            .addKeys(key(1))
+            .addKeys(key(2))
+            .build();
+
+    @TempDir
+    Path tempDir;
+
+    private FederationGatewaySigningDev generator;
+    private File keyStoreFile;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        generator = new FederationGatewaySigningDev(PASSWORD, KEY_ALIAS, TRUST_ANCHOR_ALIAS);
+        keyStoreFile = tempDir.resolve("signing.p12").toFile();
+    }
+
+    @Test
+    public void signaturesAreValidWhenSignerIsReused() throws Exception {
+        X509Certificate certificate = writeKeyStore();
+        FederationGatewaySigningImpl signing = signing();
+
+        for (int i = 0; i < 3; i++) {
+            assertValidSignature(signing.sign(batch), certificate);
+        }
+        assertEquals(certificate, signing.getTrustAnchor());
+    }
+
+    @Test
+    public void signaturesAreValidFromConcurrentThreads() throws Exception {
+        X509Certificate certificate = writeKeyStore();
+        FederationGatewaySigningImpl signing = signing();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> signatures = IntStream.range(0, 20)
+                    .mapToObj(i -> executor.submit(() -> signing.sign(batch)))
+                    .collect(Collectors.toList());
+            for (Future<String> signature : signatures) {
+                assertValidSignature(signature.get(), certificate);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keyStoreIsReloadedWhenFileChanges() throws Exception {
+        X509Certificate first = writeKeyStore();
+        FederationGatewaySigningImpl signing = signing();
+        assertValidSignature(signing.sign(batch), first);
+
+        long modified = keyStoreFile.lastModified();
+        X509Certificate second = writeKeyStore();
+        assertTrue(keyStoreFile.setLastModified(modified + 2000));
+
+        assertValidSignature(signing.sign(batch), second);
+        assertEquals(second, signing.getTrustAnchor());
+    }
+
+    @Test
+    public void previousKeyStoreIsKeptWhenReloadFails() throws Exception {
+        X509Certificate first = writeKeyStore();
+        FederationGatewaySigningImpl signing = signing();
+        long modified = keyStoreFile.lastModified();
+
+        Files.write(keyStoreFile.toPath(), new byte[]{1, 2, 3});
+        assertTrue(keyStoreFile.setLastModified(modified + 2000));
+        assertValidSignature(signing.sign(batch), first);
+        assertEquals(first, signing.getTrustAnchor());
+
+        X509Certificate second = writeKeyStore();
+        assertTrue(keyStoreFile.setLastModified(modified + 4000));
+        assertValidSignature(signing.sign(batch), second);
+    }
+
+    private FederationGatewaySigningImpl signing() {
+        return new FederationGatewaySigningImpl(keyStoreFile.getAbsolutePath(), PASSWORD, KEY_ALIAS, TRUST_ANCHOR_ALIAS);
+    }
+
+    // Writes a keystore with a new self-signed key that is also its own trust anchor
+    private X509Certificate writeKeyStore() throws Exception {
+        KeyPair keyPair = generator.generateKeyPair();
+        X509Certificate certificate = generator.generateDevRootCertificate(keyPair);
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null);
+        keyStore.setCertificateEntry(TRUST_ANCHOR_ALIAS, certificate);
+        keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), PASSWORD.toCharArray(), new Certificate[]{certificate});
+        try (FileOutputStream out = new FileOutputStream(keyStoreFile)) {
+            keyStore.store(out, PASSWORD.toCharArray());
+        }
+        return certificate;
+    }
+
+    private void assertValidSignature(String signature, X509Certificate certificate) throws Exception {
+        CMSSignedData signedData = new CMSSignedData(
+                new CMSProcessableByteArray(generateBytesForSignature(batch.getKeysList())),
+                Base64.getDecoder().decode(signature));
+        SignerInformation signerInfo = signedData.getSignerInfos().getSigners().iterator().next();
+        assertTrue(signerInfo.getSID().match(new X509CertificateHolder(certificate.getEncoded())));
+        assertTrue(signerInfo.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    }
+
+    private static EfgsProto.DiagnosisKey key(int index) {
+        byte[] keyData = new byte[16];
+        keyData[0] = (byte) index;
+        return EfgsProto.DiagnosisKey.newBuilder()
+                .setKeyData(ByteString.copyFrom(keyData))
+                .setRollingStartIntervalNumber(2_650_000 + index)
+                .setRollingPeriod(144)
+                .setOrigin("FI")
+                .build();
+    }
+}
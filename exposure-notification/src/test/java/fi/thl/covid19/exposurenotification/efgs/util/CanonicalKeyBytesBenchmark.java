@@ -0,0 +1,113 @@
+package fi.thl.covid19.exposurenotification.efgs.util;
+
+import com.google.protobuf.ByteString;
+import fi.thl.covid19.proto.EfgsProto;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building the canonical EFGS signature bytes with the former per-key implementation, which encoded each
+ * record through Strings and re-encoded the records on every sort comparison.
+ * <p>
+ * Run with: mvn -P jmh-benchmark test-compile exec:exec -Djmh.include=CanonicalKeyBytesBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CanonicalKeyBytesBenchmark {
+
+    private static final String[] COUNTRIES = {"FI", "DE", "IT", "DK", "LV"};
+
+    // EFGS upload batches are at most 5000 keys
+    @Param({"500", "5000"})
+    public int keyCount;
+
+    private List<EfgsProto.DiagnosisKey> keys;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(keyCount);
+        keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            byte[] keyData = new byte[16];
+            random.nextBytes(keyData);
+            EfgsProto.DiagnosisKey.Builder key = EfgsProto.DiagnosisKey.newBuilder()
+                    .setKeyData(ByteString.copyFrom(keyData))
+                    .setRollingStartIntervalNumber(2_650_000 + random.nextInt(2000))
+                    .setRollingPeriod(144)
+                    .setTransmissionRiskLevel(random.nextInt(9))
+                    .setOrigin("FI")
+                    .setReportTypeValue(1)
+                    .setDaysSinceOnsetOfSymptoms(random.nextInt(28) - 14);
+            for (int c = random.nextInt(3); c > 0; c--) {
+                key.addVisitedCountries(COUNTRIES[random.nextInt(COUNTRIES.length)]);
+            }
+            keys.add(key.build());
+        }
+    }
+
+    @Benchmark
+    public byte[] perKeyStrings() {
+        return PerKeyStrings.generateBytesForSignature(keys);
+    }
+
+    @Benchmark
+    public byte[] canonicalKeyBytes() {
+        return CanonicalKeyBytes.of(keys);
+    }
+
+    /**
+     * The former SignatureHelperUtil.generateBytesForSignature, kept as the baseline.
+     */
+    static final class PerKeyStrings {
+        private PerKeyStrings() {
+        }
+
+        static byte[] generateBytesForSignature(List<EfgsProto.DiagnosisKey> keys) {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            keys.stream()
+                    .map(PerKeyStrings::generateBytesToVerify)
+                    .sorted(Comparator.nullsLast(Comparator.comparing(PerKeyStrings::bytesToBase64)))
+                    .forEach(byteArrayOutputStream::writeBytes);
+            return byteArrayOutputStream.toByteArray();
+        }
+
+        private static byte[] generateBytesToVerify(EfgsProto.DiagnosisKey diagnosisKey) {
+            ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+            writeBase64(diagnosisKey.getKeyData().toByteArray(), byteArray);
+            writeInt(diagnosisKey.getRollingStartIntervalNumber(), byteArray);
+            writeInt(diagnosisKey.getRollingPeriod(), byteArray);
+            writeInt(diagnosisKey.getTransmissionRiskLevel(), byteArray);
+            writeBase64(String.join(",", diagnosisKey.getVisitedCountriesList()).getBytes(StandardCharsets.US_ASCII), byteArray);
+            writeBase64(diagnosisKey.getOrigin().getBytes(StandardCharsets.US_ASCII), byteArray);
+            writeInt(diagnosisKey.getReportTypeValue(), byteArray);
+            writeInt(diagnosisKey.getDaysSinceOnsetOfSymptoms(), byteArray);
+            return byteArray.toByteArray();
+        }
+
+        private static void writeInt(int value, ByteArrayOutputStream byteArray) {
+            writeBase64(ByteBuffer.allocate(4).putInt(value).array(), byteArray);
+        }
+
+        private static void writeBase64(byte[] bytes, ByteArrayOutputStream byteArray) {
+            byteArray.writeBytes(bytesToBase64(bytes).getBytes(StandardCharsets.US_ASCII));
+            byteArray.writeBytes(".".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private static String bytesToBase64(byte[] bytes) {
+            return Base64.getEncoder().encodeToString(bytes);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package fi.thl.covid19.exposurenotification.efgs.util;
+
+import com.google.protobuf.ByteString;
+import fi.thl.covid19.proto.EfgsProto;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CanonicalKeyBytesTest {
+
+    private static final String[] COUNTRIES = {"FI", "DE", "IT", "DK", "LV", "ÅL", "🇫", ""};
+
+    /**
+     * The golden file was written by the former per-key implementation, which encoded each record through Strings
+     * and sorted the records by their Base64 string.
+     */
+    @Test
+    public void bytesMatchGoldenFile() throws IOException {
+        byte[] expected;
+        try (InputStream in = getClass().getResourceAsStream("/efgs/canonical-key-bytes.golden")) {
+            expected = in.readAllBytes();
+        }
+        assertArrayEquals(expected, SignatureHelperUtil.generateBytesForSignature(fixtureKeys()));
+    }
+
+    @Test
+    public void benchmarkBaselineMatchesGoldenFile() throws IOException {
+        byte[] expected;
+        try (InputStream in = getClass().getResourceAsStream("/efgs/canonical-key-bytes.golden")) {
+            expected = in.readAllBytes();
+        }
+        assertArrayEquals(expected, CanonicalKeyBytesBenchmark.PerKeyStrings.generateBytesForSignature(fixtureKeys()));
+    }
+
+    @Test
+    public void orderDoesNotDependOnInputOrder() {
+        List<EfgsProto.DiagnosisKey> keys = fixtureKeys();
+        byte[] expected = CanonicalKeyBytes.of(keys);
+        Collections.shuffle(keys, new Random(1));
+        assertArrayEquals(expected, CanonicalKeyBytes.of(keys));
+    }
+
+    @Test
+    public void noKeysIsEmpty() {
+        assertEquals(0, CanonicalKeyBytes.of(List.of()).length);
+    }
+
+    private static List<EfgsProto.DiagnosisKey> fixtureKeys() {
+        Random random = new Random(20201013L);
+        List<EfgsProto.DiagnosisKey> keys = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] keyData = new byte[i % 10 == 0 ? random.nextInt(21) : 16];
+            random.nextBytes(keyData);
+            EfgsProto.DiagnosisKey.Builder key = EfgsProto.DiagnosisKey.newBuilder()
+                    .setKeyData(ByteString.copyFrom(keyData))
+                    .setRollingStartIntervalNumber(i % 7 == 0 ? random.nextInt() : 2_650_000 + random.nextInt(2000))
+                    .setRollingPeriod(i % 13 == 0 ? random.nextInt(145) : 144)
+                    .setTransmissionRiskLevel(random.nextInt(9))
+                    .setOrigin(COUNTRIES[random.nextInt(COUNTRIES.length)])
+                    .setReportTypeValue(random.nextInt(6))
+                    .setDaysSinceOnsetOfSymptoms(random.nextInt(4000) - 2000);
+            for (int c = random.nextInt(4); c > 0; c--) {
+                key.addVisitedCountries(COUNTRIES[random.nextInt(COUNTRIES.length)]);
+            }
+            keys.add(key.build());
+        }
+        // Identical keys and keys that differ only at the end of the record
+        keys.add(keys.get(1));
+        keys.add(keys.get(1).toBuilder().setDaysSinceOnsetOfSymptoms(keys.get(1).getDaysSinceOnsetOfSymptoms() + 1).build());
+        keys.add(EfgsProto.DiagnosisKey.newBuilder().build());
+        return keys;
+    }
+}
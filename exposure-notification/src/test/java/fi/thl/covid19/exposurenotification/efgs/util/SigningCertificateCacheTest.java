@@ -0,0 +1,59 @@
+package fi.thl.covid19.exposurenotification.efgs.util;
+
+import fi.thl.covid19.exposurenotification.efgs.signing.FederationGatewaySigningDev;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+
+import static fi.thl.covid19.exposurenotification.efgs.util.SignatureHelperUtil.x509CertificateToPem;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SigningCertificateCacheTest {
+
+    private final SigningCertificateCache cache = new SigningCertificateCache();
+    private FederationGatewaySigningDev signer;
+    private String pem;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        signer = new FederationGatewaySigningDev("devpassword", "efgs-signing", "efgs-trust-anchor");
+        pem = x509CertificateToPem(signer.getSignerCertificate());
+    }
+
+    @Test
+    public void certificateIsParsedOnce() throws Exception {
+        SigningCertificateCache.SigningCertificate first = cache.get(pem, signer.getTrustAnchor());
+        SigningCertificateCache.SigningCertificate second = cache.get(pem, signer.getTrustAnchor());
+
+        assertSame(first, second);
+        assertEquals("FI", first.country);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void trustAnchorChangeDropsCertificates() throws Exception {
+        SigningCertificateCache.SigningCertificate first = cache.get(pem, signer.getTrustAnchor());
+        X509Certificate otherTrustAnchor = signer.generateDevRootCertificate(signer.generateKeyPair());
+
+        assertNotSame(first, cache.get(pem, otherTrustAnchor));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void operatorSignatureIsVerifiedAgainstTrustAnchor() throws Exception {
+        SigningCertificateCache.SigningCertificate certificate = cache.get(pem, signer.getTrustAnchor());
+        Signature signature = Signature.getInstance("SHA256withRSA", "BC");
+        signature.initSign(signer.getTrustAnchorPrivateKey());
+        signature.update(pem.getBytes());
+        String operatorSignature = Base64.getEncoder().encodeToString(signature.sign());
+
+        assertTrue(certificate.verifyOperatorSignature(operatorSignature, signer.getTrustAnchor()));
+        assertTrue(certificate.verifyOperatorSignature(operatorSignature, signer.getTrustAnchor()));
+
+        X509Certificate otherTrustAnchor = signer.generateDevRootCertificate(signer.generateKeyPair());
+        assertFalse(cache.get(pem, otherTrustAnchor).verifyOperatorSignature(operatorSignature, otherTrustAnchor));
+    }
+}
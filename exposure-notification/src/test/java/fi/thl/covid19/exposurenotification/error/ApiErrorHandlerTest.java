@@ -9,17 +9,21 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.MockReset;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @ActiveProfiles({"dev","test","nodb"})
@@ -33,9 +37,13 @@ public class ApiErrorHandlerTest {
     @Autowired
     private MockMvc mockMvc;
 
-    @MockBean
+    // Reset before each test, so that the interval index loaded at startup is not counted as a request's query
+    @MockBean(reset = MockReset.BEFORE)
     private NamedParameterJdbcTemplate jdbc;
 
+    @MockBean
+    private PlatformTransactionManager transactionManager;
+
     @AfterEach
     public void end() {
         Mockito.verifyNoMoreInteractions(jdbc);
@@ -67,6 +75,16 @@ public class ApiErrorHandlerTest {
         assertErrorObject(result, HttpStatus.FORBIDDEN, Optional.of("Publish token not accepted"));
     }
 
+    @Test
+    public void fullPublishQueueIs503WithRetryAfter() throws Exception {
+        String result = mockMvc.perform(get("/test/publish-queue-full"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "30"))
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andReturn().getResponse().getContentAsString();
+        assertErrorObject(result, HttpStatus.SERVICE_UNAVAILABLE, Optional.of("Service busy, try again later"));
+    }
+
     @Test
     public void pathParsingErrorIs400() throws Exception {
         String result = mockMvc.perform(get("/test/should-be-int-path/asdf"))
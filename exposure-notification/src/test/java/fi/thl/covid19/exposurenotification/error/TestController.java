@@ -4,6 +4,7 @@ package fi.thl.covid19.exposurenotification.error;
 import org.springframework.web.bind.annotation.*;
 
 import java.sql.SQLException;
+import java.time.Duration;
 
 @RestController
 @RequestMapping("/test")
@@ -21,6 +22,11 @@ public class TestController {
         throw new TokenValidationException();
     }
 
+    @GetMapping("/publish-queue-full")
+    public void getPublishQueueFullException() {
+        throw new PublishQueueFullException(Duration.ofSeconds(30));
+    }
+
     @GetMapping("/illegal-state")
     public void getIllegalStateException() {
         throw new IllegalStateException(FAILURE_STRING);
@@ -0,0 +1,74 @@
+package fi.thl.covid19.exposurenotification.tokenverification;
+
+import fi.thl.covid19.exposurenotification.error.TokenValidationException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class PublishTokenVerificationBatcherTest {
+
+    private final PublishTokenVerificationService tokenVerificationService = mock(PublishTokenVerificationService.class);
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @AfterEach
+    public void end() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentTokensAreVerifiedInOneCall() throws Exception {
+        when(tokenVerificationService.getVerifications(anyList()))
+                .thenReturn(Map.of("000000000001", verification(1), "000000000002", verification(2)));
+        PublishTokenVerificationBatcher batcher = new PublishTokenVerificationBatcher(
+                tokenVerificationService, Duration.ofMillis(500), 100);
+
+        Future<PublishTokenVerification> first = executor.submit(() -> batcher.getVerification("000000000001"));
+        Future<PublishTokenVerification> second = executor.submit(() -> batcher.getVerification("000000000002"));
+        Future<PublishTokenVerification> invalid = executor.submit(() -> batcher.getVerification("000000000003"));
+
+        assertEquals(1, first.get().id);
+        assertEquals(2, second.get().id);
+        Exception e = assertThrows(Exception.class, invalid::get);
+        assertEquals(TokenValidationException.class, e.getCause().getClass());
+        verify(tokenVerificationService, times(1)).getVerifications(anyList());
+    }
+
+    @Test
+    public void fullBatchIsNotJoined() {
+        when(tokenVerificationService.getVerifications(List.of("000000000001")))
+                .thenReturn(Map.of("000000000001", verification(1)));
+        when(tokenVerificationService.getVerifications(List.of("000000000002")))
+                .thenReturn(Map.of("000000000002", verification(2)));
+        PublishTokenVerificationBatcher batcher = new PublishTokenVerificationBatcher(
+                tokenVerificationService, Duration.ZERO, 1);
+
+        assertEquals(1, batcher.getVerification("000000000001").id);
+        assertEquals(2, batcher.getVerification("000000000002").id);
+    }
+
+    @Test
+    public void verificationFailureIsThrownToTheRequest() {
+        when(tokenVerificationService.getVerifications(anyList())).thenThrow(new IllegalStateException("Unavailable"));
+        PublishTokenVerificationBatcher batcher = new PublishTokenVerificationBatcher(
+                tokenVerificationService, Duration.ZERO, 100);
+
+        assertThrows(IllegalStateException.class, () -> batcher.getVerification("000000000001"));
+    }
+
+    private PublishTokenVerification verification(int id) {
+        return new PublishTokenVerification(id, LocalDate.now(), Optional.empty());
+    }
+}
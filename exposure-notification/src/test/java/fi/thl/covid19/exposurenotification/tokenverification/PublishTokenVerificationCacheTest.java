@@ -0,0 +1,129 @@
+package fi.thl.covid19.exposurenotification.tokenverification;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fi.thl.covid19.exposurenotification.error.TokenValidationException;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.MockReset;
+import org.springframework.http.HttpMethod;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static fi.thl.covid19.exposurenotification.tokenverification.PublishTokenVerificationServiceRest.PUBLISH_TOKEN_HEADER;
+import static fi.thl.covid19.exposurenotification.tokenverification.PublishTokenVerificationServiceRest.TOKEN_VERIFICATION_PATH;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.test.web.client.ExpectedCount.once;
+import static org.springframework.test.web.client.ExpectedCount.twice;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.jsonPath;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withBadRequest;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+@SpringBootTest(properties = {"covid19.diagnosis.data-cache.enabled=true"})
+@ActiveProfiles({"dev", "test", "nodb"})
+public class PublishTokenVerificationCacheTest {
+
+    private static final String VERIFICATION_URL = "http://localhost:8081" + TOKEN_VERIFICATION_PATH;
+
+    @Autowired
+    private PublishTokenVerificationServiceRest verificationService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    @Qualifier("default")
+    private RestTemplate template;
+
+    // Reset before each test, so that the interval index loaded at startup is not counted as a request's query
+    @MockBean(reset = MockReset.BEFORE)
+    private NamedParameterJdbcTemplate jdbc;
+
+    @MockBean
+    private PlatformTransactionManager transactionManager;
+
+    private MockRestServiceServer server;
+
+    @BeforeEach
+    public void setUp() {
+        server = MockRestServiceServer.createServer(template);
+    }
+
+    @AfterEach
+    public void end() {
+        verifyNoMoreInteractions(jdbc);
+    }
+
+    @Test
+    public void successfulVerificationIsReused() throws Exception {
+        PublishTokenVerification response = new PublishTokenVerification(123, LocalDate.now(), Optional.empty());
+        server.expect(once(), requestTo(VERIFICATION_URL))
+                .andExpect(header(PUBLISH_TOKEN_HEADER, "111111111111"))
+                .andRespond(withSuccess(objectMapper.writeValueAsString(response), APPLICATION_JSON));
+
+        assertEquals(123, verificationService.getVerification("111111111111").id);
+        assertEquals(123, verificationService.getVerification("111111111111").id);
+        server.verify();
+        assertEquals(1, meterRegistry.get("publish_token_verification").tag("outcome", "cached").timer().count());
+    }
+
+    @Test
+    public void rejectionIsNotCached() {
+        server.expect(twice(), requestTo(VERIFICATION_URL))
+                .andExpect(header(PUBLISH_TOKEN_HEADER, "222222222222"))
+                .andRespond(withBadRequest());
+
+        assertThrows(TokenValidationException.class, () -> verificationService.getVerification("222222222222"));
+        assertThrows(TokenValidationException.class, () -> verificationService.getVerification("222222222222"));
+        server.verify();
+    }
+
+    @Test
+    public void batchVerifiesUncachedTokensInOneCall() throws Exception {
+        PublishTokenVerification cached = new PublishTokenVerification(333, LocalDate.now(), Optional.empty());
+        PublishTokenVerification verified = new PublishTokenVerification(444, LocalDate.now(), Optional.of(true));
+        server.expect(once(), requestTo(VERIFICATION_URL))
+                .andExpect(header(PUBLISH_TOKEN_HEADER, "333333333333"))
+                .andRespond(withSuccess(objectMapper.writeValueAsString(cached), APPLICATION_JSON));
+        PublishTokenVerificationBatch batch = new PublishTokenVerificationBatch(List.of(
+                new PublishTokenVerificationBatch.Result("444444444444", Optional.of(verified)),
+                new PublishTokenVerificationBatch.Result("555555555555", Optional.empty())));
+        server.expect(once(), requestTo(VERIFICATION_URL + "/batch"))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(jsonPath("$.tokens", contains("444444444444", "555555555555")))
+                .andRespond(withSuccess(objectMapper.writeValueAsString(batch), APPLICATION_JSON));
+
+        verificationService.getVerification("333333333333");
+        Map<String, PublishTokenVerification> result =
+                verificationService.getVerifications(List.of("333333333333", "444444444444", "555555555555"));
+        server.verify();
+        assertEquals(Set.of("333333333333", "444444444444"), result.keySet());
+        assertEquals(333, result.get("333333333333").id);
+        assertEquals(444, result.get("444444444444").id);
+        assertEquals(Optional.of(true), result.get("444444444444").symptomsExist);
+    }
+}
@@ -9,9 +9,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.MockReset;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.client.RestTemplate;
 
 import java.time.LocalDate;
@@ -44,9 +46,13 @@ public class PublishTokenVerificationServiceRestTest {
     @Qualifier("default")
     private RestTemplate template;
 
-    @MockBean
+    // Reset before each test, so that the interval index loaded at startup is not counted as a request's query
+    @MockBean(reset = MockReset.BEFORE)
     private NamedParameterJdbcTemplate jdbc;
 
+    @MockBean
+    private PlatformTransactionManager transactionManager;
+
     @BeforeEach
     public void setUp() {
         server = MockRestServiceServer.createServer(template);
@@ -17,11 +17,14 @@ public class MaintenanceService {
     private static final Logger LOG = LoggerFactory.getLogger(MaintenanceService.class);
 
     private final PublishTokenDao dao;
+    private final TokenPool tokenPool;
     private final Duration expiredTokenLifetime;
 
     public MaintenanceService(PublishTokenDao dao,
+                              TokenPool tokenPool,
                               @Value("${covid19.maintenance.expired-token-lifetime}") Duration expiredTokenLifetime) {
         this.dao = requireNonNull(dao);
+        this.tokenPool = requireNonNull(tokenPool);
         this.expiredTokenLifetime = requireNonNull(expiredTokenLifetime);
         LOG.info("Initialized: {}", keyValue("expiredTokenLifetime", expiredTokenLifetime));
     }
@@ -33,4 +36,13 @@ public class MaintenanceService {
         LOG.info("Deleting expired tokens: {}", keyValue("limit", limit.toString()));
         dao.deleteTokensExpiredBefore(limit);
     }
+
+    @Scheduled(initialDelayString = "${covid19.maintenance.interval}",
+            fixedRateString = "${covid19.maintenance.interval}")
+    public void deleteStaleTokenReservations() {
+        // Pools drop reservations older than the lifetime, so twice that is never still held in memory
+        Instant limit = Instant.now().minus(tokenPool.getReservationLifetime().multipliedBy(2));
+        LOG.info("Deleting stale token reservations: {}", keyValue("limit", limit.toString()));
+        dao.deleteTokenReservationsBefore(limit);
+    }
 }
@@ -1,6 +1,7 @@
 package fi.thl.covid19.publishtoken;
 
 import fi.thl.covid19.publishtoken.generation.v1.PublishToken;
+import fi.thl.covid19.publishtoken.generation.v1.PublishTokenGenerationRequest;
 import fi.thl.covid19.publishtoken.verification.v1.PublishTokenVerification;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,10 +16,9 @@ import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static java.util.Objects.requireNonNull;
 import static net.logstash.logback.argument.StructuredArguments.keyValue;
@@ -29,9 +29,11 @@ public class PublishTokenDao {
     private static final Logger LOG = LoggerFactory.getLogger(PublishTokenDao.class);
 
     private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final PublishTokenStats stats;
 
-    public PublishTokenDao(NamedParameterJdbcTemplate jdbcTemplate) {
+    public PublishTokenDao(NamedParameterJdbcTemplate jdbcTemplate, PublishTokenStats stats) {
         this.jdbcTemplate = requireNonNull(jdbcTemplate);
+        this.stats = requireNonNull(stats);
     }
 
     @Transactional
@@ -49,14 +51,81 @@ public class PublishTokenDao {
             params.put("origin_user", originUser);
             params.put("symptoms_exist", symptomsExist.orElse(null));
             LOG.info("Adding new publish token");
-            addTokenCreateStatsRow(token.createTime, symptomsExist);
-            return jdbcTemplate.update(sql, params) == 1;
+            boolean stored = jdbcTemplate.update(sql, params) == 1;
+            if (stored) {
+                stats.tokensCreated(symptomsExist, 1);
+            }
+            return stored;
         } catch (DuplicateKeyException e) {
             LOG.warn("Random token collision: {} {}", keyValue("service", originService), keyValue("user", originUser));
             return false;
         }
     }
 
+    /**
+     * Reserves the given candidate tokens for a token pool. Candidates that are already reserved or stored as tokens
+     * are skipped, so only the returned tokens are safe to hand out.
+     */
+    @Transactional
+    public List<String> reserveTokens(Collection<String> candidates) {
+        String sql = "insert into pt.token_pool(token) " +
+                "select candidate from unnest(cast(:tokens as varchar[])) as candidate " +
+                "where not exists (select 1 from pt.publish_token where token = candidate) " +
+                "on conflict do nothing " +
+                "returning token";
+        Map<String, Object> params = Map.of("tokens", candidates.toArray(new String[0]));
+        return jdbcTemplate.query(sql, params, (rs, i) -> rs.getString("token"));
+    }
+
+    @Transactional
+    public void deleteTokenReservationsBefore(Instant limit) {
+        String sql = "delete from pt.token_pool where reserved_at < :limit";
+        Map<String, Object> params = Map.of("limit", new Timestamp(limit.toEpochMilli()));
+        int count = jdbcTemplate.update(sql, params);
+        LOG.info("Token reservations deleted: {} {}", keyValue("limit", limit.toString()), keyValue("count", count));
+    }
+
+    /**
+     * Stores a batch of tokens with one multi-row insert. Tokens that collide with existing ones are skipped, so only
+     * the returned tokens were stored.
+     */
+    @Transactional
+    public Set<String> storeTokens(Map<String, PublishTokenGenerationRequest> requestsByToken,
+                                  Instant createTime, Instant validThroughTime, String originService) {
+        List<String> tokens = new ArrayList<>(requestsByToken.keySet());
+        String sql = "insert into " +
+                "pt.publish_token(token, created_at, valid_through, symptoms_onset, origin_service, origin_user, symptoms_exist) " +
+                "select token, :created_at, :valid_through, symptoms_onset, :origin_service, origin_user, symptoms_exist " +
+                "from unnest(cast(:tokens as varchar[]), cast(:symptoms_onsets as date[]), " +
+                "  cast(:origin_users as varchar[]), cast(:symptoms_exists as boolean[])) " +
+                "  as t(token, symptoms_onset, origin_user, symptoms_exist) " +
+                "on conflict (token) do nothing " +
+                "returning token";
+        Map<String, Object> params = new HashMap<>();
+        params.put("created_at", new Timestamp(createTime.toEpochMilli()));
+        params.put("valid_through", new Timestamp(validThroughTime.toEpochMilli()));
+        params.put("origin_service", originService);
+        params.put("tokens", tokens.toArray(new String[0]));
+        params.put("symptoms_onsets", column(tokens, requestsByToken, r -> r.symptomsOnset.toString()));
+        params.put("origin_users", column(tokens, requestsByToken, r -> r.requestUser));
+        params.put("symptoms_exists", column(tokens, requestsByToken, r -> r.symptomsExist.map(String::valueOf).orElse(null)));
+        Set<String> stored = new HashSet<>(jdbcTemplate.query(sql, params, (rs, i) -> rs.getString("token")));
+        stored.stream()
+                .collect(Collectors.groupingBy(token -> requestsByToken.get(token).symptomsExist, Collectors.counting()))
+                .forEach(stats::tokensCreated);
+        LOG.info("Added publish token batch: {} {} {}",
+                keyValue("service", originService),
+                keyValue("requested", tokens.size()),
+                keyValue("stored", stored.size()));
+        return stored;
+    }
+
+    private static String[] column(List<String> tokens,
+                                   Map<String, PublishTokenGenerationRequest> requestsByToken,
+                                   Function<PublishTokenGenerationRequest, String> value) {
+        return tokens.stream().map(token -> value.apply(requestsByToken.get(token))).toArray(String[]::new);
+    }
+
     public List<PublishToken> getTokens(String originService, String originUser) {
         String sql =
                 "select token, created_at, valid_through " +
@@ -75,6 +144,22 @@ public class PublishTokenDao {
         return jdbcTemplate.query(sql, params, this::mapVerification).stream().findFirst();
     }
 
+    /**
+     * Resolves many tokens with a single query. Tokens that are missing or expired are left out of the result.
+     */
+    public Map<String, PublishTokenVerification> getVerifications(List<String> tokens) {
+        String sql =
+                "select token, id, symptoms_onset, symptoms_exist " +
+                        "from pt.publish_token " +
+                        "where token = any(cast(:tokens as varchar[])) and now() <= valid_through";
+        Map<String, Object> params = Map.of("tokens", tokens.toArray(new String[0]));
+        Map<String, PublishTokenVerification> result = new HashMap<>();
+        jdbcTemplate.query(sql, params, rs -> {
+            result.put(rs.getString("token"), mapVerification(rs, rs.getRow()));
+        });
+        return result;
+    }
+
     @Transactional
     public void deleteTokensExpiredBefore(Instant expiryLimit) {
         String sql = "delete from pt.publish_token where valid_through < :expiry_limit";
@@ -94,22 +179,6 @@ public class PublishTokenDao {
         LOG.info("Publish token invalidated: {}", keyValue("token", publishToken.token));
     }
 
-    public void addTokenCreateStatsRow(Instant createTime, Optional<Boolean> symptomsExist) {
-        String sql = "insert into pt.stats_token_create(created_at, symptoms_exist) values (:created_at, :symptoms_exist)";
-        Map<String, Object> params = new HashMap<>();
-        params.put("created_at", new Timestamp(createTime.toEpochMilli()));
-        params.put("symptoms_exist", symptomsExist.orElse(null));
-
-        jdbcTemplate.update(sql, params);
-    }
-
-    public void addSmsStatsRow(Instant createTime) {
-        String sql = "insert into pt.stats_sms_send(sent_at) values (:sent_at)";
-        Map<String, Object> params = Map.of(
-                "sent_at", new Timestamp(createTime.toEpochMilli()));
-        jdbcTemplate.update(sql, params);
-    }
-
     private PublishToken mapToken(ResultSet rs, int i) throws SQLException {
         return new PublishToken(
                 rs.getString("token"),
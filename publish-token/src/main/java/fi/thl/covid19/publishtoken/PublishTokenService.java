@@ -1,6 +1,7 @@
 package fi.thl.covid19.publishtoken;
 
 import fi.thl.covid19.publishtoken.generation.v1.PublishToken;
+import fi.thl.covid19.publishtoken.generation.v1.PublishTokenGenerationRequest;
 import fi.thl.covid19.publishtoken.verification.v1.PublishTokenVerification;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,8 +12,9 @@ import java.security.SecureRandom;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static java.time.temporal.ChronoUnit.SECONDS;
 import static java.util.Objects.requireNonNull;
@@ -23,39 +25,86 @@ public class PublishTokenService {
 
     private static final Logger LOG = LoggerFactory.getLogger(PublishTokenService.class);
 
-    private static final int HALF_TOKEN_RANGE = 1000000;
-
     private final SecureRandom random = new SecureRandom();
 
     private final PublishTokenDao dao;
+    private final TokenPool tokenPool;
     private final Duration tokenValidityDuration;
 
     public PublishTokenService(
             PublishTokenDao dao,
+            TokenPool tokenPool,
             @Value("${covid19.publish-token.validity-duration}") Duration tokenValidityDuration) {
         this.dao = requireNonNull(dao);
+        this.tokenPool = requireNonNull(tokenPool);
         this.tokenValidityDuration = requireNonNull(tokenValidityDuration);
         LOG.info("Initialized: {}", keyValue("tokenValidityDuration", tokenValidityDuration));
     }
 
     public PublishToken generateAndStore(LocalDate symptomsOnset, String requestService, String requestUser, Optional<Boolean> symptomsExist) {
         int retryCount = 0;
-        PublishToken token = generate();
+        PublishToken token = nextToken();
         while (!dao.storeToken(token, symptomsOnset, requestService, requestUser, symptomsExist)) {
             if (retryCount++ >= 5) throw new IllegalStateException("Unable to generate unique token!");
-            token = generate();
+            token = nextToken();
         }
         return token;
     }
 
+    /**
+     * Generates and stores tokens for a batch of requests, in the order of the requests. The whole batch is stored
+     * with a single insert, and only colliding tokens are regenerated.
+     */
+    public List<PublishToken> generateAndStore(List<PublishTokenGenerationRequest> requests, String requestService) {
+        Instant now = Instant.now().truncatedTo(SECONDS);
+        Instant validThrough = now.plus(tokenValidityDuration);
+        String[] tokens = new String[requests.size()];
+        List<Integer> missing = IntStream.range(0, requests.size()).boxed().collect(Collectors.toList());
+        int retryCount = 0;
+        while (!missing.isEmpty()) {
+            if (retryCount++ > 5) throw new IllegalStateException("Unable to generate unique tokens!");
+            Map<String, Integer> candidates = new LinkedHashMap<>();
+            for (int index : missing) {
+                String token = nextTokenValue();
+                while (candidates.containsKey(token)) {
+                    token = nextTokenValue();
+                }
+                candidates.put(token, index);
+            }
+            Map<String, PublishTokenGenerationRequest> requestsByToken = new LinkedHashMap<>();
+            candidates.forEach((token, index) -> requestsByToken.put(token, requests.get(index)));
+            Set<String> stored = dao.storeTokens(requestsByToken, now, validThrough, requestService);
+            missing = new ArrayList<>();
+            for (Map.Entry<String, Integer> candidate : candidates.entrySet()) {
+                if (stored.contains(candidate.getKey())) {
+                    tokens[candidate.getValue()] = candidate.getKey();
+                } else {
+                    missing.add(candidate.getValue());
+                }
+            }
+        }
+        return Arrays.stream(tokens).map(token -> new PublishToken(token, now, validThrough)).collect(Collectors.toList());
+    }
+
+    // Pooled tokens are already known to be unique, random ones are the fallback for an exhausted pool
+    private PublishToken nextToken() {
+        return withValidity(nextTokenValue());
+    }
+
+    private String nextTokenValue() {
+        return tokenPool.take().orElseGet(() -> TokenPool.randomToken(random));
+    }
+
     public void invalidateToken(PublishToken token) {
         dao.invalidateToken(token);
     }
 
     public PublishToken generate() {
+        return withValidity(TokenPool.randomToken(random));
+    }
+
+    private PublishToken withValidity(String token) {
         Instant now = Instant.now().truncatedTo(SECONDS);
-        // Java Random does not generate longs at a desired range, so we generate 12-number token in 2 parts
-        String token = String.format("%06d%06d", random.nextInt(HALF_TOKEN_RANGE), random.nextInt(HALF_TOKEN_RANGE));
         return new PublishToken(token, now, now.plus(tokenValidityDuration));
     }
 
@@ -66,4 +115,8 @@ public class PublishTokenService {
     public Optional<PublishTokenVerification> getVerification(String token) {
         return dao.getVerification(token);
     }
+
+    public Map<String, PublishTokenVerification> getVerifications(List<String> tokens) {
+        return tokens.isEmpty() ? Map.of() : dao.getVerifications(tokens);
+    }
 }
@@ -0,0 +1,166 @@
+package fi.thl.covid19.publishtoken;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Counts created tokens and sent SMS messages in memory and flushes them to pt.stats_token_create_minute and
+ * pt.stats_sms_send_minute, so that token generation and SMS delivery do not write stats rows of their own.
+ * <p>
+ * Tokens are counted with their symptoms answer and messages by number only, both in the minute their transaction
+ * commits. A minute is flushed once it has been closed for another full minute. The two tables are written
+ * separately, and a table whose write fails gets its minutes back for the next flush; counts still in memory when
+ * the process dies are lost.
+ */
+@Component
+public class PublishTokenStats implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublishTokenStats.class);
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final ConcurrentMap<Instant, TokenBucket> tokenBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Instant, LongAdder> smsBuckets = new ConcurrentHashMap<>();
+
+    public PublishTokenStats(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = requireNonNull(jdbcTemplate);
+    }
+
+    public void tokensCreated(Optional<Boolean> symptomsExist, long count) {
+        afterCommit(() -> {
+            TokenBucket bucket = tokenBuckets.computeIfAbsent(currentMinute(), minute -> new TokenBucket());
+            bucket.tokens.add(count);
+            symptomsExist.ifPresent(exist -> (exist ? bucket.symptomsExist : bucket.symptomsNotExist).add(count));
+        });
+    }
+
+    public void smsSent() {
+        afterCommit(() -> smsBuckets.computeIfAbsent(currentMinute(), minute -> new LongAdder()).increment());
+    }
+
+    @Scheduled(initialDelayString = "${covid19.publish-token.stats.flush-interval:PT1M}",
+            fixedDelayString = "${covid19.publish-token.stats.flush-interval:PT1M}")
+    public void flushClosed() {
+        flushBefore(currentMinute().minus(1, ChronoUnit.MINUTES));
+    }
+
+    public void flushAll() {
+        flushBefore(Instant.MAX);
+    }
+
+    @Override
+    public void destroy() {
+        flushAll();
+    }
+
+    private synchronized void flushBefore(Instant limit) {
+        Map<Instant, TokenBucket> flushedTokens = new HashMap<>();
+        List<SqlParameterSource> tokenRows = new ArrayList<>();
+        for (Map.Entry<Instant, TokenBucket> entry : tokenBuckets.entrySet()) {
+            if (entry.getKey().isBefore(limit) && tokenBuckets.remove(entry.getKey(), entry.getValue())) {
+                TokenBucket bucket = entry.getValue();
+                flushedTokens.put(entry.getKey(), bucket);
+                tokenRows.add(new MapSqlParameterSource()
+                        .addValue("created_at", Timestamp.from(entry.getKey()))
+                        .addValue("token_count", bucket.tokens.sum())
+                        .addValue("symptoms_exist_count", bucket.symptomsExist.sum())
+                        .addValue("symptoms_not_exist_count", bucket.symptomsNotExist.sum()));
+            }
+        }
+        Map<Instant, LongAdder> flushedSms = new HashMap<>();
+        List<SqlParameterSource> smsRows = new ArrayList<>();
+        for (Map.Entry<Instant, LongAdder> entry : smsBuckets.entrySet()) {
+            if (entry.getKey().isBefore(limit) && smsBuckets.remove(entry.getKey(), entry.getValue())) {
+                flushedSms.put(entry.getKey(), entry.getValue());
+                smsRows.add(new MapSqlParameterSource()
+                        .addValue("sent_at", Timestamp.from(entry.getKey()))
+                        .addValue("sms_count", entry.getValue().sum()));
+            }
+        }
+        if (!tokenRows.isEmpty()) {
+            String sql = "insert into pt.stats_token_create_minute" +
+                    "(created_at, token_count, symptoms_exist_count, symptoms_not_exist_count) " +
+                    "values (:created_at, :token_count, :symptoms_exist_count, :symptoms_not_exist_count) " +
+                    "on conflict (created_at) do update set " +
+                    "token_count = stats_token_create_minute.token_count + excluded.token_count, " +
+                    "symptoms_exist_count = stats_token_create_minute.symptoms_exist_count + excluded.symptoms_exist_count, " +
+                    "symptoms_not_exist_count = stats_token_create_minute.symptoms_not_exist_count + excluded.symptoms_not_exist_count";
+            try {
+                jdbcTemplate.batchUpdate(sql, tokenRows.toArray(new SqlParameterSource[0]));
+            } catch (RuntimeException e) {
+                flushedTokens.forEach((minute, bucket) -> tokenBuckets.merge(minute, bucket, TokenBucket::add));
+                LOG.error("Flushing token stats failed: {}", keyValue("tokenMinutes", tokenRows.size()), e);
+                tokenRows.clear();
+            }
+        }
+        if (!smsRows.isEmpty()) {
+            String sql = "insert into pt.stats_sms_send_minute(sent_at, sms_count) values (:sent_at, :sms_count) " +
+                    "on conflict (sent_at) do update set sms_count = stats_sms_send_minute.sms_count + excluded.sms_count";
+            try {
+                jdbcTemplate.batchUpdate(sql, smsRows.toArray(new SqlParameterSource[0]));
+            } catch (RuntimeException e) {
+                flushedSms.forEach((minute, count) -> smsBuckets.merge(minute, count, (current, restored) -> {
+                    current.add(restored.sum());
+                    return current;
+                }));
+                LOG.error("Flushing SMS stats failed: {}", keyValue("smsMinutes", smsRows.size()), e);
+                smsRows.clear();
+            }
+        }
+        if (!tokenRows.isEmpty() || !smsRows.isEmpty()) {
+            LOG.info("Stats flushed: {} {}", keyValue("tokenMinutes", tokenRows.size()), keyValue("smsMinutes", smsRows.size()));
+        }
+    }
+
+    private static Instant currentMinute() {
+        return Instant.now().truncatedTo(ChronoUnit.MINUTES);
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private static final class TokenBucket {
+        final LongAdder tokens = new LongAdder();
+        final LongAdder symptomsExist = new LongAdder();
+        final LongAdder symptomsNotExist = new LongAdder();
+
+        TokenBucket add(TokenBucket other) {
+            tokens.add(other.tokens.sum());
+            symptomsExist.add(other.symptomsExist.sum());
+            symptomsNotExist.add(other.symptomsNotExist.sum());
+            return this;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package fi.thl.covid19.publishtoken;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Pool of publish tokens reserved in the DB in advance, so that generating a token does not wait on collision
+ * retries. Reservations are unique across nodes and against stored tokens, and are handed out from memory.
+ * <p>
+ * Reservations are only held for a limited time: stale ones are dropped from memory and later released by
+ * maintenance.
+ */
+@Component
+public class TokenPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenPool.class);
+
+    private static final int TOKEN_LENGTH = 12;
+    private static final int MAX_RESERVE_BATCH = 1000;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final PublishTokenDao dao;
+    private final boolean enabled;
+    private final int size;
+    private final Duration reservationLifetime;
+
+    private final Queue<Reservation> tokens = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger available = new AtomicInteger();
+
+    public TokenPool(PublishTokenDao dao,
+                     MeterRegistry meterRegistry,
+                     @Value("${covid19.publish-token.pool.enabled:true}") boolean enabled,
+                     @Value("${covid19.publish-token.pool.size:1000}") int size,
+                     @Value("${covid19.publish-token.pool.reservation-lifetime:PT12H}") Duration reservationLifetime) {
+        this.dao = requireNonNull(dao);
+        this.enabled = enabled;
+        this.size = size;
+        this.reservationLifetime = requireNonNull(reservationLifetime);
+        Gauge.builder("publish_token_pool_size", available::get).register(meterRegistry);
+        LOG.info("Initialized: {} {} {}",
+                keyValue("enabled", enabled),
+                keyValue("size", size),
+                keyValue("reservationLifetime", reservationLifetime));
+    }
+
+    public Duration getReservationLifetime() {
+        return reservationLifetime;
+    }
+
+    /**
+     * Takes a reserved token, if one is available. Never blocks or touches the DB.
+     */
+    public Optional<String> take() {
+        Instant staleLimit = Instant.now().minus(reservationLifetime);
+        Reservation reservation;
+        while ((reservation = tokens.poll()) != null) {
+            available.decrementAndGet();
+            if (reservation.reservedAt.isAfter(staleLimit)) {
+                return Optional.of(reservation.token);
+            }
+        }
+        return Optional.empty();
+    }
+
+    public int available() {
+        return available.get();
+    }
+
+    @Scheduled(initialDelayString = "${covid19.publish-token.pool.refill-interval:PT5S}",
+            fixedDelayString = "${covid19.publish-token.pool.refill-interval:PT5S}")
+    public void refill() {
+        if (enabled) {
+            int missing = size - available.get();
+            while (missing > 0) {
+                int reserved = reserve(Math.min(missing, MAX_RESERVE_BATCH));
+                if (reserved == 0) {
+                    break;
+                }
+                missing -= reserved;
+            }
+        }
+    }
+
+    private int reserve(int count) {
+        Set<String> candidates = new HashSet<>(count);
+        while (candidates.size() < count) {
+            candidates.add(randomToken(random));
+        }
+        Instant reservedAt = Instant.now();
+        List<String> reserved = dao.reserveTokens(candidates);
+        for (String token : reserved) {
+            tokens.add(new Reservation(token, reservedAt));
+        }
+        available.addAndGet(reserved.size());
+        LOG.info("Publish tokens reserved: {} {}", keyValue("requested", count), keyValue("reserved", reserved.size()));
+        return reserved.size();
+    }
+
+    static String randomToken(SecureRandom random) {
+        char[] token = new char[TOKEN_LENGTH];
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            token[i] = (char) ('0' + random.nextInt(10));
+        }
+        return new String(token);
+    }
+
+    private static class Reservation {
+        final String token;
+        final Instant reservedAt;
+
+        Reservation(String token, Instant reservedAt) {
+            this.token = token;
+            this.reservedAt = reservedAt;
+        }
+    }
+}
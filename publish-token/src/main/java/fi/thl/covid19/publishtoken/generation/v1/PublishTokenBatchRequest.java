@@ -0,0 +1,23 @@
+package fi.thl.covid19.publishtoken.generation.v1;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import fi.thl.covid19.publishtoken.error.InputValidationException;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+public class PublishTokenBatchRequest {
+    public static final int MAX_REQUESTS = 1000;
+
+    public final List<PublishTokenGenerationRequest> requests;
+
+    @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
+    public PublishTokenBatchRequest(@JsonProperty("requests") List<PublishTokenGenerationRequest> requests) {
+        this.requests = requireNonNull(requests, "Requests required");
+        if (requests.isEmpty() || requests.size() > MAX_REQUESTS) {
+            throw new InputValidationException("Invalid request count: count=" + requests.size() + " max=" + MAX_REQUESTS);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package fi.thl.covid19.publishtoken.generation.v1;
+
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+public class PublishTokenBatchResult {
+    public final List<Item> results;
+
+    public PublishTokenBatchResult(List<Item> results) {
+        this.results = requireNonNull(results);
+    }
+
+    public static class Item {
+        public final PublishToken publishToken;
+        /**
+         * Status of the token SMS, empty when the request had no number. See SmsDeliveryStatus for the values.
+         */
+        public final Optional<String> smsStatus;
+
+        public Item(PublishToken publishToken, Optional<String> smsStatus) {
+            this.publishToken = requireNonNull(publishToken);
+            this.smsStatus = requireNonNull(smsStatus);
+        }
+    }
+}
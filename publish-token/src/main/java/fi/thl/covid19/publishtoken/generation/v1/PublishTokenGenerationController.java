@@ -2,12 +2,22 @@ package fi.thl.covid19.publishtoken.generation.v1;
 
 import fi.thl.covid19.publishtoken.PublishTokenService;
 import fi.thl.covid19.publishtoken.Validation;
+import fi.thl.covid19.publishtoken.error.InputValidationException;
 import fi.thl.covid19.publishtoken.error.SmsGatewayException;
+import fi.thl.covid19.publishtoken.sms.SmsDeliveryStatus;
 import fi.thl.covid19.publishtoken.sms.SmsService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static fi.thl.covid19.publishtoken.Validation.validatePublishToken;
 import static fi.thl.covid19.publishtoken.Validation.validateUserName;
 import static java.util.Objects.requireNonNull;
 import static net.logstash.logback.argument.StructuredArguments.keyValue;
@@ -23,10 +33,14 @@ public class PublishTokenGenerationController {
 
     private final PublishTokenService publishTokenService;
     private final SmsService smsService;
+    private final int maxDirectSmsPerBatch;
 
-    public PublishTokenGenerationController(PublishTokenService publishTokenService, SmsService smsService) {
+    public PublishTokenGenerationController(PublishTokenService publishTokenService,
+                                            SmsService smsService,
+                                            @Value("${covid19.publish-token.batch.max-direct-sms:20}") int maxDirectSmsPerBatch) {
         this.publishTokenService = requireNonNull(publishTokenService);
         this.smsService = requireNonNull(smsService);
+        this.maxDirectSmsPerBatch = maxDirectSmsPerBatch;
     }
 
     @PostMapping
@@ -50,7 +64,7 @@ public class PublishTokenGenerationController {
                     request.requestUser,
                     request.symptomsExist);
             request.patientSmsNumber.ifPresent(number -> {
-                        if (!smsService.send(number, token)) {
+                        if (!smsService.sendOrQueue(number, token)) {
                             publishTokenService.invalidateToken(token);
                             throw new SmsGatewayException();
                         }
@@ -60,6 +74,69 @@ public class PublishTokenGenerationController {
         }
     }
 
+    /**
+     * Generates tokens for many patients at once. Each result carries its token and the status of its SMS, so a failed
+     * SMS does not fail the other results. The token of a failed SMS stays valid, as it is returned to the caller.
+     * Without the SMS outbox the messages are sent during the request, so their number is limited separately.
+     */
+    @PostMapping("/batch")
+    public PublishTokenBatchResult generateTokens(@RequestHeader(name = SERVICE_NAME_HEADER) String rawRequestService,
+                                                  @RequestHeader(name = VALIDATE_ONLY_HEADER, required = false) boolean validateOnly,
+                                                  @RequestBody PublishTokenBatchRequest request) {
+        String requestService = Validation.validateServiceName(rawRequestService);
+        long smsCount = request.requests.stream().filter(r -> r.patientSmsNumber.isPresent()).count();
+        if (!smsService.isOutboxEnabled() && smsCount > maxDirectSmsPerBatch) {
+            throw new InputValidationException("Too many SMS numbers without SMS outbox: count=" + smsCount
+                    + " max=" + maxDirectSmsPerBatch);
+        }
+
+        if (validateOnly) {
+            LOG.debug("API Validation Test: Generate publish token batch: {} {}",
+                    keyValue("service", requestService), keyValue("count", request.requests.size()));
+            return new PublishTokenBatchResult(request.requests.stream()
+                    .map(r -> new PublishTokenBatchResult.Item(publishTokenService.generate(), Optional.empty()))
+                    .collect(Collectors.toList()));
+        } else {
+            LOG.info("Generating publish token batch: {} {} {}",
+                    keyValue("service", requestService),
+                    keyValue("count", request.requests.size()),
+                    keyValue("smsCount", smsCount));
+            List<PublishToken> tokens = publishTokenService.generateAndStore(request.requests, requestService);
+            List<PublishTokenBatchResult.Item> results = new ArrayList<>(tokens.size());
+            int failed = 0;
+            for (int i = 0; i < tokens.size(); i++) {
+                PublishToken token = tokens.get(i);
+                Optional<String> smsStatus = request.requests.get(i).patientSmsNumber.map(number -> sendOrQueue(number, token));
+                if (smsStatus.isPresent() && smsStatus.get().equals(SmsDeliveryStatus.FAILED)) {
+                    failed++;
+                }
+                results.add(new PublishTokenBatchResult.Item(token, smsStatus));
+            }
+            if (failed > 0) {
+                LOG.warn("Publish token batch SMS failed: {} {}", keyValue("service", requestService), keyValue("failed", failed));
+            }
+            return new PublishTokenBatchResult(results);
+        }
+    }
+
+    private String sendOrQueue(String number, PublishToken token) {
+        if (!smsService.sendOrQueue(number, token)) {
+            return SmsDeliveryStatus.FAILED;
+        } else {
+            return smsService.isOutboxEnabled() ? SmsDeliveryStatus.PENDING : SmsDeliveryStatus.SENT;
+        }
+    }
+
+    @GetMapping("/sms/{token}")
+    public ResponseEntity<SmsDeliveryStatus> getSmsStatus(@RequestHeader(name = SERVICE_NAME_HEADER) String rawRequestService,
+                                                          @PathVariable(value = "token") String token) {
+        String validatedService = Validation.validateServiceName(rawRequestService);
+        String validatedToken = validatePublishToken(requireNonNull(token));
+        Optional<SmsDeliveryStatus> status = smsService.getDeliveryStatus(validatedToken, validatedService);
+        LOG.info("Fetching SMS status: {} {}", keyValue("service", validatedService), keyValue("found", status.isPresent()));
+        return status.map(ResponseEntity::ok).orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
     @GetMapping("/{user}")
     public PublishTokenList getTokensBy(@RequestHeader(name = SERVICE_NAME_HEADER) String rawRequestService, @PathVariable(value = "user") String user) {
         String validatedService = Validation.validateServiceName(rawRequestService);
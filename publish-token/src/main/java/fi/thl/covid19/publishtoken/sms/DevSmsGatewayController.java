@@ -0,0 +1,28 @@
+package fi.thl.covid19.publishtoken.sms;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Stub SMS gateway for local testing. Point PT_SMS_GATEWAY_URL at it to accept all messages without sending them.
+ */
+@Profile("dev")
+@RestController
+@RequestMapping("/dev/sms-gateway")
+public class DevSmsGatewayController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DevSmsGatewayController.class);
+
+    @PostMapping
+    public String receive(@RequestBody String payload) {
+        LOG.info("Stub SMS gateway received message: {}", keyValue("length", payload.length()));
+        return "{}";
+    }
+}
@@ -0,0 +1,22 @@
+package fi.thl.covid19.publishtoken.sms;
+
+import java.time.Instant;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+public class SmsDeliveryStatus {
+    public static final String PENDING = "pending";
+    public static final String SENT = "sent";
+    public static final String FAILED = "failed";
+
+    public final String status;
+    public final int attempts;
+    public final Optional<Instant> sentAt;
+
+    public SmsDeliveryStatus(String status, int attempts, Optional<Instant> sentAt) {
+        this.status = requireNonNull(status);
+        this.attempts = attempts;
+        this.sentAt = requireNonNull(sentAt);
+    }
+}
@@ -0,0 +1,109 @@
+package fi.thl.covid19.publishtoken.sms;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static fi.thl.covid19.publishtoken.sms.SmsDeliveryStatus.*;
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+@Repository
+public class SmsOutboxDao {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmsOutboxDao.class);
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    public SmsOutboxDao(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = requireNonNull(jdbcTemplate);
+    }
+
+    @Transactional
+    public boolean addMessage(String token, String phoneNumber) {
+        String sql = "insert into pt.sms_outbox(publish_token_id, phone_number) " +
+                "select id, :phone_number from pt.publish_token where token = :token";
+        int count = jdbcTemplate.update(sql, Map.of("token", token, "phone_number", phoneNumber));
+        LOG.info("SMS queued: {}", keyValue("count", count));
+        return count == 1;
+    }
+
+    /**
+     * Claims due messages for sending. A claim postpones the next attempt by the lease, so a message is picked up
+     * again if the claiming node dies, and other nodes skip the rows while they are locked.
+     */
+    @Transactional
+    public List<SmsOutboxEntry> claimMessages(int limit, Duration lease) {
+        String sql = "update pt.sms_outbox o set next_attempt_at = now() + cast(:lease as interval) " +
+                "from pt.publish_token t " +
+                "where t.id = o.publish_token_id and o.id in (" +
+                "  select id from pt.sms_outbox " +
+                "  where status = :pending and next_attempt_at <= now() " +
+                "  order by next_attempt_at limit :limit " +
+                "  for update skip locked" +
+                ") " +
+                "returning o.id, o.phone_number, o.attempts, t.token, t.valid_through";
+        Map<String, Object> params = Map.of(
+                "lease", lease.toSeconds() + " seconds",
+                "pending", PENDING,
+                "limit", limit);
+        return jdbcTemplate.query(sql, params, (rs, i) -> new SmsOutboxEntry(
+                rs.getLong("id"),
+                rs.getString("phone_number"),
+                rs.getString("token"),
+                rs.getTimestamp("valid_through").toInstant(),
+                rs.getInt("attempts")));
+    }
+
+    @Transactional
+    public void markSent(long id) {
+        String sql = "update pt.sms_outbox " +
+                "set status = :sent, sent_at = now(), attempts = attempts + 1, phone_number = null " +
+                "where id = :id";
+        jdbcTemplate.update(sql, Map.of("sent", SENT, "id", id));
+    }
+
+    @Transactional
+    public void retryLater(long id, Duration delay) {
+        String sql = "update pt.sms_outbox " +
+                "set attempts = attempts + 1, next_attempt_at = now() + cast(:delay as interval) " +
+                "where id = :id";
+        jdbcTemplate.update(sql, Map.of("delay", delay.toSeconds() + " seconds", "id", id));
+    }
+
+    /**
+     * Gives up on a message. The token is invalidated as well, since the patient never received it.
+     */
+    @Transactional
+    public void markFailed(long id) {
+        String sql = "update pt.sms_outbox " +
+                "set status = :failed, attempts = attempts + 1, phone_number = null " +
+                "where id = :id";
+        jdbcTemplate.update(sql, Map.of("failed", FAILED, "id", id));
+        String invalidate = "update pt.publish_token set valid_through = now() " +
+                "where id = (select publish_token_id from pt.sms_outbox where id = :id) and valid_through > now()";
+        jdbcTemplate.update(invalidate, Map.of("id", id));
+        LOG.warn("SMS delivery failed, token invalidated: {}", keyValue("id", id));
+    }
+
+    public Optional<SmsDeliveryStatus> getStatus(String token, String originService) {
+        String sql = "select o.status, o.attempts, o.sent_at " +
+                "from pt.sms_outbox o join pt.publish_token t on t.id = o.publish_token_id " +
+                "where t.token = :token and t.origin_service = :origin_service " +
+                "order by o.id desc limit 1";
+        Map<String, Object> params = Map.of("token", token, "origin_service", originService);
+        return jdbcTemplate.query(sql, params, (rs, i) -> new SmsDeliveryStatus(
+                rs.getString("status"),
+                rs.getInt("attempts"),
+                Optional.ofNullable(rs.getTimestamp("sent_at")).map(Timestamp::toInstant))
+        ).stream().findFirst();
+    }
+}
@@ -0,0 +1,24 @@
+package fi.thl.covid19.publishtoken.sms;
+
+import java.time.Instant;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An outbox message claimed for sending.
+ */
+public class SmsOutboxEntry {
+    public final long id;
+    public final String phoneNumber;
+    public final String token;
+    public final Instant validThroughTime;
+    public final int attempts;
+
+    public SmsOutboxEntry(long id, String phoneNumber, String token, Instant validThroughTime, int attempts) {
+        this.id = id;
+        this.phoneNumber = requireNonNull(phoneNumber);
+        this.token = requireNonNull(token);
+        this.validThroughTime = requireNonNull(validThroughTime);
+        this.attempts = attempts;
+    }
+}
@@ -0,0 +1,177 @@
+package fi.thl.covid19.publishtoken.sms;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+import static net.logstash.logback.argument.StructuredArguments.keyValue;
+
+/**
+ * Delivers queued token messages from the SMS outbox. Claimed messages are sent in parallel with bounded
+ * concurrency, while the results are written from the polling thread to keep the DB connection use low.
+ * Failed sends are retried with exponential backoff until the attempts run out.
+ * <p>
+ * Each message carries its own token, so recipients cannot share a gateway call.
+ */
+@Component
+public class SmsOutboxWorker implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmsOutboxWorker.class);
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 30_000;
+
+    private final SmsOutboxDao dao;
+    private final SmsService smsService;
+    private final ExecutorService senders;
+    private final int batchSize;
+    private final int maxRounds;
+    private final int maxAttempts;
+    private final Duration retryDelay;
+    private final Duration claimLease;
+
+    // UNSENT messages were not attempted and are left to their claim lease
+    enum Outcome {SENT, RETRY, FAILED, UNSENT}
+
+    public SmsOutboxWorker(SmsOutboxDao dao,
+                           SmsService smsService,
+                           @Value("${covid19.publish-token.sms-outbox.concurrency:4}") int concurrency,
+                           @Value("${covid19.publish-token.sms-outbox.batch-size:20}") int batchSize,
+                           @Value("${covid19.publish-token.sms-outbox.max-rounds:10}") int maxRounds,
+                           @Value("${covid19.publish-token.sms-outbox.max-attempts:5}") int maxAttempts,
+                           @Value("${covid19.publish-token.sms-outbox.retry-delay:PT30S}") Duration retryDelay,
+                           @Value("${covid19.publish-token.sms-outbox.claim-lease:PT5M}") Duration claimLease) {
+        this.dao = requireNonNull(dao);
+        this.smsService = requireNonNull(smsService);
+        this.senders = Executors.newFixedThreadPool(concurrency, new CustomizableThreadFactory("sms-sender-"));
+        this.batchSize = batchSize;
+        this.maxRounds = maxRounds;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = requireNonNull(retryDelay);
+        this.claimLease = requireNonNull(claimLease);
+        LOG.info("Initialized: {} {} {} {} {} {}",
+                keyValue("enabled", smsService.isOutboxEnabled()),
+                keyValue("concurrency", concurrency),
+                keyValue("batchSize", batchSize),
+                keyValue("maxRounds", maxRounds),
+                keyValue("maxAttempts", maxAttempts),
+                keyValue("retryDelay", retryDelay));
+    }
+
+    /**
+     * Claims and delivers full batches while there is a backlog, up to maxRounds batches per poll, so that a slow
+     * gateway cannot keep the scheduler thread busy for the whole backlog.
+     */
+    @Scheduled(initialDelayString = "${covid19.publish-token.sms-outbox.poll-interval:PT1S}",
+            fixedDelayString = "${covid19.publish-token.sms-outbox.poll-interval:PT1S}")
+    public void sendPending() {
+        if (smsService.isOutboxEnabled()) {
+            List<SmsOutboxEntry> claimed;
+            int rounds = 0;
+            do {
+                claimed = dao.claimMessages(batchSize, claimLease);
+                if (!claimed.isEmpty()) {
+                    deliver(claimed);
+                }
+                rounds++;
+            } while (claimed.size() == batchSize && rounds < maxRounds);
+        }
+    }
+
+    void deliver(List<SmsOutboxEntry> entries) {
+        List<CompletableFuture<Outcome>> sends = new ArrayList<>(entries.size());
+        for (SmsOutboxEntry entry : entries) {
+            sends.add(sendAsync(entry));
+        }
+        int sent = 0;
+        int unrecorded = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            SmsOutboxEntry entry = entries.get(i);
+            Outcome outcome = sends.get(i).join();
+            try {
+                record(entry, outcome);
+                if (outcome == Outcome.SENT) {
+                    sent++;
+                }
+            } catch (RuntimeException e) {
+                // The message stays claimed and is picked up again once its claim lease ends
+                unrecorded++;
+                LOG.error("SMS outbox result not recorded: {} {}", keyValue("id", entry.id), keyValue("outcome", outcome), e);
+            }
+        }
+        LOG.info("SMS outbox processed: {} {} {}",
+                keyValue("claimed", entries.size()), keyValue("sent", sent), keyValue("unrecorded", unrecorded));
+    }
+
+    private CompletableFuture<Outcome> sendAsync(SmsOutboxEntry entry) {
+        try {
+            return CompletableFuture.supplyAsync(() -> send(entry), senders)
+                    .exceptionally(e -> {
+                        LOG.warn("SMS send failed: {}", keyValue("id", entry.id), e);
+                        return failedAttempt(entry);
+                    });
+        } catch (RejectedExecutionException e) {
+            // Shutting down: the message is left claimed until its claim lease ends
+            return CompletableFuture.completedFuture(Outcome.UNSENT);
+        }
+    }
+
+    private Outcome send(SmsOutboxEntry entry) {
+        if (entry.validThroughTime.isBefore(Instant.now())) {
+            return Outcome.FAILED;
+        } else if (smsService.send(entry.phoneNumber, entry.token)) {
+            return Outcome.SENT;
+        } else {
+            return failedAttempt(entry);
+        }
+    }
+
+    private Outcome failedAttempt(SmsOutboxEntry entry) {
+        return entry.attempts + 1 < maxAttempts ? Outcome.RETRY : Outcome.FAILED;
+    }
+
+    private void record(SmsOutboxEntry entry, Outcome outcome) {
+        if (outcome == Outcome.SENT) {
+            dao.markSent(entry.id);
+        } else if (outcome == Outcome.RETRY) {
+            dao.retryLater(entry.id, backoff(entry.attempts));
+        } else if (outcome == Outcome.FAILED) {
+            dao.markFailed(entry.id);
+        }
+    }
+
+    Duration backoff(int previousAttempts) {
+        return retryDelay.multipliedBy(1L << Math.min(previousAttempts, 10));
+    }
+
+    /**
+     * Lets the sends in progress finish, so that their results are not lost with the gateway calls already made.
+     */
+    @Override
+    public void destroy() {
+        senders.shutdown();
+        try {
+            if (!senders.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("SMS sends did not finish before shutdown: {}", keyValue("timeoutMs", SHUTDOWN_TIMEOUT_MS));
+                senders.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            senders.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,10 +1,11 @@
 package fi.thl.covid19.publishtoken.sms;
 
-import fi.thl.covid19.publishtoken.PublishTokenDao;
+import fi.thl.covid19.publishtoken.PublishTokenStats;
 import fi.thl.covid19.publishtoken.generation.v1.PublishToken;
 import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
@@ -13,8 +14,8 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
-import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 import static java.util.Objects.requireNonNull;
@@ -29,27 +30,58 @@ public class SmsService {
 
     private final SmsConfig config;
 
-    private final PublishTokenDao dao;
+    private final PublishTokenStats stats;
+
+    private final SmsOutboxDao outboxDao;
 
     private final MeterRegistry meterRegistry;
 
+    private final boolean outboxEnabled;
+
     private final String smsErrorRequestsTotalCount = "sms_error_requests_total_count";
 
-    public SmsService(RestTemplate restTemplate, SmsConfig config, PublishTokenDao dao, MeterRegistry meterRegistry) {
+    public SmsService(RestTemplate restTemplate,
+                      SmsConfig config,
+                      PublishTokenStats stats,
+                      SmsOutboxDao outboxDao,
+                      MeterRegistry meterRegistry,
+                      @Value("${covid19.publish-token.sms-outbox.enabled:false}") boolean outboxEnabled) {
         this.restTemplate = requireNonNull(restTemplate);
         this.config = requireNonNull(config);
-        this.dao = requireNonNull(dao);
+        this.stats = requireNonNull(stats);
+        this.outboxDao = requireNonNull(outboxDao);
         this.meterRegistry = requireNonNull(meterRegistry);
+        this.outboxEnabled = outboxEnabled;
         initCounters();
-        LOG.info("SMS Service initialized: {} {} {}",
+        LOG.info("SMS Service initialized: {} {} {} {}",
                 keyValue("active", config.gateway.isPresent()),
+                keyValue("outbox", outboxEnabled),
                 keyValue("senderName", config.senderName),
                 keyValue("gateway", config.gateway.orElse("")));
     }
 
+    public boolean isOutboxEnabled() {
+        return outboxEnabled;
+    }
+
+    /**
+     * Sends the token right away, or with the outbox enabled, queues it for {@link SmsOutboxWorker}.
+     */
+    public boolean sendOrQueue(String number, PublishToken token) {
+        return outboxEnabled ? outboxDao.addMessage(token.token, number) : send(number, token);
+    }
+
+    public Optional<SmsDeliveryStatus> getDeliveryStatus(String token, String originService) {
+        return outboxDao.getStatus(token, originService);
+    }
+
     public boolean send(String number, PublishToken token) {
-        if (config.gateway.isPresent() && send(config.gateway.get(), number, config.formatContent(token.token))) {
-            dao.addSmsStatsRow(Instant.now());
+        return send(number, token.token);
+    }
+
+    public boolean send(String number, String token) {
+        if (config.gateway.isPresent() && send(config.gateway.get(), number, config.formatContent(token))) {
+            stats.smsSent();
             return true;
         } else {
             meterRegistry.counter(smsErrorRequestsTotalCount).increment(1.0);
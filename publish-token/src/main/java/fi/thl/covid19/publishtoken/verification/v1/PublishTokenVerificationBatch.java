@@ -0,0 +1,28 @@
+package fi.thl.covid19.publishtoken.verification.v1;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.requireNonNull;
+
+public class PublishTokenVerificationBatch {
+    public final List<Result> results;
+
+    public PublishTokenVerificationBatch(List<String> tokens, Map<String, PublishTokenVerification> verifications) {
+        this.results = tokens.stream()
+                .map(token -> new Result(token, Optional.ofNullable(verifications.get(token))))
+                .collect(Collectors.toList());
+    }
+
+    public static class Result {
+        public final String token;
+        public final Optional<PublishTokenVerification> verification;
+
+        public Result(String token, Optional<PublishTokenVerification> verification) {
+            this.token = requireNonNull(token);
+            this.verification = requireNonNull(verification);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package fi.thl.covid19.publishtoken.verification.v1;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import fi.thl.covid19.publishtoken.Validation;
+import fi.thl.covid19.publishtoken.error.InputValidationException;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.requireNonNull;
+
+public class PublishTokenVerificationBatchRequest {
+    public static final int MAX_TOKENS = 1000;
+
+    public final List<String> tokens;
+
+    @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
+    public PublishTokenVerificationBatchRequest(@JsonProperty("tokens") List<String> tokens) {
+        requireNonNull(tokens, "Tokens required");
+        if (tokens.size() > MAX_TOKENS) {
+            throw new InputValidationException("Too many tokens: count=" + tokens.size() + " max=" + MAX_TOKENS);
+        }
+        this.tokens = tokens.stream()
+                .map(token -> Validation.validatePublishToken(requireNonNull(token, "Token required")))
+                .collect(Collectors.toList());
+    }
+}
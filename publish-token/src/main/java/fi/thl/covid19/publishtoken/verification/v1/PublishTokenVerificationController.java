@@ -4,11 +4,9 @@ import fi.thl.covid19.publishtoken.PublishTokenService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.RequestHeader;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
 
+import java.util.Map;
 import java.util.Optional;
 
 import static fi.thl.covid19.publishtoken.Validation.validatePublishToken;
@@ -36,4 +34,11 @@ public class PublishTokenVerificationController {
         LOG.info("Verifying token: {}", keyValue("accepted", result.isPresent()));
         return result.map(ResponseEntity::ok).orElseGet(() -> ResponseEntity.noContent().build());
     }
+
+    @PostMapping("/batch")
+    public PublishTokenVerificationBatch getVerifications(@RequestBody PublishTokenVerificationBatchRequest request) {
+        Map<String, PublishTokenVerification> result = publishTokenService.getVerifications(request.tokens);
+        LOG.info("Verifying tokens: {} {}", keyValue("tokens", request.tokens.size()), keyValue("accepted", result.size()));
+        return new PublishTokenVerificationBatch(request.tokens, result);
+    }
 }
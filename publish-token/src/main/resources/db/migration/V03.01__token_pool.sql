@@ -0,0 +1,7 @@
+-- Tokens reserved in advance by the token pools of the service nodes
+create table pt.token_pool (
+    token varchar(12) primary key,
+    reserved_at timestamptz not null default now()
+);
+
+create index token_pool_reserved_at_idx on pt.token_pool(reserved_at);
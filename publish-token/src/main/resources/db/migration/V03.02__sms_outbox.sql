@@ -0,0 +1,14 @@
+-- Token SMS messages waiting for delivery. The phone number is cleared once the message is done with.
+create table pt.sms_outbox (
+    id bigint primary key generated always as identity,
+    publish_token_id int not null references pt.publish_token(id) on delete cascade,
+    phone_number varchar(20),
+    status varchar(10) not null default 'pending',
+    attempts int not null default 0,
+    next_attempt_at timestamptz not null default now(),
+    created_at timestamptz not null default now(),
+    sent_at timestamptz
+);
+
+create index sms_outbox_pending_idx on pt.sms_outbox(next_attempt_at) where status = 'pending';
+create index sms_outbox_publish_token_idx on pt.sms_outbox(publish_token_id);
@@ -0,0 +1,42 @@
+-- Statistics are flushed as per-minute totals instead of a row per event. The history is copied here, and the
+-- per-event tables are kept under new names, as nothing writes to them any more.
+create table pt.stats_token_create_minute (
+    created_at timestamptz primary key,
+    token_count bigint not null,
+    symptoms_exist_count bigint not null,
+    symptoms_not_exist_count bigint not null
+);
+
+insert into pt.stats_token_create_minute(created_at, token_count, symptoms_exist_count, symptoms_not_exist_count)
+    select date_trunc('minute', created_at), count(*),
+        count(*) filter (where symptoms_exist), count(*) filter (where not symptoms_exist)
+    from pt.stats_token_create
+    group by date_trunc('minute', created_at);
+
+create table pt.stats_sms_send_minute (
+    sent_at timestamptz primary key,
+    sms_count bigint not null
+);
+
+insert into pt.stats_sms_send_minute(sent_at, sms_count)
+    select date_trunc('minute', sent_at), count(*)
+    from pt.stats_sms_send
+    group by date_trunc('minute', sent_at);
+
+alter table pt.stats_token_create rename to stats_token_create_per_event;
+alter table pt.stats_sms_send rename to stats_sms_send_per_event;
+
+-- Existing reports on the old tables keep working on the minute totals, with a row per event at its minute
+create view pt.stats_token_create as
+    select totals.created_at,
+        case
+            when token.n <= totals.symptoms_exist_count then true
+            when token.n <= totals.symptoms_exist_count + totals.symptoms_not_exist_count then false
+        end as symptoms_exist
+    from pt.stats_token_create_minute totals
+    cross join generate_series(1, totals.token_count) as token(n);
+
+create view pt.stats_sms_send as
+    select totals.sent_at
+    from pt.stats_sms_send_minute totals
+    cross join generate_series(1, totals.sms_count) as sms(n);
@@ -1,6 +1,7 @@
 package fi.thl.covid19.publishtoken;
 
 import fi.thl.covid19.publishtoken.generation.v1.PublishToken;
+import fi.thl.covid19.publishtoken.generation.v1.PublishTokenGenerationRequest;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,8 +12,7 @@ import org.springframework.test.context.ActiveProfiles;
 
 import java.time.Instant;
 import java.time.LocalDate;
-import java.util.Collections;
-import java.util.Optional;
+import java.util.*;
 
 import static fi.thl.covid19.publishtoken.Validation.SERVICE_NAME_MAX_LENGTH;
 import static fi.thl.covid19.publishtoken.Validation.USER_NAME_MAX_LENGTH;
@@ -25,8 +25,10 @@ import static org.junit.jupiter.api.Assertions.*;
 @AutoConfigureMockMvc
 public class PublishTokenDaoIT {
 
-    private static final String STATS_TOKEN_CREATE = "stats_token_create";
-    private static final String STATS_SMS_SEND = "stats_sms_send";
+    private static final String STATS_TOKEN_CREATE = "stats_token_create_minute";
+    private static final String STATS_SMS_SEND = "stats_sms_send_minute";
+    private static final String TOKEN_COUNT = "token_count";
+    private static final String SMS_COUNT = "sms_count";
 
     @Autowired
     private PublishTokenDao dao;
@@ -34,9 +36,13 @@ public class PublishTokenDaoIT {
     @Autowired
     NamedParameterJdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private PublishTokenStats stats;
+
     @BeforeEach
     public void setUp() {
         dao.deleteTokensExpiredBefore(Instant.now().plus(48, HOURS));
+        dao.deleteTokenReservationsBefore(Instant.now().plus(48, HOURS));
         deleteStatsRows();
     }
 
@@ -45,7 +51,7 @@ public class PublishTokenDaoIT {
         PublishToken token = new PublishToken("testtoken", Instant.now(), Instant.now().plus(1, HOURS));
         assertTrue(dao.storeToken(token, LocalDate.now(), "testservice", "testuser", Optional.of(true)));
         assertFalse(dao.storeToken(token, LocalDate.now(), "testservice", "testuser", Optional.of(true)));
-        assertStatRowAdded(STATS_TOKEN_CREATE);
+        assertStatRowAdded(STATS_TOKEN_CREATE, TOKEN_COUNT);
     }
 
     @Test
@@ -60,21 +66,64 @@ public class PublishTokenDaoIT {
         dao.storeToken(token, LocalDate.now(), "a", "a", Optional.empty());
     }
 
+    @Test
+    public void storedAndReservedTokensAreNotReservedAgain() {
+        PublishToken token = new PublishToken("000000000021", Instant.now(), Instant.now().plus(1, HOURS));
+        dao.storeToken(token, LocalDate.now(), "testservice", "testuser", Optional.empty());
+
+        assertEquals(List.of("000000000022"), dao.reserveTokens(List.of("000000000021", "000000000022")));
+        assertEquals(List.of("000000000023"), dao.reserveTokens(List.of("000000000022", "000000000023")));
+        dao.deleteTokenReservationsBefore(Instant.now().plus(1, HOURS));
+        assertEquals(List.of("000000000022"), dao.reserveTokens(List.of("000000000022")));
+    }
+
+    @Test
+    public void tokenBatchSkipsCollisionsAndAddsStats() {
+        Instant now = Instant.now();
+        PublishToken existing = new PublishToken("000000000041", now, now.plus(1, HOURS));
+        dao.storeToken(existing, LocalDate.now(), "testservice", "testuser", Optional.empty());
+        deleteStatsRows();
+
+        Map<String, PublishTokenGenerationRequest> requests = new LinkedHashMap<>();
+        requests.put("000000000041", new PublishTokenGenerationRequest("user1", LocalDate.now(), Optional.empty(), Optional.empty(), Optional.empty()));
+        requests.put("000000000042", new PublishTokenGenerationRequest("user2", LocalDate.now(), Optional.empty(), Optional.empty(), Optional.of(true)));
+        assertEquals(Set.of("000000000042"), dao.storeTokens(requests, now, now.plus(1, HOURS), "testservice"));
+        assertEquals(Optional.of(true), dao.getVerification("000000000042").orElseThrow().symptomsExist);
+        assertEquals(1, dao.getTokens("testservice", "user2").size());
+        assertStatRowAdded(STATS_TOKEN_CREATE, TOKEN_COUNT);
+        assertEquals(1, jdbcTemplate.queryForObject(
+                "select sum(symptoms_exist_count) from pt." + STATS_TOKEN_CREATE, Collections.emptyMap(), Integer.class));
+    }
+
     @Test
     public void testStatRowsAddedOk() {
-        dao.addSmsStatsRow(Instant.now());
-        dao.addTokenCreateStatsRow(Instant.now(), Optional.empty());
-        assertStatRowAdded(STATS_TOKEN_CREATE);
-        assertStatRowAdded(STATS_SMS_SEND);
+        stats.smsSent();
+        stats.tokensCreated(Optional.empty(), 1);
+        assertStatRowAdded(STATS_TOKEN_CREATE, TOKEN_COUNT);
+        assertStatRowAdded(STATS_SMS_SEND, SMS_COUNT);
+    }
+
+    @Test
+    public void perEventStatsViewsShowFlushedTotals() {
+        stats.smsSent();
+        stats.tokensCreated(Optional.of(true), 1);
+        stats.tokensCreated(Optional.of(false), 2);
+        stats.flushAll();
+        assertEquals(1, jdbcTemplate.queryForObject("select count(*) from pt.stats_sms_send", Collections.emptyMap(), Integer.class));
+        assertEquals(3, jdbcTemplate.queryForObject("select count(*) from pt.stats_token_create", Collections.emptyMap(), Integer.class));
+        assertEquals(1, jdbcTemplate.queryForObject(
+                "select count(*) from pt.stats_token_create where symptoms_exist", Collections.emptyMap(), Integer.class));
     }
 
-    private void assertStatRowAdded(String tableName) {
-        String sql = "select count(*) from pt." + tableName;
+    private void assertStatRowAdded(String tableName, String countColumn) {
+        stats.flushAll();
+        String sql = "select coalesce(sum(" + countColumn + "), 0) from pt." + tableName;
         Integer rows = jdbcTemplate.queryForObject(sql, Collections.emptyMap(), Integer.class);
         assertEquals(1, rows);
     }
 
     private void deleteStatsRows() {
+        stats.flushAll();
         jdbcTemplate.update("delete from pt." + STATS_TOKEN_CREATE, Collections.emptyMap());
         jdbcTemplate.update("delete from pt." + STATS_SMS_SEND, Collections.emptyMap());
     }
@@ -0,0 +1,50 @@
+package fi.thl.covid19.publishtoken;
+
+import fi.thl.covid19.publishtoken.generation.v1.PublishToken;
+import fi.thl.covid19.publishtoken.generation.v1.PublishTokenGenerationRequest;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class PublishTokenServiceTest {
+
+    private final PublishTokenDao dao = mock(PublishTokenDao.class);
+    private final TokenPool pool = mock(TokenPool.class);
+    private final PublishTokenService service = new PublishTokenService(dao, pool, Duration.ofHours(12));
+
+    @Test
+    public void batchTokensFollowRequestOrderAndCollisionsAreRegenerated() {
+        when(pool.take()).thenReturn(Optional.of("000000000001"), Optional.of("000000000002"),
+                Optional.of("000000000003"), Optional.empty());
+        List<Map<String, PublishTokenGenerationRequest>> calls = new ArrayList<>();
+        when(dao.storeTokens(anyMap(), any(), any(), eq("service"))).thenAnswer(invocation -> {
+            Map<String, PublishTokenGenerationRequest> batch = new LinkedHashMap<>(invocation.getArgument(0));
+            calls.add(batch);
+            // The second token collides on the first round
+            Set<String> stored = new HashSet<>(batch.keySet());
+            stored.remove("000000000002");
+            return stored;
+        });
+        List<PublishTokenGenerationRequest> requests = List.of(request("user1"), request("user2"), request("user3"));
+
+        List<PublishToken> tokens = service.generateAndStore(requests, "service");
+
+        assertEquals(2, calls.size());
+        assertEquals(List.of("000000000001", "000000000002", "000000000003"), new ArrayList<>(calls.get(0).keySet()));
+        assertEquals(1, calls.get(1).size());
+        assertSame(requests.get(1), calls.get(1).values().iterator().next());
+        assertEquals("000000000001", tokens.get(0).token);
+        assertEquals(calls.get(1).keySet().iterator().next(), tokens.get(1).token);
+        assertEquals("000000000003", tokens.get(2).token);
+    }
+
+    private PublishTokenGenerationRequest request(String user) {
+        return new PublishTokenGenerationRequest(user, LocalDate.now(), Optional.empty(), Optional.empty(), Optional.empty());
+    }
+}
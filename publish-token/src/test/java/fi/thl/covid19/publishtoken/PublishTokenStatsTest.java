@@ -0,0 +1,74 @@
+package fi.thl.covid19.publishtoken;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.*;
+
+public class PublishTokenStatsTest {
+
+    private final NamedParameterJdbcTemplate jdbc = mock(NamedParameterJdbcTemplate.class);
+    private final PublishTokenStats stats = new PublishTokenStats(jdbc);
+
+    @Test
+    public void eventsAreFlushedAsMinuteTotals() {
+        stats.tokensCreated(Optional.of(true), 2);
+        stats.tokensCreated(Optional.of(false), 1);
+        stats.tokensCreated(Optional.empty(), 3);
+        stats.smsSent();
+        stats.smsSent();
+
+        // The current minute is still open
+        stats.flushClosed();
+        verifyNoInteractions(jdbc);
+
+        stats.flushAll();
+        ArgumentCaptor<SqlParameterSource[]> tokenRows = ArgumentCaptor.forClass(SqlParameterSource[].class);
+        ArgumentCaptor<SqlParameterSource[]> smsRows = ArgumentCaptor.forClass(SqlParameterSource[].class);
+        verify(jdbc).batchUpdate(contains("stats_token_create_minute"), tokenRows.capture());
+        verify(jdbc).batchUpdate(contains("stats_sms_send_minute"), smsRows.capture());
+        assertEquals(6L, sum(tokenRows.getValue(), "token_count"));
+        assertEquals(2L, sum(tokenRows.getValue(), "symptoms_exist_count"));
+        assertEquals(1L, sum(tokenRows.getValue(), "symptoms_not_exist_count"));
+        assertEquals(2L, sum(smsRows.getValue(), "sms_count"));
+
+        stats.flushAll();
+        verify(jdbc, times(2)).batchUpdate(anyString(), any(SqlParameterSource[].class));
+    }
+
+    @Test
+    public void failedTableIsRetriedAlone() {
+        when(jdbc.batchUpdate(contains("stats_token_create_minute"), any(SqlParameterSource[].class)))
+                .thenThrow(new DataAccessResourceFailureException("Unavailable"))
+                .thenReturn(new int[]{1});
+        stats.tokensCreated(Optional.of(true), 2);
+        stats.smsSent();
+
+        stats.flushAll();
+        stats.tokensCreated(Optional.of(false), 1);
+        stats.flushAll();
+
+        ArgumentCaptor<SqlParameterSource[]> tokenRows = ArgumentCaptor.forClass(SqlParameterSource[].class);
+        verify(jdbc, times(2)).batchUpdate(contains("stats_token_create_minute"), tokenRows.capture());
+        verify(jdbc, times(1)).batchUpdate(contains("stats_sms_send_minute"), any(SqlParameterSource[].class));
+        assertEquals(3L, sum(tokenRows.getAllValues().get(1), "token_count"));
+        assertEquals(2L, sum(tokenRows.getAllValues().get(1), "symptoms_exist_count"));
+        assertEquals(1L, sum(tokenRows.getAllValues().get(1), "symptoms_not_exist_count"));
+    }
+
+    private long sum(SqlParameterSource[] rows, String column) {
+        long sum = 0;
+        for (SqlParameterSource row : rows) {
+            sum += (Long) row.getValue(column);
+        }
+        return sum;
+    }
+}
@@ -44,6 +44,9 @@ public class SMSServiceTestIT {
     @Autowired
     NamedParameterJdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private PublishTokenStats stats;
+
     @Captor
     private ArgumentCaptor<HttpEntity<SmsPayload>> reqCaptor;
 
@@ -85,12 +88,14 @@ public class SMSServiceTestIT {
     }
 
     private void assertSmsStatRowAdded() {
-        String sql = "select count(*) from pt.stats_sms_send";
+        stats.flushAll();
+        String sql = "select coalesce(sum(sms_count), 0) from pt.stats_sms_send_minute";
         Integer rows = jdbcTemplate.queryForObject(sql, Collections.emptyMap(), Integer.class);
         assertEquals(1, rows);
     }
 
     private void deleteStatsRows() {
-        jdbcTemplate.update("delete from pt.stats_sms_send", Collections.emptyMap());
+        stats.flushAll();
+        jdbcTemplate.update("delete from pt.stats_sms_send_minute", Collections.emptyMap());
     }
 }
@@ -0,0 +1,70 @@
+package fi.thl.covid19.publishtoken;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+public class TokenPoolTest {
+
+    private final PublishTokenDao dao = mock(PublishTokenDao.class);
+
+    @Test
+    public void refillReservesUpToPoolSize() {
+        when(dao.reserveTokens(anyCollection())).thenAnswer(invocation -> new ArrayList<>(invocation.<Collection<String>>getArgument(0)));
+        TokenPool pool = createPool(true, 5);
+
+        pool.refill();
+        assertEquals(5, pool.available());
+        pool.refill();
+        verify(dao, times(1)).reserveTokens(anyCollection());
+
+        Set<String> taken = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            taken.add(pool.take().orElseThrow());
+        }
+        assertEquals(5, taken.size());
+        assertTrue(pool.take().isEmpty());
+        assertEquals(0, pool.available());
+    }
+
+    @Test
+    public void collidingCandidatesAreReplaced() {
+        when(dao.reserveTokens(anyCollection())).thenAnswer(invocation -> {
+            // Only one candidate per call is free
+            Collection<String> candidates = invocation.getArgument(0);
+            return List.of(candidates.iterator().next());
+        });
+        TokenPool pool = createPool(true, 3);
+
+        pool.refill();
+        assertEquals(3, pool.available());
+        verify(dao, times(3)).reserveTokens(anyCollection());
+    }
+
+    @Test
+    public void disabledPoolDoesNotReserve() {
+        TokenPool pool = createPool(false, 5);
+        pool.refill();
+        assertTrue(pool.take().isEmpty());
+        verifyNoInteractions(dao);
+    }
+
+    @Test
+    public void randomTokenIs12Digits() {
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(TokenPool.randomToken(random).matches("[0-9]{12}"));
+        }
+    }
+
+    private TokenPool createPool(boolean enabled, int size) {
+        return new TokenPool(dao, new SimpleMeterRegistry(), enabled, size, Duration.ofHours(12));
+    }
+}
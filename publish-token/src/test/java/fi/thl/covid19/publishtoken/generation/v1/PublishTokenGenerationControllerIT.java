@@ -1,6 +1,7 @@
 package fi.thl.covid19.publishtoken.generation.v1;
 
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import fi.thl.covid19.publishtoken.PublishTokenDao;
 import org.junit.jupiter.api.BeforeEach;
@@ -15,7 +16,9 @@ import org.springframework.test.web.servlet.MvcResult;
 
 import java.time.Instant;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static fi.thl.covid19.publishtoken.generation.v1.PublishTokenGenerationController.SERVICE_NAME_HEADER;
@@ -189,6 +192,74 @@ public class PublishTokenGenerationControllerIT {
                 .andExpect(content().contentType(MediaType.APPLICATION_JSON));
     }
 
+    @Test
+    public void batchPostReturnsTokensInRequestOrder() throws Exception {
+        LocalDate onset = LocalDate.now().minus(1, DAYS);
+        List<PublishTokenGenerationRequest> requests = List.of(
+                new PublishTokenGenerationRequest("user-1", onset, Optional.empty(), Optional.empty(), Optional.empty()),
+                new PublishTokenGenerationRequest("user-2", onset, Optional.empty(), Optional.empty(), Optional.of(true)),
+                new PublishTokenGenerationRequest("user-3", onset, Optional.empty(), Optional.empty(), Optional.of(false)));
+        MvcResult post = mockMvc
+                .perform(post(GENERATION_URL + "/batch")
+                        .header(SERVICE_NAME_HEADER, TEST_SERVICE)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(Map.of("requests", requests))))
+                .andExpect(status().isOk()).andReturn();
+        JsonNode results = mapper.readTree(post.getResponse().getContentAsString()).get("results");
+        assertEquals(3, results.size());
+        for (int i = 0; i < 3; i++) {
+            PublishToken token = mapper.treeToValue(results.get(i).get("publishToken"), PublishToken.class);
+            assertTokens(TEST_SERVICE, "user-" + (i + 1), List.of(token));
+            assertTrue(results.get(i).get("smsStatus").isNull());
+        }
+    }
+
+    @Test
+    public void batchSmsFailureIsReportedPerToken() throws Exception {
+        // The dev profile has no SMS gateway, so sending fails
+        LocalDate onset = LocalDate.now().minus(1, DAYS);
+        List<PublishTokenGenerationRequest> requests = List.of(
+                new PublishTokenGenerationRequest("user-1", onset, Optional.of("+358401234567"), Optional.empty(), Optional.empty()),
+                new PublishTokenGenerationRequest("user-2", onset, Optional.empty(), Optional.empty(), Optional.empty()));
+        MvcResult post = mockMvc
+                .perform(post(GENERATION_URL + "/batch")
+                        .header(SERVICE_NAME_HEADER, TEST_SERVICE)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(Map.of("requests", requests))))
+                .andExpect(status().isOk()).andReturn();
+        JsonNode results = mapper.readTree(post.getResponse().getContentAsString()).get("results");
+        assertEquals("failed", results.get(0).get("smsStatus").asText());
+        assertTrue(results.get(1).get("smsStatus").isNull());
+        for (int i = 0; i < 2; i++) {
+            PublishToken token = mapper.treeToValue(results.get(i).get("publishToken"), PublishToken.class);
+            assertTokens(TEST_SERVICE, "user-" + (i + 1), List.of(token));
+        }
+    }
+
+    @Test
+    public void batchWithTooManyDirectSmsIs400() throws Exception {
+        LocalDate onset = LocalDate.now().minus(1, DAYS);
+        List<PublishTokenGenerationRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 21; i++) {
+            requests.add(new PublishTokenGenerationRequest("user-" + i, onset, Optional.of("+358401234567"), Optional.empty(), Optional.empty()));
+        }
+        mockMvc.perform(post(GENERATION_URL + "/batch")
+                .header(SERVICE_NAME_HEADER, TEST_SERVICE)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(mapper.writeValueAsString(Map.of("requests", requests))))
+                .andExpect(status().isBadRequest());
+        assertTokens(TEST_SERVICE, "user-0", List.of());
+    }
+
+    @Test
+    public void emptyBatchIs400() throws Exception {
+        mockMvc.perform(post(GENERATION_URL + "/batch")
+                .header(SERVICE_NAME_HEADER, TEST_SERVICE)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"requests\":[]}"))
+                .andExpect(status().isBadRequest());
+    }
+
     private PublishToken verifiedValidateOnlyPost(PublishTokenGenerationRequest request, boolean validateOnly) throws Exception {
         MvcResult post = mockMvc
                 .perform(post(GENERATION_URL)
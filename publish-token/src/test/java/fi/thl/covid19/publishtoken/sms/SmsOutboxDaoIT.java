@@ -0,0 +1,80 @@
+package fi.thl.covid19.publishtoken.sms;
+
+import fi.thl.covid19.publishtoken.PublishTokenDao;
+import fi.thl.covid19.publishtoken.generation.v1.PublishToken;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+import static fi.thl.covid19.publishtoken.sms.SmsDeliveryStatus.*;
+import static java.time.temporal.ChronoUnit.HOURS;
+import static java.time.temporal.ChronoUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles({"dev"})
+public class SmsOutboxDaoIT {
+
+    @Autowired
+    private PublishTokenDao tokenDao;
+
+    @Autowired
+    private SmsOutboxDao dao;
+
+    @BeforeEach
+    public void setUp() {
+        tokenDao.deleteTokensExpiredBefore(Instant.now().plus(48, HOURS));
+    }
+
+    @Test
+    public void queuedMessageIsClaimedOnceAndMarkedSent() {
+        storeToken("000000000031");
+        assertTrue(dao.addMessage("000000000031", "0401234567"));
+        assertEquals(Optional.of(PENDING), dao.getStatus("000000000031", "testservice").map(s -> s.status));
+
+        List<SmsOutboxEntry> claimed = dao.claimMessages(10, Duration.ofMinutes(5));
+        assertEquals(1, claimed.size());
+        assertEquals("000000000031", claimed.get(0).token);
+        assertEquals("0401234567", claimed.get(0).phoneNumber);
+        assertTrue(dao.claimMessages(10, Duration.ofMinutes(5)).isEmpty());
+
+        dao.markSent(claimed.get(0).id);
+        SmsDeliveryStatus status = dao.getStatus("000000000031", "testservice").orElseThrow();
+        assertEquals(SENT, status.status);
+        assertEquals(1, status.attempts);
+        assertTrue(status.sentAt.isPresent());
+    }
+
+    @Test
+    public void failedMessageInvalidatesToken() {
+        storeToken("000000000032");
+        dao.addMessage("000000000032", "0401234567");
+        long id = dao.claimMessages(10, Duration.ofMinutes(5)).get(0).id;
+
+        dao.markFailed(id);
+        assertEquals(Optional.of(FAILED), dao.getStatus("000000000032", "testservice").map(s -> s.status));
+        assertTrue(tokenDao.getVerification("000000000032").isEmpty());
+    }
+
+    @Test
+    public void statusIsOnlyShownToOriginService() {
+        storeToken("000000000033");
+        dao.addMessage("000000000033", "0401234567");
+        assertTrue(dao.getStatus("000000000033", "otherservice").isEmpty());
+        assertFalse(dao.addMessage("000000000034", "0401234567"));
+    }
+
+    private void storeToken(String token) {
+        Instant now = Instant.now().truncatedTo(SECONDS);
+        tokenDao.storeToken(new PublishToken(token, now, now.plus(12, HOURS)),
+                LocalDate.now(), "testservice", "testuser", Optional.empty());
+    }
+}
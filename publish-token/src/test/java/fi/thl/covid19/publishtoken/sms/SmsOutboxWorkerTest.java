@@ -0,0 +1,117 @@
+package fi.thl.covid19.publishtoken.sms;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.time.temporal.ChronoUnit.HOURS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class SmsOutboxWorkerTest {
+
+    private final SmsOutboxDao dao = mock(SmsOutboxDao.class);
+    private final SmsService smsService = mock(SmsService.class);
+    private final SmsOutboxWorker worker = new SmsOutboxWorker(
+            dao, smsService, 2, 10, 2, 3, Duration.ofSeconds(30), Duration.ofMinutes(5));
+
+    @AfterEach
+    public void end() {
+        worker.destroy();
+    }
+
+    @Test
+    public void sentMessageIsMarkedSent() {
+        when(smsService.send("0401234567", "000000000001")).thenReturn(true);
+        worker.deliver(List.of(entry(1, "000000000001", 0)));
+        verify(dao).markSent(1);
+        verifyNoMoreInteractions(dao);
+    }
+
+    @Test
+    public void failedMessageIsRetriedWithBackoff() {
+        when(smsService.send(anyString(), anyString())).thenReturn(false);
+        worker.deliver(List.of(entry(2, "000000000002", 0), entry(3, "000000000003", 1)));
+        verify(dao).retryLater(2, Duration.ofSeconds(30));
+        verify(dao).retryLater(3, Duration.ofSeconds(60));
+        verifyNoMoreInteractions(dao);
+    }
+
+    @Test
+    public void lastFailedAttemptFailsMessage() {
+        when(smsService.send(anyString(), anyString())).thenReturn(false);
+        worker.deliver(List.of(entry(4, "000000000004", 2)));
+        verify(dao).markFailed(4);
+        verifyNoMoreInteractions(dao);
+    }
+
+    @Test
+    public void expiredTokenIsNotSent() {
+        worker.deliver(List.of(new SmsOutboxEntry(5, "0401234567", "000000000005", Instant.now().minus(1, HOURS), 0)));
+        verify(dao).markFailed(5);
+        verify(smsService, never()).send(anyString(), anyString());
+    }
+
+    @Test
+    public void sendErrorIsRecordedForItsMessageOnly() {
+        when(smsService.send("0401234567", "000000000006")).thenThrow(new IllegalStateException("Gateway error"));
+        when(smsService.send("0401234567", "000000000007")).thenReturn(true);
+        worker.deliver(List.of(entry(6, "000000000006", 0), entry(7, "000000000007", 0)));
+        verify(dao).retryLater(6, Duration.ofSeconds(30));
+        verify(dao).markSent(7);
+        verifyNoMoreInteractions(dao);
+    }
+
+    @Test
+    public void recordErrorDoesNotStopOtherResults() {
+        when(smsService.send(anyString(), anyString())).thenReturn(true);
+        doThrow(new IllegalStateException("DB error")).when(dao).markSent(8);
+        worker.deliver(List.of(entry(8, "000000000008", 0), entry(9, "000000000009", 0)));
+        verify(dao).markSent(8);
+        verify(dao).markSent(9);
+    }
+
+    @Test
+    public void messagesAreNotRecordedAfterShutdown() {
+        worker.destroy();
+        worker.deliver(List.of(entry(10, "000000000010", 0)));
+        verify(smsService, never()).send(anyString(), anyString());
+        verifyNoInteractions(dao);
+    }
+
+    @Test
+    public void disabledOutboxIsNotPolled() {
+        when(smsService.isOutboxEnabled()).thenReturn(false);
+        worker.sendPending();
+        verify(dao, never()).claimMessages(anyInt(), any());
+    }
+
+    @Test
+    public void pollStopsAfterMaxRounds() {
+        when(smsService.isOutboxEnabled()).thenReturn(true);
+        when(smsService.send(anyString(), anyString())).thenReturn(true);
+        List<SmsOutboxEntry> fullBatch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            fullBatch.add(entry(100 + i, String.format("%012d", 100 + i), 0));
+        }
+        when(dao.claimMessages(anyInt(), any())).thenReturn(fullBatch);
+        worker.sendPending();
+        verify(dao, times(2)).claimMessages(anyInt(), any());
+    }
+
+    @Test
+    public void backoffDoubles() {
+        assertEquals(Duration.ofSeconds(30), worker.backoff(0));
+        assertEquals(Duration.ofSeconds(120), worker.backoff(2));
+    }
+
+    private SmsOutboxEntry entry(long id, String token, int attempts) {
+        return new SmsOutboxEntry(id, "0401234567", token, Instant.now().plus(1, HOURS), attempts);
+    }
+}
@@ -1,5 +1,6 @@
 package fi.thl.covid19.publishtoken.verification.v1;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import fi.thl.covid19.publishtoken.PublishTokenDao;
 import fi.thl.covid19.publishtoken.generation.v1.PublishToken;
@@ -14,12 +15,16 @@ import org.springframework.test.web.servlet.MockMvc;
 
 import java.time.Instant;
 import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static fi.thl.covid19.publishtoken.verification.v1.PublishTokenVerificationController.TOKEN_HEADER;
 import static java.time.temporal.ChronoUnit.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -80,6 +85,35 @@ public class PublishTokenVerificationControllerIT {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void batchVerifiesEachToken() throws Exception {
+        LocalDate onset = LocalDate.now().minus(2, DAYS);
+        addToken("000000000011", onset);
+        Instant created = Instant.now().minus(48, HOURS).truncatedTo(SECONDS);
+        addToken("000000000012", created, created.plus(24, HOURS), onset);
+
+        String body = mockMvc.perform(post(VERIFICATION_URL + "/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(mapper.writeValueAsString(Map.of("tokens", List.of("000000000011", "000000000012", "000000000013")))))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andReturn().getResponse().getContentAsString();
+        JsonNode results = mapper.readTree(body).get("results");
+        assertEquals(3, results.size());
+        assertEquals("000000000011", results.get(0).get("token").asText());
+        assertEquals(onset.toString(), results.get(0).get("verification").get("symptomsOnset").asText());
+        assertTrue(results.get(1).get("verification").isNull());
+        assertTrue(results.get(2).get("verification").isNull());
+    }
+
+    @Test
+    public void invalidTokenInBatchIs400() throws Exception {
+        mockMvc.perform(post(VERIFICATION_URL + "/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(mapper.writeValueAsString(Map.of("tokens", List.of("000000000011", "12345678901A")))))
+                .andExpect(status().isBadRequest());
+    }
+
     private void addToken(String token, LocalDate symptomsOnset) {
         Instant created = Instant.now().truncatedTo(SECONDS);
         addToken(token, created, created.plus(24, HOURS), symptomsOnset);